@@ -31,13 +31,18 @@ public class Application {
 	 */
 	private static void help(String cause) {
 		final String help = "com.zygateley.compiler version " + version + " Copyright Zachary Gateley 2020\n\n"+
-				"java -jar zyg_compile.jar [-ahlnpv] path/to/inputFile.fnc\n\n"+
+				"java -jar zyg_compile.jar [-afghlnopsv] [path/to/grammarFile] path/to/inputFile.fnc\n\n"+
 				"Flags:\n" +
 				"\ta\tKeep the assembly file after compilation (writes to inputFile.asm)\n"+
+				"\tf\tBuild the optimized syntax tree while parsing, without the parse tree\n"+
+				"\tg\tLex a dialect, respelling tokens by grammarFile (one line per token:\n"+
+				"\t\tname, exact string, potential expression, full expression, tab separated)\n"+
 				"\th\tShow this help screen\n"+
 				"\tl\tWrite log file to inputFile_log.txt\n"+
 				"\tn\tDo not create executable\n"+
+				"\to\tKeep tokens off the heap, spilling to a temporary file (for very large sources)\n"+
 				"\tp\tTranslate the code to python (writes to inputFile.py)\n"+
+				"\ts\tStream tokens from the lexer into the parser as they are lexed (ignored with l, v)\n"+
 				"\tv\tVerbose output\n\n";
 		System.out.println("\n");
 		if (cause != null && !cause.isBlank()) {
@@ -46,6 +51,57 @@ public class Application {
 		System.out.println(help);
 	}
 	
+	/**
+	 * Front end, and the passes over the optimized tree before the back ends
+	 * 
+	 * @param source source to lex
+	 * @param tokenStream stream receiving its tokens
+	 * @param symbolTable table receiving its symbols
+	 * @param streamTokens lex on a thread of its own, ahead of the parser (not when logging)
+	 * @param fuseParseAndOptimize build the optimized tree while parsing
+	 * @return typed, specialized and folded optimized tree, or null if there is none
+	 * @throws Exception
+	 */
+	static Node compile(SourceBuffer source, TokenStream tokenStream, SymbolTable symbolTable,
+			boolean streamTokens, boolean fuseParseAndOptimize) throws Exception {
+		// Break down into tokens 
+		// and populate symbol tree
+		if (streamTokens && !verbose && !writeLogFile) {
+			// Lexer runs on its own thread, ahead of the parser
+			// Not when logging, the two logs would interleave
+			tokenStream.lexConcurrently();
+		}
+		else {
+			Lexer lexer = new Lexer(source, tokenStream, symbolTable, logFile);
+			lexer.lex(verbose);
+		}
+		
+		// Build syntax tree
+		Parser parser = new Parser(tokenStream, logFile);
+		Node optimizedTree;
+		if (fuseParseAndOptimize) {
+			optimizedTree = parser.parseOptimized(verbose);
+		}
+		else {
+			Node syntaxTree = parser.parse(verbose);
+			// Optimize parse tree
+			optimizedTree = (syntaxTree == null ? null : new Optimizer(logFile).optimize(syntaxTree, verbose));
+		}
+		if (optimizedTree instanceof Node) {
+			// Type check and set types where applicable,
+			// with one function per signature of its calls
+			Monomorphizer.specialize(optimizedTree, symbolTable);
+			// Compute what is known before run time
+			ConstantFolder.fold(optimizedTree, symbolTable);
+			if (verbose || writeLogFile) {
+				log("\n<!-- Type checker initialized -->\n\n");
+				log(optimizedTree.asXMLTree(0, false));
+				log("\n<!-- Type checker finished -->\n\n");
+			}
+		}
+		return optimizedTree;
+	}
+	
 	/**
 	 * main
 	 * 
@@ -65,10 +121,18 @@ public class Application {
 	public static void main(String[] args) throws Exception {
 		// Flag -a ==> true
 		boolean keepAssembly = false;
+		// Flag -f ==> true
+		boolean fuseParseAndOptimize = false;
+		// Flag -g ==> grammar file
+		String grammarFile = null;
 		// Flag -l ==> true
 		Application.writeLogFile = false;
+		// Flag -o ==> true
+		boolean offHeapTokens = false;
 		// Flag -p ==> true
 		boolean translateToPython = false;
+		// Flag -s ==> true
+		boolean streamTokens = false;
 		// Flag -v ==> true
 		Application.verbose = false;
 		// Flag -x ==> false
@@ -90,7 +154,7 @@ public class Application {
 				help("No source file specified.");
 				return;
 			}
-			else if (args.length > 2) {
+			else if (args.length > 3) {
 				help("Too many arguments.");
 				return;
 			}
@@ -104,28 +168,49 @@ public class Application {
 					return;
 				}
 				
-				if (args.length != 2) {
-					help("Not enough arguments. Source file not specified.");
+				boolean useGrammar = args[0].indexOf('g') > 0;
+				if (args.length != (useGrammar ? 3 : 2)) {
+					help(args.length < (useGrammar ? 3 : 2) ?
+							"Not enough arguments. " + (useGrammar ? "Grammar file or source" : "Source") + " file not specified." :
+							"Too many arguments.");
 					return;
 				}
 				
 				// Flags are first argument
 				keepAssembly = args[0].indexOf('a') > 0;
+				fuseParseAndOptimize = args[0].indexOf('f') > 0;
 				writeLogFile = args[0].indexOf('l') > 0;
 				createExecutable = args[0].indexOf('n') < 0;
+				offHeapTokens = args[0].indexOf('o') > 0;
 				translateToPython = args[0].indexOf('p') > 0;
+				streamTokens = args[0].indexOf('s') > 0;
 				verbose = args[0].indexOf('v') > 0;
 				
-				// Source file is second argument
-				sourceFile = args[1];
+				// Grammar file is second argument, if any
+				if (useGrammar) {
+					grammarFile = args[1];
+				}
+				// Source file is last argument
+				sourceFile = args[args.length - 1];
 			}
 			else {
 				sourceFile = args[0];
 			}
 		}
 		
+		// Must precede any lexing
+		if (grammarFile != null) {
+			try {
+				GrammarTables.useGrammar(new File(FileIO.getAbsolutePath(Application.class, grammarFile)).toPath());
+			}
+			catch (IOException err) {
+				help(err.getMessage());
+				return;
+			}
+		}
+		
 		sourceFile = FileIO.getAbsolutePath(Application.class, sourceFile);
-		PushbackReader pushbackReader = FileIO.getReader(sourceFile);
+		SourceBuffer source = FileIO.getSource(sourceFile);
 		
 		String baseName = sourceFile.substring(0, sourceFile.lastIndexOf('.'));
 		
@@ -159,7 +244,9 @@ public class Application {
 		
 		// Objects passed to Parser
 		SymbolTable symbolTable = new SymbolTable();
-		TokenStream tokenStream = new TokenStream();
+		TokenStream tokenStream = offHeapTokens ?
+				TokenStream.offHeap(source, symbolTable) :
+				new TokenStream(source, symbolTable);
 		
 		// Delete any previous compiled files
 		String compiledFileName = null;
@@ -174,27 +261,15 @@ public class Application {
 		}
 		
 		try {
-			// Break down into tokens 
-			// and populate symbol tree
-			Lexer lexer = new Lexer(pushbackReader, tokenStream, symbolTable, logFile);
-			lexer.lex(verbose);
-			
-			// Build syntax tree
-			Parser parser = new Parser(tokenStream, logFile);
-			Node syntaxTree = parser.parse(verbose);
-			if (syntaxTree instanceof Node) {
-				// Optimize parse tree
-				Optimizer optimizer = new Optimizer(logFile);
-				Node optimizedTree = optimizer.optimize(syntaxTree, verbose);
-				
-				// Type check and set types where applicable
-				TypeSystem.typeAssignAndCheck(optimizedTree);
-				if (verbose || writeLogFile) {
-					log("\n<!-- Type checker initialized -->\n\n");
-					log(optimizedTree.asXMLTree(0, false));
-					log("\n<!-- Type checker finished -->\n\n");
+			// Grammar checks from compiling the parse table
+			if (verbose || writeLogFile) {
+				for (String problem : ParseTable.getProblems()) {
+					log("Grammar: " + problem);
 				}
-				
+			}
+			
+			Node optimizedTree = compile(source, tokenStream, symbolTable, streamTokens, fuseParseAndOptimize);
+			if (optimizedTree instanceof Node) {
 				// Assemble
 				Assembler assembler = new Assembler(optimizedTree, symbolTable, GoAsm.class, assemblyFile);
 				if (verbose || writeLogFile) log("\n<!-- Assembler initialized -->\n\n");
@@ -229,10 +304,8 @@ public class Application {
 		finally {
 			System.out.println("");
 			
-			// Always close pushbackReader
-			// and logFile
+			// Always close logFile
 			// pythonFile should be empty if there is an exception
-			pushbackReader.close();
 			
 			if (logFile != null) {
 				logFile.close();
@@ -54,6 +54,9 @@ public class Assembler {
 		private final FileWriter fileWriter;
 		private int currentIndent;
 		private final String indentString = "    ";
+		// Deeper code is indented no further,
+		// so that a line does not grow by the depth of its nesting
+		private final int maxIndent = 16;
 		private boolean newLine = true;
 		private String comment = "";
 		private int commentsAt = 40;
@@ -71,7 +74,7 @@ public class Assembler {
 		public void print(String s) throws Exception {
 			// Indent as necessary
 			if (newLine) {
-				String indent = new String(new char[currentIndent]).replace("\0",  this.indentString);
+				String indent = this.indentString.repeat(this.indentLevels());
 				stringBuilder.append(indent);
 				if (fileWriter instanceof FileWriter) {
 					fileWriter.append(indent);
@@ -123,8 +126,11 @@ public class Assembler {
 			// Pad to certain width so that comments align
 			// But do not truncate
 			if (!this.comment.isBlank() && s.length() < 40) {
-				int width = this.commentsAt - (currentIndent * this.indentString.length());
-				s = String.format("%-" + width + "s", s);
+				int width = this.commentsAt - (this.indentLevels() * this.indentString.length());
+				// Deeply indented code is already past the comment column
+				if (width > s.length()) {
+					s = String.format("%-" + width + "s", s);
+				}
 			}
 			
 			// Print (possibly padded) value
@@ -149,6 +155,10 @@ public class Assembler {
 			this.currentIndent = Math.max(this.currentIndent - 1, 0);
 		}
 		
+		private int indentLevels() {
+			return Math.min(this.currentIndent, this.maxIndent);
+		}
+		
 		public void setComment(String comment) {
 			this.comment = comment;
 		}
@@ -2,6 +2,7 @@ package com.zygateley.compiler;
 
 import java.lang.Exception;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.HashMap;
 
 
@@ -23,13 +24,13 @@ import java.util.HashMap;
  * @author Zachary Gateley
  *
  */
-public abstract class AssyLanguage {
+public abstract class AssyLanguage implements ConstructVisitor<Void, Exception> {
 	protected final Assembler.Writer io;
 	protected final SymbolTable symbolTable;
 	protected final Registry registry;
 	protected Scope globalScope;
 	protected Scope currentScope;
-	protected HashMap<Symbol, String> globalSymbolMap = new HashMap<>();
+	protected HashMap<Constant, String> globalConstantMap = new HashMap<>();
 	protected int globalVariableCount = 0;
 	protected final String heapHandle = "heapHandle";
 	protected final String inputHandle = "inputHandle";
@@ -39,6 +40,13 @@ public abstract class AssyLanguage {
 	protected final String temporaryGlobal = "tempGlobal";
 	protected final int temporaryGlobalLength = 256;
 	protected int labelCount = 0;
+	// Work of assembleNode, next on top: Nodes to assemble and Steps to run
+	private final ArrayList<Object> work = new ArrayList<>();
+	// Work scheduled by the steps being run, in the order it runs
+	// (the work of a step above that of the step it runs within)
+	private final ArrayList<Object> scheduled = new ArrayList<>();
+	// Closes every assembled node
+	private final Step blankLine;
 	
 	// Language-specific
 	protected int maxIntegerDigits = 11;
@@ -83,13 +91,39 @@ public abstract class AssyLanguage {
 		this.io = io;
 		this.symbolTable = symbolTable;
 		this.registry = new Registry(this, tempRegisters);
+		this.blankLine = () -> io.println();
+	}
+	
+	/**
+	 * A piece of assembly deferred until the step
+	 * that scheduled it has finished
+	 */
+	protected interface Step {
+		void run() throws Exception;
+	}
+	
+	/**
+	 * Run step after the current step, 
+	 * and after every step scheduled before it
+	 * 
+	 * @param step
+	 */
+	protected void later(Step step) {
+		this.scheduled.add(step);
+	}
+	
+	/**
+	 * Assemble pn after the current step
+	 * 
+	 * @param pn
+	 */
+	protected void assembleLater(Node pn) {
+		this.scheduled.add(pn);
 	}
 	
 	public void assembleChildren(Node pn) throws Exception {
-		for (Node child : pn) {
-			if (child != null) {
-				assembleNode(child);
-			}
+		for (Node child = pn.getFirstChild(); child != null; child = child.getNextSibling()) {
+			this.assembleLater(child);
 		}
 	}
 	
@@ -117,315 +151,364 @@ public abstract class AssyLanguage {
 		this.assembleNode(parseTree);
 	}
 	
-	@SuppressWarnings("unused")
+	/**
+	 * Assemble pn and all of its contents.
+	 * <p>
+	 * Nested statements are not assembled by recursion.
+	 * Each step schedules its statements (see later, assembleLater),
+	 * which are run from a work stack, 
+	 * so that any depth of nesting can be assembled.
+	 * </p>
+	 * <p>
+	 * The work stack is kept between calls, and shared with 
+	 * the calls made while assembling operands (see getOperandRegister).
+	 * </p>
+	 * 
+	 * @param pn
+	 * @throws Exception
+	 */
 	public void assembleNode(Node pn) throws Exception {
-		Construct construct = pn.getConstruct();
-		Variable variable;
-		Symbol symbol;
-		Node operand, firstChild, nextChild;
-		Register operandRegister, r0, r1;
-		TypeSystem type0, type1;
-		switch (construct) {
-		case SCOPE:
-			this.currentScope = pn.getScope();
-			this.currentScope.setLanguage(this);
-			if (this.globalScope == null) {
-				this.globalScope = this.currentScope;
+		ArrayList<Object> work = this.work;
+		ArrayList<Object> scheduled = this.scheduled;
+		int workBase = work.size();
+		int scheduledBase = scheduled.size();
+		work.add(pn);
+		try {
+			while (work.size() > workBase) {
+				Object next = work.remove(work.size() - 1);
+				int mark = scheduled.size();
+				if (next instanceof Node) {
+					this.assembleStep((Node) next);
+				}
+				else {
+					((Step) next).run();
+				}
+				for (int i = scheduled.size() - 1; i >= mark; i--) {
+					work.add(scheduled.remove(i));
+				}
 			}
-			
-			// Open new scope (set variables into stack)
-			this.assembleScope(true);
-			
-			// Assemble contents of scope
-			this.assembleChildren(pn);
-			
-			// Close scope
+		}
+		finally {
+			work.subList(workBase, work.size()).clear();
+			scheduled.subList(scheduledBase, scheduled.size()).clear();
+		}
+	}
+	
+	/**
+	 * Assemble pn by its Construct (see the visit methods),
+	 * scheduling the assembly of its statements
+	 * 
+	 * @param pn
+	 * @throws Exception
+	 */
+	private void assembleStep(Node pn) throws Exception {
+		this.visit(pn);
+		if (!Construct.FUNCDEF.equals(pn.getConstruct())) {
+			// Functions are output at the end of file
+			this.later(this.blankLine);
+		}
+	}
+	
+	@Override
+	public Void visitScope(Node pn) throws Exception {
+		this.currentScope = pn.getScope();
+		this.currentScope.setLanguage(this);
+		this.currentScope.enter();
+		if (this.globalScope == null) {
+			this.globalScope = this.currentScope;
+		}
+		
+		// Open new scope (set variables into stack)
+		this.assembleScope(true);
+		
+		// Assemble contents of scope
+		this.assembleChildren(pn);
+		
+		// Close scope
+		this.later(() -> {
 			this.assembleScope(false);
 			
 			this.currentScope = this.currentScope.parent;
-			break;
-		case LOOP:
-			Node loopBody = pn.getLastChild();
-			if (pn.getChildCount() == 2) {
-				Node loopCondition = loopBody.getPreviousSibling();
-				this.assembleWhileLoop(loopCondition, loopBody);
-			}
-			else {
-				firstChild = pn.getFirstChild();
-				Node loopVariable = firstChild;
-				loopVariable.setType(TypeSystem.INTEGER);
-				nextChild = firstChild.getNextSibling();
-				Node fromValue = nextChild;
-				nextChild = nextChild.getNextSibling();
-				Node toValue = nextChild;
-				nextChild = nextChild.getNextSibling();
-				Variable loopStepVariable = null;
-				if (nextChild != loopBody) {
-					Node loopStep = nextChild;
-					this.getOperandRegister(loopStep);
-					loopStepVariable = loopStep.getVariable(); 
-				}
-				this.getOperandRegister(loopVariable).free();
-				this.getOperandRegister(fromValue).free();
-				this.getOperandRegister(toValue).free();
-				this.assembleForLoop(
-						loopVariable.getVariable(), 
-						fromValue.getVariable(), 
-						toValue.getVariable(), 
-						loopStepVariable,
-						loopBody);
+		});
+		return null;
+	}
+	
+	@Override
+	public Void visitLoop(Node pn) throws Exception {
+		Node loopBody = pn.getLastChild();
+		if (pn.getChildCount() == 2) {
+			Node loopCondition = loopBody.getPreviousSibling();
+			this.assembleWhileLoop(loopCondition, loopBody);
+		}
+		else {
+			Node firstChild = pn.getFirstChild();
+			Node loopVariable = firstChild;
+			Node nextChild = firstChild.getNextSibling();
+			Node fromValue = nextChild;
+			nextChild = nextChild.getNextSibling();
+			Node toValue = nextChild;
+			nextChild = nextChild.getNextSibling();
+			Variable loopStepVariable = null;
+			if (nextChild != loopBody) {
+				Node loopStep = nextChild;
+				this.getOperandRegister(loopStep);
+				loopStepVariable = loopStep.getVariable(); 
 			}
-			io.println("; loop skipped");
+			this.getOperandRegister(loopVariable).free();
+			this.getOperandRegister(fromValue).free();
+			this.getOperandRegister(toValue).free();
+			this.assembleForLoop(
+					loopVariable.getVariable(), 
+					fromValue.getVariable(), 
+					toValue.getVariable(), 
+					loopStepVariable,
+					loopBody);
+		}
+		this.later(() -> io.println("; loop skipped"));
+		return null;
+	}
+	
+	@Override
+	public Void visitIf(Node pn) throws Exception {
+		Node condition = pn.getFirstChild();
+		Node subtreeIfTrue = condition.getNextSibling();
+		Node subtreeIfFalse = subtreeIfTrue.getNextSibling();
+		this.assembleConditionalJump(condition, subtreeIfTrue, subtreeIfFalse);
+		return null;
+	}
+	
+	@Override
+	public Void visitFunctionDefinition(Node pn) throws Exception {
+		// Save all functions into SymbolTable
+		// To be processed and output at the end of file
+		Symbol symbol = pn.getFirstChild().getSymbol();
+		// Parameters are next
+		// Finally is function body
+		io.println("; function " + symbol);
+		return null;
+	}
+	
+	@Override
+	public Void visitVariableDeclaration(Node pn) throws Exception {
+		if (pn.getChildCount() == 1) {
+			// Variable declarations and scope already handled
+			return null;
+		}
+		// If there is a value set to the variable, same as VARSET
+		return this.visitVariableSet(pn);
+	}
+	
+	@Override
+	public Void visitVariableSet(Node pn) throws Exception {
+		Node firstChild = pn.getFirstChild();
+		Variable variable = firstChild.getVariable();
+		Symbol symbol = variable.getSymbol();
+		io.println("; Store value to " + symbol);
+		
+		// Allocate a new temporary register
+		if (variable == null) {
+			throw new Exception("Variable not properly linked during parsing.");
+			// Variable not found, declare new
+			// Allocates stack space
+			//v0 = this.currentScope.declareVariable(r0, symbol);
+		}
+		
+		Node operand = pn.getLastChild();
+		// Let pn and operand share the same variable
+		operand.setVariable(variable);
+		Register operandRegister = this.getOperandRegister(operand);
+		this.assembleVariablePopulation(variable, operandRegister);
+		operandRegister.free();
+		return null;
+	}
+	
+	@Override
+	@SuppressWarnings("unused")
+	public Void visitOutput(Node pn) throws Exception {
+		io.println("; Output");
+		Node operand = pn.getLastChild();
+		this.getOperandRegister(operand).free();
+		Variable variable = operand.getVariable();
+		TypeSystem type = operand.getType();
+		Symbol symbol = operand.getSymbol();
+		String address;
+		switch (type) {
+		case BOOLEAN:
+			variable = this.assembleBooleanToString(variable);
 			break;
-		case IF:
-			Node condition = pn.getFirstChild();
-			Node subtreeIfTrue = condition.getNextSibling();
-			Node subtreeIfFalse = subtreeIfTrue.getNextSibling();
-			this.assembleConditionalJump(condition, subtreeIfTrue, subtreeIfFalse);
+		case INTEGER:
+			variable = this.assembleIntegerToString(variable);
 			break;
-		case FUNCDEF:
-			// Save all functions into SymbolTable
-			// To be processed and output at the end of file
-			symbol = pn.getFirstChild().getSymbol();
-			// Parameters are next
-			// Finally is function body
-			io.println("; function " + symbol);
-			return;
-		case VARDECL:
-			if (pn.getChildCount() == 1) {
-				// Variable declarations and scope already handled
-				break;
-			}
-			// If there is a value set to the variable, fall into VARSET
-		case VARSET:
-			firstChild = pn.getFirstChild();
-			variable = firstChild.getVariable();
-			symbol = variable.getSymbol();
-			io.println("; Store value to " + symbol);
-			
-			// Allocate a new temporary register
-			if (variable == null) {
-				throw new Exception("Variable not properly linked during parsing.");
-				// Variable not found, declare new
-				// Allocates stack space
-				//v0 = this.currentScope.declareVariable(r0, symbol);
-			}
-			
-			operand = pn.getLastChild();
-			// Let pn and operand share the same variable
-			operand.setVariable(variable);
-			operandRegister = this.getOperandRegister(operand);
-			this.assembleVariablePopulation(variable, operandRegister);
-			operandRegister.free();
-			
-			// Make sure type of variable is up-to-date
-			symbol.setType(operand.getType());
-			
+		case STRING:
 			break;
-		case OUTPUT:
-			io.println("; Output");
-			operand = pn.getLastChild();
-			this.getOperandRegister(operand).free();
-			variable = operand.getVariable();
-			TypeSystem type = operand.getType();
-			symbol = operand.getSymbol();
-			String address;
-			switch (type) {
-			case BOOLEAN:
-				variable = this.assembleBooleanToString(variable);
-				break;
-			case INTEGER:
-				variable = this.assembleIntegerToString(variable);
-				break;
-			case STRING:
-				break;
-			default:
-				throw new Exception("Bad output " + type);
-			}
-			this.assembleOutput(variable);
-			
+		default:
+			throw new Exception("Bad output " + type);
+		}
+		this.assembleOutput(variable);
+		return null;
+	}
+	
+	@Override
+	public Void visitInput(Node pn) throws Exception {
+		io.println("; Input");
+		Node operand = pn.getLastChild();
+		Variable variable = operand.getVariable();
+		if (variable == null) {
+			throw new Exception("Input requested but no variable given.");
+		}
+		this.assembleInput(variable);
+		return null;
+	}
+	
+	@Override
+	public Void visitNot(Node pn) throws Exception {
+		// Make sure value/result of first child is saved in stack 
+		this.assembleOperandLater(pn.getFirstChild());
+		this.later(() -> this.assembleNot(pn));
+		return null;
+	}
+	
+	private void assembleNot(Node pn) throws Exception {
+		Construct construct = pn.getConstruct();
+		Node firstChild = pn.getFirstChild();
+		TypeSystem type0 = firstChild.getType();
+		
+		Register operandRegister;
+		switch (type0) {
+		case BOOLEAN:
+			operandRegister = this.assembleBooleanOperation(
+					construct, firstChild.getVariable(), null
+					);
 			break;
-		case INPUT:
-			io.println("; Input");
-			operand = pn.getLastChild();
-			variable = operand.getVariable();
-			if (variable == null) {
-				throw new Exception("Input requested but no variable given.");
-			}
-			this.assembleInput(variable);
-			
-			// Input always received as string
-			pn.setType(TypeSystem.STRING);
-			variable.setType(TypeSystem.STRING);
-			variable.getSymbol().setType(TypeSystem.STRING);
-			
+		case INTEGER:
+			// ADD, SUB, MULT, INTDIV
+			// EQEQ, NEQ, LT, LTEQ, GT, GTEQ
+			operandRegister = this.assembleIntegerOperation(
+					construct, firstChild.getVariable(), null
+					);
 			break;
-		case NOT:
-			// Make sure value/result of first child is saved in stack 
-			firstChild = pn.getFirstChild();
-			// Operand assembles. Operand variable contains data location.
-			this.getOperandRegister(firstChild).free();
-			
-			type0 = firstChild.getType();
-			
-			switch (type0) {
-			case BOOLEAN:
-				operandRegister = this.assembleBooleanOperation(
-						construct, firstChild.getVariable(), null
-						);
-				break;
-			case INTEGER:
-				// ADD, SUB, MULT, INTDIV
-				// EQEQ, NEQ, LT, LTEQ, GT, GTEQ
-				operandRegister = this.assembleIntegerOperation(
-						construct, firstChild.getVariable(), null
-						);
-				break;
-			default:
-				throw new Exception("Invalid operand (" + type0 + ") for operation NOT");
-			}
+		default:
+			throw new Exception("Invalid operand (" + type0 + ") for operation NOT");
+		}
 
-			// Link node and register
-			variable = pn.getVariable();
-			if (variable == null) {
-				variable = new Variable();
-				pn.setVariable(variable);
-			}
-			variable.linkRegister(operandRegister);
-			
-			// Make sure node type is up to date
-			pn.setType(type0);
-			
+		// Link node and register
+		Variable variable = pn.getVariable();
+		if (variable == null) {
+			variable = new Variable();
+			pn.setVariable(variable);
+		}
+		variable.linkRegister(operandRegister);
+	}
+	
+	@Override
+	public Void visitBinaryOperator(Node pn) throws Exception {
+		// Make sure value/result of first child is saved in stack 
+		Node firstChild = pn.getFirstChild();
+		this.assembleOperandLater(firstChild);
+		// Make sure value/result of second child is saved in stack 
+		this.assembleOperandLater(firstChild.getNextSibling());
+		this.later(() -> this.assembleBinaryOperator(pn));
+		return null;
+	}
+	
+	private void assembleBinaryOperator(Node pn) throws Exception {
+		Construct construct = pn.getConstruct();
+		Node firstChild = pn.getFirstChild();
+		Node nextChild = firstChild.getNextSibling();
+		
+		// Check for bad type operation
+		TypeSystem type0 = firstChild.getType();
+		TypeSystem type1 = nextChild.getType();
+		
+		// Automatically promote boolean or integer to string for concatenation
+		boolean promoteToString = false;
+		TypeSystem operationType = type0;
+		if (construct == Construct.ADD && (type0 == TypeSystem.STRING || type1 == TypeSystem.STRING)) {
+			promoteToString = true;
+			operationType = TypeSystem.STRING;
+		}
+		
+		if (type0 != type1 && !promoteToString) {
+			// Different types, no strings
+			throw new Exception(String.format("Bad addition: %s and %s", type0, type1));
+		}
+		
+		// Both types are the same
+		// And both operands have a variable
+		Register operandRegister = null;
+		Variable variable0 = firstChild.getVariable();
+		Variable variable1 = nextChild.getVariable();
+		switch (operationType) {
+		case BOOLEAN:
+			// AND, OR
+			operandRegister = this.assembleBooleanOperation(
+					construct, variable0, variable1
+					);
 			break;
-		case OR: case AND:
-		case ADD: case SUB: case MULT: case INTDIV:
-		case EQEQ: case NEQ: case LT: case LTEQ: case GT: case GTEQ:
-			// Make sure value/result of first child is saved in stack 
-			firstChild = pn.getFirstChild();
-			// Operand assembles. Operand variable contains data location.
-			this.getOperandRegister(firstChild).free();
-			
-			// Make sure value/result of second child is saved in stack 
-			nextChild = firstChild.getNextSibling();
-			// Operand assembles. Operand variable contains data location.
-			this.getOperandRegister(nextChild).free();
-			
-			// Check for bad type operation
-			type0 = firstChild.getType();
-			type1 = nextChild.getType();
-			
-			// Automatically promote boolean or integer to string for concatenation
-			boolean promoteToString = false;
-			TypeSystem operationType = type0;
-			if (construct == Construct.ADD && (type0 == TypeSystem.STRING || type1 == TypeSystem.STRING)) {
-				promoteToString = true;
-				operationType = TypeSystem.STRING;
-			}
-			
-			if (type0 != type1 && !promoteToString) {
-				// Different types, no strings
-				throw new Exception(String.format("Bad addition: %s and %s", type0, type1));
-			}
-			
-			// Both types are the same
-			// And both operands have a variable
-			operandRegister = null;
-			Variable variable0 = firstChild.getVariable();
-			Variable variable1 = nextChild.getVariable();
-			TypeSystem resultantType;
-			switch (operationType) {
-			case BOOLEAN:
-				// AND, OR
-				operandRegister = this.assembleBooleanOperation(
-						construct, variable0, variable1
-						);
-				resultantType = TypeSystem.BOOLEAN;
-				break;
-			case INTEGER:
-				// ADD, SUB, MULT, INTDIV
-				// EQEQ, NEQ, LT, LTEQ, GT, GTEQ
-				operandRegister = this.assembleIntegerOperation(
-						construct, variable0, variable1
-						);
-				resultantType = TypeSystem.INTEGER;
-				break;
-			case STRING:
-				// Automatic string promotion
-				for (int i = 0; i < 2; i++) {
-					TypeSystem typei = (i==0 ? type0 : type1);
-					Variable variablei = (i==0 ? variable0 : variable1);
-					boolean updateVariable = false;
-					if (typei == TypeSystem.BOOLEAN) {
-						variablei = this.assembleBooleanToString(variablei);
-						updateVariable = true;
-					}
-					else if (typei == TypeSystem.INTEGER) {
-						variablei = this.assembleIntegerToString(variablei);
-						updateVariable = true;
-					}
-					if (updateVariable) {
-						if (i == 0)	variable0 = variablei;
-						else		variable1 = variablei;
-					}
+		case INTEGER:
+			// ADD, SUB, MULT, INTDIV
+			// EQEQ, NEQ, LT, LTEQ, GT, GTEQ
+			operandRegister = this.assembleIntegerOperation(
+					construct, variable0, variable1
+					);
+			break;
+		case STRING:
+			// Automatic string promotion
+			for (int i = 0; i < 2; i++) {
+				TypeSystem typei = (i==0 ? type0 : type1);
+				Variable variablei = (i==0 ? variable0 : variable1);
+				boolean updateVariable = false;
+				if (typei == TypeSystem.BOOLEAN) {
+					variablei = this.assembleBooleanToString(variablei);
+					updateVariable = true;
 				}
-				
-				if (Construct.ADD.equals(construct)) {
-					operandRegister = this.assembleStringConcatenation(variable0, variable1);
-					// New string length stored in Eax from assembleConcatenation
+				else if (typei == TypeSystem.INTEGER) {
+					variablei = this.assembleIntegerToString(variablei);
+					updateVariable = true;
 				}
-				else {
-					boolean isEQEQ = Construct.EQEQ.equals(construct);
-					boolean isNEQ = Construct.NEQ.equals(construct);
-					if (isEQEQ || isNEQ) {
-						operandRegister = this.assembleStringCompare(construct, variable0, variable1);
-					}
-					else {
-						throw new Exception(String.format("Bad string operation: %s", construct));
-					}
+				if (updateVariable) {
+					if (i == 0)	variable0 = variablei;
+					else		variable1 = variablei;
 				}
-				resultantType = TypeSystem.STRING;
-				break;
-			default:
-				throw new Exception(String.format("Bad %s operation: %s", type0, construct));
-			}
-			
-			if (operandRegister == null) {
-				throw new Exception("Failed operation on " + type0 + " and " + type1);
 			}
-
-			// Link node and register
-			variable = pn.getVariable();
-			if (variable == null) {
-				variable = new Variable();
-				pn.setVariable(variable);
-			}
-			variable.linkRegister(operandRegister);
 			
-			// Make sure node type is up to date 
-			// resultantType set above, override with operators that always result in boolean
-			switch (construct) {
-			case EQEQ: case NEQ: case LT: case LTEQ: case GT: case GTEQ:
-				resultantType = TypeSystem.BOOLEAN;
-				break;
-			default:
-				break;
+			if (Construct.ADD.equals(construct)) {
+				operandRegister = this.assembleStringConcatenation(variable0, variable1);
+				// New string length stored in Eax from assembleConcatenation
 			}
-			// ADD, SUB, MULT, INTDIV
-			// EQEQ, NEQ, LT, LTEQ, GT, GTEQ
-			pn.setType(resultantType);
-			variable.setType(resultantType);
-			if (variable.symbol != null) {
-				variable.symbol.setType(resultantType);
+			else {
+				boolean isEQEQ = Construct.EQEQ.equals(construct);
+				boolean isNEQ = Construct.NEQ.equals(construct);
+				if (isEQEQ || isNEQ) {
+					operandRegister = this.assembleStringCompare(construct, variable0, variable1);
+				}
+				else {
+					throw new Exception(String.format("Bad string operation: %s", construct));
+				}
 			}
-			
 			break;
 		default:
-			io.println("; Instruction skipped (" + construct + ")");
-			this.assembleChildren(pn);
-			break;
+			throw new Exception(String.format("Bad %s operation: %s", type0, construct));
 		}
-		io.println();
 		
+		if (operandRegister == null) {
+			throw new Exception("Failed operation on " + type0 + " and " + type1);
+		}
+
+		// Link node and register
+		Variable variable = pn.getVariable();
+		if (variable == null) {
+			variable = new Variable();
+			pn.setVariable(variable);
+		}
+		variable.linkRegister(operandRegister);
+	}
+	
+	@Override
+	public Void visitDefault(Node pn) throws Exception {
+		io.println("; Instruction skipped (" + pn.getConstruct() + ")");
+		this.assembleChildren(pn);
+		return null;
 	}
 	
 	/**
@@ -436,45 +519,22 @@ public abstract class AssyLanguage {
 	 */
 	public void assembleDataSection() throws Exception {
 		io.println("; String pool");
-		for (Symbol symbol : this.symbolTable) {
-			int byteWidth = 0;
-			String prefix = "";
-			TypeSystem type = symbol.getType();
-			String value = symbol.getValue();
-			if (type == null || value == null) {
+		// Integers and booleans are immediate operands,
+		// only strings need a global
+		// (not those folded into other strings)
+		for (Constant constant : this.symbolTable.getConstantPool()) {
+			if (constant.getType() != TypeSystem.STRING || !constant.isReferenced()) {
 				continue;
 			}
 			
-			switch (type) {
-			case BOOLEAN:
-				byteWidth = 1;
-				prefix = "bool";
-				break;
-			case STRING:
-				byteWidth = 1;
-				prefix = "str";
-				value = "\"" + StringUtils.unescapeAssemblyString(value.substring(1, value.length() - 1) + "\0") + "\"";
-				value = value.replace("\"\",", "").replace(",\"\"", "");
-				break;
-			case INTEGER:
-				byteWidth = 4;
-				prefix = "int";
-				break;
-			default:
-				break;
-			}
+			// New global variable required
+			// Name it by auto-increment
+			// Any pointers to this constant REMAIN THE SAME
+			String name = String.format("%s%d", "str", globalVariableCount++);
+			constant.setName(name);
+			this.globalConstantMap.put(constant, name);
 			
-			// Then add it to the string pool
-			if (byteWidth > 0 && !prefix.isBlank()) {
-				// New global variable required
-				// Name it by auto-increment
-				// Any pointers to this symbol REMAIN THE SAME
-				String name = String.format("%s%d", prefix, globalVariableCount++);
-				symbol.setName(name);
-				this.globalSymbolMap.put(symbol, name);
-				
-				assembleGlobalString(name, byteWidth, value);
-			}
+			assembleGlobalString(name, 1, StringUtils.toAssemblyString(constant.getBytes()));
 		}
 		
 		// String pool true/false
@@ -505,7 +565,38 @@ public abstract class AssyLanguage {
 			this.assembleNode(operand);
 			operandRegister = operand.getVariable().register;
 		}
-		
+		return this.saveOperand(operand, operandRegister);
+	}
+	
+	/**
+	 * Assemble an operand after the current step, 
+	 * as getOperandRegister (whose register is freed), 
+	 * with an operation operand on the work stack
+	 * rather than by a nested assembleNode,
+	 * so that any depth of operations can be assembled
+	 * 
+	 * @param operand
+	 */
+	private void assembleOperandLater(Node operand) {
+		if (operand.getChildCount() == 0) {
+			// Literal or variable
+			this.later(() -> this.getOperandRegister(operand).free());
+		}
+		else {
+			// Expression / operation
+			this.assembleLater(operand);
+			this.later(() -> this.saveOperand(operand, operand.getVariable().register).free());
+		}
+	}
+	
+	/**
+	 * Give an assembled operand a variable in the stack
+	 * 
+	 * @param operand
+	 * @param operandRegister register holding its value
+	 * @return operandRegister
+	 */
+	private Register saveOperand(Node operand, Register operandRegister) throws Exception {
 		// Make sure operand has a variable and is in the stack
 		Variable variable = operand.getVariable();
 		if (variable == null) {
@@ -0,0 +1,105 @@
+package com.zygateley.compiler;
+
+/**
+ * Small set of ASCII bytes, searched for eight bytes at a time.
+ *
+ * The source is read one 64-bit word at a time and every byte
+ * of the word is compared against the set at once (SWAR).
+ * A byte equal to c becomes a zero byte after XOR with c in every lane,
+ * and zero bytes are found exactly with
+ * 		~(((x & 0x7F..7F) + 0x7F..7F) | x | 0x7F..7F)
+ * which sets the high bit of every zero byte and of no other byte.
+ * The last few bytes of a range are checked one at a time.
+ *
+ * Non-ASCII bytes are never in the set.
+ *
+ * @author Zachary Gateley
+ *
+ */
+final class ByteSet {
+	private static final long LOW_BITS = 0x7F7F7F7F7F7F7F7FL;
+	private static final long HIGH_BITS = 0x8080808080808080L;
+	private static final long LANES = 0x0101010101010101L;
+
+	// Each byte of the set repeated in every lane
+	private final long[] patterns;
+	private final boolean[] contains = new boolean[128];
+
+	/**
+	 * @param bytes ASCII bytes in the set
+	 */
+	public ByteSet(byte... bytes) {
+		this.patterns = new long[bytes.length];
+		for (int i = 0; i < bytes.length; i++) {
+			this.patterns[i] = (bytes[i] & 0xFFL) * LANES;
+			this.contains[bytes[i]] = true;
+		}
+	}
+
+	public boolean contains(byte b) {
+		return b >= 0 && this.contains[b];
+	}
+
+	/**
+	 * @return high bit set in every byte of word that is in the set
+	 */
+	private long matches(long word) {
+		long found = 0;
+		for (long pattern : this.patterns) {
+			long x = word ^ pattern;
+			found |= ~(((x & LOW_BITS) + LOW_BITS) | x | LOW_BITS);
+		}
+		return found;
+	}
+
+	/**
+	 * Find the first byte that is in the set or is not ASCII
+	 *
+	 * @param source source to search
+	 * @param from first byte offset searched
+	 * @param limit exclusive end of the search
+	 * @return offset of the byte, or limit if there is none
+	 */
+	public int indexOfAny(SourceBuffer source, int from, int limit) {
+		int i = from;
+		for (; i + 8 <= limit; i += 8) {
+			long word = source.wordAt(i);
+			long found = matches(word) | (word & HIGH_BITS);
+			if (found != 0) {
+				return i + (Long.numberOfTrailingZeros(found) >>> 3);
+			}
+		}
+		for (; i < limit; i++) {
+			byte b = source.byteAt(i);
+			if (b < 0 || this.contains[b]) {
+				return i;
+			}
+		}
+		return limit;
+	}
+
+	/**
+	 * Find the first byte that is not in the set
+	 *
+	 * @param source source to search
+	 * @param from first byte offset searched
+	 * @param limit exclusive end of the search
+	 * @return offset of the byte, or limit if there is none
+	 */
+	public int indexOfNone(SourceBuffer source, int from, int limit) {
+		int i = from;
+		for (; i + 8 <= limit; i += 8) {
+			long outside = ~matches(source.wordAt(i)) & HIGH_BITS;
+			if (outside != 0) {
+				return i + (Long.numberOfTrailingZeros(outside) >>> 3);
+			}
+		}
+		for (; i < limit; i++) {
+			byte b = source.byteAt(i);
+			if (b < 0 || !this.contains[b]) {
+				return i;
+			}
+		}
+		return limit;
+	}
+}
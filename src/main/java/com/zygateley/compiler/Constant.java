@@ -0,0 +1,90 @@
+package com.zygateley.compiler;
+
+/**
+ * A literal decoded once, when it is lexed.
+ * 		INTEGER		int value
+ * 		BOOLEAN		boolean value
+ * 		STRING		bytes of the string, escapes resolved, without quotes
+ */
+class Constant {
+	// Index in ConstantPool
+	private final int id;
+	private final TypeSystem type;
+	private final int intValue;
+	private final boolean booleanValue;
+	private final byte[] bytes;
+	// Literal as it is written in source
+	private final String text;
+	// Name of the global holding this literal, given by the Assembler
+	private String name;
+	// Whether the tree still has this literal, see ConstantFolder
+	private boolean referenced = true;
+
+	Constant(int id, TypeSystem type, int intValue, boolean booleanValue, byte[] bytes, String text) {
+		this.id = id;
+		this.type = type;
+		this.intValue = intValue;
+		this.booleanValue = booleanValue;
+		this.bytes = bytes;
+		this.text = text;
+	}
+
+	public int getId() {
+		return this.id;
+	}
+
+	public TypeSystem getType() {
+		return this.type;
+	}
+
+	public int getInt() {
+		return this.intValue;
+	}
+
+	public boolean getBoolean() {
+		return this.booleanValue;
+	}
+
+	/**
+	 * @return decoded bytes of a STRING, do not change them
+	 */
+	public byte[] getBytes() {
+		return this.bytes;
+	}
+
+	/**
+	 * @return byte length of a decoded STRING
+	 */
+	public int getLength() {
+		return this.bytes.length;
+	}
+
+	public String getText() {
+		return this.text;
+	}
+
+	public String getName() {
+		return this.name;
+	}
+
+	public boolean setName(String newName) {
+		if (this.name == null) {
+			this.name = newName;
+			return true;
+		}
+		return false;
+	}
+
+	public boolean isReferenced() {
+		return this.referenced;
+	}
+
+	public void setReferenced(boolean referenced) {
+		this.referenced = referenced;
+	}
+
+	@Override
+	public String toString() {
+		return this.text;
+	}
+}
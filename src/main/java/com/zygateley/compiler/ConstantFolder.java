@@ -0,0 +1,643 @@
+package com.zygateley.compiler;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Constant folding and propagation over the typed optimized tree.
+ *
+ * An operation on literals is computed now,
+ * and replaced by the literal of its result:
+ * 		ADD, SUB, MULT, INTDIV				INTEGER operands
+ * 		EQEQ, NEQ, LT, LTEQ, GT, GTEQ		INTEGER operands
+ * 		EQEQ, NEQ, AND, OR, NOT				BOOLEAN operands
+ * 		ADD of STRING type					literals of any type
+ * A negated INTEGER node has the negative of its value.
+ * An operation stays for run time if the back ends would not agree on its result:
+ * a result beyond 32 bits, a division by zero,
+ * or an inexact division of operands of different signs
+ * (which truncates in assembly, but floors in Python).
+ * In a string, an INTEGER is promoted to its decimal digits,
+ * and a BOOLEAN to TRUE or FALSE (as both back ends print it).
+ * As concatenation is associative, (x + "a") + "b" is folded to x + "ab".
+ * The STRING results are new literals in the ConstantPool,
+ * and the literals they replace are no longer referenced,
+ * so the data section holds one global per string that is left.
+ *
+ * A literal stored to a variable by VARDECL or VARSET
+ * replaces the reads of that variable after it,
+ * until the variable may be assigned again:
+ * 		by its next VARDECL, VARSET or INPUT
+ * 		by a LOOP assigning it, from the start of the loop (which may repeat)
+ * 		by an IF assigning it in any branch, from the end of the IF
+ * 		by a FUNCCALL, if any function assigns it or has it as a parameter
+ * A function body starts with no values known, as it may be called from anywhere.
+ *
+ * @author Zachary Gateley
+ *
+ */
+final class ConstantFolder implements ConstructVisitor<Void, RuntimeException> {
+	// BOOLEAN promoted to STRING, as AssyLanguage's trueString and falseString,
+	// and PythonTranslator's translateStringLater
+	private static final byte[] TRUE_STRING = { 'T', 'R', 'U', 'E' };
+	private static final byte[] FALSE_STRING = { 'F', 'A', 'L', 'S', 'E' };
+
+	private final ConstantPool constants;
+	// Literal stored in each variable, while it is known
+	private HashMap<Variable, Node> values = new HashMap<>();
+	// Changes to values, as each variable and the value it had before,
+	// undone at the end of a branch or loop
+	private final ArrayList<Variable> undoVariables = new ArrayList<>();
+	private final ArrayList<Node> undoValues = new ArrayList<>();
+	// Variables a function call may assign
+	private final HashSet<Variable> callAssigned = new HashSet<>();
+	// Numbers, in pre-order, of the nodes assigning each variable and of the FUNCCALLs
+	private final HashMap<Variable, ArrayList<Integer>> assignments = new HashMap<>();
+	private final ArrayList<Integer> calls = new ArrayList<>();
+	// First and last number of the nodes of each LOOP, by id
+	private final HashMap<Integer, int[]> loops = new HashMap<>();
+	// Work of foldStatements, next on top:
+	// 		Node		visit it
+	// 		Runnable	run it
+	private final ArrayList<Object> work = new ArrayList<>();
+	// Work scheduled by the step being run, in the order it runs
+	private final ArrayList<Object> scheduled = new ArrayList<>();
+	private final TreeCursor cursor = new TreeCursor();
+
+	private ConstantFolder(SymbolTable symbolTable) {
+		this.constants = symbolTable.getConstantPool();
+	}
+
+	/**
+	 * Fold the constant operations of a typed tree,
+	 * and propagate the constants stored to variables
+	 *
+	 * @param syntaxTree tree after Monomorphizer.specialize
+	 * @param symbolTable table whose ConstantPool receives the results
+	 */
+	static void fold(Node syntaxTree, SymbolTable symbolTable) {
+		ConstantFolder folder = new ConstantFolder(symbolTable);
+		folder.survey(syntaxTree);
+		folder.foldStatements(syntaxTree);
+
+		HashSet<Constant> referenced = new HashSet<>();
+		TreeCursor cursor = folder.cursor.reset(syntaxTree);
+		do {
+			Constant constant = cursor.node().getConstant();
+			if (constant != null) {
+				referenced.add(constant);
+			}
+		} while (cursor.next());
+		for (Constant constant : folder.constants) {
+			constant.setReferenced(referenced.contains(constant));
+		}
+	}
+
+	/**
+	 * Number the nodes in pre-order, finding where each variable is assigned,
+	 * where functions are called, what each loop spans,
+	 * and which variables a function call may assign
+	 */
+	private void survey(Node syntaxTree) {
+		// LOOPs and FUNCDEFs the node is within, with their depths and numbers
+		ArrayList<Node> open = new ArrayList<>();
+		ArrayList<int[]> openAt = new ArrayList<>();
+		int functions = 0;
+		int number = 0;
+		TreeCursor cursor = this.cursor.reset(syntaxTree);
+		do {
+			Node node = cursor.node();
+			int depth = cursor.depth();
+			functions -= this.close(open, openAt, depth, number - 1);
+			Construct construct = node.getConstruct();
+			if (construct == null) {
+				number++;
+				continue;
+			}
+			Variable assigned = null;
+			switch (construct) {
+			case VARDECL:
+			case VARSET:
+				assigned = node.getFirstChild().getVariable();
+				break;
+			case INPUT:
+				assigned = node.getLastChild().getVariable();
+				break;
+			case LOOP:
+				if (node.getChildCount() != 2) {
+					// For loop variable
+					assigned = node.getFirstChild().getVariable();
+				}
+				open.add(node);
+				openAt.add(new int[] { depth, number });
+				break;
+			case FUNCDEF:
+				// Name, parameters, body
+				Node body = node.getLastChild();
+				for (Node parameter = node.getFirstChild().getNextSibling(); parameter != body; parameter = parameter.getNextSibling()) {
+					this.callAssigned.add(parameter.getVariable());
+				}
+				open.add(node);
+				openAt.add(new int[] { depth, number });
+				functions++;
+				break;
+			case FUNCCALL:
+				this.calls.add(number);
+				break;
+			default:
+				break;
+			}
+			if (assigned != null) {
+				this.assignments.computeIfAbsent(assigned, v -> new ArrayList<>()).add(number);
+				if (functions > 0) {
+					this.callAssigned.add(assigned);
+				}
+			}
+			number++;
+		} while (cursor.next());
+		this.close(open, openAt, 0, number - 1);
+	}
+
+	/**
+	 * Close the LOOPs and FUNCDEFs the walk of survey has left,
+	 * those open at depth or deeper
+	 *
+	 * @param last number of the last node within them
+	 * @return number of FUNCDEFs closed
+	 */
+	private int close(ArrayList<Node> open, ArrayList<int[]> openAt, int depth, int last) {
+		int functions = 0;
+		while (!open.isEmpty() && openAt.get(openAt.size() - 1)[0] >= depth) {
+			Node node = open.remove(open.size() - 1);
+			int first = openAt.remove(openAt.size() - 1)[1];
+			if (Construct.LOOP.equals(node.getConstruct())) {
+				this.loops.put(node.getId(), new int[] { first, last });
+			}
+			else {
+				functions++;
+			}
+		}
+		return functions;
+	}
+
+	/**
+	 * @param numbers ascending, or null
+	 * @return whether any of numbers is from first to last
+	 */
+	private static boolean within(ArrayList<Integer> numbers, int first, int last) {
+		if (numbers == null) {
+			return false;
+		}
+		int index = Collections.binarySearch(numbers, first);
+		if (index >= 0) {
+			return true;
+		}
+		index = -index - 1;
+		return index < numbers.size() && numbers.get(index) <= last;
+	}
+
+	/**
+	 * Fold the statements of a subtree, in the order they run.
+	 * <p>
+	 * Nested statements are not folded by recursion.
+	 * Each visit schedules the statements within it and the steps after them
+	 * (see foldLater, later), which are run from a work stack,
+	 * so that any depth of nesting can be folded.
+	 * </p>
+	 */
+	private void foldStatements(Node root) {
+		ArrayList<Object> work = this.work;
+		ArrayList<Object> scheduled = this.scheduled;
+		work.clear();
+		work.add(root);
+		while (!work.isEmpty()) {
+			Object next = work.remove(work.size() - 1);
+			scheduled.clear();
+			if (next instanceof Node) {
+				this.visit((Node) next);
+			}
+			else {
+				((Runnable) next).run();
+			}
+			for (int i = scheduled.size() - 1; i >= 0; i--) {
+				work.add(scheduled.get(i));
+			}
+		}
+		scheduled.clear();
+	}
+	private void later(Runnable step) {
+		this.scheduled.add(step);
+	}
+	private void foldLater(Node node) {
+		this.scheduled.add(node);
+	}
+
+	/**
+	 * Set the value of a variable, logging the change to be undone
+	 *
+	 * @param value literal, or null if it is not known
+	 */
+	private void set(Variable variable, Node value) {
+		Node previous = (value == null ? this.values.remove(variable) : this.values.put(variable, value));
+		if (previous != value) {
+			this.undoVariables.add(variable);
+			this.undoValues.add(previous);
+		}
+	}
+
+	/**
+	 * Undo the changes to values since a mark in the log
+	 *
+	 * @param mark size of the log to return to
+	 * @param changed receives the variables changed, or null
+	 */
+	private void undo(int mark, Set<Variable> changed) {
+		for (int i = this.undoVariables.size() - 1; i >= mark; i--) {
+			Variable variable = this.undoVariables.remove(i);
+			Node previous = this.undoValues.remove(i);
+			if (previous == null) {
+				this.values.remove(variable);
+			}
+			else {
+				this.values.put(variable, previous);
+			}
+			if (changed != null) {
+				changed.add(variable);
+			}
+		}
+	}
+
+	/**
+	 * Forget the values of the variables that may be assigned by a call
+	 */
+	private void forgetCallAssigned() {
+		ArrayList<Variable> assigned = new ArrayList<>();
+		for (Variable variable : this.values.keySet()) {
+			if (this.callAssigned.contains(variable)) {
+				assigned.add(variable);
+			}
+		}
+		for (Variable variable : assigned) {
+			this.set(variable, null);
+		}
+	}
+
+	/**
+	 * Forget the values of the variables that may be assigned within a loop
+	 */
+	private void forgetAssignedWithin(Node loop) {
+		int[] span = this.loops.get(loop.getId());
+		boolean calls = within(this.calls, span[0], span[1]);
+		ArrayList<Variable> assigned = new ArrayList<>();
+		for (Variable variable : this.values.keySet()) {
+			if ((calls && this.callAssigned.contains(variable))
+					|| within(this.assignments.get(variable), span[0], span[1])) {
+				assigned.add(variable);
+			}
+		}
+		for (Variable variable : assigned) {
+			this.set(variable, null);
+		}
+	}
+
+	@Override
+	public Void visitDefault(Node node) {
+		// OUTPUT, FUNCCALL, or an expression
+		this.expression(node);
+		return null;
+	}
+	@Override
+	public Void visitScope(Node node) {
+		for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+			this.foldLater(child);
+		}
+		return null;
+	}
+	@Override
+	public Void visitVariableDeclaration(Node node) {
+		Node target = node.getFirstChild();
+		Node value = target.getNextSibling();
+		if (value != null) {
+			value = this.expression(value);
+		}
+		this.set(target.getVariable(), (value != null && isLiteral(value)) ? value : null);
+		return null;
+	}
+	@Override
+	public Void visitVariableSet(Node node) {
+		return this.visitVariableDeclaration(node);
+	}
+	@Override
+	public Void visitInput(Node node) {
+		this.set(node.getLastChild().getVariable(), null);
+		return null;
+	}
+	@Override
+	public Void visitIf(Node node) {
+		// Condition, body, [else body or IF]
+		Node branch = this.expression(node.getFirstChild()).getNextSibling();
+		// Every branch starts from the values before it,
+		// and what any branch changed is not known after the IF
+		int mark = this.undoVariables.size();
+		HashSet<Variable> changed = new HashSet<>();
+		for (; branch != null; branch = branch.getNextSibling()) {
+			this.foldLater(branch);
+			this.later(() -> this.undo(mark, changed));
+		}
+		this.later(() -> {
+			for (Variable variable : changed) {
+				this.set(variable, null);
+			}
+		});
+		return null;
+	}
+	@Override
+	public Void visitLoop(Node node) {
+		// While: condition, body
+		// For: variable, from, to, [step], body
+		this.forgetAssignedWithin(node);
+		Node body = node.getLastChild();
+		Node child = node.getFirstChild();
+		if (node.getChildCount() != 2) {
+			child = child.getNextSibling();
+		}
+		while (child != body) {
+			Node next = child.getNextSibling();
+			this.expression(child);
+			child = next;
+		}
+		// What the body assigns is already forgotten,
+		// and is not known after the loop
+		int mark = this.undoVariables.size();
+		this.foldLater(body);
+		this.later(() -> this.undo(mark, null));
+		return null;
+	}
+	@Override
+	public Void visitFunctionDefinition(Node node) {
+		HashMap<Variable, Node> outside = this.values;
+		int mark = this.undoVariables.size();
+		this.values = new HashMap<>();
+		this.foldLater(node.getLastChild());
+		this.later(() -> {
+			this.values = outside;
+			this.undoVariables.subList(mark, this.undoVariables.size()).clear();
+			this.undoValues.subList(mark, this.undoValues.size()).clear();
+		});
+		return null;
+	}
+
+	/**
+	 * Propagate and fold within an expression, from its leaves up
+	 *
+	 * @param root of the expression
+	 * @return root of the folded expression, which replaced root if it is not root
+	 */
+	private Node expression(Node root) {
+		ArrayList<Node> nodes = new ArrayList<>();
+		TreeCursor cursor = this.cursor.reset(root);
+		cursor.firstLeaf();
+		do {
+			nodes.add(cursor.node());
+		} while (cursor.nextPostOrder());
+
+		Node folded = root;
+		for (Node node : nodes) {
+			Node result = this.fold(node);
+			if (result != node) {
+				node.addRightSibling(result);
+				node.pop();
+				if (node == root) {
+					folded = result;
+				}
+			}
+		}
+		return folded;
+	}
+
+	/**
+	 * @param node whose children are already folded
+	 * @return literal replacing node, or node itself
+	 */
+	private Node fold(Node node) {
+		Construct construct = node.getConstruct();
+		if (construct == null) {
+			return node;
+		}
+		Node left = node.getFirstChild();
+		Node right = (left == null ? null : left.getNextSibling());
+		switch (construct) {
+		case VARIABLE:
+			Node value = this.values.get(node.getVariable());
+			Symbol symbol = node.getSymbol();
+			if (value == null || symbol == null || symbol.isFunction()) {
+				return node;
+			}
+			if (node.isNegated() && !isInteger(value)) {
+				return node;
+			}
+			return copyOf(value, value.isNegated() ^ node.isNegated(), node);
+		case FUNCCALL:
+			this.forgetCallAssigned();
+			return node;
+		case NOT:
+			if (isBoolean(left) && !node.isNegated()) {
+				return this.literal(!booleanOf(left), node);
+			}
+			return node;
+		case ADD: case SUB: case MULT: case INTDIV:
+			if (Construct.ADD.equals(construct) && node.getType() == TypeSystem.STRING) {
+				return this.concatenation(node, left, right);
+			}
+			if (!isInteger(left) || !isInteger(right)) {
+				return node;
+			}
+			long a = integerOf(left);
+			long b = integerOf(right);
+			long result;
+			switch (construct) {
+			case ADD:
+				result = a + b;
+				break;
+			case SUB:
+				result = a - b;
+				break;
+			case MULT:
+				result = a * b;
+				break;
+			default:
+				if (b == 0 || (a % b != 0 && (a < 0) != (b < 0))) {
+					return node;
+				}
+				result = a / b;
+				break;
+			}
+			return this.literal(node.isNegated() ? -result : result, node);
+		case EQEQ: case NEQ: case LT: case LTEQ: case GT: case GTEQ:
+			if (node.isNegated()) {
+				return node;
+			}
+			if (isInteger(left) && isInteger(right)) {
+				long x = integerOf(left);
+				long y = integerOf(right);
+				switch (construct) {
+				case EQEQ:
+					return this.literal(x == y, node);
+				case NEQ:
+					return this.literal(x != y, node);
+				case LT:
+					return this.literal(x < y, node);
+				case LTEQ:
+					return this.literal(x <= y, node);
+				case GT:
+					return this.literal(x > y, node);
+				default:
+					return this.literal(x >= y, node);
+				}
+			}
+			if (isBoolean(left) && isBoolean(right)) {
+				if (Construct.EQEQ.equals(construct)) {
+					return this.literal(booleanOf(left) == booleanOf(right), node);
+				}
+				if (Construct.NEQ.equals(construct)) {
+					return this.literal(booleanOf(left) != booleanOf(right), node);
+				}
+			}
+			return node;
+		case AND: case OR:
+			if (node.isNegated() || !isBoolean(left) || !isBoolean(right)) {
+				return node;
+			}
+			if (Construct.AND.equals(construct)) {
+				return this.literal(booleanOf(left) && booleanOf(right), node);
+			}
+			return this.literal(booleanOf(left) || booleanOf(right), node);
+		default:
+			return node;
+		}
+	}
+
+	/**
+	 * Fold an ADD of STRING type:
+	 * two literals, or the literal ending the left operand and the right literal
+	 *
+	 * @return literal or left operand replacing node, or node itself
+	 */
+	private Node concatenation(Node node, Node left, Node right) {
+		byte[] end = stringOf(right);
+		if (node.isNegated() || end == null) {
+			return node;
+		}
+		byte[] start = stringOf(left);
+		if (start != null) {
+			return this.literal(concatenate(start, end), node);
+		}
+		if (Construct.ADD.equals(left.getConstruct()) && left.getType() == TypeSystem.STRING && !left.isNegated()) {
+			Node middle = left.getLastChild();
+			byte[] between = stringOf(middle);
+			if (between != null) {
+				middle.addRightSibling(this.literal(concatenate(between, end), middle));
+				middle.pop();
+				// Detached, to take the place of node
+				return left.pop();
+			}
+		}
+		return node;
+	}
+
+	/**
+	 * @return bytes of a literal in a string, or null if node is not a literal
+	 */
+	private static byte[] stringOf(Node node) {
+		if (isInteger(node)) {
+			return Long.toString(integerOf(node)).getBytes(StandardCharsets.US_ASCII);
+		}
+		if (isBoolean(node)) {
+			return booleanOf(node) ? TRUE_STRING : FALSE_STRING;
+		}
+		if (Construct.LITERAL.equals(node.getConstruct()) && !node.isNegated()
+				&& node.getConstant() != null && node.getConstant().getType() == TypeSystem.STRING) {
+			return node.getConstant().getBytes();
+		}
+		return null;
+	}
+	private static byte[] concatenate(byte[] start, byte[] end) {
+		byte[] bytes = Arrays.copyOf(start, start.length + end.length);
+		System.arraycopy(end, 0, bytes, start.length, end.length);
+		return bytes;
+	}
+
+	/**
+	 * @return whether node is a literal that can be stored and read again
+	 */
+	private static boolean isLiteral(Node node) {
+		return isInteger(node) || isBoolean(node)
+				|| (Construct.LITERAL.equals(node.getConstruct()) && !node.isNegated()
+						&& node.getConstant() != null && node.getConstant().getType() == TypeSystem.STRING);
+	}
+	private static boolean isInteger(Node node) {
+		return node != null && Construct.LITERAL.equals(node.getConstruct())
+				&& node.getConstant() != null && node.getConstant().getType() == TypeSystem.INTEGER;
+	}
+	private static boolean isBoolean(Node node) {
+		return node != null && !node.isNegated()
+				&& (Construct.TRUE.equals(node.getConstruct()) || Construct.FALSE.equals(node.getConstruct()));
+	}
+	private static long integerOf(Node node) {
+		long value = node.getConstant().getInt();
+		return node.isNegated() ? -value : value;
+	}
+	private static boolean booleanOf(Node node) {
+		return Construct.TRUE.equals(node.getConstruct());
+	}
+
+	/**
+	 * @param value of an INTEGER
+	 * @param at node the literal replaces
+	 * @return new literal, or at if the value does not fit in 32 bits
+	 */
+	private Node literal(long value, Node at) {
+		if (value > Integer.MAX_VALUE || value < -Integer.MAX_VALUE) {
+			return at;
+		}
+		// Literals are never negative, only negated
+		Constant constant = this.constants.internInteger((int) Math.abs(value));
+		Node literal = new Node(at.getArena(), Construct.LITERAL, null,
+				null, Terminal.INTEGER,
+				null, constant.getText(), constant,
+				null, null,
+				value < 0);
+		return located(literal, at);
+	}
+	private Node literal(boolean value, Node at) {
+		Constant constant = this.constants.internBoolean(value);
+		Node literal = new Node(at.getArena(), value ? Construct.TRUE : Construct.FALSE, null,
+				null, value ? Terminal.TRUE : Terminal.FALSE,
+				null, constant.getText(), constant,
+				null, null,
+				false);
+		return located(literal, at);
+	}
+	private Node literal(byte[] value, Node at) {
+		Constant constant = this.constants.internString(value);
+		Node literal = new Node(at.getArena(), Construct.LITERAL, null,
+				null, Terminal.STRING,
+				null, constant.getText(), constant,
+				null, null,
+				false);
+		return located(literal, at);
+	}
+	private static Node copyOf(Node literal, boolean negated, Node at) {
+		Node copy = new Node(at.getArena(), literal.getConstruct(), null,
+				literal.getRule(), literal.getToken(),
+				literal.getSymbol(), literal.getValue(), literal.getConstant(),
+				null, null,
+				negated);
+		return located(copy, at);
+	}
+	private static Node located(Node literal, Node at) {
+		literal.setType(literal.getConstant().getType());
+		literal.setTokenRange(at.getTokenStart(), at.getTokenEnd());
+		return literal;
+	}
+}
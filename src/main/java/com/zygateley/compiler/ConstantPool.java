@@ -0,0 +1,222 @@
+package com.zygateley.compiler;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Every literal of a program, each value stored once.
+ *
+ * The Lexer decodes INTEGER, TRUE/FALSE and STRING tokens into the pool,
+ * later stages refer to literals by Constant (or its id)
+ * and never parse literal text again.
+ *
+ * @author Zachary Gateley
+ *
+ */
+public class ConstantPool implements Iterable<Constant> {
+	// Constants by id
+	// Published like the symbols of a SymbolTable:
+	// the parser may read while the lexer (on its own thread) inserts
+	private volatile Constant[] constants;
+	private int size = 0;
+	// Constant by value: Integer, Boolean, or the bytes of a string (as ISO-8859-1)
+	private final HashMap<Object, Constant> index = new HashMap<>();
+
+	public ConstantPool() {
+		this.constants = new Constant[16];
+	}
+
+	/**
+	 * Decode a literal token
+	 *
+	 * @param terminal INTEGER, TRUE, FALSE or STRING
+	 * @param source
+	 * @param offset byte offset of the literal in source
+	 * @param length byte length of the literal
+	 * @return Constant of the literal's value
+	 * @throws LexicalException integer out of range
+	 */
+	public Constant decode(Terminal terminal, SourceBuffer source, int offset, int length) throws LexicalException {
+		switch (terminal) {
+		case TRUE:
+			return this.internBoolean(true);
+		case FALSE:
+			return this.internBoolean(false);
+		case INTEGER:
+			long value = 0;
+			for (int i = offset; i < offset + length; i++) {
+				value = value * 10 + (source.byteAt(i) - '0');
+				if (value > Integer.MAX_VALUE) {
+					throw new LexicalException("Integer literal out of range: " + source.getString(offset, length));
+				}
+			}
+			return this.internInteger((int) value);
+		case STRING:
+			// Between the quotes
+			byte[] bytes = new byte[length - 2];
+			int count = 0;
+			int end = offset + length - 1;
+			for (int i = offset + 1; i < end; i++) {
+				byte b = source.byteAt(i);
+				if (b == '\\' && i + 1 < end) {
+					byte escaped = unescape(source.byteAt(i + 1));
+					if (escaped != 0) {
+						b = escaped;
+						i++;
+					}
+				}
+				bytes[count++] = b;
+			}
+			if (count < bytes.length) {
+				bytes = Arrays.copyOf(bytes, count);
+			}
+			String key = new String(bytes, StandardCharsets.ISO_8859_1);
+			Constant constant = this.index.get(key);
+			if (constant == null) {
+				constant = this.add(key, new Constant(this.size, TypeSystem.STRING, 0, false, bytes, source.getString(offset, length)));
+			}
+			return constant;
+		default:
+			throw new LexicalException("Not a literal: " + terminal);
+		}
+	}
+
+	public Constant internInteger(int value) {
+		Constant constant = this.index.get(value);
+		if (constant == null) {
+			constant = this.add(value, new Constant(this.size, TypeSystem.INTEGER, value, false, null, Integer.toString(value)));
+		}
+		return constant;
+	}
+
+	public Constant internBoolean(boolean value) {
+		Constant constant = this.index.get(value);
+		if (constant == null) {
+			constant = this.add(value, new Constant(this.size, TypeSystem.BOOLEAN, 0, value, null, Boolean.toString(value)));
+		}
+		return constant;
+	}
+
+	/**
+	 * @param bytes decoded string, kept by the pool
+	 */
+	public Constant internString(byte[] bytes) {
+		String key = new String(bytes, StandardCharsets.ISO_8859_1);
+		Constant constant = this.index.get(key);
+		if (constant == null) {
+			constant = this.add(key, new Constant(this.size, TypeSystem.STRING, 0, false, bytes, quote(bytes)));
+		}
+		return constant;
+	}
+
+	/**
+	 * Add the value of a constant from another pool
+	 *
+	 * @param other
+	 * @return Constant of the same value in this pool
+	 */
+	public Constant intern(Constant other) {
+		switch (other.getType()) {
+		case INTEGER:
+			return this.internInteger(other.getInt());
+		case BOOLEAN:
+			return this.internBoolean(other.getBoolean());
+		default:
+			String key = new String(other.getBytes(), StandardCharsets.ISO_8859_1);
+			Constant constant = this.index.get(key);
+			if (constant == null) {
+				constant = this.add(key, new Constant(this.size, TypeSystem.STRING, 0, false, other.getBytes(), other.getText()));
+			}
+			return constant;
+		}
+	}
+
+	private Constant add(Object key, Constant constant) {
+		Constant[] constants = this.constants;
+		if (this.size == constants.length) {
+			constants = Arrays.copyOf(constants, this.size * 2);
+			this.constants = constants;
+		}
+		constants[this.size++] = constant;
+		this.index.put(key, constant);
+		return constant;
+	}
+
+	/**
+	 * @param id Constant id (index in this pool)
+	 * @return Constant with this id
+	 */
+	public Constant get(int id) {
+		return this.constants[id];
+	}
+
+	/**
+	 * @return number of constants in this pool
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * @return byte a two-character escape stands for, 0 if it is not an escape
+	 */
+	private static byte unescape(byte b) {
+		switch (b) {
+		case '"':
+		case '\\':
+			return b;
+		case 'n':
+			return '\n';
+		case 'f':
+			return '\f';
+		case 'r':
+			return '\r';
+		case 't':
+			return '\t';
+		default:
+			return 0;
+		}
+	}
+
+	/**
+	 * @return source text of a string literal holding these bytes
+	 */
+	private static String quote(byte[] bytes) {
+		String value = new String(bytes, StandardCharsets.UTF_8);
+		StringBuilder text = new StringBuilder(value.length() + 2);
+		text.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '"':
+				text.append("\\\"");
+				break;
+			case '\\':
+				text.append("\\\\");
+				break;
+			case '\n':
+				text.append("\\n");
+				break;
+			case '\f':
+				text.append("\\f");
+				break;
+			case '\r':
+				text.append("\\r");
+				break;
+			case '\t':
+				text.append("\\t");
+				break;
+			default:
+				text.append(c);
+				break;
+			}
+		}
+		text.append('"');
+		return text.toString();
+	}
+
+	@Override
+	public Iterator<Constant> iterator() {
+		return Arrays.asList(this.constants).subList(0, this.size).iterator();
+	}
+}
@@ -0,0 +1,116 @@
+package com.zygateley.compiler;
+
+/**
+ * Handling of a Node by its Construct, for the passes over the optimized tree.
+ *
+ * visit calls the method for the node's Construct:
+ * 		SCOPE		visitScope
+ * 		LOOP		visitLoop
+ * 		IF			visitIf
+ * 		FUNCDEF		visitFunctionDefinition
+ * 		VARDECL		visitVariableDeclaration
+ * 		VARSET		visitVariableSet
+ * 		FUNCCALL	visitFunctionCall
+ * 		OPERATION	visitOperation
+ * 		OUTPUT		visitOutput
+ * 		INPUT		visitInput
+ * 		NOT			visitNot
+ * 		OR, AND, ADD, SUB, MULT, INTDIV,
+ * 		EQEQ, NEQ, LT, LTEQ, GT, GTEQ	visitBinaryOperator
+ * 		VARIABLE, LITERAL, FALSE, TRUE	visitValue
+ * Any method that is not overridden, and any other Construct,
+ * falls back to visitDefault.
+ *
+ * @param <R> result of visiting a node
+ * @param <E> exception thrown by the visit methods
+ * @author Zachary Gateley
+ *
+ */
+public interface ConstructVisitor<R, E extends Exception> {
+	R visitDefault(Node node) throws E;
+
+	default R visitScope(Node node) throws E {
+		return this.visitDefault(node);
+	}
+	default R visitLoop(Node node) throws E {
+		return this.visitDefault(node);
+	}
+	default R visitIf(Node node) throws E {
+		return this.visitDefault(node);
+	}
+	default R visitFunctionDefinition(Node node) throws E {
+		return this.visitDefault(node);
+	}
+	default R visitVariableDeclaration(Node node) throws E {
+		return this.visitDefault(node);
+	}
+	default R visitVariableSet(Node node) throws E {
+		return this.visitDefault(node);
+	}
+	default R visitFunctionCall(Node node) throws E {
+		return this.visitDefault(node);
+	}
+	default R visitOperation(Node node) throws E {
+		return this.visitDefault(node);
+	}
+	default R visitOutput(Node node) throws E {
+		return this.visitDefault(node);
+	}
+	default R visitInput(Node node) throws E {
+		return this.visitDefault(node);
+	}
+	default R visitNot(Node node) throws E {
+		return this.visitDefault(node);
+	}
+	default R visitBinaryOperator(Node node) throws E {
+		return this.visitDefault(node);
+	}
+	default R visitValue(Node node) throws E {
+		return this.visitDefault(node);
+	}
+
+	/**
+	 * Call the method for the Construct of node
+	 *
+	 * @param node
+	 * @return result of that method
+	 */
+	default R visit(Node node) throws E {
+		Construct construct = node.getConstruct();
+		if (construct == null) {
+			return this.visitDefault(node);
+		}
+		switch (construct) {
+		case SCOPE:
+			return this.visitScope(node);
+		case LOOP:
+			return this.visitLoop(node);
+		case IF:
+			return this.visitIf(node);
+		case FUNCDEF:
+			return this.visitFunctionDefinition(node);
+		case VARDECL:
+			return this.visitVariableDeclaration(node);
+		case VARSET:
+			return this.visitVariableSet(node);
+		case FUNCCALL:
+			return this.visitFunctionCall(node);
+		case OPERATION:
+			return this.visitOperation(node);
+		case OUTPUT:
+			return this.visitOutput(node);
+		case INPUT:
+			return this.visitInput(node);
+		case NOT:
+			return this.visitNot(node);
+		case OR: case AND:
+		case ADD: case SUB: case MULT: case INTDIV:
+		case EQEQ: case NEQ: case LT: case LTEQ: case GT: case GTEQ:
+			return this.visitBinaryOperator(node);
+		case VARIABLE: case LITERAL: case FALSE: case TRUE:
+			return this.visitValue(node);
+		default:
+			return this.visitDefault(node);
+		}
+	}
+}
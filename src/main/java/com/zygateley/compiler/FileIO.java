@@ -44,6 +44,17 @@ public class FileIO {
 		return new PushbackReader(new FileReader(absolutePath));
 	}
 	
+	/**
+	 * Memory-map a source file for the Lexer.
+	 * 
+	 * @param absolutePath file name, given as absolute from system root
+	 * @return SourceBuffer of said file
+	 * @throws IOException
+	 */
+	public static SourceBuffer getSource(String absolutePath) throws IOException {
+		return SourceBuffer.map(absolutePath);
+	}
+	
 	/**
 	 * Instantiate a file writer for a given (absolute path) file name.
 	 * Method-chained to <strong>getWriter(String absolutePath, boolean force)</strong>
@@ -180,9 +180,8 @@ public class GoAsm extends AssyLanguage {
 		io.println("; Prepare if-then%s conditional", (haveElse ? "-else" : ""));
 		String labelIf = this.getNewLabel();
 		io.println("; If true, go to %s", labelIf);
-		String labelElse = null;
-		if (subtreeIfFalse != null) {
-			labelElse = this.getNewLabel();
+		String labelElse = (haveElse ? this.getNewLabel() : null);
+		if (haveElse) {
 			io.println("; If false, go to %s", labelElse);
 		}
 		String labelNext = this.getNewLabel();
@@ -199,22 +198,26 @@ public class GoAsm extends AssyLanguage {
 		// Code if true
 		io.println(labelIf + ":");
 		io.indent();
-		this.assembleNode(subtreeIfTrue);
+		this.assembleLater(subtreeIfTrue);
 		if (haveElse) {
-			io.println("Jmp >> %s", labelNext);
-			io.println();
+			this.later(() -> {
+				io.println("Jmp >> %s", labelNext);
+				io.println();
+				io.outdent();
+				
+				// Code if False
+				io.println(labelElse + ":");
+				io.indent();
+			});
+			this.assembleLater(subtreeIfFalse);
+		}
+		this.later(() -> {
 			io.outdent();
 			
-			// Code if False
-			io.println(labelElse + ":");
-			io.indent();
-			this.assembleNode(subtreeIfFalse);
-		}
-		io.outdent();
-		
-		// Next
-		io.println();
-		io.println(labelNext + ":");
+			// Next
+			io.println();
+			io.println(labelNext + ":");
+		});
 	}
 
 	@Override
@@ -331,16 +334,19 @@ public class GoAsm extends AssyLanguage {
 		io.println();
 		io.println("; Loop body");
 		io.println(labelBody + ":");
-		this.assembleNode(loopBody);
+		this.assembleLater(loopBody);
 		
 		// Increment and iterate
-		Register step = this.getRegister(loopStep);
-		io.println("Add %s, %s", this.getStackAddress(loopVariable), step);
-		step.free();
-		io.println("Jmp << %s", labelLoop);
-		
-		io.outdent();
-		io.println(labelNext + ":");
+		final Variable stepVariable = loopStep;
+		this.later(() -> {
+			Register step = this.getRegister(stepVariable);
+			io.println("Add %s, %s", this.getStackAddress(loopVariable), step);
+			step.free();
+			io.println("Jmp << %s", labelLoop);
+			
+			io.outdent();
+			io.println(labelNext + ":");
+		});
 	}
 	
 	@Override
@@ -731,16 +737,16 @@ public class GoAsm extends AssyLanguage {
 			switch (operandType) {
 			case INTEGER:
 				byteWidth = 4;
-				operandString = operand.getValue() + "D";
+				operandString = operand.getConstant().getInt() + "D";
 				if (operand.isNegated()) {
 					operandString = "-" + operandString;
 				}
 				break;
 			case STRING:
-				Symbol symbol = operand.getSymbol();
-				byteWidth = StringUtils.unescapeJavaString(symbol.getValue()).length() - 2;
+				Constant constant = operand.getConstant();
+				byteWidth = constant.getLength();
 				// Move value pointer to a register
-				pointer = "Addr " + this.globalSymbolMap.get(symbol);
+				pointer = "Addr " + this.globalConstantMap.get(constant);
 				operandString = pointer;
 				break;
 			default:
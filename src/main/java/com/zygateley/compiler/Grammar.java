@@ -17,9 +17,6 @@
 package com.zygateley.compiler;
 
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.NoSuchElementException;
-import java.util.function.Function;
 import java.util.regex.*;
 import java.util.stream.*;
 
@@ -101,31 +98,16 @@ public class Grammar {
 		 * source element and target element
 		 * using this specific reflow type
 		 * 
+		 * Any of the three may be null to match any binding
+		 * (the first one in reflowBindings).
+		 * 
 		 * @param type Reflow binding type
 		 * @param source the element type whose Node may need to be moved or modified into the Node of the target element
 		 * @param target the element type whose Node may receive the action of the Node with the source element type
 		 * @return the resulting element type of the determined, specific reflow binding rule, if it exists
 		 */
 		public static Construct getReflowResult(final Reflow type, final Construct source, final Construct target) {
-			try {
-				Function<Construct, Boolean> sourceLambda = (source != null) ? ((Construct e) -> e == source) : (s -> true);
-				Function<Reflow, Boolean> bindingLambda = (type != null) ? ((Reflow b) -> b == type) : (s -> true);
-				Function<Construct, Boolean> targetLambda = (target != null) ? ((Construct e) -> e == target) : (s -> true);
-				ReflowRelationship matchingSource = 
-						reflowBindings.stream()
-						.filter((ReflowRelationship r) -> sourceLambda.apply(r.source))
-						.findAny().get();
-				ReflowTransformation fullMatch =
-						Arrays.stream(matchingSource.transformations)
-						.filter((ReflowTransformation t) -> bindingLambda.apply(t.type))
-						.filter((ReflowTransformation t) -> targetLambda.apply(t.prevChild))
-						.findFirst().get();
-						
-				return fullMatch.result;
-			}
-			catch (NoSuchElementException err) {
-				return null;
-			}
+			return reflowResults[index(type)][index(source)][index(target)];
 		}
 		/**
 		 * Return boolean on whether this ELEMENT
@@ -139,7 +121,41 @@ public class Grammar {
 		 * @return
 		 */
 		public static boolean isReflow(final Construct sourceElement) {
-			return getReflowResult(null, sourceElement, null) != null;
+			if (sourceElement == null) {
+				return getReflowResult(null, null, null) != null;
+			}
+			return (reflowSources & (1L << sourceElement.ordinal())) != 0;
+		}
+		
+		// Index in reflowResults, 0 for null (any)
+		private static int index(Reflow type) {
+			return (type == null) ? 0 : type.ordinal() + 1;
+		}
+		private static int index(Construct element) {
+			return (element == null) ? 0 : element.ordinal() + 1;
+		}
+		
+		/**
+		 * Search reflowBindings for a rule,
+		 * only while compiling reflowResults
+		 * 
+		 * @return the resulting element type of the first matching rule, null if none
+		 */
+		private static Construct findReflowResult(final Reflow type, final Construct source, final Construct target) {
+			for (ReflowRelationship relationship : reflowBindings) {
+				if (source != null && relationship.source != source) {
+					continue;
+				}
+				// Only the first relationship of a source is searched
+				for (ReflowTransformation transformation : relationship.transformations) {
+					if ((type == null || transformation.type == type) 
+							&& (target == null || transformation.prevChild == target)) {
+						return transformation.result;
+					}
+				}
+				return null;
+			}
+			return null;
 		}
 		
 		// ADD BINDINGS
@@ -213,6 +229,38 @@ public class Grammar {
 					new ReflowTransformation(Reflow.MOVE_LEFT_TO_CHILD, Construct.IF, Construct.IF)
 					));
 		}
+		
+		// Every rule, compiled from reflowBindings, by
+		// [Reflow ordinal + 1][source Construct ordinal + 1][target Construct ordinal + 1]
+		// (index 0 for null, which matches any)
+		private static final Construct[][][] reflowResults;
+		// Bit (1L << ordinal) of each source Construct with reflow bindings
+		private static final long reflowSources;
+		static {
+			Reflow[] types = Reflow.values();
+			Construct[] elements = Construct.values();
+			if (elements.length > Long.SIZE) {
+				throw new ExceptionInInitializerError("Too many Constructs for the reflowSources bit set.");
+			}
+			reflowResults = new Construct[types.length + 1][elements.length + 1][elements.length + 1];
+			for (int t = 0; t <= types.length; t++) {
+				Reflow type = (t == 0) ? null : types[t - 1];
+				for (int s = 0; s <= elements.length; s++) {
+					Construct source = (s == 0) ? null : elements[s - 1];
+					for (int e = 0; e <= elements.length; e++) {
+						Construct target = (e == 0) ? null : elements[e - 1];
+						reflowResults[t][s][e] = findReflowResult(type, source, target);
+					}
+				}
+			}
+			long sources = 0;
+			for (Construct source : elements) {
+				if (reflowResults[0][index(source)][0] != null) {
+					sources |= 1L << source.ordinal();
+				}
+			}
+			reflowSources = sources;
+		}
 }
 
 
@@ -519,8 +567,12 @@ enum Terminal implements GrammarRule {
 	
 	public final int tokenValue;
 	public final String exactString;
-	private final Pattern regexPotential;
-	private final Pattern regexFull;
+	// Expressions are only compiled if isMatch needs them,
+	// the Lexer matches with the LexerDFA
+	private final String potentialPattern;
+	private final String fullPattern;
+	private volatile Pattern regexPotential = null;
+	private volatile Pattern regexFull = null;
 	public final TypeSystem type;
 	public final Construct construct;
 
@@ -532,8 +584,8 @@ enum Terminal implements GrammarRule {
 		this.type = type;
 		// If there is a symbol type, exactString should be ""
 		this.exactString = (matching.length > 0) ? matching[0] : "";
-		this.regexPotential = (matching.length > 1) ? Pattern.compile(matching[1]) : null;
-		this.regexFull = (matching.length > 2) ? Pattern.compile(matching[2]) : null;
+		this.potentialPattern = (matching.length > 1) ? matching[1] : null;
+		this.fullPattern = (matching.length > 2) ? matching[2] : null;
 		this.construct = basicElement;
 	}
 	
@@ -549,7 +601,10 @@ enum Terminal implements GrammarRule {
 	 */
 	public boolean isMatch(String token, boolean fullMatch) {
 		boolean isMatch = false;
-		if (this.regexPotential != null) {
+		if (this.potentialPattern != null) {
+			if (this.regexPotential == null) {
+				this.regexPotential = Pattern.compile(this.potentialPattern);
+			}
 			Matcher m = this.regexPotential.matcher(token);
 			isMatch = (m.matches());
 			
@@ -557,7 +612,10 @@ enum Terminal implements GrammarRule {
 			// only have to compare against starting regular expression ^^^ (above)
 			// If you want a full match,
 			// you must check against both starting and ending regular expressions
-			if (fullMatch && this.regexFull != null) {
+			if (fullMatch && this.fullPattern != null) {
+				if (this.regexFull == null) {
+					this.regexFull = Pattern.compile(this.fullPattern);
+				}
 				m = this.regexFull.matcher(token);
 				isMatch &= m.matches();
 			}
@@ -574,7 +632,21 @@ enum Terminal implements GrammarRule {
 	}
 	
 	public boolean requiresFullMatch() {
-		return (this.regexFull != null);
+		return (this.fullPattern != null);
+	}
+	
+	/**
+	 * @return source of the potential-match expression or null if exact string
+	 */
+	String getPotentialPattern() {
+		return this.potentialPattern;
+	}
+	
+	/**
+	 * @return source of the full-match expression or null if none
+	 */
+	String getFullPattern() {
+		return this.fullPattern;
 	}
 
 	/**
@@ -585,13 +657,7 @@ enum Terminal implements GrammarRule {
 	 * @return Terminal with matching tokenValue or null
 	 */
 	public static Terminal getTerminal(int tokenValue) {
-		Terminal[] all = Terminal.values();
-		for (Terminal nt : all) {
-			if (nt.tokenValue == tokenValue) {
-				return nt;
-			}
-		}
-		return null;
+		return ParseTable.getTerminal(tokenValue);
 	}
 }
 
@@ -961,15 +1027,7 @@ enum NonTerminal implements GrammarRule {
 		return indexOfMatchFirst(t.tokenValue);
 	}
 	public int indexOfMatchFirst(int t) {
-		for (int i_p = 0; i_p < this.patterns.length; i_p++) {
-			for (int item : this.patterns[i_p].FIRST) {
-				if (t == item) {
-					return i_p;
-				}
-			}
-			
-		}
-		return -1;
+		return ParseTable.indexOfMatchFirst(this, t);
 	}	
 	/**
 	 * Search this rule to see if the given terminal
@@ -982,12 +1040,7 @@ enum NonTerminal implements GrammarRule {
 		return inFollow(t.tokenValue);
 	}
 	public boolean inFollow(int t) {
-		for (int item : this.FOLLOW) {
-			if (t == item) {
-				return true;
-			}	
-		}
-		return false;
+		return ParseTable.inFollow(this, t);
 	}
 	
 	/**
@@ -998,13 +1051,7 @@ enum NonTerminal implements GrammarRule {
 	 * @return NonTerminal with matching tokenValue or null
 	 */
 	public static NonTerminal getNonTerminal(final int tokenValue) {
-		NonTerminal[] all = NonTerminal.values();
-		for (NonTerminal nt : all) {
-			if (nt.tokenValue == tokenValue) {
-				return nt;
-			}
-		}
-		return null;
+		return ParseTable.getNonTerminal(tokenValue);
 	}
 	
 	public boolean isCFGRule() {
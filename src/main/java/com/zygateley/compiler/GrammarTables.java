@@ -0,0 +1,372 @@
+package com.zygateley.compiler;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import java.util.zip.CRC32C;
+
+/**
+ * The lexical grammar, and the tables compiled from it, cached on disk between runs.
+ *
+ * The lexical grammar is the lexeme of every Terminal:
+ * its exact string, or its potential and full expressions.
+ * By default these are the Terminal enum's own.
+ * A grammar file (see useGrammar) may respell any of them,
+ * so a dialect of the language needs no new compiler.
+ * The parse table, the binding powers and the reflow table
+ * still come from the NonTerminal and GrammarRule declarations.
+ *
+ * Building the lexer DFA from the lexemes
+ * is most of the compiler's start-up, yet the result
+ * only changes when the grammar or the builder does.
+ * So a built table is written once to a file in the user's own cache directory,
+ * named by a digest of the grammar (see describe) and of the classes building it,
+ * and every later run memory-maps that file instead of building it again.
+ * The file holds that digest, and a checksum of all of its bytes,
+ * so a stale or damaged table is never read; it is simply left behind.
+ *
+ * Table file
+ * 		MAGIC, VERSION, digest (KEY_LENGTH bytes)
+ * 		length of the contents, contents, as written by the owner of the table
+ * 		CRC-32C of every byte before it
+ *
+ * The cache is only an optimization:
+ * a missing, unreadable or unwritable table file is built as before,
+ * and so is every table when the cache directory is not the user's alone.
+ *
+ * @author Zachary Gateley
+ *
+ */
+final class GrammarTables {
+	private static final int MAGIC = 0x5A594754;
+	// Raise when the table file layout changes
+	private static final int VERSION = 2;
+	private static final int KEY_LENGTH = 32;
+	// MAGIC, VERSION, digest, length of the contents
+	private static final int HEADER_LENGTH = 12 + KEY_LENGTH;
+
+	private static final Path directory = Paths.get(System.getProperty("user.home"), ".zyg_compile");
+	private static final Set<PosixFilePermission> ownerOnly = PosixFilePermissions.fromString("rwx------");
+
+	// Lexemes of a grammar file, by Terminal ordinal (null where not respelled)
+	private static String[][] lexemes = null;
+	// Whether the lexemes have been read, after which they may not change
+	private static boolean inUse = false;
+	private static byte[] grammar = null;
+
+	private GrammarTables() { }
+
+	/**
+	 * Respell Terminals by a grammar file, before anything is lexed.
+	 *
+	 * A grammar file is in the form of describe:
+	 * one line per respelled Terminal, in any order,
+	 * 		name, exact string, potential expression, full expression
+	 * (tab separated, the expressions empty if none; \\, \t, \n and \0 escaped).
+	 * Blank lines and lines starting with # are ignored.
+	 * The expressions may only use the constructs in the Terminal declarations
+	 * (see LexerDFA.RegexParser).
+	 * Terminals not in the file keep their lexemes,
+	 * and a match still goes to the first Terminal in declaration order.
+	 * INTEGER and STRING cannot be respelled, as their text is decoded into the ConstantPool.
+	 *
+	 * @param file grammar file
+	 * @throws IOException if the file cannot be read or is not a grammar
+	 */
+	static synchronized void useGrammar(Path file) throws IOException {
+		if (inUse) {
+			throw new IllegalStateException("The grammar is already in use");
+		}
+		Terminal[] terminals = Terminal.values();
+		String[][] respelled = new String[terminals.length][];
+		int lineNumber = 0;
+		for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+			lineNumber++;
+			if (line.isBlank() || line.startsWith("#")) {
+				continue;
+			}
+			String at = file + ", line " + lineNumber + ": ";
+			String[] fields = line.split("\t", -1);
+			if (fields.length != 4) {
+				throw new IOException(at + "expected name, exact string, potential expression and full expression");
+			}
+			Terminal t;
+			try {
+				t = Terminal.valueOf(fields[0]);
+			}
+			catch (IllegalArgumentException err) {
+				throw new IOException(at + "no Terminal " + fields[0]);
+			}
+			if (t == Terminal.INTEGER || t == Terminal.STRING) {
+				throw new IOException(at + t + " cannot be respelled");
+			}
+			if (respelled[t.ordinal()] != null) {
+				throw new IOException(at + t + " is already respelled");
+			}
+			String exact = unescape(fields[1]);
+			String potential = fields[2].isEmpty() ? null : unescape(fields[2]);
+			String full = fields[3].isEmpty() ? null : unescape(fields[3]);
+			if (potential == null && (exact.isEmpty() || full != null)) {
+				throw new IOException(at + t + " needs an exact string or a potential expression");
+			}
+			try {
+				for (String expression : new String[] { potential, full }) {
+					if (expression != null) {
+						Pattern.compile(expression);
+					}
+				}
+			}
+			catch (PatternSyntaxException err) {
+				throw new IOException(at + err.getDescription());
+			}
+			respelled[t.ordinal()] = new String[] { exact, potential, full };
+		}
+		lexemes = respelled;
+	}
+
+	/**
+	 * @return exact string the Lexer matches for t
+	 */
+	static String getExactString(Terminal t) {
+		String[] lexeme = lexemeOf(t);
+		return (lexeme == null) ? t.exactString : lexeme[0];
+	}
+
+	/**
+	 * @return potential expression the Lexer matches for t, or null if exact string
+	 */
+	static String getPotentialPattern(Terminal t) {
+		String[] lexeme = lexemeOf(t);
+		return (lexeme == null) ? t.getPotentialPattern() : lexeme[1];
+	}
+
+	/**
+	 * @return full expression the Lexer matches for t, or null if none
+	 */
+	static String getFullPattern(Terminal t) {
+		String[] lexeme = lexemeOf(t);
+		return (lexeme == null) ? t.getFullPattern() : lexeme[2];
+	}
+
+	private static synchronized String[] lexemeOf(Terminal t) {
+		inUse = true;
+		return (lexemes == null) ? null : lexemes[t.ordinal()];
+	}
+
+	/**
+	 * The lexical grammar in declarative form:
+	 * one line per Terminal, in declaration order, with
+	 * 		name, exact string, potential expression, full expression
+	 * (tab separated, the expressions empty if none).
+	 * This is also the form of a grammar file.
+	 *
+	 * @return grammar the cached tables are built from
+	 */
+	static String describe() {
+		StringBuilder description = new StringBuilder();
+		description.append("# CLASS_COUNT ").append(LexerDFA.CLASS_COUNT).append('\n');
+		for (Terminal t : Terminal.values()) {
+			String potential = getPotentialPattern(t);
+			String full = getFullPattern(t);
+			description.append(t.name()).append('\t')
+				.append(escape(getExactString(t))).append('\t')
+				.append(potential == null ? "" : escape(potential)).append('\t')
+				.append(full == null ? "" : escape(full)).append('\n');
+		}
+		return description.toString();
+	}
+
+	private static String escape(String text) {
+		return text.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\0", "\\0");
+	}
+
+	private static String unescape(String text) {
+		StringBuilder unescaped = new StringBuilder(text.length());
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c == '\\' && i + 1 < text.length()) {
+				switch (text.charAt(i + 1)) {
+				case '\\':	c = '\\';	i++;	break;
+				case 't':	c = '\t';	i++;	break;
+				case 'n':	c = '\n';	i++;	break;
+				case '0':	c = '\0';	i++;	break;
+				default:	break;
+				}
+			}
+			unescaped.append(c);
+		}
+		return unescaped.toString();
+	}
+
+	/**
+	 * @return describe() in UTF-8, do not change it
+	 */
+	private static synchronized byte[] getGrammar() {
+		if (grammar == null) {
+			grammar = describe().getBytes(StandardCharsets.UTF_8);
+		}
+		return grammar;
+	}
+
+	/**
+	 * Digest of the grammar and of the class files of builder and its nest
+	 * (its nested classes), so a table is built again when either changes
+	 *
+	 * @return digest, or null if a class file cannot be read
+	 */
+	private static byte[] keyOf(Class<?> builder) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(getGrammar());
+			Class<?>[] nest = builder.getNestMembers();
+			Arrays.sort(nest, Comparator.comparing(Class::getName));
+			for (Class<?> member : nest) {
+				String name = member.getName();
+				try (InputStream classFile = builder.getResourceAsStream("/" + name.replace('.', '/') + ".class")) {
+					if (classFile == null) {
+						return null;
+					}
+					digest.update(name.getBytes(StandardCharsets.UTF_8));
+					digest.update(classFile.readAllBytes());
+				}
+			}
+			return digest.digest();
+		}
+		catch (IOException | NoSuchAlgorithmException | RuntimeException err) {
+			return null;
+		}
+	}
+
+	private static Path pathOf(String table, byte[] key) {
+		StringBuilder name = new StringBuilder(table).append('-');
+		for (int i = 0; i < 8; i++) {
+			name.append(String.format("%02x", key[i]));
+		}
+		return directory.resolve(name.append(".bin").toString());
+	}
+
+	/**
+	 * Create the cache directory if there is none,
+	 * readable and writable by its owner only (where the file system has permissions).
+	 * Another user's directory of owner-only permissions cannot be read or written by this one.
+	 *
+	 * @return whether the directory is the user's alone
+	 */
+	private static boolean isPrivateDirectory() throws IOException {
+		boolean posix = directory.getFileSystem().supportedFileAttributeViews().contains("posix");
+		if (!Files.exists(directory, LinkOption.NOFOLLOW_LINKS)) {
+			if (posix) {
+				Files.createDirectories(directory, PosixFilePermissions.asFileAttribute(ownerOnly));
+			}
+			else {
+				Files.createDirectories(directory);
+			}
+		}
+		if (!Files.isDirectory(directory, LinkOption.NOFOLLOW_LINKS)) {
+			return false;
+		}
+		if (posix) {
+			return Files.getPosixFilePermissions(directory, LinkOption.NOFOLLOW_LINKS).equals(ownerOnly);
+		}
+		return true;
+	}
+
+	/**
+	 * Memory-map a cached table
+	 *
+	 * @param table name of the table
+	 * @param builder class building the table
+	 * @return contents of the table, or null if it is not cached (or unreadable)
+	 */
+	static ByteBuffer map(String table, Class<?> builder) {
+		byte[] key = keyOf(builder);
+		if (key == null) {
+			return null;
+		}
+		try {
+			Path path = pathOf(table, key);
+			if (!isPrivateDirectory() || !Files.isRegularFile(path, LinkOption.NOFOLLOW_LINKS)) {
+				return null;
+			}
+			try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, LinkOption.NOFOLLOW_LINKS)) {
+				// The mapping remains valid after the channel is closed
+				ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+					return null;
+				}
+				byte[] fileKey = new byte[KEY_LENGTH];
+				buffer.get(fileKey);
+				int length = buffer.getInt();
+				if (!Arrays.equals(fileKey, key) || length < 0 || length != buffer.remaining() - 4) {
+					return null;
+				}
+				CRC32C checksum = new CRC32C();
+				checksum.update(buffer.duplicate().position(0).limit(HEADER_LENGTH + length));
+				if ((int) checksum.getValue() != buffer.getInt(HEADER_LENGTH + length)) {
+					return null;
+				}
+				return buffer.slice().limit(length);
+			}
+		}
+		catch (IOException | RuntimeException err) {
+			return null;
+		}
+	}
+
+	/**
+	 * Cache a table, replacing any table file of the same name at once,
+	 * so a run reading the table never sees it half written
+	 *
+	 * @param table name of the table
+	 * @param builder class building the table
+	 * @param contents contents of the table, from position to limit
+	 */
+	static void store(String table, Class<?> builder, ByteBuffer contents) {
+		byte[] key = keyOf(builder);
+		if (key == null) {
+			return;
+		}
+		ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+		header.putInt(MAGIC).putInt(VERSION).put(key).putInt(contents.remaining()).flip();
+		CRC32C checksum = new CRC32C();
+		checksum.update(header.duplicate());
+		checksum.update(contents.duplicate());
+		ByteBuffer trailer = ByteBuffer.allocate(4).putInt((int) checksum.getValue()).flip();
+		Path partial = null;
+		try {
+			if (!isPrivateDirectory()) {
+				return;
+			}
+			// Readable and writable by the owner only
+			partial = Files.createTempFile(directory, table, ".tmp");
+			try (FileChannel channel = FileChannel.open(partial, StandardOpenOption.WRITE)) {
+				for (ByteBuffer part : new ByteBuffer[] { header, contents, trailer }) {
+					while (part.hasRemaining()) {
+						channel.write(part);
+					}
+				}
+			}
+			Files.move(partial, pathOf(table, key), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			partial = null;
+		}
+		catch (IOException | RuntimeException err) {
+			// Built again next run
+		}
+		finally {
+			if (partial != null) {
+				try {
+					Files.deleteIfExists(partial);
+				}
+				catch (IOException err) { }
+			}
+		}
+	}
+}
@@ -0,0 +1,173 @@
+package com.zygateley.compiler;
+
+import java.util.*;
+
+/**
+ * Token records as parallel arrays on the heap
+ */
+final class HeapTokenStore extends TokenStore {
+	private byte[] terminal;
+	private int[] start;
+	private int[] length;
+	private int[] symbol;
+	private int[] partner;
+	private byte[] flags;
+	// Allocated only once a group has been parsed
+	// (by whichever parsing thread gets there first)
+	private volatile Node[] syntaxSubtree;
+
+	HeapTokenStore() {
+		int capacity = 64;
+		this.terminal = new byte[capacity];
+		this.start = new int[capacity];
+		this.length = new int[capacity];
+		this.symbol = new int[capacity];
+		this.partner = new int[capacity];
+		this.flags = new byte[capacity];
+	}
+
+	@Override
+	int capacity() {
+		return this.terminal.length;
+	}
+
+	@Override
+	void ensureCapacity(int capacity) {
+		int newCapacity = this.terminal.length;
+		while (newCapacity < capacity) {
+			newCapacity *= 2;
+		}
+		if (newCapacity == this.terminal.length) {
+			return;
+		}
+		this.terminal = Arrays.copyOf(this.terminal, newCapacity);
+		this.start = Arrays.copyOf(this.start, newCapacity);
+		this.length = Arrays.copyOf(this.length, newCapacity);
+		this.symbol = Arrays.copyOf(this.symbol, newCapacity);
+		this.partner = Arrays.copyOf(this.partner, newCapacity);
+		this.flags = Arrays.copyOf(this.flags, newCapacity);
+		if (this.syntaxSubtree != null) {
+			this.syntaxSubtree = Arrays.copyOf(this.syntaxSubtree, newCapacity);
+		}
+	}
+
+	@Override
+	TokenStore newStore() {
+		return new HeapTokenStore();
+	}
+
+	@Override
+	int getTerminal(int i) {
+		return this.terminal[i];
+	}
+	@Override
+	int getStart(int i) {
+		return this.start[i];
+	}
+	@Override
+	int getLength(int i) {
+		return this.length[i];
+	}
+	@Override
+	int getSymbol(int i) {
+		return this.symbol[i];
+	}
+	@Override
+	int getPartner(int i) {
+		return this.partner[i];
+	}
+	@Override
+	byte getFlags(int i) {
+		return this.flags[i];
+	}
+	@Override
+	Node getSyntaxSubtree(int i) {
+		Node[] syntaxSubtree = this.syntaxSubtree;
+		return (syntaxSubtree == null) ? null : syntaxSubtree[i];
+	}
+
+	@Override
+	void set(int i, int terminal, int start, int length, int symbol) {
+		this.terminal[i] = (byte) terminal;
+		this.start[i] = start;
+		this.length[i] = length;
+		this.symbol[i] = symbol;
+		this.partner[i] = -1;
+		this.flags[i] = 0;
+	}
+	@Override
+	void setStart(int i, int start) {
+		this.start[i] = start;
+	}
+	@Override
+	void setPartner(int i, int partner) {
+		this.partner[i] = partner;
+	}
+	@Override
+	void setFlags(int i, byte flags) {
+		this.flags[i] = flags;
+	}
+	@Override
+	void setSyntaxSubtree(int i, Node subtree) {
+		Node[] syntaxSubtree = this.syntaxSubtree;
+		if (syntaxSubtree == null) {
+			synchronized (this) {
+				if (this.syntaxSubtree == null) {
+					this.syntaxSubtree = new Node[this.terminal.length];
+				}
+				syntaxSubtree = this.syntaxSubtree;
+			}
+		}
+		syntaxSubtree[i] = subtree;
+	}
+
+	@Override
+	boolean isConcurrent() {
+		return true;
+	}
+
+	@Override
+	void move(int from, int to, int count) {
+		System.arraycopy(this.terminal, from, this.terminal, to, count);
+		System.arraycopy(this.start, from, this.start, to, count);
+		System.arraycopy(this.length, from, this.length, to, count);
+		System.arraycopy(this.symbol, from, this.symbol, to, count);
+		System.arraycopy(this.partner, from, this.partner, to, count);
+		System.arraycopy(this.flags, from, this.flags, to, count);
+		if (this.syntaxSubtree != null) {
+			System.arraycopy(this.syntaxSubtree, from, this.syntaxSubtree, to, count);
+		}
+	}
+
+	@Override
+	void clearParseState(int from, int to) {
+		Arrays.fill(this.partner, from, to, -1);
+		Arrays.fill(this.flags, from, to, (byte) 0);
+		if (this.syntaxSubtree != null) {
+			Arrays.fill(this.syntaxSubtree, from, to, null);
+		}
+	}
+
+	@Override
+	void copy(TokenStore part, int count, int to, int[] symbolIds, int[] constantIds) {
+		if (!(part instanceof HeapTokenStore)) {
+			super.copy(part, count, to, symbolIds, constantIds);
+			return;
+		}
+		HeapTokenStore heap = (HeapTokenStore) part;
+		System.arraycopy(heap.terminal, 0, this.terminal, to, count);
+		System.arraycopy(heap.start, 0, this.start, to, count);
+		System.arraycopy(heap.length, 0, this.length, to, count);
+		if (symbolIds == null && constantIds == null) {
+			System.arraycopy(heap.symbol, 0, this.symbol, to, count);
+		}
+		else {
+			for (int k = 0; k < count; k++) {
+				int id = heap.symbol[k];
+				int[] ids = isLiteral[heap.terminal[k]] ? constantIds : symbolIds;
+				this.symbol[to + k] = (id < 0 || ids == null) ? id : ids[id];
+			}
+		}
+		this.clearParseState(to, to + count);
+	}
+}
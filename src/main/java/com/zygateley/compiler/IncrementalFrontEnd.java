@@ -0,0 +1,92 @@
+package com.zygateley.compiler;
+
+/**
+ * Keeps the tokens and syntax tree of a source up to date
+ * as it is edited, e.g. by an editor on every keystroke.
+ *
+ * An edit re-lexes only the tokens it changes (see Lexer.relex)
+ * and re-parses only the smallest statement list or scope
+ * holding those tokens (see Parser.reparse).
+ * The result is the tree a full lex and parse of the edited source would give.
+ *
+ * The SymbolTable only grows:
+ * symbols no longer in the source are kept.
+ *
+ * The syntax tree is updated in place.
+ * Later stages (Optimizer, TypeSystem) rewrite the tree,
+ * so they should only be run once editing is done.
+ *
+ * @author Zachary Gateley
+ *
+ */
+public class IncrementalFrontEnd {
+	private SourceBuffer source;
+	private SymbolTable symbolTable;
+	private TokenStream tokenStream;
+	// Null when the last edit failed
+	private Node syntaxTree;
+
+	/**
+	 * Lex and parse the whole source
+	 *
+	 * @param source
+	 * @throws Exception lexical or syntax error in the source
+	 */
+	public IncrementalFrontEnd(SourceBuffer source) throws Exception {
+		this.source = source;
+		this.rebuild();
+	}
+
+	/**
+	 * Apply a text edit and bring the tokens and syntax tree up to date.
+	 * After an error, the next edit lexes and parses the whole source again.
+	 *
+	 * @param offset byte offset of the edit
+	 * @param removedLength number of bytes removed at offset
+	 * @param inserted text inserted at offset
+	 * @return root of the syntax tree of the edited source
+	 * @throws Exception lexical or syntax error in the edited source
+	 */
+	public Node edit(int offset, int removedLength, String inserted) throws Exception {
+		SourceBuffer edited = this.source.edit(offset, removedLength, inserted);
+		int insertedLength = edited.length() - this.source.length() + removedLength;
+		this.source = edited;
+
+		Node previousTree = this.syntaxTree;
+		if (previousTree == null) {
+			this.rebuild();
+			return this.syntaxTree;
+		}
+		this.syntaxTree = null;
+		TokenStream.Edit tokenEdit = Lexer.relex(this.tokenStream, edited, offset, removedLength, insertedLength);
+		Parser parser = new Parser(this.tokenStream);
+		this.syntaxTree = parser.reparse(previousTree, tokenEdit);
+		return this.syntaxTree;
+	}
+
+	private void rebuild() throws Exception {
+		this.syntaxTree = null;
+		this.symbolTable = new SymbolTable();
+		this.tokenStream = new TokenStream(this.source, this.symbolTable);
+		Lexer lexer = new Lexer(this.source, this.tokenStream, this.symbolTable);
+		lexer.lex();
+		Parser parser = new Parser(this.tokenStream);
+		this.syntaxTree = parser.parse();
+	}
+
+	public SourceBuffer getSource() {
+		return this.source;
+	}
+
+	public SymbolTable getSymbolTable() {
+		return this.symbolTable;
+	}
+
+	public TokenStream getTokenStream() {
+		return this.tokenStream;
+	}
+
+	public Node getSyntaxTree() {
+		return this.syntaxTree;
+	}
+}
@@ -1,6 +1,8 @@
 package com.zygateley.compiler;
 
 import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
 
 class LexicalException extends Exception {
 	static final long serialVersionUID = 58008;
@@ -10,72 +12,66 @@ class LexicalException extends Exception {
 }
 
 public class Lexer {
+	// Sources at least this long (in bytes) are lexed in parallel
+	public static final int DEFAULT_PARALLEL_THRESHOLD = 1 << 22;
+	// Smallest part of the source lexed on its own
+	private static final int MIN_CHUNK_LENGTH = 1 << 16;
+	// The source is split at this character
+	private static final byte CHUNK_BOUNDARY = '\n';
+	private static final boolean canSplit = LexerDFA.isTokenBoundary(CHUNK_BOUNDARY);
+	
 	private boolean verbose;
+	private int parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+	// Re-lexing only (see relex)
+	// Tokens from before the edit
+	private TokenStream previous = null;
+	// Tokens starting at or after this offset may be old tokens
+	private int resyncOffset;
+	// Change in length of the source
+	private int byteDelta;
+	// Index in previous of the token lexing caught up with (-1 if not yet)
+	private int resyncIndex = -1;
 	// In
-	private PushbackReader stringReader;
+	private SourceBuffer source;
+	// Byte offset of the next character
+	private int position;
 	// Out
-	private TokenStream tokenStream;
+	private TokenSink tokenStream;
 	// Build in the meantime
 	private SymbolTable symbolTable;
-	// Tokens are character-by-character
-	private StringBuilder tokenBuilder;
 	// Write to log file if not null
 	private FileWriter logFileWriter;
 	
-	/**
-	 * Mutable coupling of a given terminal
-	 * and whether it matches the current
-	 * token string.
-	 * 
-	 * @author Zachary Gateley
-	 *
-	 */
-	private class TerminalMatch {
-		public Terminal terminal;
-		public boolean isPossibleMatch = true;
-		public boolean isFullMatch = true;
-	}
-	private TerminalMatch[] thisRoundMatches = new TerminalMatch[Terminal.values().length];
-	private TerminalMatch[] lastRoundMatches = new TerminalMatch[thisRoundMatches.length];
-	{
-		Terminal[] tokens = Terminal.values();
-		for (int i = 0; i < tokens.length; i++) {
-			// This time token matches
-			TerminalMatch tm = new TerminalMatch();
-			tm.terminal = tokens[i];
-			tm.isPossibleMatch = true;
-			tm.isFullMatch = true;
-			thisRoundMatches[i] = tm;
-			
-			// Last time token matches
-			tm = new TerminalMatch();
-			tm.terminal = tokens[i];
-			tm.isPossibleMatch = false;
-			tm.isFullMatch = false;
-			lastRoundMatches[i] = tm;
-		}
-	}
-	
 	/**
 	 * Lexer
 	 * 
 	 * Requires open input stream to process its tokens
 	 * Tokens are then stored in a Tokens object
 	 * 
-	 * @param stream input stream to process for tokens
-	 * @param tokens Tokens output stream
+	 * @param input source to process for tokens
+	 * @param output Tokens output stream (or TokenRing, when lexing on its own thread)
 	 */
-	public Lexer(PushbackReader input, TokenStream output, SymbolTable symbolTable) {
+	public Lexer(SourceBuffer input, TokenSink output, SymbolTable symbolTable) {
 		this(input, output, symbolTable, null);
 	}
-	public Lexer(PushbackReader input, TokenStream output, SymbolTable symbolTable, FileWriter logFileWriter) {
-		this.stringReader = input;
+	public Lexer(SourceBuffer input, TokenSink output, SymbolTable symbolTable, FileWriter logFileWriter) {
+		this.source = input;
 		this.tokenStream = output;
-		this.tokenBuilder = new StringBuilder();
 		this.symbolTable = symbolTable;
 		this.logFileWriter = logFileWriter;
 	}
 	
+	/**
+	 * Sources at least this long are split into chunks
+	 * that are lexed in parallel.
+	 * Only when not logging and writing to a TokenStream.
+	 * 
+	 * @param bytes minimum source length, in bytes
+	 */
+	public void setParallelThreshold(int bytes) {
+		this.parallelThreshold = bytes;
+	}
+	
 	public void lex(boolean verbose) throws LexicalException, IOException {
 		this.verbose = verbose;
 		lex();
@@ -83,81 +79,21 @@ public class Lexer {
 	public void lex() throws LexicalException, IOException {
 		this.log("<!-- Lexer started -->\n");
 		
-		// Next character
-		resetMatches();
-		boolean isEOFProgram = false;
-		do { // while !isEof
-			int readIn = stringReader.read();
-			String nextIn;
-			if (readIn < 0) {
-				// End of input character
-				isEOFProgram = true;
-				nextIn = Character.toString((char) 0);
-			}
-			else {
-				// Valid character
-				nextIn = Character.toString((char) readIn);
-			}
-			// Add new character to token itself, not token stream
-			tokenBuilder.append(nextIn);
-			
-			// Find the number of matches on the current string
-			// update tokenMatches with match boolean
-			String currentToken = tokenBuilder.toString();
-			int matchCount = getMatchCount(currentToken);
-
-			
-			// Keep expanding the token until there are no more matches
-			// If there are matches, copy current matches to last matches
-			// so that we know what the best match was 
-			// before the next token gave us no matches
-			if (matchCount > 0) {
-				// Copy current matches to last matches
-				copyThisToLast();
-				// Repeat until no matches
-			}
-			// If no more matches, check the last match set
-			// and grab the first match (in order) from the matching set
-			else {
-				// This last character does not belong to this token
-				// Return it to the stream (if it is a valid entry)
-				if (readIn > -1) {
-					stringReader.unread(readIn);
-				}
-				
-				// Get the current token
-				currentToken = currentToken.substring(0, currentToken.length() - 1);
-				
-				// Find the which terminal type this is
-				// It will be the first full match from the last match set (ordered by com.zygateley.compiler.Token.id)
-				Terminal thisRule = getTerminalRuleFromLast(currentToken);
-				
-				
-				if (thisRule == null) {
-					// This can happen when Terminal.regexStart matches 
-					// but Terminal.regexFull does not
-					String message = "Lexical error at " + currentToken;
-					log(message);
-					throw new LexicalException(message);
-				}
-				else if (Terminal.EOF.equals(thisRule)) {
-					// "No compile" token
-					break;
-				}
-				// Otherwise, we have a valid rule
-				// Ignore EMPTY terminals
-				else if (!Terminal.EMPTY.equals(thisRule)) {
-					createAddToken(currentToken, thisRule);
-				}
-
-				// Token add complete!
-				// Reset token builder and terminal match count
-				resetMatches();
-			}
-		} while (!isEOFProgram);
+		boolean parallel = (
+				canSplit &&
+				source.length() >= parallelThreshold &&
+				tokenStream instanceof TokenStream &&
+				!verbose && logFileWriter == null
+		);
+		if (parallel) {
+			lexParallel();
+		}
+		else {
+			lexRange(0, source.length());
+		}
 		
 		// Finished, add EOF
-		createAddToken(Character.toString((char) 0), Terminal.EOF);
+		createAddToken(source.length(), 0, Terminal.EOF);
 		
 		log("\n<!-- Lexer finished -->\n\n");
 		
@@ -165,143 +101,312 @@ public class Lexer {
 	}
 	
 	/**
-	 * Reset all this matches to TRUE  (tokenMatches)
-	 * 			ensures we loop all tokens
-	 * 		 all last matches to FALSE (lastTokenMatches)
-	 *			ensures we do not incorrectly assume match 
-	 *			when there are no matches on first character
+	 * Lex part of the source, without adding the EOF token.
 	 * 
+	 * The part must end at the end of the source or at a token boundary.
+	 * The character at its end is looked at, to end the last token,
+	 * but it is not consumed.
+	 * 
+	 * @param offset byte offset of the first character
+	 * @param limit exclusive byte offset of the end of the part
+	 * @return true if lexing stopped at the "no compile" token
+	 * @throws LexicalException
+	 * @throws IOException
 	 */
-	private void resetMatches() {
-		// Reset tokenBuilder to zero-length
-		tokenBuilder.setLength(0);
-		
-		// Reset all potential matches to TRUE  (tokenMatches)
-		// 		 all last potential matches to FALSE (lastTokenMatches)
-		//			ensures we do not incorrectly assume match on first char
-		for (int i = 0; i < thisRoundMatches.length; i++) {
-			// Reset this round matches
-			TerminalMatch thisTm = thisRoundMatches[i];
-			thisTm.isPossibleMatch 	= true;
-			thisTm.isFullMatch 		= false;
-
-			// Reset last round matches
-			TerminalMatch lastTm = lastRoundMatches[i];
-			lastTm.isPossibleMatch 	= false;
-			lastTm.isFullMatch 		= false;
-		}
-	}
-	
-	/**
-	 * Find how many Terminals this (partial) token
-	 * might fit.
-	 * @param token
-	 * @return
-	 */
-	private int getMatchCount(String partialToken) {
-		int matchCount = 0;
-		for (int i = 0; i < thisRoundMatches.length; i++) {
-			TerminalMatch tm = thisRoundMatches[i];
-			// Consider only those that still match
-			// First character: all matches set to true
-			if (tm.isPossibleMatch) {
-				Terminal tokenRule = tm.terminal;
-
-				// Check for partial match
-				boolean isPartialMatch = tokenRule.isMatch(partialToken, false);
-				
-				// Some tokens require "full matches" 
-				// and might only full-match ONCE e.g. string
-				// In these cases, partial match is not enough
-				// e.g. String will return partial match until EOF
-				if (isPartialMatch && tokenRule.requiresFullMatch()) {
-					boolean isFullMatch = tokenRule.isMatch(partialToken, true);
-					if (isFullMatch) {
-						tm.isFullMatch = true;
-					}
-					else {
-						TerminalMatch lastTm = lastRoundMatches[i];
-						if (lastTm.isFullMatch) {
-							// Had full match
-							// No longer have full match!
-							// we have reached the end of this token
-							isPartialMatch = false;
-						}
+	private boolean lexRange(int offset, int limit) throws LexicalException, IOException {
+		// Walk the Terminal automaton one character at a time
+		// The automaton keeps track of every Terminal the token might still match
+		// Characters are read by offset, so that
+		// looking at the next character never consumes it
+		final int endIn = (limit == source.length()) ? 0 : source.byteAt(limit);
+		final ByteSet emptyTokens = LexerDFA.getEmptyTokens();
+		position = offset;
+		int state = LexerDFA.START;
+		int tokenStart = position;
+		while (true) {
+			// Fast paths, scanning eight bytes at a time
+			if (state == LexerDFA.START) {
+				// Skip whitespace, EMPTY tokens are never written or logged
+				if (position < limit && emptyTokens.contains(source.byteAt(position))) {
+					position = emptyTokens.indexOfNone(source, position, limit);
+					tokenStart = position;
+					if (position >= limit) {
+						break;
 					}
 				}
-				
-				if (isPartialMatch) {
-					// Keep match as true
-					matchCount++;
+			}
+			else {
+				// Skip the body of a string or a comment
+				ByteSet scanStops = LexerDFA.getScanStops(state);
+				if (scanStops != null) {
+					position = scanStops.indexOfAny(source, position, limit);
+				}
+			}
+			
+			int nextIn, width;
+			if (position >= limit) {
+				// End of input character
+				// or the boundary after this part
+				nextIn = endIn;
+				width = 0;
+			}
+			else {
+				byte b = source.byteAt(position);
+				if (b >= 0) {
+					// ASCII
+					nextIn = b;
+					width = 1;
 				}
 				else {
-					tm.isPossibleMatch = false;
+					nextIn = source.codePointAt(position);
+					width = source.codePointWidth(position);
+				}
+			}
+			
+			// Keep expanding the token until there are no more matches
+			int nextState = LexerDFA.next(state, nextIn);
+			if (nextState != LexerDFA.DEAD) {
+				if (width == 0) {
+					// End of input inside an unfinished token
+					break;
+				}
+				// Add new character to token itself, not token stream
+				position += width;
+				state = nextState;
+				continue;
+			}
+			
+			// If no more matches, the state before this character
+			// tells us the first match (in order) for the token
+			// This last character does not belong to this token
+			// It is still under the cursor for the next token
+			
+			// Find the which terminal type this is
+			// It will be the first full match (ordered by com.zygateley.compiler.Token.id)
+			Terminal thisRule = LexerDFA.accept(state);
+			
+			if (thisRule == null) {
+				// This can happen when Terminal.regexStart matches 
+				// but Terminal.regexFull does not
+				String message = "Lexical error at " + source.getString(tokenStart, position - tokenStart);
+				log(message);
+				throw new LexicalException(message);
+			}
+			else if (Terminal.EOF.equals(thisRule)) {
+				// "No compile" token
+				return true;
+			}
+			// Otherwise, we have a valid rule
+			// Ignore EMPTY terminals
+			else if (!Terminal.EMPTY.equals(thisRule)) {
+				if (previous != null && tokenStart >= resyncOffset) {
+					// Re-lexing, caught up with the old tokens?
+					resyncIndex = previous.indexOfStart(tokenStart - byteDelta, 0);
+					if (resyncIndex >= 0) {
+						return false;
+					}
 				}
+				createAddToken(tokenStart, position - tokenStart, thisRule);
+			}
+			
+			if (width == 0) {
+				// End of input
+				break;
 			}
+
+			// Token add complete!
+			// Reset automaton
+			state = LexerDFA.START;
+			tokenStart = position;
 		}
-		return matchCount;
+		
+		return false;
 	}
 	
 	/**
-	 * Copy thisRoundMatches to lastRoundMatches
-	 * i.e. we are keeping a one-iteration memory of matches
-	 * Store memory. 
+	 * Re-lex after a source edit, only as far as the edit changes tokens.
+	 * 
+	 * Lexing restarts right after the last token that ends before the edit
+	 * (the automaton is at START there). It stops at the first new token
+	 * that starts where an old token started, once past the edit.
+	 * From that token on, both lex the same text from START,
+	 * so the old tokens are kept.
+	 * 
+	 * @param tokens tokens of the source before the edit, replaced in place
+	 * @param source edited source
+	 * @param offset byte offset of the edit
+	 * @param removedLength number of bytes removed at offset
+	 * @param insertedLength number of bytes inserted at offset
+	 * @return tokens replaced
+	 * @throws LexicalException
+	 * @throws IOException
 	 */
-	private void copyThisToLast() {
-		for (int i = 0; i < thisRoundMatches.length; i++) {
-			TerminalMatch thisMatch = thisRoundMatches[i];
-			TerminalMatch lastMatch = lastRoundMatches[i];
-			lastMatch.isPossibleMatch = thisMatch.isPossibleMatch;
-			lastMatch.isFullMatch	  = thisMatch.isFullMatch;
+	public static TokenStream.Edit relex(TokenStream tokens, SourceBuffer source, int offset, int removedLength, int insertedLength) throws LexicalException, IOException {
+		// Last token unaffected by the edit,
+		// the character ending it must also come before the edit
+		int from = 0;
+		int restart = 0;
+		for (int low = 0, high = tokens.size() - 1; low <= high; ) {
+			int mid = (low + high) >>> 1;
+			int end = tokens.getStart(mid) + tokens.getTextLength(mid);
+			if (end < offset) {
+				from = mid + 1;
+				restart = end;
+				low = mid + 1;
+			}
+			else {
+				high = mid - 1;
+			}
+		}
+		
+		SymbolTable symbolTable = tokens.getSymbolTable();
+		TokenStream part = new TokenStream(source, symbolTable);
+		Lexer lexer = new Lexer(source, part, symbolTable);
+		lexer.previous = tokens;
+		lexer.resyncOffset = offset + insertedLength;
+		lexer.byteDelta = insertedLength - removedLength;
+		lexer.lexRange(restart, source.length());
+		
+		int to = lexer.resyncIndex;
+		if (to < 0) {
+			// Lexed to the end, replace every remaining token
+			to = tokens.size();
+			lexer.createAddToken(source.length(), 0, Terminal.EOF);
 		}
+		return tokens.replace(from, to, part, source, lexer.byteDelta);
 	}
 	
 	/**
-	 * Get the first match from the last set of matches (lastRoundMatches)
-	 * Calling this implies that there is no match in the current match set (thisRoundMatches)
-	 * @return Terminal first matching rule (priority by order)
+	 * Split the source at token boundaries
+	 * and lex the chunks in parallel on the common ForkJoinPool.
+	 * 
+	 * Each chunk is lexed into its own TokenStream and SymbolTable.
+	 * The chunks are then merged in order, inserting their symbols
+	 * in order of first appearance, so every symbol gets
+	 * the same id it would get from lexing sequentially.
+	 * 
+	 * @throws LexicalException first lexical error in the source
+	 * @throws IOException
 	 */
-	private Terminal getTerminalRuleFromLast(String fullToken) {
-		for (TerminalMatch tm : lastRoundMatches) {
-			if (tm.isPossibleMatch) {
-				boolean isFullMatch = tm.terminal.isMatch(fullToken, true);
-				if (isFullMatch) return tm.terminal;
+	private void lexParallel() throws LexicalException, IOException {
+		final int length = source.length();
+		int parallelism = ForkJoinPool.getCommonPoolParallelism();
+		int chunkLength = Math.max(MIN_CHUNK_LENGTH, length / (parallelism * 4));
+		
+		// Cut after chunkLength bytes, at the next boundary
+		TokenStream output = (TokenStream) tokenStream;
+		ArrayList<Chunk> chunks = new ArrayList<>();
+		int chunkStart = 0;
+		do {
+			int chunkEnd = Math.min(chunkStart + chunkLength, length);
+			while (chunkEnd < length && source.byteAt(chunkEnd) != CHUNK_BOUNDARY) {
+				chunkEnd++;
+			}
+			chunks.add(new Chunk(source, chunkStart, chunkEnd, output));
+			chunkStart = chunkEnd;
+		} while (chunkStart < length);
+		ForkJoinPool.commonPool().invoke(new RecursiveAction() {
+			static final long serialVersionUID = 1;
+			@Override
+			protected void compute() {
+				invokeAll(chunks);
+			}
+		});
+		
+		// Merge in source order
+		for (Chunk chunk : chunks) {
+			if (chunk.error instanceof LexicalException) {
+				throw (LexicalException) chunk.error;
+			}
+			else if (chunk.error != null) {
+				throw new IOException(chunk.error);
+			}
+			int[] symbolIds = new int[chunk.symbols.size()];
+			for (Symbol local : chunk.symbols) {
+				Symbol symbol = (local.getType() == null) ?
+						symbolTable.insert(local.getName()) :
+						symbolTable.insert(local.getValue(), local.getType());
+				symbolIds[local.getId()] = symbol.getId();
+			}
+			ConstantPool constants = symbolTable.getConstantPool();
+			int[] constantIds = new int[chunk.symbols.getConstantPool().size()];
+			for (Constant local : chunk.symbols.getConstantPool()) {
+				constantIds[local.getId()] = constants.intern(local).getId();
+			}
+			output.append(chunk.tokens, symbolIds, constantIds);
+			chunk.tokens.release();
+			if (chunk.reachedNoCompile) {
+				// Nothing after it is lexed
+				break;
 			}
 		}
-		return null;
 	}
 	
-	private void createAddToken(String newToken, Terminal thisRule) throws IOException {
-		Symbol symbol = null;
-		String value = null;
+	private void createAddToken(int offset, int length, Terminal thisRule) throws IOException, LexicalException {
+		// Only variable names need their text now
+		// Literals are decoded once into the ConstantPool
+		// All other tokens refer back to the source
+		int id = -1;
+		String newToken = null;
 		if (thisRule == Terminal.VARIABLE) {
 			// Variable name
-			symbol = symbolTable.insert(newToken);
+			newToken = source.getString(offset, length);
+			id = symbolTable.insert(newToken).getId();
 		}
-		else if (thisRule.type == TypeSystem.STRING) { 
-			symbol = symbolTable.insert(newToken, thisRule.type);
-		}
-		else if (thisRule.type != null) {
-			// All other literals
-			value = newToken;
-		}
-		else {
-			// All non-literals inherit their value from the rule
-			value = thisRule.exactString;
+		else if (thisRule.type != null) { 
+			id = symbolTable.getConstantPool().decode(thisRule, source, offset, length).getId();
 		}
 		if (thisRule != Terminal.COMMENT) {
 			// Do not consider comments
 			// They can short circuit single-command if/elseif/else
-			tokenStream.write(thisRule, symbol, value);
+			tokenStream.write(thisRule, offset, length, id);
 		}
 		
 		if (verbose) {
+			if (newToken == null) {
+				// Zero-length: end of input character
+				newToken = (length > 0) ? source.getString(offset, length) : Character.toString((char) 0);
+			}
 			StringBuilder sbtr = new StringBuilder(thisRule + "         ");
 			sbtr.setLength(10);
 			log("Token: " + sbtr.toString() + "\t( "+ newToken + " )");
 		}
 	}
 	
+	/**
+	 * Part of the source lexed on its own
+	 */
+	private static class Chunk extends RecursiveAction {
+		static final long serialVersionUID = 1;
+		
+		private final SourceBuffer source;
+		private final int start;
+		private final int end;
+		final SymbolTable symbols = new SymbolTable();
+		final TokenStream tokens;
+		boolean reachedNoCompile = false;
+		Exception error = null;
+		
+		Chunk(SourceBuffer source, int start, int end, TokenStream output) {
+			this.source = source;
+			this.start = start;
+			this.end = end;
+			// Stored the same way as the output
+			this.tokens = output.newPart(this.symbols);
+		}
+		
+		@Override
+		protected void compute() {
+			try {
+				Lexer lexer = new Lexer(this.source, this.tokens, this.symbols);
+				this.reachedNoCompile = lexer.lexRange(this.start, this.end);
+			}
+			catch (Exception e) {
+				this.error = e;
+			}
+		}
+	}
+	
 	private void log(String message) throws IOException {
 		if (this.verbose) {
 			System.out.println(message);
@@ -0,0 +1,776 @@
+package com.zygateley.compiler;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Deterministic automaton compiled from the Terminal enum.
+ *
+ * Every Terminal describes its lexeme either as an exact string
+ * or as a pair of regular expressions (potential, full).
+ * Rather than re-running every one of those expressions
+ * against the growing token after each character,
+ * the expressions are compiled once, here, into a single
+ * combined DFA. The Lexer then needs one table lookup per character.
+ *
+ * The automaton reproduces the matching rules of the character-by-character lexer:
+ * 		A Terminal stays alive while its potential expression matches the whole token.
+ * 		A Terminal that requires a full match (e.g. STRING) dies
+ * 			as soon as it stops full-matching after having full-matched once.
+ * 		The token grows as long as any Terminal is alive.
+ * 		When no Terminal survives the next character,
+ * 			the token belongs to the first Terminal (in declaration order)
+ * 			that was alive and fully matched the token.
+ *
+ * Characters are folded into input classes (see classOf):
+ * 		one class per ASCII character,
+ * 		one class for the non-ASCII line terminators,
+ * 		and one class for every other character.
+ * No Terminal distinguishes non-ASCII characters beyond that.
+ *
+ * The lexemes are read from GrammarTables, which may respell Terminals by a grammar file.
+ * The built tables are cached on disk (see GrammarTables),
+ * so the DFA is only built again when the lexemes or this builder change.
+ *
+ * @author Zachary Gateley
+ *
+ */
+final class LexerDFA {
+	public static final int DEAD = -1;
+	public static final int START = 0;
+
+	// Input classes
+	private static final int LINE_TERMINATOR_CLASS = 128;
+	private static final int OTHER_CLASS = 129;
+	public static final int CLASS_COUNT = 130;
+
+	// transitions[state * CLASS_COUNT + class] -> next state or DEAD
+	private static final int[] transitions;
+	// Terminal accepted when the token ends in a given state (null if error)
+	private static final Terminal[] accepting;
+
+	// Fast paths
+	// A run of bytes that loop back to the same state is skipped in one scan
+	// Most bytes in such a state must loop (string and comment bodies)
+	private static final int MAX_SCAN_STOPS = 8;
+	// scanStops[state] -> bytes that leave state (null if no fast path)
+	private static final ByteSet[] scanStops;
+	// Bytes that are an EMPTY token by themselves (whitespace)
+	private static final ByteSet emptyTokens;
+
+	// Name of the cached table (see GrammarTables)
+	private static final String TABLE = "lexer";
+
+	static {
+		int[] table = null;
+		Terminal[] accepts = null;
+		ByteBuffer cached = GrammarTables.map(TABLE, LexerDFA.class);
+		if (cached != null) {
+			try {
+				Terminal[] values = Terminal.values();
+				int stateCount = cached.getInt();
+				table = new int[stateCount * CLASS_COUNT];
+				accepts = new Terminal[stateCount];
+				IntBuffer ints = cached.asIntBuffer();
+				ints.get(table);
+				for (int state = 0; state < stateCount; state++) {
+					int terminal = ints.get();
+					accepts[state] = (terminal < 0) ? null : values[terminal];
+				}
+				for (int target : table) {
+					if (target < DEAD || target >= stateCount) {
+						throw new IndexOutOfBoundsException(target);
+					}
+				}
+			}
+			catch (RuntimeException err) {
+				// Damaged, built again
+				table = null;
+			}
+		}
+		if (table == null) {
+			Builder builder = new Builder(Terminal.values());
+			builder.build();
+			table = builder.getTransitions();
+			accepts = builder.getAccepting();
+			GrammarTables.store(TABLE, LexerDFA.class, serialize(table, accepts));
+		}
+		transitions = table;
+		accepting = accepts;
+		scanStops = buildScanStops();
+		emptyTokens = buildEmptyTokens();
+	}
+
+	private LexerDFA() { }
+
+	/**
+	 * Input class of a character
+	 *
+	 * @param c character (or code point)
+	 * @return index into the transition table row
+	 */
+	public static int classOf(int c) {
+		if (c < 128) {
+			return c;
+		}
+		// Line terminators recognized by '.' in java.util.regex
+		if (c == '\u0085' || c == '\u2028' || c == '\u2029') {
+			return LINE_TERMINATOR_CLASS;
+		}
+		return OTHER_CLASS;
+	}
+
+	/**
+	 * @param state current state
+	 * @param c next character
+	 * @return next state or DEAD if no Terminal survives c
+	 */
+	public static int next(int state, int c) {
+		return transitions[state * CLASS_COUNT + classOf(c)];
+	}
+
+	/**
+	 * @param state state reached by the complete token
+	 * @return Terminal of the token or null if the token is not a lexeme
+	 */
+	public static Terminal accept(int state) {
+		return accepting[state];
+	}
+
+	public static int getStateCount() {
+		return accepting.length;
+	}
+
+	/**
+	 * @param state current state
+	 * @return ASCII bytes that do not loop back to state,
+	 * 		or null if too many bytes leave state to scan for them
+	 */
+	public static ByteSet getScanStops(int state) {
+		return scanStops[state];
+	}
+
+	/**
+	 * @return ASCII bytes that are an EMPTY token by themselves
+	 */
+	public static ByteSet getEmptyTokens() {
+		return emptyTokens;
+	}
+
+	/**
+	 * Table file contents (see GrammarTables)
+	 * 		number of states
+	 * 		transitions, by state then input class
+	 * 		ordinal of the accepted Terminal (-1 if none), by state
+	 */
+	private static ByteBuffer serialize(int[] transitions, Terminal[] accepting) {
+		ByteBuffer contents = ByteBuffer.allocate(4 * (1 + transitions.length + accepting.length));
+		contents.putInt(accepting.length);
+		for (int target : transitions) {
+			contents.putInt(target);
+		}
+		for (Terminal terminal : accepting) {
+			contents.putInt((terminal == null) ? -1 : terminal.ordinal());
+		}
+		return contents.flip();
+	}
+
+	private static ByteSet[] buildScanStops() {
+		ByteSet[] stops = new ByteSet[accepting.length];
+		byte[] leaving = new byte[128];
+		for (int state = 0; state < accepting.length; state++) {
+			if (state == START) {
+				continue;
+			}
+			int count = 0;
+			for (int b = 0; b < 128 && count <= MAX_SCAN_STOPS; b++) {
+				if (transitions[state * CLASS_COUNT + b] != state) {
+					leaving[count++] = (byte) b;
+				}
+			}
+			if (count <= MAX_SCAN_STOPS) {
+				stops[state] = new ByteSet(Arrays.copyOf(leaving, count));
+			}
+		}
+		return stops;
+	}
+
+	private static ByteSet buildEmptyTokens() {
+		byte[] empty = new byte[128];
+		int count = 0;
+		for (int b = 0; b < 128; b++) {
+			int after = transitions[START * CLASS_COUNT + b];
+			if (after == DEAD || accepting[after] != Terminal.EMPTY) {
+				continue;
+			}
+			boolean ends = true;
+			for (int k = 0; k < CLASS_COUNT; k++) {
+				ends &= (transitions[after * CLASS_COUNT + k] == DEAD);
+			}
+			if (ends) {
+				empty[count++] = (byte) b;
+			}
+		}
+		return new ByteSet(Arrays.copyOf(empty, count));
+	}
+
+	/**
+	 * A character is a token boundary if it ends every token
+	 * and is a complete token by itself.
+	 * Lexing always restarts from START right after it,
+	 * so the source can be split there and the parts lexed separately.
+	 *
+	 * @param c character
+	 * @return whether c is a token boundary
+	 */
+	public static boolean isTokenBoundary(int c) {
+		int cClass = classOf(c);
+		for (int state = 0; state < accepting.length; state++) {
+			if (state != START && transitions[state * CLASS_COUNT + cClass] != DEAD) {
+				return false;
+			}
+		}
+		int after = transitions[START * CLASS_COUNT + cClass];
+		if (after == DEAD) {
+			return false;
+		}
+		for (int k = 0; k < CLASS_COUNT; k++) {
+			if (transitions[after * CLASS_COUNT + k] != DEAD) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+
+	/**
+	 * Subset construction over the product of
+	 * every Terminal's potential and full automata.
+	 *
+	 * Each DFA state is a BitSet holding,
+	 * 		for every NFA node, whether it is active
+	 * 		and, for every Terminal, whether it has ever full-matched.
+	 * A Terminal is alive iff one of its potential nodes is active.
+	 */
+	private static class Builder {
+		private final Terminal[] terminals;
+		private final Nfa nfa = new Nfa();
+		// Per terminal, potential automaton start node and owner
+		private final int[] potentialStart, potentialOwner;
+		// Per terminal, separate full automaton start node and owner (-1 if none)
+		private final int[] fullStart, fullOwner;
+		// Per terminal, node ranges [from, to) of the automata
+		private final int[] nodeFrom, nodeTo;
+		// Flag bits appended after the NFA nodes
+		private int hadFullBase;
+
+		private final ArrayList<BitSet> states = new ArrayList<>();
+		private final HashMap<BitSet, Integer> stateIndex = new HashMap<>();
+		private int[] table = new int[64 * CLASS_COUNT];
+
+		public Builder(Terminal[] terminals) {
+			this.terminals = terminals;
+			int count = terminals.length;
+			this.potentialStart = new int[count];
+			this.potentialOwner = new int[count];
+			this.fullStart = new int[count];
+			this.fullOwner = new int[count];
+			this.nodeFrom = new int[count];
+			this.nodeTo = new int[count];
+		}
+
+		public void build() {
+			// Compile every terminal into NFA fragments
+			for (int i = 0; i < terminals.length; i++) {
+				Terminal t = terminals[i];
+				nodeFrom[i] = nfa.size();
+				String potential = GrammarTables.getPotentialPattern(t);
+				String full = GrammarTables.getFullPattern(t);
+				potentialOwner[i] = nfa.size();
+				potentialStart[i] = (potential == null) ? nfa.exactString(GrammarTables.getExactString(t)) : nfa.regex(potential, t);
+				fullOwner[i] = (full == null) ? -1 : nfa.size();
+				fullStart[i] = (full == null) ? -1 : nfa.regex(full, t);
+				nodeTo[i] = nfa.size();
+			}
+			hadFullBase = nfa.size();
+
+			// Start state: every terminal alive, nothing consumed
+			BitSet start = new BitSet();
+			for (int i = 0; i < terminals.length; i++) {
+				nfa.closure(potentialStart[i], start);
+				if (fullStart[i] >= 0) {
+					nfa.closure(fullStart[i], start);
+				}
+			}
+			addState(start);
+
+			// Breadth-first over reachable states
+			for (int s = 0; s < states.size(); s++) {
+				BitSet current = states.get(s);
+				for (int c = 0; c < CLASS_COUNT; c++) {
+					BitSet next = step(current, c);
+					// addState may grow the table
+					int target = (next == null) ? DEAD : addState(next);
+					table[s * CLASS_COUNT + c] = target;
+				}
+			}
+		}
+
+		private int addState(BitSet state) {
+			Integer index = stateIndex.get(state);
+			if (index != null) {
+				return index;
+			}
+			index = states.size();
+			states.add(state);
+			stateIndex.put(state, index);
+			if ((index + 1) * CLASS_COUNT > table.length) {
+				table = Arrays.copyOf(table, table.length * 2);
+			}
+			return index;
+		}
+
+		/**
+		 * @return successor of state on input class c or null if no terminal survives
+		 */
+		private BitSet step(BitSet state, int c) {
+			BitSet next = new BitSet();
+			boolean anyAlive = false;
+			for (int i = 0; i < terminals.length; i++) {
+				if (!isAlive(state, i)) {
+					continue;
+				}
+				BitSet potential = new BitSet();
+				nfa.move(state, nodeFrom[i], nodeTo[i], potentialOwner[i], c, potential);
+				if (!nfa.hasAccepting(potential, Nfa.ACCEPT_POTENTIAL)) {
+					// Potential match lost
+					continue;
+				}
+				boolean hadFull = state.get(hadFullBase + i);
+				if (fullStart[i] >= 0) {
+					BitSet full = new BitSet();
+					nfa.move(state, nodeFrom[i], nodeTo[i], fullOwner[i], c, full);
+					if (nfa.hasAccepting(full, Nfa.ACCEPT_FULL)) {
+						hadFull = true;
+					}
+					else if (hadFull) {
+						// Had full match, no longer does
+						// this is the end of this token
+						continue;
+					}
+					next.or(full);
+				}
+				next.or(potential);
+				if (hadFull) {
+					next.set(hadFullBase + i);
+				}
+				anyAlive = true;
+			}
+			return anyAlive ? next : null;
+		}
+
+		private boolean isAlive(BitSet state, int terminal) {
+			int from = nodeFrom[terminal], to = nodeTo[terminal];
+			int node = state.nextSetBit(from);
+			while (node >= 0 && node < to) {
+				if (nfa.owner(node) == potentialOwner[terminal]) {
+					return true;
+				}
+				node = state.nextSetBit(node + 1);
+			}
+			return false;
+		}
+
+		/**
+		 * @param state DFA state
+		 * @return first terminal (by declaration order) fully matching in state
+		 */
+		private Terminal accepts(int index, BitSet state) {
+			if (index == START) {
+				// Nothing consumed, nothing to accept
+				return null;
+			}
+			for (int i = 0; i < terminals.length; i++) {
+				if (!isAlive(state, i)) {
+					continue;
+				}
+				int from = nodeFrom[i], to = nodeTo[i];
+				boolean potential = false, full = false;
+				for (int node = state.nextSetBit(from); node >= 0 && node < to; node = state.nextSetBit(node + 1)) {
+					boolean inFull = nfa.owner(node) == fullOwner[i];
+					if (inFull) {
+						full |= nfa.isAccepting(node, Nfa.ACCEPT_FULL);
+					}
+					else {
+						potential |= nfa.isAccepting(node, Nfa.ACCEPT_POTENTIAL);
+						if (fullStart[i] < 0) {
+							full |= nfa.isAccepting(node, Nfa.ACCEPT_FULL);
+						}
+					}
+				}
+				if (potential && full) {
+					return terminals[i];
+				}
+			}
+			return null;
+		}
+
+		public int[] getTransitions() {
+			return Arrays.copyOf(table, states.size() * CLASS_COUNT);
+		}
+
+		public Terminal[] getAccepting() {
+			Terminal[] result = new Terminal[states.size()];
+			for (int s = 0; s < result.length; s++) {
+				result[s] = accepts(s, states.get(s));
+			}
+			return result;
+		}
+	}
+
+
+	/**
+	 * Thompson-style NFA holding the automata of every Terminal.
+	 *
+	 * Each automaton is a separate fragment; every node remembers
+	 * the fragment that owns it (the index of the fragment's first node).
+	 */
+	private static class Nfa {
+		public static final int ACCEPT_POTENTIAL = 1;
+		public static final int ACCEPT_FULL = 2;
+
+		// Character-class edge (null if none) and its target
+		private final ArrayList<boolean[]> edgeClass = new ArrayList<>();
+		private final ArrayList<Integer> edgeTarget = new ArrayList<>();
+		// Epsilon edges
+		private final ArrayList<int[]> epsilon = new ArrayList<>();
+		private final ArrayList<Integer> accept = new ArrayList<>();
+		private final ArrayList<Integer> owner = new ArrayList<>();
+		private int currentOwner;
+
+		public int size() {
+			return edgeClass.size();
+		}
+
+		private int newNode() {
+			edgeClass.add(null);
+			edgeTarget.add(-1);
+			epsilon.add(new int[0]);
+			accept.add(0);
+			owner.add(currentOwner);
+			return edgeClass.size() - 1;
+		}
+
+		private void addEpsilon(int from, int to) {
+			int[] edges = epsilon.get(from);
+			edges = Arrays.copyOf(edges, edges.length + 1);
+			edges[edges.length - 1] = to;
+			epsilon.set(from, edges);
+		}
+
+		private void addEdge(int from, boolean[] on, int to) {
+			edgeClass.set(from, on);
+			edgeTarget.set(from, to);
+		}
+
+		public int owner(int node) {
+			return owner.get(node);
+		}
+
+		public boolean isAccepting(int node, int kind) {
+			return (accept.get(node) & kind) != 0;
+		}
+
+		public boolean hasAccepting(BitSet nodes, int kind) {
+			for (int n = nodes.nextSetBit(0); n >= 0; n = nodes.nextSetBit(n + 1)) {
+				if (isAccepting(n, kind)) return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Add node and every node reachable through epsilon edges to set
+		 */
+		public void closure(int node, BitSet set) {
+			if (set.get(node)) return;
+			ArrayDeque<Integer> pending = new ArrayDeque<>();
+			pending.push(node);
+			set.set(node);
+			while (!pending.isEmpty()) {
+				int n = pending.pop();
+				for (int e : epsilon.get(n)) {
+					if (!set.get(e)) {
+						set.set(e);
+						pending.push(e);
+					}
+				}
+			}
+		}
+
+		/**
+		 * Advance the nodes of one fragment (identified by its owner)
+		 * within [from, to) on input class c.
+		 */
+		public void move(BitSet state, int from, int to, int fragmentOwner, int c, BitSet result) {
+			for (int n = state.nextSetBit(from); n >= 0 && n < to; n = state.nextSetBit(n + 1)) {
+				if (owner.get(n) != fragmentOwner) continue;
+				boolean[] on = edgeClass.get(n);
+				if (on != null && on[c]) {
+					closure(edgeTarget.get(n), result);
+				}
+			}
+		}
+
+		/**
+		 * Chain of nodes spelling out exactString.
+		 * Every non-empty prefix is a potential match,
+		 * only the whole string is a full match.
+		 *
+		 * @return start node
+		 */
+		public int exactString(String exactString) {
+			currentOwner = size();
+			int start = newNode();
+			int node = start;
+			for (int i = 0; i < exactString.length(); i++) {
+				int next = newNode();
+				boolean[] on = new boolean[CLASS_COUNT];
+				on[classOf(exactString.charAt(i))] = true;
+				addEdge(node, on, next);
+				accept.set(next, ACCEPT_POTENTIAL);
+				node = next;
+			}
+			if (node != start) {
+				accept.set(node, ACCEPT_POTENTIAL | ACCEPT_FULL);
+			}
+			return start;
+		}
+
+		/**
+		 * Compile a whole-match regular expression.
+		 *
+		 * @return start node
+		 */
+		public int regex(String pattern, Terminal terminal) {
+			currentOwner = size();
+			RegexParser parser = new RegexParser(this, pattern, terminal);
+			int[] fragment = parser.parse();
+			accept.set(fragment[1], ACCEPT_POTENTIAL | ACCEPT_FULL);
+			return fragment[0];
+		}
+	}
+
+
+	/**
+	 * Recursive-descent parser for the subset of java.util.regex
+	 * used by Terminal definitions:
+	 * 		alternation, (non-capturing) groups, *, + and ? quantifiers,
+	 * 		character classes, escapes, '.', and the ^ $ anchors
+	 * 		(which are redundant as Terminals are always whole-matched).
+	 * An optional lookahead, e.g. (?=...)?, always succeeds and is dropped.
+	 *
+	 * Each method returns a fragment {start, end}.
+	 */
+	private static class RegexParser {
+		// Representative characters of the input classes
+		private static final char[] representatives = new char[CLASS_COUNT];
+		static {
+			for (int c = 0; c < 128; c++) {
+				representatives[c] = (char) c;
+			}
+			representatives[LINE_TERMINATOR_CLASS] = '\u2028';
+			representatives[OTHER_CLASS] = '\u00e9';
+		}
+
+		private final Nfa nfa;
+		private final String pattern;
+		private final Terminal terminal;
+		private int position;
+
+		public RegexParser(Nfa nfa, String pattern, Terminal terminal) {
+			this.nfa = nfa;
+			this.pattern = pattern;
+			this.terminal = terminal;
+		}
+
+		public int[] parse() {
+			int[] fragment = alternation();
+			if (position < pattern.length()) {
+				throw unsupported();
+			}
+			return fragment;
+		}
+
+		private IllegalArgumentException unsupported() {
+			return new IllegalArgumentException(
+					"Unsupported regular expression for Terminal " + terminal +
+					" at index " + position + ": " + pattern);
+		}
+
+		private boolean peek(char c) {
+			return position < pattern.length() && pattern.charAt(position) == c;
+		}
+
+		private int[] empty() {
+			int node = nfa.newNode();
+			return new int[] { node, node };
+		}
+
+		private int[] alternation() {
+			int[] left = sequence();
+			if (!peek('|')) {
+				return left;
+			}
+			int start = nfa.newNode(), end = nfa.newNode();
+			nfa.addEpsilon(start, left[0]);
+			nfa.addEpsilon(left[1], end);
+			while (peek('|')) {
+				position++;
+				int[] right = sequence();
+				nfa.addEpsilon(start, right[0]);
+				nfa.addEpsilon(right[1], end);
+			}
+			return new int[] { start, end };
+		}
+
+		private int[] sequence() {
+			int[] result = empty();
+			while (position < pattern.length() && !peek('|') && !peek(')')) {
+				int[] atom = quantified();
+				if (atom != null) {
+					nfa.addEpsilon(result[1], atom[0]);
+					result[1] = atom[1];
+				}
+			}
+			return result;
+		}
+
+		/**
+		 * @return quantified atom or null if the atom matches the empty string only
+		 */
+		private int[] quantified() {
+			boolean isLookahead = pattern.startsWith("(?=", position) || pattern.startsWith("(?!", position);
+			int[] atom = atom();
+			char quantifier = (position < pattern.length()) ? pattern.charAt(position) : 0;
+			if (isLookahead) {
+				// Only an optional lookahead can be represented
+				if (quantifier != '?') {
+					throw unsupported();
+				}
+				position++;
+				return null;
+			}
+			if (atom == null) {
+				return null;
+			}
+			switch (quantifier) {
+			case '*':
+			case '+':
+			case '?':
+				position++;
+				if (peek('?') || peek('+')) {
+					// Lazy and possessive quantifiers
+					throw unsupported();
+				}
+				int start = nfa.newNode(), end = nfa.newNode();
+				nfa.addEpsilon(start, atom[0]);
+				nfa.addEpsilon(atom[1], end);
+				if (quantifier != '+') {
+					nfa.addEpsilon(start, end);
+				}
+				if (quantifier != '?') {
+					nfa.addEpsilon(atom[1], atom[0]);
+				}
+				return new int[] { start, end };
+			case '{':
+				throw unsupported();
+			default:
+				return atom;
+			}
+		}
+
+		private int[] atom() {
+			char c = pattern.charAt(position);
+			switch (c) {
+			case '^':
+			case '$':
+				// Anchors: whole-string matching already implied
+				position++;
+				return null;
+			case '(':
+				position++;
+				if (peek('?')) {
+					if (pattern.startsWith("?:", position) || pattern.startsWith("?=", position) || pattern.startsWith("?!", position)) {
+						position += 2;
+					}
+					else {
+						throw unsupported();
+					}
+				}
+				int[] group = alternation();
+				if (!peek(')')) {
+					throw unsupported();
+				}
+				position++;
+				return group;
+			case '[':
+				return characters(classText());
+			case '\\':
+				if (position + 1 >= pattern.length()) {
+					throw unsupported();
+				}
+				position += 2;
+				return characters(pattern.substring(position - 2, position));
+			case '*': case '+': case '?': case '{': case ')': case '|':
+				throw unsupported();
+			default:
+				position++;
+				return characters(pattern.substring(position - 1, position));
+			}
+		}
+
+		/**
+		 * @return text of the bracketed character class starting at position
+		 */
+		private String classText() {
+			int start = position++;
+			if (peek('^')) position++;
+			// Leading ']' is literal
+			if (peek(']')) position++;
+			int depth = 0;
+			while (position < pattern.length()) {
+				char c = pattern.charAt(position++);
+				if (c == '\\') {
+					position++;
+				}
+				else if (c == '[') {
+					depth++;
+				}
+				else if (c == ']') {
+					if (depth-- == 0) {
+						return pattern.substring(start, position);
+					}
+				}
+			}
+			throw unsupported();
+		}
+
+		/**
+		 * Single-character atom. Membership of every input class is
+		 * decided by java.util.regex itself on a representative character,
+		 * so class syntax and escapes keep their exact meaning.
+		 */
+		private int[] characters(String atomText) {
+			Pattern atomPattern = Pattern.compile(atomText);
+			boolean[] on = new boolean[CLASS_COUNT];
+			for (int c = 0; c < CLASS_COUNT; c++) {
+				on[c] = atomPattern.matcher(String.valueOf(representatives[c])).matches();
+			}
+			int start = nfa.newNode(), end = nfa.newNode();
+			nfa.addEdge(start, on, end);
+			return new int[] { start, end };
+		}
+	}
+}
@@ -0,0 +1,372 @@
+package com.zygateley.compiler;
+
+import java.util.*;
+
+/**
+ * Type-specialized copies of functions, one per signature of their calls,
+ * and the typing of the tree with them.
+ *
+ * Every definition has its own parameter Variables,
+ * which the reads and assignments of its parameters in its body refer to.
+ * The distinct tuples of argument types of a function's calls,
+ * in the order the calls appear, are its signatures
+ * (a call with an argument not typed yet has none, until it is):
+ * 		the first keeps the function's own definition and Symbol,
+ * 		every other gets a copy of the definition, right after it,
+ * 		named by the function and its types (e.g. foo_STRING_INTEGER),
+ * 		with a new function Symbol in the SymbolTable.
+ * Every call is renamed to the function of its signature,
+ * and the TypeSystem types every definition with its parameters bound to its signature,
+ * so each body is checked for every signature it is called with,
+ * and the back ends only see concrete types.
+ *
+ * The arguments of a call in a body may only get their types
+ * once the parameters of the body do,
+ * so the tree is typed again, and its calls grouped again,
+ * until the signatures no longer change.
+ * Signatures that come back to an earlier grouping never settle, and are an error.
+ * A definition left with no signature is never called with concrete types
+ * (e.g. a function only called by itself), and leaves the tree,
+ * so that the back ends do not emit it.
+ *
+ * A copy has its own Scopes, and its own Variables for its parameters and for what is declared within,
+ * but shares the Variables declared outside of it.
+ *
+ * @author Zachary Gateley
+ *
+ */
+final class Monomorphizer {
+	private final Node syntaxTree;
+	private final SymbolTable symbolTable;
+	// Definition of each function
+	private final HashMap<Symbol, Node> functions = new HashMap<>();
+	// Function of each copy, by the Symbol of the copy
+	private final HashMap<Symbol, Symbol> copiedFrom = new HashMap<>();
+	// Copies of each function by signature, in the tree or not
+	private final HashMap<Symbol, HashMap<List<TypeSystem>, Node>> copies = new HashMap<>();
+	// Signatures of each function, in order of first call, of every grouping so far
+	private final HashSet<Map<Symbol, List<List<TypeSystem>>>> groupings = new HashSet<>();
+	private Map<Symbol, List<List<TypeSystem>>> grouping = new HashMap<>();
+	// Type of each bound parameter
+	private final HashMap<Variable, TypeSystem> parameterTypes = new HashMap<>();
+	// Signature of each call with one, by id, as last grouped
+	private HashMap<Integer, List<TypeSystem>> callSignatures = new HashMap<>();
+
+	private Monomorphizer(Node syntaxTree, SymbolTable symbolTable) {
+		this.syntaxTree = syntaxTree;
+		this.symbolTable = symbolTable;
+	}
+
+	/**
+	 * Type check the tree and assign its types,
+	 * specializing every function by the types of its calls
+	 *
+	 * @param syntaxTree optimized tree
+	 * @param symbolTable table receiving the Symbols of the copies
+	 */
+	static void specialize(Node syntaxTree, SymbolTable symbolTable) throws Exception {
+		Monomorphizer monomorphizer = new Monomorphizer(syntaxTree, symbolTable);
+		monomorphizer.collect();
+		TypeSystem.TypeInference inference = TypeSystem.infer(syntaxTree, monomorphizer.parameterTypes);
+		while (monomorphizer.regroup(inference)) {
+			inference = TypeSystem.infer(syntaxTree, monomorphizer.parameterTypes);
+		}
+		monomorphizer.dropUncalled();
+		inference.assign();
+	}
+
+	/**
+	 * Find the definitions, and give each its own parameters
+	 */
+	private void collect() {
+		ArrayList<Node> definitions = new ArrayList<>();
+		TreeCursor cursor = new TreeCursor(this.syntaxTree);
+		do {
+			Node node = cursor.node();
+			if (Construct.FUNCDEF.equals(node.getConstruct())) {
+				this.functions.putIfAbsent(node.getFirstChild().getSymbol(), node);
+				definitions.add(node);
+			}
+		} while (cursor.next());
+		for (Node definition : definitions) {
+			ownParameters(definition);
+		}
+	}
+
+	/**
+	 * Group the calls of every function by their signatures, as solved,
+	 * giving each signature its definition, binding its parameters,
+	 * and renaming the calls to it
+	 *
+	 * @param inference types of the tree as it is
+	 * @return whether the signatures changed, and the tree must be typed again
+	 */
+	private boolean regroup(TypeSystem.TypeInference inference) throws Exception {
+		LinkedHashMap<Symbol, LinkedHashMap<List<TypeSystem>, Node>> signatures = new LinkedHashMap<>();
+		HashMap<Integer, List<TypeSystem>> calls = new HashMap<>();
+		TreeCursor cursor = new TreeCursor(this.syntaxTree);
+		do {
+			Node node = cursor.node();
+			if (Construct.FUNCCALL.equals(node.getConstruct())) {
+				Symbol function = this.functionOf(node.getFirstChild().getSymbol());
+				if (this.functions.containsKey(function)) {
+					List<TypeSystem> signature = signatureOf(node, inference);
+					if (signature.contains(null)) {
+						// Arguments not typed yet
+						continue;
+					}
+					calls.put(node.getId(), signature);
+					signatures
+						.computeIfAbsent(function, f -> new LinkedHashMap<>())
+						.putIfAbsent(signature, null);
+				}
+			}
+		} while (cursor.next());
+
+		Map<Symbol, List<List<TypeSystem>>> grouping = new HashMap<>();
+		for (Map.Entry<Symbol, LinkedHashMap<List<TypeSystem>, Node>> entry : signatures.entrySet()) {
+			grouping.put(entry.getKey(), new ArrayList<>(entry.getValue().keySet()));
+		}
+		boolean changed = !grouping.equals(this.grouping);
+		if (changed) {
+			if (!this.groupings.add(grouping)) {
+				throw new SyntaxError("Syntax error: The argument types of the calls to "
+						+ grouping.keySet() + " depend on each other and never settle.");
+			}
+			this.grouping = grouping;
+		}
+		this.callSignatures = calls;
+
+		this.parameterTypes.clear();
+		HashSet<Integer> used = new HashSet<>();
+		for (Map.Entry<Symbol, LinkedHashMap<List<TypeSystem>, Node>> entry : signatures.entrySet()) {
+			Symbol function = entry.getKey();
+			Node definition = this.functions.get(function);
+			Node last = null;
+			for (Map.Entry<List<TypeSystem>, Node> signature : entry.getValue().entrySet()) {
+				List<TypeSystem> types = signature.getKey();
+				Node specialized = definition;
+				if (last == null) {
+					last = definition;
+				}
+				else {
+					specialized = this.copyFor(function, types);
+					// Right after the previous signature's
+					specialized.pop();
+					last.addRightSibling(specialized);
+					last = specialized;
+				}
+				signature.setValue(specialized);
+				used.add(specialized.getId());
+				this.bindParameters(specialized, types);
+			}
+		}
+		// Copies no longer called leave the tree, until they are
+		for (HashMap<List<TypeSystem>, Node> functionCopies : this.copies.values()) {
+			for (Node copy : functionCopies.values()) {
+				if (!used.contains(copy.getId())) {
+					copy.pop();
+				}
+			}
+		}
+
+		// Renamed whenever a call changes its function,
+		// as a call within a copy does once the copy's parameters are typed
+		cursor.reset(this.syntaxTree);
+		do {
+			Node node = cursor.node();
+			if (Construct.FUNCCALL.equals(node.getConstruct())) {
+				Node name = node.getFirstChild();
+				Symbol function = this.functionOf(name.getSymbol());
+				List<TypeSystem> signature = calls.get(node.getId());
+				if (signature != null) {
+					function = signatures.get(function).get(signature).getFirstChild().getSymbol();
+				}
+				// Otherwise, not typed yet
+				if (!function.equals(name.getSymbol())) {
+					name.setSymbol(function);
+					changed = true;
+				}
+			}
+		} while (cursor.next());
+		return changed;
+	}
+	
+	/**
+	 * Remove the definitions with no signature from the tree,
+	 * once the signatures have settled,
+	 * leaving no call without one
+	 */
+	private void dropUncalled() throws Exception {
+		for (Map.Entry<Symbol, Node> entry : this.functions.entrySet()) {
+			if (!this.grouping.containsKey(entry.getKey())) {
+				entry.getValue().pop();
+				entry.getKey().setIsFunction(false);
+			}
+		}
+		// Copies no longer called
+		for (HashMap<List<TypeSystem>, Node> functionCopies : this.copies.values()) {
+			for (Node copy : functionCopies.values()) {
+				if (copy.getParent() == null) {
+					copy.getFirstChild().getSymbol().setIsFunction(false);
+				}
+			}
+		}
+		TreeCursor cursor = new TreeCursor(this.syntaxTree);
+		do {
+			Node node = cursor.node();
+			if (Construct.FUNCCALL.equals(node.getConstruct())
+					&& this.functions.containsKey(this.functionOf(node.getFirstChild().getSymbol()))
+					&& !this.callSignatures.containsKey(node.getId())) {
+				throw new SyntaxError("Syntax error: The argument types of a call to "
+						+ node.getFirstChild().getSymbol() + " are not known.");
+			}
+		} while (cursor.next());
+	}
+
+	/**
+	 * @return the function a function Symbol is a copy of, or itself
+	 */
+	private Symbol functionOf(Symbol symbol) {
+		return this.copiedFrom.getOrDefault(symbol, symbol);
+	}
+
+	private static List<TypeSystem> signatureOf(Node functionCall, TypeSystem.TypeInference inference) {
+		ArrayList<TypeSystem> types = new ArrayList<>();
+		for (Node argument = functionCall.getFirstChild().getNextSibling(); argument != null; argument = argument.getNextSibling()) {
+			types.add(inference.typeOf(argument));
+		}
+		return types;
+	}
+
+	/**
+	 * Bind the parameters of a definition to the known types of a signature
+	 */
+	private void bindParameters(Node definition, List<TypeSystem> types) {
+		Node body = definition.getLastChild();
+		Node parameter = definition.getFirstChild().getNextSibling();
+		for (TypeSystem type : types) {
+			if (parameter == body) {
+				// Argument count is checked by the TypeSystem
+				break;
+			}
+			if (type != null) {
+				this.parameterTypes.put(parameter.getVariable(), type);
+			}
+			parameter = parameter.getNextSibling();
+		}
+	}
+
+	/**
+	 * Copy of the definition of a function for a signature,
+	 * made the first time it is needed
+	 *
+	 * @return copy, not attached to any parent
+	 */
+	private Node copyFor(Symbol function, List<TypeSystem> types) throws Exception {
+		HashMap<List<TypeSystem>, Node> functionCopies = this.copies.computeIfAbsent(function, f -> new HashMap<>());
+		Node copy = functionCopies.get(types);
+		if (copy == null) {
+			Symbol symbol = this.newFunction(function, types);
+			copy = copyOf(this.functions.get(function));
+			copy.getFirstChild().setSymbol(symbol);
+			ownParameters(copy);
+			this.copiedFrom.put(symbol, function);
+			functionCopies.put(types, copy);
+		}
+		return copy;
+	}
+
+	/**
+	 * Give a definition parameter Variables of its own,
+	 * for its parameters and every node of them in its body
+	 */
+	private static void ownParameters(Node definition) {
+		HashMap<Variable, Variable> own = new HashMap<>();
+		Node body = definition.getLastChild();
+		for (Node parameter = definition.getFirstChild().getNextSibling(); parameter != body; parameter = parameter.getNextSibling()) {
+			Variable shared = parameter.getVariable();
+			if (shared != null) {
+				Variable variable = new Variable(shared.getSymbol());
+				variable.setDeclaredAt(shared.getDeclaredAt());
+				own.put(shared, variable);
+				parameter.setVariable(variable);
+			}
+		}
+		if (own.isEmpty()) {
+			return;
+		}
+		TreeCursor cursor = new TreeCursor(body);
+		do {
+			Node node = cursor.node();
+			Variable variable = own.get(node.getVariable());
+			if (variable != null) {
+				node.setVariable(variable);
+			}
+		} while (cursor.next());
+	}
+
+	/**
+	 * @return new function Symbol, named by function and types
+	 */
+	private Symbol newFunction(Symbol function, List<TypeSystem> types) {
+		StringBuilder name = new StringBuilder(function.getName());
+		for (TypeSystem type : types) {
+			name.append('_').append(type == null ? "ANY" : type.name());
+		}
+		String unique = name.toString();
+		for (int i = 2; this.symbolTable.find(new Symbol(unique)) != null; i++) {
+			unique = name.toString() + "_" + i;
+		}
+		Symbol symbol = this.symbolTable.insert(unique);
+		symbol.setIsFunction(true);
+		return symbol;
+	}
+
+	/**
+	 * Deep copy of a subtree, not yet attached to any parent
+	 *
+	 * @param root root of the subtree
+	 * @return copy of root
+	 */
+	private static Node copyOf(Node root) throws Exception {
+		// Copy of each Scope, and of each Variable declared, within the subtree
+		HashMap<Scope, Scope> scopes = new HashMap<>();
+		HashMap<Variable, Variable> variables = new HashMap<>();
+		// Copy of each node by id
+		HashMap<Integer, Node> copies = new HashMap<>();
+		TreeCursor cursor = new TreeCursor(root);
+		do {
+			Node node = cursor.node();
+			Scope scope = node.getScope();
+			if (scope != null && Construct.SCOPE.equals(node.getConstruct())) {
+				Scope scopeCopy = new Scope(scopes.getOrDefault(scope.parent, scope.parent));
+				ArrayList<Variable> declared = new ArrayList<>();
+				for (Variable variable : scope) {
+					declared.add(variable);
+				}
+				declared.sort(Comparator.comparingInt(Variable::getStackIndex));
+				for (Variable variable : declared) {
+					Variable variableCopy = scopeCopy.addVariable(variable.getSymbol());
+					variableCopy.setType(variable.getType());
+					variableCopy.setDeclaredAt(variable.getDeclaredAt());
+					variables.put(variable, variableCopy);
+				}
+				scopes.put(scope, scopeCopy);
+			}
+			Variable variable = node.getVariable();
+			Node copy = new Node(node.getArena(), node.getConstruct(), null,
+					node.getRule(), node.getToken(),
+					node.getSymbol(), node.getValue(), node.getConstant(),
+					scopes.getOrDefault(scope, scope), variables.getOrDefault(variable, variable),
+					node.isNegated());
+			copy.setType(node.getType());
+			copy.setTokenRange(node.getTokenStart(), node.getTokenEnd());
+			if (!cursor.isAtRoot()) {
+				copies.get(node.getParent().getId()).addChild(copy);
+			}
+			copies.put(node.getId(), copy);
+		} while (cursor.next());
+		return copies.get(root.getId());
+	}
+}
@@ -2,6 +2,7 @@ package com.zygateley.compiler;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 
 
@@ -23,37 +24,20 @@ import java.util.Iterator;
  * 					 	or a value
  * 							either LITERAL value
  * 							or inherited from Terminal.exactString
+ * 						and literals their Constant from the ConstantPool
  *  
  * Both NonTerminals and Terminals may be negated
  * 
+ * A Node is a facade over its id in a NodeArena,
+ * which holds the fields of all Nodes of a tree.
+ * 
  * @author Zachary Gateley
  *
  */
 public class Node implements Iterable<Node> {
-	// Assembly element type
-	private final Construct basicElement;
-	
-	// Type System type
-	private TypeSystem type;
-	
-	// CFG and Symbol
-	// NonTerminals
-	private NonTerminal nonTerminal = null;
-	private Scope scope = null;
-	// Terminals
-	private Terminal terminal = null;
-	private Symbol symbol = null;
-	private String value = null;
-	private Variable variable = null;
-	private boolean isNegated = false;
-	
-	// Tree traversal
-	private Node parent = null;
-	private Node leftSibling = null;
-	private Node rightSibling = null;
-	private Node firstChild = null;
-	private Node lastChild = null;
-	private int childCount = 0;
+	// Fields of this node are at [slot] in the arrays of segment
+	private final NodeArena.Segment segment;
+	private final int slot;
 
 	
 	/////////////////////////////
@@ -61,165 +45,262 @@ public class Node implements Iterable<Node> {
 	/**
 	 * Non-leaf node
 	 * 
+	 * @param arena of the tree holding this node
 	 * @param nonTerminal rule for this node
 	 */
-	public Node(NonTerminal nonTerminal) {
-		this(nonTerminal, null);
+	public Node(NodeArena arena, NonTerminal nonTerminal) {
+		this(arena, nonTerminal, null);
 	}	
 	/**
 	 * Non-leaf node
 	 * 
+	 * @param arena of the tree holding this node
 	 * @param nonTerminal rule for this node
 	 * @param operatorTerminal Terminal operator string
 	 */
-	public Node(NonTerminal nonTerminal, Terminal operatorTerminal) {
-		this(nonTerminal, operatorTerminal, null);
+	public Node(NodeArena arena, NonTerminal nonTerminal, Terminal operatorTerminal) {
+		this(arena, nonTerminal, operatorTerminal, null);
 	}
-	public Node(NonTerminal nonTerminal, Terminal operatorTerminal, Scope parentScope) {
-		this.basicElement = nonTerminal.basicElement;
-		this.nonTerminal = nonTerminal;
-		this.terminal = operatorTerminal;
-		this.scope = new Scope(null, parentScope);
+	public Node(NodeArena arena, NonTerminal nonTerminal, Terminal operatorTerminal, Scope parentScope) {
+		this(arena, nonTerminal.basicElement);
+		this.setRule(nonTerminal);
+		this.setToken(operatorTerminal);
+		this.segment.scope[this.slot] = new Scope(null, parentScope);
 	}
-	public Node(Construct element, NonTerminal nonTerminal) {
-		this.basicElement = element;
-		this.nonTerminal = nonTerminal;
+	public Node(NodeArena arena, Construct element, NonTerminal nonTerminal) {
+		this(arena, element);
+		this.setRule(nonTerminal);
 	}
 	/**
 	 * Leaf node
 	 * 
+	 * @param arena of the tree holding this node
 	 * @param terminal Token terminal 
 	 * @param symbol Symbol item from the SymbolTable, may be null
 	 * @param value may be a LITERAL value or the exactString from terminal
 	 */
-	public Node(Terminal terminal) {
-		this(terminal, null, "");
-	}
-	public Node(Terminal terminal, Symbol symbol, String value) {
-		this.basicElement = terminal.construct;
-		this.terminal = terminal;
-		this.symbol = symbol;
-		this.value = value;
-	}
-	public Node(Terminal terminal, Variable variable) {
-		this.basicElement = terminal.construct;
-		this.terminal = terminal;
-		this.variable = variable;
+	public Node(NodeArena arena, Terminal terminal) {
+		this(arena, terminal, null, "");
+	}
+	public Node(NodeArena arena, Terminal terminal, Symbol symbol, String value) {
+		this(arena, terminal.construct);
+		this.setToken(terminal);
+		this.segment.symbol[this.slot] = symbol;
+		this.segment.value[this.slot] = value;
+	}
+	public Node(NodeArena arena, Terminal terminal, Constant constant) {
+		this(arena, terminal.construct);
+		this.setToken(terminal);
+		this.segment.constant[this.slot] = constant;
+		this.segment.value[this.slot] = constant.getText();
+	}
+	public Node(NodeArena arena, Terminal terminal, Variable variable) {
+		this(arena, terminal.construct);
+		this.setToken(terminal);
+		this.segment.variable[this.slot] = variable;
 	}
 	////////////////////////////////
 	// Constructors for Optimizer //
-	public Node(Construct basicElement) {
-		this.basicElement = basicElement;
+	public Node(NodeArena arena, Construct basicElement) {
+		int id = arena.allocate(this);
+		this.segment = arena.segment(id);
+		this.slot = NodeArena.slot(id);
+		if (basicElement != null) {
+			this.segment.construct[this.slot] = (byte) (basicElement.ordinal() + 1);
+		}
 	}
 	/**
 	 * @param nonTerminal rule for this node
 	 */
-	public Node(Construct basicElement, Node parent, 
+	public Node(NodeArena arena, Construct basicElement, Node parent, 
 			NonTerminal nonTerminal, Terminal terminal, 
-			Symbol symbol, String value, 
+			Symbol symbol, String value, Constant constant, 
 			Scope scope, Variable variable, 
 			boolean negated) {
-		this.basicElement = basicElement;
-		this.parent = parent;
+		this(arena, basicElement);
+		NodeArena.Segment segment = this.segment;
+		int slot = this.slot;
+		if (parent != null) {
+			segment.parent[slot] = parent.getId();
+		}
 		
 		// CFG and Grammar
-		this.nonTerminal = nonTerminal;
-		this.terminal = terminal;
-		this.symbol = symbol;
-		this.value = value;
-		this.scope = scope;
-		this.variable = variable;
-		this.isNegated = negated;
+		this.setRule(nonTerminal);
+		this.setToken(terminal);
+		segment.symbol[slot] = symbol;
+		segment.value[slot] = value;
+		segment.constant[slot] = constant;
+		segment.scope[slot] = scope;
+		segment.variable[slot] = variable;
+		this.setNegated(negated);
+	}
+	private void setRule(NonTerminal nonTerminal) {
+		this.segment.rule[this.slot] = (short) (nonTerminal == null ? 0 : nonTerminal.ordinal() + 1);
+	}
+	private void setToken(Terminal terminal) {
+		this.segment.terminal[this.slot] = (short) (terminal == null ? 0 : terminal.ordinal() + 1);
+	}
+	
+	
+	// Arena
+	public int getId() {
+		return this.segment.base + this.slot;
+	}
+	public NodeArena getArena() {
+		return this.segment.arena;
+	}
+	private Node node(int id) {
+		return this.segment.arena.node(id);
+	}
+	/**
+	 * Fields of Nodes are linked by id, 
+	 * so both Nodes must be in the same arena
+	 */
+	private void checkArena(Node other) {
+		if (other.segment.arena != this.segment.arena) {
+			throw new IllegalArgumentException("Node is from another NodeArena.");
+		}
 	}
 
 
 	
 	// Basic element, CFG, and Symbols
 	public Construct getConstruct() {
-		return this.basicElement;
+		int construct = this.segment.construct[this.slot];
+		return construct == 0 ? null : NodeArena.constructs[construct - 1];
 	}
 	public TypeSystem getType() {
-		TypeSystem type = this.type;
-		if (type == null && this.symbol != null) {
-			type = this.symbol.getType();
+		NodeArena.Segment segment = this.segment;
+		int slot = this.slot;
+		int stored = segment.type[slot];
+		TypeSystem type = (stored == 0 ? null : NodeArena.types[stored - 1]);
+		Constant constant = segment.constant[slot];
+		Symbol symbol = segment.symbol[slot];
+		if (type == null && constant != null) {
+			type = constant.getType();
+			this.setType(type);
+		}
+		else if (type == null && symbol != null) {
+			type = symbol.getType();
 			// Type will always be the same as its variable
-			this.type = type;
-			if (type == null && this.variable != null) {
-				type = this.variable.type;
-				this.type = type;
-				this.symbol.setType(type);
+			Variable variable = segment.variable[slot];
+			if (type == null && variable != null) {
+				type = variable.type;
+				symbol.setType(type);
 			}
+			this.setType(type);
 		}
-		return this.type;
+		return type;
 	}
 	public NonTerminal getRule() {
-		return this.nonTerminal;
+		int rule = this.segment.rule[this.slot];
+		return rule == 0 ? null : NodeArena.rules[rule - 1];
 	}
 	public Scope getScope() {
-		return this.scope;
+		return this.segment.scope[this.slot];
 	}
 	public Terminal getToken() {
-		return this.terminal;
+		int terminal = this.segment.terminal[this.slot];
+		return terminal == 0 ? null : NodeArena.terminals[terminal - 1];
 	}
 	public Symbol getSymbol() {
-		Symbol symbol = this.symbol;
-		if (symbol == null && this.variable != null) {
-			symbol = this.variable.getSymbol();
+		Symbol symbol = this.segment.symbol[this.slot];
+		Variable variable = this.segment.variable[this.slot];
+		if (symbol == null && variable != null) {
+			symbol = variable.getSymbol();
 		}
 		return symbol;
 	}
 	public String getValue() {
-		return this.value;
+		return this.segment.value[this.slot];
+	}
+	public Constant getConstant() {
+		return this.segment.constant[this.slot];
 	}
 	public Variable getVariable() {
-		return this.variable;
+		return this.segment.variable[this.slot];
 	}
 	public boolean isNegated() {
-		return this.isNegated;
+		return (this.segment.flags[this.slot] & NodeArena.FLAG_NEGATED) != 0;
 	}
 	
 	public void setType(TypeSystem newType) {
-		this.type = newType;
+		this.segment.type[this.slot] = (byte) (newType == null ? 0 : newType.ordinal() + 1);
 	}
 	public void setVariable(Variable variable) {
-		this.variable = variable;
+		this.segment.variable[this.slot] = variable;
+	}
+	public void setSymbol(Symbol symbol) {
+		this.segment.symbol[this.slot] = symbol;
 	}
 	public void setNegated(boolean negated) {
-		this.isNegated = negated;
+		if (negated) {
+			this.segment.flags[this.slot] |= NodeArena.FLAG_NEGATED;
+		}
+		else {
+			this.segment.flags[this.slot] &= ~NodeArena.FLAG_NEGATED;
+		}
+	}
+	
+	// Token range
+	public int getTokenStart() {
+		return this.segment.tokenStart[this.slot];
+	}
+	public int getTokenEnd() {
+		return this.segment.tokenEnd[this.slot];
+	}
+	public void setTokenRange(int tokenStart, int tokenEnd) {
+		this.segment.tokenStart[this.slot] = tokenStart;
+		this.segment.tokenEnd[this.slot] = tokenEnd;
 	}
 	
 	
 	// Tree traversal
 	public Node getParent() {
-		return this.parent;
+		return this.node(this.segment.parent[this.slot]);
 	}
 	public Node getPreviousSibling() {
-		return this.leftSibling;
+		return this.node(this.segment.previousSibling[this.slot]);
 	}
 	public Node getNextSibling() {
-		return this.rightSibling;
+		return this.node(this.segment.nextSibling[this.slot]);
 	}
 	public Node getFirstChild() {
-		return this.firstChild;
+		return this.node(this.segment.firstChild[this.slot]);
 	}
 	public Node getLastChild() {
-		return this.lastChild;
+		return this.node(this.segment.lastChild[this.slot]);
 	}
 	public int getChildCount() {
-		return this.childCount;
+		return this.segment.childCount[this.slot];
 	}
-	public Node getChild(int desiredIndex) {
-		int count = 0;
-		Node childAt = this.firstChild;
-		for (; count < desiredIndex && childAt != null; count++) {
-			childAt = childAt.rightSibling;
-		}
-		if (count == desiredIndex) {
-			return childAt;
+	/**
+	 * Child ids in order.
+	 * Built on first use, and kept until the children change.
+	 */
+	private int[] getChildIds() {
+		int[] children = this.segment.children[this.slot];
+		if (children == null) {
+			NodeArena arena = this.segment.arena;
+			children = new int[this.getChildCount()];
+			int child = this.segment.firstChild[this.slot];
+			for (int i = 0; child != NodeArena.NONE; i++) {
+				children[i] = child;
+				child = arena.getNextSibling(child);
+			}
+			this.segment.children[this.slot] = children;
 		}
-		else {
+		return children;
+	}
+	private void childrenChanged() {
+		this.segment.children[this.slot] = null;
+	}
+	public Node getChild(int desiredIndex) {
+		int[] children = this.getChildIds();
+		if (desiredIndex < 0 || desiredIndex >= children.length) {
 			return null;
 		}
+		return this.node(children[desiredIndex]);
 	}
 	/**
 	 * Return the position of the passed Node
@@ -231,33 +312,40 @@ public class Node implements Iterable<Node> {
 	 * @return index of this node in siblings or last position + 1 if not found
 	 */
 	public int indexOf(Node childNode) {
-		int runningIndex = 0;
-		Node childAt = this.firstChild;
-		while (childAt != null) {
-			if (childAt == childNode) {
-				return runningIndex;
+		int[] children = this.getChildIds();
+		if (childNode != null && childNode.segment.arena == this.segment.arena) {
+			int id = childNode.getId();
+			for (int i = 0; i < children.length; i++) {
+				if (children[i] == id) {
+					return i;
+				}
 			}
-			childAt = childAt.rightSibling;
-			runningIndex++;
 		}
-		return runningIndex;
+		return children.length;
 	}
 	public void addChild(final Node newChild) {
 		if (newChild == null) return;
+		this.checkArena(newChild);
 		
-		newChild.parent = this;
-		if (this.lastChild == null) {
+		int id = this.getId();
+		int newId = newChild.getId();
+		NodeArena.Segment segment = this.segment;
+		int slot = this.slot;
+		newChild.segment.parent[newChild.slot] = id;
+		int lastChild = segment.lastChild[slot];
+		if (lastChild == NodeArena.NONE) {
 			// No current siblings
-			this.firstChild = this.lastChild = newChild;
+			segment.firstChild[slot] = segment.lastChild[slot] = newId;
 		}
 		else {
 			// Add to right of last child
-			newChild.leftSibling = this.lastChild;
-			this.lastChild.rightSibling = newChild; 
-			this.lastChild = newChild;
+			newChild.segment.previousSibling[newChild.slot] = lastChild;
+			this.segment.arena.segment(lastChild).nextSibling[NodeArena.slot(lastChild)] = newId; 
+			segment.lastChild[slot] = newId;
 		}
 		
-		this.childCount++;
+		segment.childCount[slot]++;
+		this.childrenChanged();
 	}
 	/**
 	 * Insert a child into this parent
@@ -272,19 +360,22 @@ public class Node implements Iterable<Node> {
 	 */
 	public void insertChild(int index, final Node newChild) {
 		if (newChild == null) return;
+		this.checkArena(newChild);
 		
 		Node currentChild = getChild(index);
 		if (currentChild != null) {
 			// Push children right and insert
+			int newId = newChild.getId();
 			
 			// Upwards
-			newChild.parent = this;
-			this.childCount++;
+			newChild.segment.parent[newChild.slot] = this.getId();
+			this.segment.childCount[this.slot]++;
 			
 			// If at beginning of children
-			if (currentChild.leftSibling == null) {
+			int leftSibling = currentChild.segment.previousSibling[currentChild.slot];
+			if (leftSibling == NodeArena.NONE) {
 				// Downwards
-				this.firstChild = newChild;
+				this.segment.firstChild[this.slot] = newId;
 				
 				// Left
 				// (Nothing to do)
@@ -294,13 +385,14 @@ public class Node implements Iterable<Node> {
 				// (Nothing to do)
 				
 				// Left
-				newChild.leftSibling = currentChild.leftSibling;
-				currentChild.leftSibling.rightSibling = newChild;
+				newChild.segment.previousSibling[newChild.slot] = leftSibling;
+				this.segment.arena.segment(leftSibling).nextSibling[NodeArena.slot(leftSibling)] = newId;
 			}
 
 			// Right
-			newChild.rightSibling = currentChild;
-			currentChild.leftSibling = newChild;
+			newChild.segment.nextSibling[newChild.slot] = currentChild.getId();
+			currentChild.segment.previousSibling[currentChild.slot] = newId;
+			this.childrenChanged();
 		}
 		else {
 			// Append to end of list
@@ -309,54 +401,67 @@ public class Node implements Iterable<Node> {
 	}
 	public void addRightSibling(final Node newSibling) {
 		if (newSibling == null) return;
+		this.checkArena(newSibling);
+		
+		int id = this.getId();
+		int newId = newSibling.getId();
+		Node parent = this.getParent();
 		
 		// Upwards
-		newSibling.parent = this.parent;
-		this.parent.childCount++;
+		newSibling.segment.parent[newSibling.slot] = parent.getId();
+		parent.segment.childCount[parent.slot]++;
+		parent.childrenChanged();
 		
 		// Downwards
-		if (this.parent.lastChild == this) {
-			this.parent.lastChild = newSibling;
+		if (parent.segment.lastChild[parent.slot] == id) {
+			parent.segment.lastChild[parent.slot] = newId;
 		}
 		
 		// Leftwards
-		if (this.rightSibling != null) {
-			this.rightSibling.leftSibling = newSibling;
+		int rightSibling = this.segment.nextSibling[this.slot];
+		if (rightSibling != NodeArena.NONE) {
+			this.segment.arena.segment(rightSibling).previousSibling[NodeArena.slot(rightSibling)] = newId;
 		}
-		newSibling.leftSibling = this;
+		newSibling.segment.previousSibling[newSibling.slot] = id;
 		
 		// Rightwards
-		newSibling.rightSibling = this.rightSibling;
-		this.rightSibling = newSibling;
+		newSibling.segment.nextSibling[newSibling.slot] = rightSibling;
+		this.segment.nextSibling[this.slot] = newId;
 		
 	}
 	public Node pop() {
+		NodeArena arena = this.segment.arena;
+		int id = this.getId();
+		int leftSibling = this.segment.previousSibling[this.slot];
+		int rightSibling = this.segment.nextSibling[this.slot];
+		
 		// Take care of parent
-		Node parent = this.parent;
+		Node parent = this.getParent();
 		if (parent != null) {
-			parent.childCount--;
-			if (parent.firstChild == this) {
-				parent.firstChild = this.rightSibling;
+			parent.segment.childCount[parent.slot]--;
+			if (parent.segment.firstChild[parent.slot] == id) {
+				parent.segment.firstChild[parent.slot] = rightSibling;
 			}
-			if (parent.lastChild == this) {
-				parent.lastChild = this.leftSibling;
+			if (parent.segment.lastChild[parent.slot] == id) {
+				parent.segment.lastChild[parent.slot] = leftSibling;
 			}
-			this.parent = null;
+			parent.childrenChanged();
+			this.segment.parent[this.slot] = NodeArena.NONE;
 		}
 		
 		// Take care of left sibling and parent.firstChild (if necessary)
-		if (this.leftSibling != null) {
-			this.leftSibling.rightSibling = this.rightSibling;
+		if (leftSibling != NodeArena.NONE) {
+			arena.segment(leftSibling).nextSibling[NodeArena.slot(leftSibling)] = rightSibling;
 		}
 		
 		// Take care of right sibling and parent.lastChild (if necessary)
-		if (this.rightSibling != null) {
-			this.rightSibling.leftSibling = this.leftSibling;
+		if (rightSibling != NodeArena.NONE) {
+			arena.segment(rightSibling).previousSibling[NodeArena.slot(rightSibling)] = leftSibling;
 		}
 		
 		// Clear siblings
-		this.rightSibling = null;
-		this.leftSibling = null;
+		this.segment.nextSibling[this.slot] = NodeArena.NONE;
+		this.segment.previousSibling[this.slot] = NodeArena.NONE;
 		
 		return this;
 	}
@@ -371,19 +476,37 @@ public class Node implements Iterable<Node> {
 	 */
 	public String asXMLTree(int depth, boolean showCFG) throws IOException {
 		StringBuilder output = new StringBuilder();
-		for (Node child : this) {
-			if (child.getChildCount() == 0) {
+		// Open branches are kept on an explicit stack
+		// so that trees of any depth can be written
+		NodeArena arena = this.segment.arena;
+		int[] openBranches = new int[16];
+		int openCount = 0;
+		int child = this.segment.firstChild[this.slot];
+		while (true) {
+			if (child == NodeArena.NONE) {
+				if (openCount == 0) {
+					break;
+				}
+				// Close branch
+				depth--;
+				child = openBranches[--openCount];
+				output.append(arena.node(child).asXMLNode(depth, false, showCFG));
+				child = arena.getNextSibling(child);
+			}
+			else if (arena.getChildCount(child) == 0) {
 				// Leave node
-				output.append(child.asXMLNode(depth, showCFG));
+				output.append(arena.node(child).asXMLNode(depth, showCFG));
+				child = arena.getNextSibling(child);
 			}
 			else {
 				// Open branch
-				output.append(child.asXMLNode(depth, true, showCFG));
+				output.append(arena.node(child).asXMLNode(depth, true, showCFG));
 				depth++;
-				output.append(child.asXMLTree(depth, showCFG));
-				depth--;
-				// Close branch
-				output.append(child.asXMLNode(depth, false, showCFG));
+				if (openCount == openBranches.length) {
+					openBranches = Arrays.copyOf(openBranches, openCount * 2);
+				}
+				openBranches[openCount++] = child;
+				child = arena.getFirstChild(child);
 			}
 		}
 		return output.toString();
@@ -398,7 +521,7 @@ public class Node implements Iterable<Node> {
 		return this.asXMLNode(depth, openNode, false, showCFG);
 	}
 	public String asXMLNode(int depth, boolean openNode, boolean noChildren, boolean showCFG) throws IOException {
-		Construct element = this.basicElement;
+		Construct element = this.getConstruct();
 		if (!openNode) {
 			return this.asXMLNode("</" + element + ">", depth);
 		}
@@ -416,16 +539,16 @@ public class Node implements Iterable<Node> {
 		 */
 		
 		StringBuilder output = new StringBuilder();
-		output.append("<" + basicElement);
+		output.append("<" + element);
 		if (showCFG) {
 			String tokenName = "";
 			String tokenValue = "";
-			NonTerminal nonTerminal = this.nonTerminal;
+			NonTerminal nonTerminal = this.getRule();
 			if (nonTerminal != null) {
 				tokenName = "NonTerminal";
 				tokenValue = nonTerminal + "";
 			}
-			Terminal terminal = this.terminal;
+			Terminal terminal = this.getToken();
 			if (terminal != null) {
 				tokenName = "Terminal";
 				tokenValue = terminal + "";
@@ -460,16 +583,19 @@ public class Node implements Iterable<Node> {
 		StringBuilder output = new StringBuilder();
 		Construct element = Construct.NULL;
 		boolean isEmpty = true;
-		if (this.basicElement != null) {
-			element = this.basicElement;
+		Construct basicElement = this.getConstruct();
+		NonTerminal nonTerminal = this.getRule();
+		Terminal terminal = this.getToken();
+		if (basicElement != null) {
+			element = basicElement;
 		}
-		if (this.nonTerminal != null) {
+		if (nonTerminal != null) {
 			// NonTerminal
 			output.append(nonTerminal + "");
 			element = nonTerminal.basicElement;
 			isEmpty = false;
 		}
-		if (this.terminal != null) {
+		if (terminal != null) {
 			// Terminal
 			if (isEmpty) {
 				output.append(terminal + "");
@@ -498,20 +624,30 @@ public class Node implements Iterable<Node> {
 	}
 	public String getStringAllParameters() {
 		StringBuilder output = new StringBuilder();
-		TypeSystem type = this.type;
-		if (type != null) output.append(getParameterString("type", type.toString()));
-		if (this.isNegated) {
+		NodeArena.Segment segment = this.segment;
+		int slot = this.slot;
+		int type = segment.type[slot];
+		if (type != 0) output.append(getParameterString("type", NodeArena.types[type - 1].toString()));
+		if (this.isNegated()) {
 			output.append(getParameterString("negated", "true"));
 		}
-		if (this.terminal != null) {
+		if (segment.terminal[slot] != 0) {
+			Symbol symbol = segment.symbol[slot];
+			Constant constant = segment.constant[slot];
 			if (symbol != null) {
 				String name = symbol.getName();
 				if (name != null) output.append(getParameterString("name", name));
 				String value = symbol.getValue();
 				if (value != null) output.append(getParameterString("value", value));
 			}
-			else if (this.value != null && !this.value.isBlank()) {
-				output.append(getParameterString("value", this.value));
+			else {
+				if (constant != null && constant.getName() != null) {
+					output.append(getParameterString("name", constant.getName()));
+				}
+				String value = segment.value[slot];
+				if (value != null && !value.isBlank()) {
+					output.append(getParameterString("value", value));
+				}
 			}
 		}
 		else {
@@ -520,15 +656,19 @@ public class Node implements Iterable<Node> {
 		return output.toString();
 	}
 	
+	/**
+	 * Iterate over a copy of the children, 
+	 * so they may be moved while iterating.
+	 * Walks over whole trees use a TreeCursor instead.
+	 */
 	@Override
 	public Iterator<Node> iterator() {
-		ArrayList<Node> childList = new ArrayList<>();
-		if (this.childCount > 0) {
-			Node child = this.firstChild;
-			while (child != null) {
-				childList.add(child);
-				child = child.rightSibling;
-			}
+		ArrayList<Node> childList = new ArrayList<>(this.getChildCount());
+		NodeArena arena = this.segment.arena;
+		int child = this.segment.firstChild[this.slot];
+		while (child != NodeArena.NONE) {
+			childList.add(arena.node(child));
+			child = arena.getNextSibling(child);
 		}
 		return childList.iterator();
 	}
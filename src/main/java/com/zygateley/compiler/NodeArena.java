@@ -0,0 +1,168 @@
+package com.zygateley.compiler;
+
+import java.util.Arrays;
+
+/**
+ * Storage of the Nodes of syntax trees, by id.
+ * Every node holds
+ * 		construct		Construct ordinal + 1 (0 if none)
+ * 		type			TypeSystem ordinal + 1 (0 if none)
+ * 		rule			NonTerminal ordinal + 1 (0 if none)
+ * 		terminal		Terminal ordinal + 1 (0 if none)
+ * 		flags			negated
+ * 		parent, firstChild, lastChild,
+ * 		previousSibling, nextSibling	node ids (NONE if none)
+ * 		childCount
+ * 		tokenStart, tokenEnd			token range (-1 if none)
+ * and the payloads of its symbol, value, constant, scope and variable.
+ *
+ * Nodes are kept in segments of SEGMENT_NODES nodes,
+ * each field in one primitive array per segment,
+ * so a tree is a handful of large allocations
+ * instead of one object per node and field.
+ * Segments never move once allocated,
+ * so ids stay valid while the arena grows.
+ *
+ * A Node is a facade over its id; every id has exactly one,
+ * so Nodes may still be compared by identity.
+ * Nodes can only be linked to Nodes of the same arena.
+ * The Parser gives every parse its own arena, and the Optimizer
+ * every optimized tree, so a tree is released all at once.
+ *
+ * @author Zachary Gateley
+ *
+ */
+final class NodeArena {
+	// No node
+	static final int NONE = -1;
+
+	private static final int SEGMENT_BITS = 12;
+	private static final int SEGMENT_NODES = 1 << SEGMENT_BITS;
+	private static final int SEGMENT_MASK = SEGMENT_NODES - 1;
+
+	static final Construct[] constructs = Construct.values();
+	static final TypeSystem[] types = TypeSystem.values();
+	static final NonTerminal[] rules = NonTerminal.values();
+	static final Terminal[] terminals = Terminal.values();
+
+	static final byte FLAG_NEGATED = 1;
+
+	/**
+	 * The fields of SEGMENT_NODES nodes,
+	 * starting from node id base
+	 */
+	static final class Segment {
+		final NodeArena arena;
+		final int base;
+		final Node[] facade = new Node[SEGMENT_NODES];
+
+		final byte[] construct = new byte[SEGMENT_NODES];
+		final byte[] type = new byte[SEGMENT_NODES];
+		final short[] rule = new short[SEGMENT_NODES];
+		final short[] terminal = new short[SEGMENT_NODES];
+		final byte[] flags = new byte[SEGMENT_NODES];
+
+		final int[] parent = new int[SEGMENT_NODES];
+		final int[] firstChild = new int[SEGMENT_NODES];
+		final int[] lastChild = new int[SEGMENT_NODES];
+		final int[] previousSibling = new int[SEGMENT_NODES];
+		final int[] nextSibling = new int[SEGMENT_NODES];
+		final int[] childCount = new int[SEGMENT_NODES];
+		final int[] tokenStart = new int[SEGMENT_NODES];
+		final int[] tokenEnd = new int[SEGMENT_NODES];
+
+		final Symbol[] symbol = new Symbol[SEGMENT_NODES];
+		final String[] value = new String[SEGMENT_NODES];
+		final Constant[] constant = new Constant[SEGMENT_NODES];
+		final Scope[] scope = new Scope[SEGMENT_NODES];
+		final Variable[] variable = new Variable[SEGMENT_NODES];
+
+		// Child ids in order, built on the first indexed access
+		// and dropped when the children change
+		final int[][] children = new int[SEGMENT_NODES][];
+
+		Segment(NodeArena arena, int base) {
+			this.arena = arena;
+			this.base = base;
+			Arrays.fill(this.parent, NONE);
+			Arrays.fill(this.firstChild, NONE);
+			Arrays.fill(this.lastChild, NONE);
+			Arrays.fill(this.previousSibling, NONE);
+			Arrays.fill(this.nextSibling, NONE);
+			Arrays.fill(this.tokenStart, -1);
+			Arrays.fill(this.tokenEnd, -1);
+		}
+	}
+
+	// Read without the lock, so replaced (never changed) when full
+	private volatile Segment[] segments = new Segment[4];
+	private int size = 0;
+
+	/**
+	 * Reserve the next id for a new Node
+	 *
+	 * @param facade the Node for this id
+	 * @return id of the new node
+	 */
+	synchronized int allocate(Node facade) {
+		int id = this.size;
+		int index = id >>> SEGMENT_BITS;
+		Segment[] segments = this.segments;
+		if (index == segments.length) {
+			segments = Arrays.copyOf(segments, index * 2);
+			this.segments = segments;
+		}
+		Segment segment = segments[index];
+		if (segment == null) {
+			segment = new Segment(this, id);
+			segments[index] = segment;
+		}
+		segment.facade[id & SEGMENT_MASK] = facade;
+		this.size = id + 1;
+		return id;
+	}
+
+	/**
+	 * @return number of nodes ever allocated in this arena
+	 */
+	synchronized int size() {
+		return this.size;
+	}
+
+	static int slot(int id) {
+		return id & SEGMENT_MASK;
+	}
+	Segment segment(int id) {
+		return this.segments[id >>> SEGMENT_BITS];
+	}
+
+	/**
+	 * @return the Node of this id, or null for NONE
+	 */
+	Node node(int id) {
+		if (id == NONE) {
+			return null;
+		}
+		return this.segments[id >>> SEGMENT_BITS].facade[id & SEGMENT_MASK];
+	}
+
+	// Traversal by id, without going through the facades
+	int getParent(int id) {
+		return this.segment(id).parent[id & SEGMENT_MASK];
+	}
+	int getFirstChild(int id) {
+		return this.segment(id).firstChild[id & SEGMENT_MASK];
+	}
+	int getLastChild(int id) {
+		return this.segment(id).lastChild[id & SEGMENT_MASK];
+	}
+	int getPreviousSibling(int id) {
+		return this.segment(id).previousSibling[id & SEGMENT_MASK];
+	}
+	int getNextSibling(int id) {
+		return this.segment(id).nextSibling[id & SEGMENT_MASK];
+	}
+	int getChildCount(int id) {
+		return this.segment(id).childCount[id & SEGMENT_MASK];
+	}
+}
@@ -0,0 +1,249 @@
+package com.zygateley.compiler;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Token records kept outside of the heap,
+ * for sources with more tokens than the heap can hold.
+ *
+ * Records are fixed-width and held in segments of SEGMENT_TOKENS records:
+ * 		byte 0		terminal
+ * 		byte 1		flags
+ * 		bytes 4-7	start
+ * 		bytes 8-11	length
+ * 		bytes 12-15	symbol (or constant)
+ * 		bytes 16-19	partner
+ * so any record is found from its index in constant time
+ * (the Parser jumps between the ends of groups).
+ *
+ * Segments are direct buffers until spillThreshold bytes are in use.
+ * Later segments are mapped from a temporary file, so the operating system
+ * pages them in and out as needed. The file is deleted on release,
+ * or when the JVM exits.
+ *
+ * Syntax subtrees of groups stay on the heap, only for the groups parsed.
+ *
+ * @author Zachary Gateley
+ *
+ */
+final class OffHeapTokenStore extends TokenStore {
+	// Bytes of direct memory used before spilling to a file
+	public static final long DEFAULT_SPILL_THRESHOLD = 1L << 26;
+
+	private static final int RECORD_WIDTH = 20;
+	private static final int TERMINAL = 0;
+	private static final int FLAGS = 1;
+	private static final int START = 4;
+	private static final int LENGTH = 8;
+	private static final int SYMBOL = 12;
+	private static final int PARTNER = 16;
+
+	private static final int SEGMENT_SHIFT = 16;
+	private static final int SEGMENT_TOKENS = 1 << SEGMENT_SHIFT;
+	private static final int SEGMENT_MASK = SEGMENT_TOKENS - 1;
+	private static final int SEGMENT_BYTES = SEGMENT_TOKENS * RECORD_WIDTH;
+
+	private final long spillThreshold;
+	private ByteBuffer[] segments = new ByteBuffer[16];
+	private int segmentCount = 0;
+	// Opened on the first spilled segment
+	private Path spillPath = null;
+	private FileChannel spillFile = null;
+	private long spilledBytes = 0;
+
+	private final HashMap<Integer, Node> syntaxSubtree = new HashMap<>();
+
+	/**
+	 * @param spillThreshold bytes of direct memory used before spilling to a file
+	 */
+	OffHeapTokenStore(long spillThreshold) {
+		this.spillThreshold = spillThreshold;
+	}
+
+	@Override
+	int capacity() {
+		return (int) Math.min((long) this.segmentCount << SEGMENT_SHIFT, Integer.MAX_VALUE);
+	}
+
+	@Override
+	void ensureCapacity(int capacity) {
+		while (this.capacity() < capacity) {
+			addSegment();
+		}
+	}
+
+	private void addSegment() {
+		ByteBuffer segment;
+		long direct = (long) this.segmentCount * SEGMENT_BYTES - this.spilledBytes;
+		if (direct + SEGMENT_BYTES <= this.spillThreshold) {
+			segment = ByteBuffer.allocateDirect(SEGMENT_BYTES);
+		}
+		else {
+			try {
+				if (this.spillFile == null) {
+					this.spillPath = Files.createTempFile("tokens", ".tmp");
+					this.spillPath.toFile().deleteOnExit();
+					this.spillFile = FileChannel.open(this.spillPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+				}
+				segment = this.spillFile.map(FileChannel.MapMode.READ_WRITE, this.spilledBytes, SEGMENT_BYTES);
+				this.spilledBytes += SEGMENT_BYTES;
+			}
+			catch (IOException e) {
+				throw new UncheckedIOException("Token store could not spill to disk", e);
+			}
+		}
+		segment.order(ByteOrder.nativeOrder());
+		if (this.segmentCount == this.segments.length) {
+			this.segments = Arrays.copyOf(this.segments, this.segmentCount * 2);
+		}
+		this.segments[this.segmentCount++] = segment;
+	}
+
+	@Override
+	void release() {
+		this.segments = new ByteBuffer[1];
+		this.segmentCount = 0;
+		this.syntaxSubtree.clear();
+		if (this.spillFile != null) {
+			try {
+				this.spillFile.close();
+				// May fail while the mappings are still alive (Windows),
+				// then the file goes when the JVM exits
+				Files.deleteIfExists(this.spillPath);
+			}
+			catch (IOException e) {
+			}
+			this.spillFile = null;
+		}
+	}
+
+	@Override
+	TokenStore newStore() {
+		// Parts are lexed side by side, so they go straight to files
+		return new OffHeapTokenStore(0);
+	}
+
+	private ByteBuffer segmentOf(int i) {
+		return this.segments[i >>> SEGMENT_SHIFT];
+	}
+	private static int offsetOf(int i) {
+		return (i & SEGMENT_MASK) * RECORD_WIDTH;
+	}
+
+	@Override
+	int getTerminal(int i) {
+		return segmentOf(i).get(offsetOf(i) + TERMINAL);
+	}
+	@Override
+	int getStart(int i) {
+		return segmentOf(i).getInt(offsetOf(i) + START);
+	}
+	@Override
+	int getLength(int i) {
+		return segmentOf(i).getInt(offsetOf(i) + LENGTH);
+	}
+	@Override
+	int getSymbol(int i) {
+		return segmentOf(i).getInt(offsetOf(i) + SYMBOL);
+	}
+	@Override
+	int getPartner(int i) {
+		return segmentOf(i).getInt(offsetOf(i) + PARTNER);
+	}
+	@Override
+	byte getFlags(int i) {
+		return segmentOf(i).get(offsetOf(i) + FLAGS);
+	}
+	@Override
+	Node getSyntaxSubtree(int i) {
+		return this.syntaxSubtree.get(i);
+	}
+
+	@Override
+	void set(int i, int terminal, int start, int length, int symbol) {
+		ByteBuffer segment = segmentOf(i);
+		int offset = offsetOf(i);
+		segment.put(offset + TERMINAL, (byte) terminal);
+		segment.put(offset + FLAGS, (byte) 0);
+		segment.putInt(offset + START, start);
+		segment.putInt(offset + LENGTH, length);
+		segment.putInt(offset + SYMBOL, symbol);
+		segment.putInt(offset + PARTNER, -1);
+	}
+	@Override
+	void setStart(int i, int start) {
+		segmentOf(i).putInt(offsetOf(i) + START, start);
+	}
+	@Override
+	void setPartner(int i, int partner) {
+		segmentOf(i).putInt(offsetOf(i) + PARTNER, partner);
+	}
+	@Override
+	void setFlags(int i, byte flags) {
+		segmentOf(i).put(offsetOf(i) + FLAGS, flags);
+	}
+	@Override
+	void setSyntaxSubtree(int i, Node subtree) {
+		if (subtree == null) {
+			this.syntaxSubtree.remove(i);
+		}
+		else {
+			this.syntaxSubtree.put(i, subtree);
+		}
+	}
+
+	@Override
+	void move(int from, int to, int count) {
+		if (count <= 0 || from == to) {
+			return;
+		}
+		// Copy away from the overlap
+		boolean backwards = to > from;
+		for (int k = 0; k < count; k++) {
+			int j = backwards ? count - 1 - k : k;
+			ByteBuffer source = segmentOf(from + j), target = segmentOf(to + j);
+			int sourceOffset = offsetOf(from + j), targetOffset = offsetOf(to + j);
+			target.putLong(targetOffset, source.getLong(sourceOffset));
+			target.putLong(targetOffset + 8, source.getLong(sourceOffset + 8));
+			target.putInt(targetOffset + 16, source.getInt(sourceOffset + 16));
+		}
+		if (!this.syntaxSubtree.isEmpty()) {
+			HashMap<Integer, Node> moved = new HashMap<>();
+			Iterator<Map.Entry<Integer, Node>> entries = this.syntaxSubtree.entrySet().iterator();
+			while (entries.hasNext()) {
+				Map.Entry<Integer, Node> entry = entries.next();
+				int i = entry.getKey();
+				if (i >= from && i < from + count) {
+					moved.put(i - from + to, entry.getValue());
+					entries.remove();
+				}
+				else if (i >= to && i < to + count) {
+					// Overwritten
+					entries.remove();
+				}
+			}
+			this.syntaxSubtree.putAll(moved);
+		}
+	}
+
+	@Override
+	void clearParseState(int from, int to) {
+		for (int i = from; i < to; i++) {
+			ByteBuffer segment = segmentOf(i);
+			int offset = offsetOf(i);
+			segment.put(offset + FLAGS, (byte) 0);
+			segment.putInt(offset + PARTNER, -1);
+		}
+		if (!this.syntaxSubtree.isEmpty()) {
+			this.syntaxSubtree.keySet().removeIf(i -> i >= from && i < to);
+		}
+	}
+}
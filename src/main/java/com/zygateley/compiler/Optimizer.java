@@ -3,6 +3,8 @@ package com.zygateley.compiler;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.lang.instrument.IllegalClassFormatException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 
 import com.zygateley.compiler.Grammar.Reflow;
 
@@ -25,6 +27,11 @@ public class Optimizer {
 	private FileWriter logFileWriter;
 	private boolean verbose;
 	private int depth = 0;
+	// Node ids still to reflow, reused by every crawlAndApplyReflow
+	private int[] reflowStack = new int[64];
+	// Ids of the REFLOW_LIMITs reflowed so far, in the order they were finished
+	private int[] reflowLimits = new int[64];
+	private int reflowLimitCount = 0;
 	
 	public Optimizer() {
 		this(null);
@@ -38,36 +45,55 @@ public class Optimizer {
 	}
 	public Node optimize(Node syntaxTree, boolean verbose) throws Exception {
 		this.verbose = verbose;
+		this.reflowLimitCount = 0;
 		
 		this.depth = 0;
 		this.log("<!-- Middle stage optimization initiated -->\n");
 		
 		// Create placeholder for optimized tree
-		Node optimizedTree = new Node(Construct.SCOPE);
+		// in an arena of its own, so the parse tree can be released
+		Node optimizedTree = new Node(new NodeArena(), Construct.SCOPE);
 		
-		// Build stage 1 optimized tree with REFLOW_LIMITs
+		// Build the optimized tree in a single pass,
+		// every REFLOW_LIMIT is reflowed and cleaned as soon as it is built
 		buildOptimizedTreeFrom(syntaxTree, optimizedTree);
-		this.depth = 1;
-		this.log("<!-- Begin: Stage 1 optimized syntax tree -->\n");
-		this.depth = 0;
-		this.logTree(optimizedTree, true);
-		this.log("");
-		this.depth = 1;
-		this.log("<!-- End: Stage 1 optimized syntax tree -->\n");
 		
-		// Execute any reflow bindings
-		crawlAndApplyReflow(optimizedTree);
-		this.depth = 1;
-		this.log("<!-- Begin: Stage 2 optimized syntax tree -->\n");
+		// Execute reflow bindings outside of all REFLOW_LIMITs
+		crawlAndApplyReflow(optimizedTree, true);
+		return finish(optimizedTree);
+	}
+	
+	/**
+	 * Finish a tree the Parser built while parsing (see Parser.parseOptimized).
+	 * 
+	 * Its nodes were lowered as their productions completed
+	 * and every REFLOW_LIMIT was reflowed and cleaned as it closed (see applyReflowWithin),
+	 * only nodes outside of all REFLOW_LIMITs are left to reflow and clean.
+	 * 
+	 * @param optimizedTree placeholder SCOPE holding the lowered tree
+	 * @param verbose
+	 * @return root of the optimized syntax tree
+	 * @throws Exception
+	 */
+	Node finishLowered(Node optimizedTree, boolean verbose) throws Exception {
+		this.verbose = verbose;
+		
 		this.depth = 0;
-		this.logTree(optimizedTree, true);
-		this.log("");
-		this.depth = 1;
-		this.log("<!-- End: Stage 2 optimized syntax tree -->\n");
+		this.log("<!-- Middle stage optimization initiated (tree lowered by parser) -->\n");
 		
+		crawlAndApplyReflow(optimizedTree, true);
+		return finish(optimizedTree);
+	}
+	
+	/**
+	 * Remove the temporary nodes left and the placeholder SCOPE
+	 */
+	private Node finish(Node optimizedTree) throws Exception {
 		// Condense tree to optimized by removing all temporary element nodes
 		// (Node.basicElement.isTemporary --> remove)
+		// The insides of REFLOW_LIMITs are already clean
 		cleanOptimizedTree(optimizedTree);
+		removeReflowLimits(optimizedTree.getArena());
 		this.depth = 1;
 		this.log("");
 		this.log("<!-- Begin: Final optimized syntax tree-->\n");
@@ -102,9 +128,11 @@ public class Optimizer {
 		// crawlChildren does not process parent node, 
 		// so the top-level node in a tree is not processed unless
 		// we explicitly make it a child to a dummy parent
-		Node treeHolder = new Node(Construct.REFLOW_LIMIT);
+		Node treeHolder = new Node(parseTree.getArena(), Construct.REFLOW_LIMIT);
 		treeHolder.addChild(parseTree);
-		buildOptimizedSubtree(treeHolder, optimizedTree, false);
+		PendingNodes pending = new PendingNodes();
+		pending.pushChildren(treeHolder, optimizedTree, false);
+		lower(pending, this);
 	}
 	
 	/**
@@ -156,20 +184,35 @@ public class Optimizer {
 	 * 		Recursion will always go to next level in parseTree
 	 * 			but may not go to next level in optimizedTree (Element.PASS ignores parse node)
 	 * </li>
+	 * <li> 
+	 * 		Recursion is kept on an explicit stack (see PendingNodes),
+	 * 			so parse trees of any depth can be crawled
+	 * </li>
 	 * <li>
 	 * 		Temporary STOP nodes prevent improper Element.bindings
 	 * </li>
+	 * <li>
+	 * 		Once all of its nodes are built, a REFLOW_LIMIT is reflowed and cleaned
+	 * 			(see applyReflowWithin), so the tree is built, reflowed
+	 * 			and cleaned in a single pass
+	 * </li>
 	 * </ul>
 	 * 
-	 * @param parseParentNode subtree corresponding to a node from the parse tree
-	 * @param optimizedParentNode node from the optimized tree to build in place
-	 * @param isNextNegated a PASS element was negated, apply to the next optimized node
+	 * @param pending parse nodes to crawl, each with the optimized node it is added to
+	 * @param optimizer reflows each REFLOW_LIMIT once it is built, or null to leave them
 	 */
-	private void buildOptimizedSubtree(Node parseParentNode, Node optimizedParentNode, boolean isNextNegated) throws Exception {
+	private static void lower(PendingNodes pending, Optimizer optimizer) throws Exception {
 		NonTerminal nonTerminal;
 		Terminal terminal;
-		for (Node childNodeAsBasic : parseParentNode) {
-			Node parseChildNode = (Node) childNodeAsBasic;
+		while (pending.pop()) {
+			Node parseChildNode = pending.parseNode;
+			Node optimizedParentNode = pending.optimizedParentNode;
+			boolean isNextNegated = pending.isNextNegated;
+			if (parseChildNode == null) {
+				// All nodes of this REFLOW_LIMIT are built
+				optimizer.applyReflowWithin(optimizedParentNode);
+				continue;
+			}
 			// Get basic element type
 			Construct basicElement = parseChildNode.getConstruct();
 			// Backup, element should not be null
@@ -193,15 +236,15 @@ public class Optimizer {
 				if (!basicElement.equals(Construct.PASS)) {
 					// This parse tree node is a basic element
 					// Create new optimized node, duplicating contents of parse tree node
-					Node optimizedChildNode = new Node(basicElement, optimizedParentNode, 
-							parseChildNode.getRule(), parseChildNode.getToken(),
-							parseChildNode.getSymbol(), parseChildNode.getValue(),
-							parseChildNode.getScope(), parseChildNode.getVariable(), 
-							isNextNegated);
+					Node optimizedChildNode = lowerNode(parseChildNode, basicElement, optimizedParentNode, isNextNegated);
 					optimizedParentNode.addChild(optimizedChildNode);
 					
 					// Crawl children and add as childen to new optimized node
 					optimizedRecursionNode = optimizedChildNode;
+					if (optimizer != null && basicElement.equals(Construct.REFLOW_LIMIT)) {
+						// Reflow once its children are built
+						pending.push(null, optimizedChildNode, false);
+					}
 				}
 				else {
 					// No new optimized node here
@@ -213,15 +256,140 @@ public class Optimizer {
 				// Output new XML structure
 				// and recur (if appropriate)
 				if (parseChildNode.getChildCount() > 0) {
-					buildOptimizedSubtree(parseChildNode, optimizedRecursionNode, parseChildNode.isNegated() ^ isNextNegated);
+					pending.pushChildren(parseChildNode, optimizedRecursionNode, parseChildNode.isNegated() ^ isNextNegated);
 				}
 			}
 		}
 		return;
 	}
 	
-	private void crawlAndApplyReflow(Node optimizedNode) throws Exception {
-		for (Node child : optimizedNode) {
+	/**
+	 * Lower a finished parse subtree (and its root)
+	 * into the optimized tree, by the rules of lower.
+	 * Used by the Parser while it builds the optimized tree itself.
+	 * 
+	 * @param parseNode root of the parse subtree, none of its ancestors are negated
+	 * @param optimizedParentNode node from the optimized tree to add to
+	 */
+	static void lowerSubtree(Node parseNode, Node optimizedParentNode) throws Exception {
+		PendingNodes pending = new PendingNodes();
+		pending.push(parseNode, optimizedParentNode, false);
+		lower(pending, null);
+	}
+	
+	/**
+	 * Copy a parse node into a new optimized node
+	 * 
+	 * @param parseNode
+	 * @param basicElement element of the new node
+	 * @param optimizedParentNode parent of the new node
+	 * @param isNegated
+	 * @return new optimized node, not yet added to its parent
+	 */
+	static Node lowerNode(Node parseNode, Construct basicElement, Node optimizedParentNode, boolean isNegated) {
+		return new Node(optimizedParentNode.getArena(), basicElement, optimizedParentNode, 
+				parseNode.getRule(), parseNode.getToken(),
+				parseNode.getSymbol(), parseNode.getValue(), parseNode.getConstant(),
+				parseNode.getScope(), parseNode.getVariable(), 
+				isNegated);
+	}
+	
+	/**
+	 * Parse nodes waiting to be crawled by lower,
+	 * each with the optimized node it is added to
+	 * (a null parse node closes that REFLOW_LIMIT).
+	 * Kept in parallel arrays, so crawling allocates nothing per node.
+	 */
+	private static final class PendingNodes {
+		private Node[] parseNodes = new Node[16];
+		private Node[] optimizedParentNodes = new Node[16];
+		private boolean[] negations = new boolean[16];
+		private int size = 0;
+		
+		// Set by pop
+		Node parseNode;
+		Node optimizedParentNode;
+		boolean isNextNegated;
+		
+		void push(Node parseNode, Node optimizedParentNode, boolean isNextNegated) {
+			int size = this.size;
+			if (size == this.parseNodes.length) {
+				this.parseNodes = Arrays.copyOf(this.parseNodes, size * 2);
+				this.optimizedParentNodes = Arrays.copyOf(this.optimizedParentNodes, size * 2);
+				this.negations = Arrays.copyOf(this.negations, size * 2);
+			}
+			this.parseNodes[size] = parseNode;
+			this.optimizedParentNodes[size] = optimizedParentNode;
+			this.negations[size] = isNextNegated;
+			this.size = size + 1;
+		}
+		
+		/**
+		 * Push the children of parseParentNode, so that the first child is crawled next
+		 */
+		void pushChildren(Node parseParentNode, Node optimizedParentNode, boolean isNextNegated) {
+			for (Node child = parseParentNode.getLastChild(); child != null; child = child.getPreviousSibling()) {
+				this.push(child, optimizedParentNode, isNextNegated);
+			}
+		}
+		
+		/**
+		 * Take the next parse node into parseNode, optimizedParentNode and isNextNegated
+		 * 
+		 * @return false if there are none left
+		 */
+		boolean pop() {
+			if (this.size == 0) {
+				return false;
+			}
+			int top = --this.size;
+			this.parseNode = this.parseNodes[top];
+			this.optimizedParentNode = this.optimizedParentNodes[top];
+			this.isNextNegated = this.negations[top];
+			this.parseNodes[top] = null;
+			this.optimizedParentNodes[top] = null;
+			return true;
+		}
+	}
+	
+	/**
+	 * Apply reflow bindings to the nodes of one REFLOW_LIMIT, as soon as it is complete,
+	 * then remove the temporary nodes within it (but not the REFLOW_LIMITs).
+	 * No reflow binding crosses a REFLOW_LIMIT,
+	 * so each one can be reflowed on its own (inner ones first),
+	 * and nothing inside it moves again once it is reflowed.
+	 * The REFLOW_LIMITs themselves are removed once the whole tree is finished.
+	 * 
+	 * @param reflowLimit REFLOW_LIMIT whose inner REFLOW_LIMITs are already reflowed and cleaned
+	 */
+	void applyReflowWithin(Node reflowLimit) throws Exception {
+		crawlAndApplyReflow(reflowLimit, true);
+		cleanOptimizedTree(reflowLimit);
+		if (this.reflowLimitCount == this.reflowLimits.length) {
+			this.reflowLimits = Arrays.copyOf(this.reflowLimits, this.reflowLimitCount * 2);
+		}
+		this.reflowLimits[this.reflowLimitCount++] = reflowLimit.getId();
+	}
+	
+	/**
+	 * @param optimizedNode root of the subtree to reflow
+	 * @param skipReflowLimits do not enter REFLOW_LIMITs below optimizedNode, they are already reflowed
+	 */
+	private void crawlAndApplyReflow(Node optimizedNode, boolean skipReflowLimits) throws Exception {
+		// Children of each open branch, as they were when it was opened,
+		// next on top, above a NONE that closes the branch
+		// (reflow moves nodes, so the links cannot be followed instead)
+		NodeArena arena = optimizedNode.getArena();
+		int top = this.pushChildIds(arena, optimizedNode.getId(), 0, false);
+		while (top > 0) {
+			int id = this.reflowStack[--top];
+			if (id == NodeArena.NONE) {
+				// Close branch
+				depth--;
+				continue;
+			}
+			Node child = arena.node(id);
+			
 			// Execute reflow on this node, if it applies
 			// Does not apply to REFLOW_LIMIT
 			// (or PASS, which has already been ignored--not in tree)
@@ -233,17 +401,37 @@ public class Optimizer {
 			if (child.getChildCount() == 0) {
 				// Leave node
 			}
+			else if (skipReflowLimits && Construct.REFLOW_LIMIT.equals(basicElement)) {
+				// Already reflowed
+			}
 			else {
 				// Open branch
 				depth++;
-				
-				crawlAndApplyReflow(child);
-				depth--;
-				// Close branch
+				top = this.pushChildIds(arena, id, top, true);
 			}
 		}
 	}
 	
+	/**
+	 * Push the children of parent onto reflowStack, the first child on top
+	 * 
+	 * @param closeBranch push a NONE below the children, to close parent after them
+	 * @return new top of reflowStack
+	 */
+	private int pushChildIds(NodeArena arena, int parent, int top, boolean closeBranch) {
+		int count = arena.getChildCount(parent) + 1;
+		if (top + count > this.reflowStack.length) {
+			this.reflowStack = Arrays.copyOf(this.reflowStack, Math.max(top + count, this.reflowStack.length * 2));
+		}
+		if (closeBranch) {
+			this.reflowStack[top++] = NodeArena.NONE;
+		}
+		for (int child = arena.getLastChild(parent); child != NodeArena.NONE; child = arena.getPreviousSibling(child)) {
+			this.reflowStack[top++] = child;
+		}
+		return top;
+	}
+	
 	/**
 	 * Apply any special bindings from Element.bindings
 	 * At time of writing:
@@ -262,110 +450,113 @@ public class Optimizer {
 	 */
 	private void applyReflow(final Node source, final boolean allowMerge) throws Exception {
 		try {
-			Construct sourceType = source.getConstruct();
-			
-			// Upwards bindings
-			Node parent = source.getParent();
-			{
-				Node target = parent;
-				Construct targetType = (target != null ? target.getConstruct() : null);
+			// Source may move left more than once
+			while (true) {
+				Construct sourceType = source.getConstruct();
 				
-				// Move this element to the child of the next sibling?
-				Construct resultType = Grammar.getReflowResult(
-						Reflow.MOVE_UPWARDS_AND_LEFT,
-						sourceType, targetType
-						);
-				boolean isUpwardsRightToChild = (resultType != null);
-				if (isUpwardsRightToChild) {
-					// Add this element as a left sibling of its parent
-					int targetIndex = target.getParent().indexOf(target); 
-					target.getParent().insertChild(targetIndex, source.pop());
-					// Do not allow any additional shifting
-					return;
+				// Upwards bindings
+				Node parent = source.getParent();
+				{
+					Node target = parent;
+					Construct targetType = (target != null ? target.getConstruct() : null);
+					
+					// Move this element to the child of the next sibling?
+					Construct resultType = Grammar.getReflowResult(
+							Reflow.MOVE_UPWARDS_AND_LEFT,
+							sourceType, targetType
+							);
+					boolean isUpwardsRightToChild = (resultType != null);
+					if (isUpwardsRightToChild) {
+						// Add this element as a left sibling of its parent
+						int targetIndex = target.getParent().indexOf(target); 
+						target.getParent().insertChild(targetIndex, source.pop());
+						// Do not allow any additional shifting
+						return;
+					}
 				}
-			}
-			
-			// Rightward bindings
-			Node rightTarget = source.getNextSibling();
-			if (rightTarget != null) {
-				Construct targetType = (rightTarget != null ? rightTarget.getConstruct() : null);
 				
-				// Move this element to the child of the next sibling?
-				Construct resultType = Grammar.getReflowResult(
-						Reflow.MOVE_RIGHT_TO_CHILD,
-						sourceType, targetType
-						);
-				boolean isMergeRightToChild = (resultType != null);
-				if (isMergeRightToChild) {
-					// Add this element as first Node in right sibling's children
-					rightTarget.insertChild(0, source.pop());
-					// Do not allow any additional downward shifting (toChild) merges
-					// MERGE_RIGHT not defined
-					/*
-					// Do any right merges as necessary
-					executeReflow(source, true);
-					*/
-					return;
+				// Rightward bindings
+				Node rightTarget = source.getNextSibling();
+				if (rightTarget != null) {
+					Construct targetType = (rightTarget != null ? rightTarget.getConstruct() : null);
+					
+					// Move this element to the child of the next sibling?
+					Construct resultType = Grammar.getReflowResult(
+							Reflow.MOVE_RIGHT_TO_CHILD,
+							sourceType, targetType
+							);
+					boolean isMergeRightToChild = (resultType != null);
+					if (isMergeRightToChild) {
+						// Add this element as first Node in right sibling's children
+						rightTarget.insertChild(0, source.pop());
+						// Do not allow any additional downward shifting (toChild) merges
+						// MERGE_RIGHT not defined
+						/*
+						// Do any right merges as necessary
+						executeReflow(source, true);
+						*/
+						return;
+					}
 				}
-			}
-			
-			// Leftward bindings
-			Node leftTarget = source.getPreviousSibling();
-			if (leftTarget != null) {
-				Construct targetType = (leftTarget != null ? leftTarget.getConstruct() : null);
 				
-				/*
-				// Merge this node into the next node
-				// With the Element result type found from Element.bindings
-				Element resultType1 = Element.getReflowResult(
-						Reflow.MERGE_LEFT, 
-						sourceType, targetType
-						);
-				boolean isMergeLeft = resultType1 != null;
-				if (allowMerge && isMergeLeft) {
-					// If we have a matching pattern, merge the node left
-					int indexBookmark = parent.indexOf(leftTarget);
-					leftTarget.pop();
-					source.pop();
+				// Leftward bindings
+				Node leftTarget = source.getPreviousSibling();
+				if (leftTarget != null) {
+					Construct targetType = (leftTarget != null ? leftTarget.getConstruct() : null);
 					
-					// Create new Node with left's properties but right's Element type
-					// No reason we shouldn't properly XOR negations
-					// NonTerminal type no longer applies, superceded by basicElement type
-					Node mergedNode = new Node(
-							resultType1, leftTarget.getParent(), 
-							null, leftTarget.getToken(),
-							leftTarget.getSymbol(), leftTarget.getValue(), leftTarget.isNegated() ^ source.isNegated()
-							); 
-					parent.insertChild(indexBookmark, mergedNode);
-					
-					// Add all children from target, then all children from source
-					Node[] childSources = new Node[] { leftTarget, source };
-					for (Node n : childSources) {
-						for (Node c : n) {
-							mergedNode.addChild(c);
+					/*
+					// Merge this node into the next node
+					// With the Element result type found from Element.bindings
+					Element resultType1 = Element.getReflowResult(
+							Reflow.MERGE_LEFT, 
+							sourceType, targetType
+							);
+					boolean isMergeLeft = resultType1 != null;
+					if (allowMerge && isMergeLeft) {
+						// If we have a matching pattern, merge the node left
+						int indexBookmark = parent.indexOf(leftTarget);
+						leftTarget.pop();
+						source.pop();
+						
+						// Create new Node with left's properties but right's Element type
+						// No reason we shouldn't properly XOR negations
+						// NonTerminal type no longer applies, superceded by basicElement type
+						Node mergedNode = new Node(
+								resultType1, leftTarget.getParent(), 
+								null, leftTarget.getToken(),
+								leftTarget.getSymbol(), leftTarget.getValue(), leftTarget.isNegated() ^ source.isNegated()
+								); 
+						parent.insertChild(indexBookmark, mergedNode);
+						
+						// Add all children from target, then all children from source
+						Node[] childSources = new Node[] { leftTarget, source };
+						for (Node n : childSources) {
+							for (Node c : n) {
+								mergedNode.addChild(c);
+							}
 						}
+						
+						// Source has changed, recur executeBinding and return
+						executeReflow(mergedNode, false);
+						return;
 					}
+					*/
 					
-					// Source has changed, recur executeBinding and return
-					executeReflow(mergedNode, false);
-					return;
-				}
-				*/
-				
-				// Move this element to the child of the previous sibling ?
-				Construct resultType = Grammar.getReflowResult(
-						Reflow.MOVE_LEFT_TO_CHILD,
-						sourceType, targetType
-						);
-				boolean isMergeLeftToChild = (resultType != null);
-				if (isMergeLeftToChild) {
-					// Add this element into the left sibling's children
-					leftTarget.addChild(source.pop());
-					// Do any left merges as necessary
-					// true == Do not allow any additional downward shifting (toChild) merges
-					applyReflow(source, true);
-					return;
+					// Move this element to the child of the previous sibling ?
+					Construct resultType = Grammar.getReflowResult(
+							Reflow.MOVE_LEFT_TO_CHILD,
+							sourceType, targetType
+							);
+					boolean isMergeLeftToChild = (resultType != null);
+					if (isMergeLeftToChild) {
+						// Add this element into the left sibling's children
+						leftTarget.addChild(source.pop());
+						// Do any left merges as necessary
+						// (from the new position, no additional downward shifting (toChild) merges)
+						continue;
+					}
 				}
+				return;
 			}
 		}
 		catch (Exception err) {
@@ -401,37 +592,88 @@ public class Optimizer {
 	 * </pre>
 	 * <br />
 	 *   Now the pattern (IF <-- VAROUT) does not exist.
-	 *   This method removes all stops from the tree
+	 *   This method removes the other stops from the subtree (but not its root).
+	 *   A REFLOW_LIMIT below the root is already clean inside (see applyReflowWithin)
+	 *   and is not crawled again. REFLOW_LIMITs are removed last (see removeReflowLimits),
+	 *   removing an inner one first would move all of its siblings once per level.
 	 *   
-	 * @param optimizedNode node corresponding to root of subtree of optimized tree
+	 * @param root root of subtree of optimized tree
 	 */
-	private Node cleanOptimizedTree(Node optimizedNode) { 
-		Node nextNode;
-		Construct nodeElement = optimizedNode.getConstruct();
-		if (nodeElement.isTemporary) {
-			// Temporary element found
-			// Remove all children and place as right siblings to STOP
-			Node lastChild = optimizedNode.getLastChild();
-			while (lastChild != null) {
-				// Pop last child from node
-				// Add as the immediate right sibling of STOP
-				// Builds children into siblings right to left
-				optimizedNode.addRightSibling(lastChild.pop());
-				lastChild = optimizedNode.getLastChild();
-			}
-			nextNode = optimizedNode.getNextSibling();
-			// All children have been made right siblings in order
-			// Remove STOP
-			optimizedNode.pop();
+	private static void cleanOptimizedTree(Node root) { 
+		Node optimizedNode = root.getFirstChild();
+		if (optimizedNode == null) {
+			return;
 		}
-		else {
-			// Remove all STOP progeny from non-STOP node
-			Node child = optimizedNode.getFirstChild();
-			while (child != null) {
-				child = cleanOptimizedTree(child);
+		// Non-STOP nodes whose children are being cleaned
+		ArrayDeque<Node> openBranches = new ArrayDeque<>();
+		openBranches.push(root);
+		while (true) {
+			Node nextNode;
+			Construct nodeElement = optimizedNode.getConstruct();
+			if (Construct.REFLOW_LIMIT.equals(nodeElement)) {
+				// Already clean inside, removed by removeReflowLimits
+				nextNode = optimizedNode.getNextSibling();
+			}
+			else if (nodeElement.isTemporary) {
+				// Temporary element found
+				// Its children become its right siblings, and are cleaned next
+				nextNode = removeTemporary(optimizedNode);
+			}
+			else if (optimizedNode.getFirstChild() != null) {
+				// Remove all STOP progeny from non-STOP node
+				openBranches.push(optimizedNode);
+				optimizedNode = optimizedNode.getFirstChild();
+				continue;
 			}
-			nextNode = optimizedNode.getNextSibling();
+			else {
+				nextNode = optimizedNode.getNextSibling();
+			}
+			
+			// Close every branch whose children are all clean
+			while (nextNode == null) {
+				Node branch = openBranches.pop();
+				if (branch == root) {
+					return;
+				}
+				nextNode = branch.getNextSibling();
+			}
+			optimizedNode = nextNode;
+		}
+	}
+	
+	/**
+	 * Remove every REFLOW_LIMIT passed to applyReflowWithin,
+	 * once the whole tree is reflowed and clean.
+	 * The last one finished is the outermost, so they are removed in reverse:
+	 * each one is removed before the REFLOW_LIMITs within it,
+	 * and only ever holds its own children when its children are moved up.
+	 */
+	private void removeReflowLimits(NodeArena arena) {
+		for (int i = this.reflowLimitCount - 1; i >= 0; i--) {
+			removeTemporary(arena.node(this.reflowLimits[i]));
+		}
+		this.reflowLimitCount = 0;
+	}
+	
+	/**
+	 * Replace a temporary node by its children
+	 * 
+	 * @return first of the children, or the node's next sibling if there were none
+	 */
+	private static Node removeTemporary(Node temporary) {
+		// Remove all children and place as right siblings to STOP
+		Node lastChild = temporary.getLastChild();
+		while (lastChild != null) {
+			// Pop last child from node
+			// Add as the immediate right sibling of STOP
+			// Builds children into siblings right to left
+			temporary.addRightSibling(lastChild.pop());
+			lastChild = temporary.getLastChild();
 		}
+		Node nextNode = temporary.getNextSibling();
+		// All children have been made right siblings in order
+		// Remove STOP
+		temporary.pop();
 		return nextNode;
 	}
 	
@@ -0,0 +1,414 @@
+package com.zygateley.compiler;
+
+import java.util.*;
+
+/**
+ * LL(1) parse table compiled from the NonTerminal enum.
+ *
+ * The Parser picks the pattern of a rule from the next terminal
+ * and checks the terminal ending a rule against the rule's FOLLOW set.
+ * Rather than searching the FIRST and FOLLOW arrays of every rule
+ * (and the enum values of every pattern element) at every step,
+ * they are compiled once, here, into
+ * 		a [rule][terminal] table of pattern indices,
+ * 		the patterns with their Terminals and NonTerminals resolved,
+ * 		FOLLOW and split sets as bitsets (one bit per terminal tokenValue),
+ * 		and Terminal and NonTerminal lookups by tokenValue.
+ * The table keeps the Grammar's own choices:
+ * when a terminal starts more than one pattern, the first pattern wins.
+ *
+ * The precedence rules are also ranked into binding powers
+ * (__PRECEDENCE1__ binds loosest) for the Parser's precedence climbing.
+ *
+ * FIRST and FOLLOW sets are also computed from the productions
+ * and compared with the hand-written FOLLOW sets (e.g. commonFollow1..3).
+ * Differences and LL(1) conflicts are listed by getProblems.
+ * The precedence rules take part as
+ * 		__PRECEDENCEn__ -> left split right | right
+ * 		__PRECEDENCE5__ -> NOT __PRECEDENCE5__ | _VALUE_
+ * plus the groups and signs the precedence branch allows around any value
+ * 		__PRECEDENCE5__ -> ( __PRECEDENCE1__ ) | + __PRECEDENCE5__ | - __PRECEDENCE5__
+ *
+ * @author Zachary Gateley
+ *
+ */
+final class ParseTable {
+	private static final int TERMINAL_COUNT = GrammarRule.lastTerminal + 1;
+
+	// Terminals and NonTerminals by tokenValue
+	private static final Terminal[] terminals = new Terminal[TERMINAL_COUNT];
+	private static final NonTerminal[] nonTerminals = new NonTerminal[id.id];
+
+	// patternIndex[rule.ordinal()][terminal.tokenValue] -> index in rule.patterns or -1
+	private static final int[][] patternIndex;
+	// patterns[rule.ordinal()][index] -> Terminals and NonTerminals of the pattern
+	private static final GrammarRule[][][] patterns;
+	// Hand-written FOLLOW sets
+	private static final long[] follow;
+	// Split tokens of precedence rules
+	private static final long[] splitTokens;
+	// Precedence rules by level, from __PRECEDENCE1__ (binds loosest) to the rule before _VALUE_
+	private static final NonTerminal[] precedenceRules;
+	// bindingPower[terminal.tokenValue] -> level of the binary rule splitting at it, or 0
+	private static final int[] bindingPower = new int[TERMINAL_COUNT];
+	// Split tokens of unary (prefix) rules
+	private static long prefixOperators = 0;
+
+	// Computed from the productions
+	private static final boolean[] nullable;
+	private static final long[] computedFirst;
+	private static final long[] computedFollow;
+
+	private static final List<String> problems = new ArrayList<>();
+
+	static {
+		if (TERMINAL_COUNT > Long.SIZE) {
+			throw new IllegalStateException("Too many terminals for FOLLOW bitsets: " + TERMINAL_COUNT);
+		}
+		for (Terminal t : Terminal.values()) {
+			terminals[t.tokenValue] = t;
+		}
+		NonTerminal[] rules = NonTerminal.values();
+		for (NonTerminal rule : rules) {
+			nonTerminals[rule.tokenValue] = rule;
+		}
+
+		patternIndex = new int[rules.length][];
+		patterns = new GrammarRule[rules.length][][];
+		follow = new long[rules.length];
+		splitTokens = new long[rules.length];
+		for (NonTerminal rule : rules) {
+			int r = rule.ordinal();
+			if (rule.patterns != null) {
+				patternIndex[r] = buildPatternIndex(rule);
+				patterns[r] = new GrammarRule[rule.patterns.length][];
+				for (int i = 0; i < rule.patterns.length; i++) {
+					int[] pattern = rule.patterns[i].PATTERN;
+					patterns[r][i] = new GrammarRule[pattern.length];
+					for (int k = 0; k < pattern.length; k++) {
+						patterns[r][i][k] = GrammarRule.isTerminal(pattern[k]) ? terminals[pattern[k]] : nonTerminals[pattern[k]];
+					}
+				}
+			}
+			if (rule.FOLLOW != null) {
+				follow[r] = bits(rule.FOLLOW);
+			}
+			if (rule.precedencePattern != null) {
+				splitTokens[r] = bits(rule.precedencePattern.splitTokens);
+			}
+		}
+
+		precedenceRules = buildPrecedenceLevels();
+
+		nullable = new boolean[rules.length];
+		computedFirst = new long[rules.length];
+		computedFollow = new long[rules.length];
+		List<int[]> productions = buildProductions(rules);
+		computeFirst(productions);
+		computeFollow(productions);
+		verifyFollow(rules);
+	}
+
+	private ParseTable() { }
+
+	/**
+	 * @return Terminal with this tokenValue or null
+	 */
+	public static Terminal getTerminal(int tokenValue) {
+		return (tokenValue >= 0 && tokenValue < TERMINAL_COUNT) ? terminals[tokenValue] : null;
+	}
+
+	/**
+	 * @return NonTerminal with this tokenValue or null
+	 */
+	public static NonTerminal getNonTerminal(int tokenValue) {
+		return (tokenValue >= 0 && tokenValue < nonTerminals.length) ? nonTerminals[tokenValue] : null;
+	}
+
+	/**
+	 * @return index of the pattern of rule started by terminal t, or -1
+	 */
+	public static int indexOfMatchFirst(NonTerminal rule, int t) {
+		return (t >= 0 && t < TERMINAL_COUNT) ? patternIndex[rule.ordinal()][t] : -1;
+	}
+
+	/**
+	 * @return Terminals and NonTerminals of a pattern of rule, do not change them
+	 */
+	public static GrammarRule[] getPattern(NonTerminal rule, int index) {
+		return patterns[rule.ordinal()][index];
+	}
+
+	public static boolean inFollow(NonTerminal rule, int t) {
+		return isSet(follow[rule.ordinal()], t);
+	}
+
+	/**
+	 * @return true if the precedence rule splits its stream at terminal t
+	 */
+	public static boolean splitsAt(NonTerminal rule, int t) {
+		return isSet(splitTokens[rule.ordinal()], t);
+	}
+
+	/**
+	 * @return level of the binary precedence rule splitting at terminal t
+	 * 		(1 binds loosest, see operatorSetRank1..5), or 0 if t is not a binary operator
+	 */
+	public static int getBindingPower(int t) {
+		return (t >= 0 && t < TERMINAL_COUNT) ? bindingPower[t] : 0;
+	}
+
+	/**
+	 * @return true if a unary precedence rule splits at terminal t (e.g. NOT)
+	 */
+	public static boolean isPrefixOperator(int t) {
+		return isSet(prefixOperators, t);
+	}
+
+	/**
+	 * @param level 1 for __PRECEDENCE1__, one more for each rule it falls to
+	 * @return precedence rule at this level or null
+	 */
+	public static NonTerminal getPrecedenceRule(int level) {
+		return (level > 0 && level < precedenceRules.length) ? precedenceRules[level] : null;
+	}
+
+	/**
+	 * @return number of precedence levels
+	 */
+	public static int getPrecedenceLevels() {
+		return precedenceRules.length - 1;
+	}
+
+	/**
+	 * @return LL(1) conflicts and differences between
+	 * 		the computed and hand-written FOLLOW sets
+	 */
+	public static List<String> getProblems() {
+		return Collections.unmodifiableList(problems);
+	}
+
+	private static boolean isSet(long set, int t) {
+		return t >= 0 && t < TERMINAL_COUNT && ((set >>> t) & 1) != 0;
+	}
+
+	private static long bits(int[] tokenValues) {
+		long set = 0;
+		for (int t : tokenValues) {
+			if (t >= 0 && t < TERMINAL_COUNT) {
+				set |= 1L << t;
+			}
+		}
+		return set;
+	}
+
+	private static String names(long set) {
+		StringJoiner joiner = new StringJoiner(", ", "{ ", " }");
+		for (int t = 0; t < TERMINAL_COUNT; t++) {
+			if (isSet(set, t)) {
+				joiner.add(terminals[t].toString());
+			}
+		}
+		return joiner.toString();
+	}
+
+	/**
+	 * Row of the table for one rule,
+	 * noting every terminal that starts more than one pattern
+	 */
+	private static int[] buildPatternIndex(NonTerminal rule) {
+		int[] row = new int[TERMINAL_COUNT];
+		Arrays.fill(row, -1);
+		long[] conflicts = new long[rule.patterns.length];
+		for (int i = 0; i < rule.patterns.length; i++) {
+			for (int t : rule.patterns[i].FIRST) {
+				if (t < 0 || t >= TERMINAL_COUNT) {
+					continue;
+				}
+				if (row[t] < 0) {
+					row[t] = i;
+				}
+				else if (row[t] != i) {
+					conflicts[i] |= 1L << t;
+				}
+			}
+		}
+		for (int i = 0; i < conflicts.length; i++) {
+			if (conflicts[i] != 0) {
+				problems.add(String.format("LL(1) conflict in %s: %s also start pattern %d, an earlier pattern is used",
+						rule, names(conflicts[i]), i));
+			}
+		}
+		return row;
+	}
+
+	/**
+	 * Follow the precedence rules from __PRECEDENCE1__ through their right rules,
+	 * giving each operator the level of the first rule splitting at it
+	 *
+	 * @return precedence rules by level, [0] unused
+	 */
+	private static NonTerminal[] buildPrecedenceLevels() {
+		List<NonTerminal> levels = new ArrayList<>();
+		levels.add(null);
+		NonTerminal rule = nonTerminals[GrammarRule.__PRECEDENCE1__];
+		while (rule != null && rule.precedencePattern != null && !levels.contains(rule)) {
+			levels.add(rule);
+			NonTerminal.PrecedencePattern precedence = rule.precedencePattern;
+			for (int t : precedence.splitTokens) {
+				if (t < 0 || t >= TERMINAL_COUNT || bindingPower[t] != 0 || isSet(prefixOperators, t)) {
+					continue;
+				}
+				if (precedence.nonTerminalWrapper == GrammarRule.__UNARY__) {
+					prefixOperators |= 1L << t;
+				}
+				else {
+					bindingPower[t] = levels.size() - 1;
+				}
+			}
+			rule = getNonTerminal(precedence.rightRule);
+		}
+		return levels.toArray(new NonTerminal[0]);
+	}
+
+	/**
+	 * @return every production as { rule ordinal, tokenValue... }
+	 */
+	private static List<int[]> buildProductions(NonTerminal[] rules) {
+		List<int[]> productions = new ArrayList<>();
+		int value = GrammarRule._VALUE_;
+		int top = GrammarRule.__PRECEDENCE1__;
+		for (NonTerminal rule : rules) {
+			int r = rule.ordinal();
+			if (rule.patterns != null) {
+				for (NonTerminal.Pattern pattern : rule.patterns) {
+					productions.add(production(r, pattern.PATTERN));
+				}
+			}
+			else if (rule.precedencePattern != null) {
+				NonTerminal.PrecedencePattern precedence = rule.precedencePattern;
+				boolean isUnary = precedence.nonTerminalWrapper == GrammarRule.__UNARY__;
+				for (int split : precedence.splitTokens) {
+					if (isUnary) {
+						productions.add(production(r, split, rule.tokenValue));
+					}
+					else {
+						productions.add(production(r, precedence.leftRule, split, precedence.rightRule));
+					}
+				}
+				productions.add(production(r, precedence.rightRule));
+				if (precedence.rightRule == value) {
+					// Groups and signs
+					productions.add(production(r, GrammarRule.PAREN_OPEN, top, GrammarRule.PAREN_CLOSE));
+					productions.add(production(r, GrammarRule.PLUS, rule.tokenValue));
+					productions.add(production(r, GrammarRule.MINUS, rule.tokenValue));
+				}
+			}
+		}
+		return productions;
+	}
+
+	private static int[] production(int rule, int... pattern) {
+		int[] production = new int[pattern.length + 1];
+		production[0] = rule;
+		System.arraycopy(pattern, 0, production, 1, pattern.length);
+		return production;
+	}
+
+	private static void computeFirst(List<int[]> productions) {
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int[] production : productions) {
+				int r = production[0];
+				long first = computedFirst[r] | firstOf(production, 1);
+				boolean isNullable = nullable[r] || isNullable(production, 1);
+				if (first != computedFirst[r] || isNullable != nullable[r]) {
+					computedFirst[r] = first;
+					nullable[r] = isNullable;
+					changed = true;
+				}
+			}
+		}
+	}
+
+	private static void computeFollow(List<int[]> productions) {
+		computedFollow[nonTerminals[GrammarRule.startingRule].ordinal()] = 1L << GrammarRule.EOF;
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int[] production : productions) {
+				for (int k = 1; k < production.length; k++) {
+					if (!GrammarRule.isNonTerminal(production[k]) && !GrammarRule.isPrecedenceRule(production[k])) {
+						continue;
+					}
+					int r = nonTerminals[production[k]].ordinal();
+					long set = computedFollow[r] | firstOf(production, k + 1);
+					if (isNullable(production, k + 1)) {
+						set |= computedFollow[production[0]];
+					}
+					if (set != computedFollow[r]) {
+						computedFollow[r] = set;
+						changed = true;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return FIRST set of production[from...], without EMPTY
+	 */
+	private static long firstOf(int[] production, int from) {
+		long first = 0;
+		for (int k = from; k < production.length; k++) {
+			int item = production[k];
+			if (item == GrammarRule.EMPTY) {
+				continue;
+			}
+			if (GrammarRule.isTerminal(item)) {
+				return first | (1L << item);
+			}
+			int r = nonTerminals[item].ordinal();
+			first |= computedFirst[r];
+			if (!nullable[r]) {
+				return first;
+			}
+		}
+		return first;
+	}
+
+	private static boolean isNullable(int[] production, int from) {
+		for (int k = from; k < production.length; k++) {
+			int item = production[k];
+			if (item == GrammarRule.EMPTY) {
+				continue;
+			}
+			if (GrammarRule.isTerminal(item) || !nullable[nonTerminals[item].ordinal()]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static void verifyFollow(NonTerminal[] rules) {
+		for (NonTerminal rule : rules) {
+			if (rule.FOLLOW == null) {
+				continue;
+			}
+			int r = rule.ordinal();
+			String name = "FOLLOW";
+			if (rule.FOLLOW == GrammarRule.commonFollow1[0]) name = "commonFollow1";
+			else if (rule.FOLLOW == GrammarRule.commonFollow2[0]) name = "commonFollow2";
+			else if (rule.FOLLOW == GrammarRule.commonFollow3[0]) name = "commonFollow3";
+			long missing = computedFollow[r] & ~follow[r];
+			long extra = follow[r] & ~computedFollow[r];
+			if (missing != 0) {
+				problems.add(String.format("%s of %s is missing %s", name, rule, names(missing)));
+			}
+			if (extra != 0) {
+				problems.add(String.format("%s of %s has %s, which cannot follow it", name, rule, names(extra)));
+			}
+		}
+	}
+}
@@ -3,6 +3,7 @@ package com.zygateley.compiler;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.RecursiveAction;
 
 
 /**
@@ -20,10 +21,19 @@ import java.util.*;
  * 			toPrecedenceStream() accounts for
  * 				balanced parentheses
  * 				unary operators
+ * 			climbPrecedence() parses operands and operators in a single pass
  * 			parsePrecedenceRule() accounts for all other rules
  * 				See NonTerminal.PrecedencePattern
  * 				for more information on these rules
  * 
+ * parseOptimized() builds the optimized syntax tree directly,
+ * without the parse tree (see Optimizer).
+ * 
+ * The body of a top-level function definition only sees
+ * the global variables declared before it, and declares nothing outside of itself,
+ * so parse() hands large bodies to the ForkJoinPool (see forkFunctionBody)
+ * and stitches them back into their _FUNCDEF_ in source order.
+ * 
  * @author Zachary Gateley
  *
  */
@@ -33,6 +43,8 @@ public class Parser {
 	private ArrayList<Scope> scopeStack;
 	private Scope currentScope = null;
 	private Scope globalScope = null;
+	// Holds the nodes of the tree being parsed
+	private NodeArena arena;
 	
 	// Verbose output shows an XML representation
 	// of the parse tree, indenting appropriately by depth 
@@ -40,6 +52,29 @@ public class Parser {
 	// Show switches between streams
 	private boolean doublyVerbose = false;
 	private int depth = 0;
+	// Next token of the span being parsed by climbPrecedence
+	private int climbPosition;
+	// Set by parseOptimized
+	// CFG rules are lowered into the optimized tree as they complete,
+	// expressions are lowered once they are parsed
+	private boolean lowering = false;
+	private Optimizer optimizer;
+	// Placeholder SCOPE holding the optimized tree
+	private Node loweredTree;
+	// Holds the parse trees of expressions, dropped once they are lowered
+	private NodeArena expressionArena;
+	
+	// Top-level function bodies with at least this many tokens
+	// are parsed on their own thread
+	private static final int MIN_FORKED_BODY = 64;
+	// Token index of the opening curly bracket of each such body
+	// to the index of its closer, null if every body is parsed in line
+	private HashMap<Integer, Integer> functionBodies;
+	// Bodies being parsed, in source order
+	private ArrayList<FunctionBody> functionBodyTasks;
+	// On the Parser of a function body,
+	// the global scope as it was where the body starts
+	private Scope visibleGlobals;
 	
 	/**
 	 * The only variable needed to instantiate a
@@ -84,6 +119,39 @@ public class Parser {
 		this.doublyVerbose = doublyVerbose;
 		return parse();
 	}
+	/**
+	 * Parse the TokenStream straight into the optimized syntax tree,
+	 * the same tree as Optimizer.optimize(parse()).
+	 * 
+	 * PASS and NULL parse nodes are never built.
+	 * Reflow bindings are applied to each REFLOW_LIMIT as soon as it is complete.
+	 * The result cannot be given to reparse.
+	 * 
+	 * @param verbose
+	 * @return Node root of the optimized syntax tree, or null for an empty program
+	 * @throws Exception
+	 */
+	public Node parseOptimized(boolean verbose) throws Exception {
+		this.verbose = verbose;
+		this.doublyVerbose = false;
+		this.optimizer = new Optimizer(this.logFileWriter);
+		this.arena = new NodeArena();
+		this.expressionArena = new NodeArena();
+		this.loweredTree = new Node(this.arena, Construct.SCOPE);
+		this.lowering = true;
+		try {
+			if (this.parse() == null) {
+				return null;
+			}
+			return this.optimizer.finishLowered(this.loweredTree, verbose);
+		}
+		finally {
+			this.lowering = false;
+			this.optimizer = null;
+			this.loweredTree = null;
+			this.expressionArena = null;
+		}
+	}
 	/**
 	 * Parse the TokenStream.
 	 * 
@@ -93,6 +161,9 @@ public class Parser {
 	public Node parse() throws Exception {
 		// Reset parsing parameters
 		depth = 0;
+		if (!this.lowering) {
+			this.arena = new NodeArena();
+		}
 		
 		this.log("<!-- Parsing initiated -->\n");
 
@@ -102,14 +173,38 @@ public class Parser {
 		// Root node of syntax tree
 		// The starting rule MUST be a CFG rule
 		// Precedence rules depend on parent rules and their respective follow sets
+		// If the Lexer is still running, the end of the stream is open
 		NonTerminal startingRule = NonTerminal.getNonTerminal(GrammarRule.startingRule);
-		Node syntaxTree = parseCFGRule(startingRule, tokenStream.length());
-		
-		Token nextItem = tokenStream.peekLeft();
-		if (nextItem == null || nextItem.token != Terminal.EOF) {
-			this.fatalError("Syntax error: program closed before code finished parsing.");
-			return null;
+		Node syntaxTree;
+		this.functionBodies = this.findFunctionBodies();
+		this.functionBodyTasks = new ArrayList<>();
+		try {
+			syntaxTree = parseCFGRule(startingRule, tokenStream.getRightIndexExcl());
+			// Errors in function bodies come before any after them
+			this.joinFunctionBodies();
+			
+			if (tokenStream.peekLeftTerminal() != Terminal.EOF) {
+				this.fatalError("Syntax error: program closed before code finished parsing.");
+				return null;
+			}
 		}
+		catch (Exception err) {
+			// So does an error in a function body before this one
+			try {
+				this.joinFunctionBodies();
+			}
+			catch (Exception bodyErr) {
+				err = bodyErr;
+			}
+			// A lexical error anywhere in the source
+			// takes precedence over this error
+			tokenStream.awaitLexer();
+			throw err;
+		}
+		finally {
+			this.functionBodies = null;
+		}
+		tokenStream.awaitLexer();
 				
 		this.log("//");
 		this.log("// <-- From CFG stream");
@@ -119,6 +214,177 @@ public class Parser {
 		return syntaxTree;
 	}
 
+	/**
+	 * Re-parse after a source edit, reusing every subtree the edit does not touch.
+	 * 
+	 * Only the smallest unit holding the replaced tokens is parsed again:
+	 * 		a _SCOPE_
+	 * 		or a _STMTS_ running to the end of its scope
+	 * 			(no later statement can see what it declares)
+	 * The unit is parsed in its scopes as they were when parsing first reached it.
+	 * If the new subtree does not end where the old one did,
+	 * the edit changed more than the unit and the whole stream is parsed again,
+	 * as it is on a syntax error (so the error is reported the same way).
+	 * 
+	 * @param syntaxTree root of the tree parsed before the edit
+	 * @param edit tokens replaced in the stream by Lexer.relex
+	 * @return root of the syntax tree for the edited stream
+	 * @throws Exception
+	 */
+	public Node reparse(Node syntaxTree, TokenStream.Edit edit) throws Exception {
+		if (edit.isEmpty()) {
+			// Same tokens
+			return syntaxTree;
+		}
+		// New subtrees are swapped into the old tree
+		this.arena = syntaxTree.getArena();
+		
+		// Find the unit, and every node holding it
+		Node unit = null;
+		Set<Node> path = Collections.newSetFromMap(new IdentityHashMap<>());
+		Node scopeNode = syntaxTree;
+		Node node = syntaxTree;
+		while (node != null) {
+			path.add(node);
+			if (node != syntaxTree) {
+				if (Construct.SCOPE.equals(node.getConstruct())) {
+					unit = node;
+				}
+				else if (node.getRule() == NonTerminal._STMTS_ && node.getTokenEnd() >= scopeNode.getTokenEnd() - 1) {
+					unit = node;
+				}
+			}
+			if (Construct.SCOPE.equals(node.getConstruct())) {
+				scopeNode = node;
+			}
+			// Last child holding the replaced tokens
+			Node next = null;
+			for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+				if (child.getTokenStart() >= 0 && child.getTokenStart() <= edit.from && edit.oldTo <= child.getTokenEnd()) {
+					next = child;
+				}
+			}
+			node = next;
+		}
+		if (unit == null) {
+			return parseAgain();
+		}
+		
+		// Scopes as they were when parsing first reached the unit
+		// Declarations from the unit on are set aside (at their old positions)
+		int start = unit.getTokenStart();
+		int oldEnd = unit.getTokenEnd();
+		Node parent = unit.getParent();
+		Node enclosing = parent;
+		while (!Construct.SCOPE.equals(enclosing.getConstruct())) {
+			enclosing = enclosing.getParent();
+		}
+		this.scopeStack = new ArrayList<Scope>();
+		for (Scope scope = enclosing.getScope(); scope != null; scope = scope.parent) {
+			this.scopeStack.add(0, scope);
+		}
+		ArrayList<ArrayList<Variable>> declaredLater = new ArrayList<>();
+		for (Scope scope : this.scopeStack) {
+			declaredLater.add(scope.removeDeclaredFrom(start));
+		}
+		
+		if (edit.getDelta() != 0) {
+			shiftTokenRanges(syntaxTree, edit, path);
+		}
+		int end = unit.getTokenEnd();
+		this.currentScope = enclosing.getScope();
+		this.globalScope = this.scopeStack.get(0);
+		
+		tokenStream.clearParseState(start, tokenStream.size());
+		tokenStream.setLeftIndex(start);
+		tokenStream.setRightIndexExcl(tokenStream.size());
+		Node subtree;
+		try {
+			subtree = parseCFGRule(unit.getRule(), tokenStream.size());
+		}
+		catch (Exception err) {
+			// Report the error as parsing the whole stream does
+			return parseAgain();
+		}
+		if (tokenStream.getLeftIndex() != end) {
+			return parseAgain();
+		}
+		
+		// Put back declarations made after the unit
+		for (int i = 0; i < this.scopeStack.size(); i++) {
+			ArrayList<Variable> after = new ArrayList<>();
+			for (Variable variable : declaredLater.get(i)) {
+				if (variable.getDeclaredAt() >= oldEnd) {
+					variable.setDeclaredAt(edit.shift(variable.getDeclaredAt()));
+					after.add(variable);
+				}
+			}
+			this.scopeStack.get(i).restore(after);
+		}
+		
+		// Swap in the new subtree
+		if (subtree != null) {
+			parent.insertChild(parent.indexOf(unit), subtree);
+		}
+		unit.pop();
+		return syntaxTree;
+	}
+	
+	/**
+	 * Parse the whole stream again, from scratch
+	 */
+	private Node parseAgain() throws Exception {
+		this.scopeStack = new ArrayList<Scope>();
+		this.currentScope = null;
+		this.globalScope = null;
+		tokenStream.clearParseState(0, tokenStream.size());
+		tokenStream.setLeftIndex(0);
+		tokenStream.setRightIndexExcl(tokenStream.size());
+		return parse();
+	}
+	
+	/**
+	 * Move token ranges and declarations after an edit to their new token positions.
+	 * When tokens were only inserted, the nodes holding the unit being re-parsed
+	 * take the new tokens, other nodes ending right before them do not.
+	 * 
+	 * @param root root of the subtree to update
+	 * @param edit tokens replaced in the stream
+	 * @param path nodes holding the unit being re-parsed
+	 */
+	private static void shiftTokenRanges(Node root, TokenStream.Edit edit, Set<Node> path) {
+		int delta = edit.getDelta();
+		ArrayDeque<Node> stack = new ArrayDeque<>();
+		stack.push(root);
+		while (!stack.isEmpty()) {
+			Node node = stack.pop();
+			int start = node.getTokenStart();
+			if (start >= 0) {
+				boolean onPath = path.contains(node);
+				int end = node.getTokenEnd();
+				if (end < edit.oldTo && !onPath) {
+					// Nothing in this subtree comes after the edit
+					continue;
+				}
+				if (start >= edit.oldTo && !onPath) {
+					start += delta;
+				}
+				if (end > edit.oldTo || (end == edit.oldTo && (onPath || edit.from < edit.oldTo))) {
+					end += delta;
+				}
+				node.setTokenRange(start, end);
+			}
+			if (Construct.SCOPE.equals(node.getConstruct())) {
+				for (Variable variable : node.getScope()) {
+					variable.setDeclaredAt(edit.shift(variable.getDeclaredAt()));
+				}
+			}
+			for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+				stack.push(child);
+			}
+		}
+	}
+	
 	/**
 	 * 
 	 * From Precedence stream to non-precedence stream.
@@ -151,31 +417,132 @@ public class Parser {
 	 * TokenStream.leftPosition and TokenStream.rightPosition
 	 * assumed to be appropriately set.
 	 * 
+	 * Nested CFG rules are kept on an explicit stack (CFGFrame),
+	 * not the Java stack, so that long _STMTS_ chains
+	 * and deeply nested blocks parse at any depth.
+	 * 
 	 * @param rule NonTerminal representing this CFG rule
 	 * @param endPosition exclusive in TokenStream
 	 * @return Node root of resulting parse subtree 
 	 * @throws Exception 
 	 */
 	private Node parseCFGRule(NonTerminal rule, int endPosition) throws Exception {
+		CFGFrame frame = this.openCFGRule(rule, endPosition, this.loweredTree);
+		if (frame == null) {
+			return null;
+		}
+		ArrayDeque<CFGFrame> stack = new ArrayDeque<>();
+		stack.push(frame);
+		while (true) {
+			frame = stack.peek();
+			NonTerminal nextRule = this.continueCFGRule(frame);
+			if (nextRule != null && this.forkFunctionBody(frame, nextRule)) {
+				// Added to the tree by joinFunctionBodies
+				frame.added(nextRule.basicElement);
+				continue;
+			}
+			if (nextRule != null) {
+				// Recur into nextRule
+				depth++;
+				CFGFrame next = this.openCFGRule(nextRule, frame.endPosition, frame.target);
+				if (next != null) {
+					stack.push(next);
+				}
+				else {
+					depth--;
+				}
+				continue;
+			}
+			
+			// Finished this NonTerminal
+			frame = stack.pop();
+			Node syntaxSubtree = this.closeCFGRule(frame);
+			if (stack.isEmpty()) {
+				return syntaxSubtree;
+			}
+			depth--;
+			
+			// Add resulting NonTerminal to tree
+			// (When lowering, closeCFGRule has added it)
+			CFGFrame parent = stack.peek();
+			parent.added(frame.rule.basicElement);
+			if (!this.lowering && syntaxSubtree != null) {
+				parent.syntaxSubtree.addChild(syntaxSubtree);
+			}
+		}
+	}
+	
+	/**
+	 * A CFG rule being parsed by parseCFGRule
+	 */
+	private static final class CFGFrame {
+		final NonTerminal rule;
+		final int endPosition;
+		final int tokenStart;
+		// When lowering, the optimized node of this rule (null for PASS)
+		final Node syntaxSubtree;
+		// When lowering, optimized node that this rule's nodes are added to,
+		// and the one this rule's node is added to
+		final Node target;
+		final Node parentTarget;
+		GrammarRule[] pattern;
+		int patternIndex = -1;
+		// Elements of the last child of the parse node,
+		// and of the last child that is not NULL or PASS
+		Construct lastChild;
+		Construct lastBasicChild;
+		
+		CFGFrame(NonTerminal rule, int endPosition, int tokenStart, Node syntaxSubtree, Node target, Node parentTarget) {
+			this.rule = rule;
+			this.endPosition = endPosition;
+			this.tokenStart = tokenStart;
+			this.syntaxSubtree = syntaxSubtree;
+			this.target = target;
+			this.parentTarget = parentTarget;
+		}
+		
+		/**
+		 * A child with this element was added to the parse node
+		 */
+		void added(Construct element) {
+			this.lastChild = element;
+			if (element != Construct.NULL && element != Construct.PASS) {
+				this.lastBasicChild = element;
+			}
+		}
+	}
+	
+	/**
+	 * Begin a new subtree for rule and choose its pattern
+	 * 
+	 * @return frame of the rule, or null if the rule matched the empty string
+	 * @throws Exception
+	 */
+	private CFGFrame openCFGRule(NonTerminal rule, int endPosition, Node parentTarget) throws Exception {
 		// Begin new subtree
+		int tokenStart = tokenStream.getLeftIndex();
 		Node syntaxSubtree;
 		Construct construct = rule.basicElement;
 		if (Construct.SCOPE.equals(construct)) {
-			syntaxSubtree = new Node(rule, null, this.currentScope);
+			syntaxSubtree = new Node(this.arena, rule, null, this.currentScope);
 			this.currentScope = syntaxSubtree.getScope();
 			this.scopeStack.add(this.currentScope);
 			if (this.globalScope == null) {
 				this.globalScope = this.currentScope;
 			}
 		}
+		else if (this.lowering && (Construct.PASS.equals(construct) || Construct.NULL.equals(construct))) {
+			// Never in the optimized tree
+			syntaxSubtree = null;
+		}
 		else {
-			syntaxSubtree = new Node(rule);
+			syntaxSubtree = new Node(this.arena, rule);
 		}
 		
 		// Skip all EMPTY tokens
 		// These are only used to hasEpsilon and inFollow
-		Terminal t = tokenStream.peekLeft().token;
-		while (!tokenStream.isEmpty() && (t == null || t == Terminal.EMPTY)) tokenStream.readLeft();
+		Terminal t = tokenStream.peekLeftTerminal();
+		while (!tokenStream.isEmpty() && (t == null || t == Terminal.EMPTY)) tokenStream.readLeftIndex();
 
     	int indexInFirst = rule.indexOfMatchFirst(t);
 
@@ -194,22 +561,36 @@ public class Parser {
     	}
     	
     	// Starting building this NonTerminal
-		int[] pattern = rule.patterns[indexInFirst].PATTERN;
+		Node target = null;
+		if (this.lowering) {
+			target = Construct.PASS.equals(construct) ? parentTarget : syntaxSubtree;
+		}
+		CFGFrame frame = new CFGFrame(rule, endPosition, tokenStart, syntaxSubtree, target, parentTarget);
+		frame.pattern = ParseTable.getPattern(rule, indexInFirst);
 		
 		// Show XML structure 
 		if (verbose) {
-			log(syntaxSubtree);
+			log(syntaxSubtree != null ? syntaxSubtree : new Node(this.arena, rule));
 		}
-		
-		// Get rules in order
-		// If any of the rules is a NonTerminal, recur
-		int patternIndex = -1;
+		return frame;
+	}
+	
+	/**
+	 * Get rules in order
+	 * Terminals and precedence rules are added to the tree here
+	 * 
+	 * @return next CFG rule of the pattern to recur into,
+	 * 		or null if the pattern is finished
+	 * @throws Exception
+	 */
+	private NonTerminal continueCFGRule(CFGFrame frame) throws Exception {
+		NonTerminal rule = frame.rule;
+		GrammarRule[] pattern = frame.pattern;
 		while (!tokenStream.isEmpty()) {
 			// Skip all EMPTY terminals in stream
 			while (!tokenStream.isEmpty()) {
-				Token nextItem = tokenStream.peekLeft();
-				if (nextItem == null || nextItem.token != Terminal.EMPTY) break;
-				tokenStream.readLeft();
+				if (tokenStream.peekLeftTerminal() != Terminal.EMPTY) break;
+				tokenStream.readLeftIndex();
 			}
 			
 			// If reached the end of this expression
@@ -220,13 +601,12 @@ public class Parser {
 			}
 			
 			// Is pattern finished?
-			boolean patternFinished = patternIndex == pattern.length - 1;
+			boolean patternFinished = frame.patternIndex == pattern.length - 1;
 			if (patternFinished) {
-				Token nextItem = tokenStream.peekLeft();
-				boolean inFollow = rule.inFollow(nextItem.token);
+				boolean inFollow = rule.inFollow(tokenStream.peekLeftTerminal());
 				if (!inFollow) {
 					// Syntax error
-					fatalError("Syntax error: Non-empty production rule (" + rule + ") terminated prematurely. " + nextItem + " is not in its follow set.");
+					fatalError("Syntax error: Non-empty production rule (" + rule + ") terminated prematurely. " + tokenStream.peekLeft() + " is not in its follow set.");
 					return null;
 				}
 				// Pattern finished successfully
@@ -234,18 +614,11 @@ public class Parser {
 			}
 			
 			// Otherwise, keep building from rule
-			patternIndex++;
-			int patternTokenValue = pattern[patternIndex];
-			GrammarRule patternToken;
-			if (GrammarRule.isTerminal(patternTokenValue)) {
-				patternToken = Terminal.getTerminal(patternTokenValue);
-			}
-			else {
-				patternToken = NonTerminal.getNonTerminal(patternTokenValue);
-			}
+			frame.patternIndex++;
+			GrammarRule patternToken = pattern[frame.patternIndex];
 			
 			// Too much in the expression?
-			if (patternIndex == pattern.length) {
+			if (frame.patternIndex == pattern.length) {
 				// If too much in the expression
 				// We are missing a follow character
 				this.fatalError("Syntax error: Missing termination or separation character.");
@@ -255,50 +628,259 @@ public class Parser {
 			// Terminal
 			// These are immediately added to the syntax tree
 			if (patternToken.isTerminal()) {
-				Token item = tokenStream.readLeft();
+				int item = tokenStream.readLeftIndex();
+				Terminal itemToken = tokenStream.getTerminal(item);
 				
 				// Verify pattern match
-				if (item.token != patternToken) {
+				if (itemToken != patternToken) {
 					this.fatalError("Fatal error: incorrect syntax.");
 					return null;
 				}
 				
 				// Add new terminal
-				addTerminal(syntaxSubtree, item.token, item.symbol, item.value);
+				addTerminal(frame, item, itemToken, tokenStream.getSymbol(item), tokenStream.getValue(item));
 			}
 			// NonTerminals
-			// Recur into parseRule
 			else {
-				depth++;
 				NonTerminal nextRule = (NonTerminal) patternToken;
-				Node next;
 				if (!nextRule.isPrecedenceRule()) {
-					next = parseCFGRule(nextRule, endPosition);
+					// Recur (by parseCFGRule)
+					return nextRule;
 				}
 				// Precedence rules need to move into precedence branch
-				else {
-					// Precedence rules do not represent an increase in depth
-					next = toPrecedenceStream(nextRule, rule, tokenStream.getLeftIndex(), endPosition);
+				// Precedence rules do not represent an increase in depth
+				// Expressions are parsed whole, then lowered
+				boolean lowering = this.lowering;
+				NodeArena arena = this.arena;
+				if (lowering) {
+					this.arena = this.expressionArena;
+				}
+				this.lowering = false;
+				depth++;
+				Node next;
+				try {
+					next = toPrecedenceStream(nextRule, rule, tokenStream.getLeftIndex(), frame.endPosition);
+				}
+				finally {
+					this.lowering = lowering;
+					this.arena = arena;
 				}
 				depth--;
 
 				// Add resulting NonTerminal to tree
 				if (next != null) {
-					syntaxSubtree.addChild(next);
+					frame.added(next.getConstruct());
+					if (!lowering) {
+						frame.syntaxSubtree.addChild(next);
+					}
+					else if (frame.target != null) {
+						Optimizer.lowerSubtree(next, frame.target);
+					}
 				}
 			}
 		}
-		
-		if (Construct.SCOPE.equals(construct)) {
+		return null;
+	}
+	
+	/**
+	 * Finish building the subtree of a CFG rule
+	 * 
+	 * @return Node root of the subtree
+	 * @throws IOException
+	 */
+	private Node closeCFGRule(CFGFrame frame) throws Exception {
+		if (Construct.SCOPE.equals(frame.rule.basicElement)) {
 			int lastIndex = this.scopeStack.size() - 1;
 			this.scopeStack.remove(lastIndex);
 			this.currentScope = (lastIndex > 0 ? this.scopeStack.get(lastIndex - 1) : null);
 		}
 		
 		// Finished building this NonTerminal
-		this.log("</" + rule + ">");
+		this.log("</" + frame.rule + ">");
 		
-		return syntaxSubtree;
+		if (this.lowering) {
+			Node loweredNode = frame.syntaxSubtree;
+			if (loweredNode != null) {
+				if (Construct.REFLOW_LIMIT.equals(loweredNode.getConstruct())) {
+					this.optimizer.applyReflowWithin(loweredNode);
+				}
+				if (frame.parentTarget != null) {
+					frame.parentTarget.addChild(loweredNode);
+				}
+			}
+			return loweredNode;
+		}
+		
+		frame.syntaxSubtree.setTokenRange(frame.tokenStart, tokenStream.getLeftIndex());
+		return frame.syntaxSubtree;
+	}
+	
+	/**
+	 * Find the bodies of top-level function definitions,
+	 * with a pre-scan that only matches curly brackets.
+	 * A body that parses ends at the closer of its opening curly bracket,
+	 * since every group it holds is balanced.
+	 * 
+	 * Bodies are only parsed on their own thread
+	 * when the whole stream can be read from any thread,
+	 * and when nothing is logged (the log would interleave).
+	 * 
+	 * @return token index of the opening curly bracket of each body
+	 * 		with at least MIN_FORKED_BODY tokens, to the index of its closer;
+	 * 		null if every body is parsed in line
+	 */
+	private HashMap<Integer, Integer> findFunctionBodies() {
+		if (this.lowering || this.verbose || this.logFileWriter != null
+				|| Runtime.getRuntime().availableProcessors() < 2
+				|| tokenStream.newCursor() == null) {
+			return null;
+		}
+		HashMap<Integer, Integer> bodies = new HashMap<>();
+		int end = tokenStream.getRightIndexExcl();
+		int curlyDepth = 0;
+		int bodyOpen = -1;
+		for (int i = tokenStream.getLeftIndex(); i < end; i++) {
+			Terminal t = tokenStream.getTerminal(i);
+			if (t == Terminal.CURLY_OPEN) {
+				curlyDepth++;
+			}
+			else if (t == Terminal.CURLY_CLOSE) {
+				curlyDepth--;
+				if (curlyDepth < 0) {
+					// Unbalanced, parsing stops here
+					break;
+				}
+				if (curlyDepth == 0 && bodyOpen >= 0) {
+					if (i - bodyOpen >= MIN_FORKED_BODY) {
+						bodies.put(bodyOpen, i);
+					}
+					bodyOpen = -1;
+				}
+			}
+			else if (t == Terminal.FUNCTION && curlyDepth == 0) {
+				// FUNCTION VARIABLE PAREN_OPEN _PARAMS0_ PAREN_CLOSE CURLY_OPEN
+				int j = i + 1;
+				while (j < end && tokenStream.getTerminal(j) != Terminal.PAREN_CLOSE && tokenStream.getTerminal(j) != Terminal.CURLY_OPEN) {
+					j++;
+				}
+				if (j + 1 < end && tokenStream.getTerminal(j) == Terminal.PAREN_CLOSE && tokenStream.getTerminal(j + 1) == Terminal.CURLY_OPEN) {
+					bodyOpen = j + 1;
+				}
+			}
+		}
+		return bodies.isEmpty() ? null : bodies;
+	}
+	
+	/**
+	 * When parsing reaches the body of a top-level function definition
+	 * found by findFunctionBodies, parse the body on the ForkJoinPool
+	 * with a Parser of its own, and skip to the end of the body.
+	 * 
+	 * The body's Parser shares the NodeArena and the tokens,
+	 * and looks up global variables in a snapshot of the global scope.
+	 * 
+	 * @param frame CFG rule being parsed
+	 * @param nextRule rule of the pattern to recur into
+	 * @return true if the body was forked
+	 * @throws Exception
+	 */
+	private boolean forkFunctionBody(CFGFrame frame, NonTerminal nextRule) throws Exception {
+		if (this.functionBodies == null || frame.rule != NonTerminal._FUNCDEF_ || nextRule != NonTerminal._SCOPE_) {
+			return false;
+		}
+		int open = tokenStream.getLeftIndex();
+		Integer close = this.functionBodies.get(open);
+		if (close == null) {
+			return false;
+		}
+		Parser bodyParser = new Parser(tokenStream.newCursor());
+		bodyParser.arena = this.arena;
+		bodyParser.globalScope = this.currentScope;
+		bodyParser.visibleGlobals = this.currentScope.snapshot();
+		FunctionBody task = new FunctionBody(bodyParser, frame.syntaxSubtree, open, frame.endPosition);
+		task.fork();
+		this.functionBodyTasks.add(task);
+		tokenStream.setLeftIndex(close + 1);
+		return true;
+	}
+	
+	/**
+	 * Parse a function body (_SCOPE_) on the Parser made by forkFunctionBody
+	 * 
+	 * @param startPosition opening curly bracket of the body
+	 * @param endPosition exclusive in TokenStream
+	 * @return Node root of the body's parse subtree
+	 * @throws Exception
+	 */
+	private Node parseFunctionBody(int startPosition, int endPosition) throws Exception {
+		tokenStream.setLeftIndex(startPosition);
+		this.scopeStack = new ArrayList<Scope>();
+		this.scopeStack.add(this.visibleGlobals);
+		// Parent of the body's scope
+		this.currentScope = this.globalScope;
+		return parseCFGRule(NonTerminal._SCOPE_, endPosition);
+	}
+	
+	/**
+	 * Wait for every forked function body,
+	 * then add each to its _FUNCDEF_, in source order
+	 * 
+	 * @throws Exception the error of the first body that did not parse
+	 */
+	private void joinFunctionBodies() throws Exception {
+		ArrayList<FunctionBody> tasks = this.functionBodyTasks;
+		if (tasks == null) {
+			return;
+		}
+		this.functionBodyTasks = null;
+		for (FunctionBody task : tasks) {
+			task.quietlyJoin();
+		}
+		for (FunctionBody task : tasks) {
+			if (task.overflowed) {
+				// Try again on this thread's stack
+				task.body = task.parser.parseFunctionBody(task.startPosition, task.endPosition);
+			}
+			if (task.error != null) {
+				throw task.error;
+			}
+			task.functionDefinition.addChild(task.body);
+		}
+	}
+	
+	/**
+	 * A function body being parsed on the ForkJoinPool
+	 */
+	private static final class FunctionBody extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		
+		final Parser parser;
+		final Node functionDefinition;
+		final int startPosition;
+		final int endPosition;
+		Node body;
+		Exception error;
+		boolean overflowed = false;
+		
+		FunctionBody(Parser parser, Node functionDefinition, int startPosition, int endPosition) {
+			this.parser = parser;
+			this.functionDefinition = functionDefinition;
+			this.startPosition = startPosition;
+			this.endPosition = endPosition;
+		}
+		
+		@Override
+		protected void compute() {
+			try {
+				this.body = this.parser.parseFunctionBody(this.startPosition, this.endPosition);
+			}
+			catch (Exception err) {
+				this.error = err;
+			}
+			catch (StackOverflowError err) {
+				this.overflowed = true;
+			}
+		}
 	}
 	
 	/**
@@ -334,7 +916,7 @@ public class Parser {
 		//  (and by balanced parentheses, curly, square brackets)
 		// Concurrently, link matching open/close parens, curlies, squares
 		// Concurrently, indicate all negations
-		ArrayDeque<Token> 
+		ArrayDeque<Integer> 
 			parenStack = new ArrayDeque<>(), 
 			curlyStack = new ArrayDeque<>(), 
 			squareStack = new ArrayDeque<>();
@@ -352,6 +934,11 @@ public class Parser {
 				lastIsOpenParen = false,
 				lastIsBOF = true;
 		while (++leftPosition < maxEndPosition) {
+			// Open-ended stream, the Lexer has finished
+			if (tokenStream.isEmpty()) {
+				break;
+			}
+			
 			// Remember last token
 			lastToken = thisToken;
 			lastIsSign = thisIsSign;
@@ -359,14 +946,14 @@ public class Parser {
 			lastIsOpenParen = thisIsOpenParen;
 			
 			// Consume stream
-			Token item = tokenStream.readLeft();
-			inFollow = parentRule.inFollow(item.token);
+			int item = tokenStream.readLeftIndex();
+			inFollow = parentRule.inFollow(tokenStream.getTerminal(item));
 			isBalanced = (openGroupCount == 0);
 			if (inFollow && isBalanced) {
 				break;
 			}
 			
-			thisToken = item.token;
+			thisToken = tokenStream.getTerminal(item);
 			
 			// Find balance
 			switch (thisToken) {
@@ -406,13 +993,14 @@ public class Parser {
 			thisIsOpenParen = (thisToken == Terminal.PAREN_OPEN);
 			if (thisIsSign && (lastIsOperator || lastIsOpenParen || lastIsBOF)) {
 				// Set operand to negated
-				Token nextItem = tokenStream.peekLeft();
-				nextItem.negated = (thisToken == Terminal.MINUS);
+				if (!tokenStream.isEmpty()) {
+					tokenStream.setNegated(tokenStream.getLeftIndex(), (thisToken == Terminal.MINUS));
+				}
 				// Clear this token from stream
-				item.token = Terminal.EMPTY;
+				tokenStream.erase(item);
 			}
 			else if (thisIsOpenParen && lastIsSign) {
-				item.negated = (lastToken == Terminal.MINUS);
+				tokenStream.setNegated(item, (lastToken == Terminal.MINUS));
 				lastToken = Terminal.EMPTY;
 			}
 			lastIsBOF = false;
@@ -437,7 +1025,13 @@ public class Parser {
 		// Otherwise, there is a stream to parse
 		
 		// And parse using the precedence rule until the determined end position
-		Node syntaxTree = this.parsePrecedenceRule(precedenceRule, startPosition, endPosition);
+		Node syntaxTree;
+		if (precedenceRule == ParseTable.getPrecedenceRule(1) && this.isClimbable(startPosition, endPosition)) {
+			syntaxTree = this.climbPrecedence(startPosition, endPosition);
+		}
+		else {
+			syntaxTree = this.parsePrecedenceRule(precedenceRule, startPosition, endPosition);
+		}
 		
 		// Reset stream parameters after already having read the stream
 		tokenStream.setLeftIndex(endPosition);
@@ -459,9 +1053,9 @@ public class Parser {
 	 * @param openItem stream item to push
 	 * @param position position in TokenStream
 	 */
-	private void markOpenGroup(ArrayDeque<Token> stack, Token openItem, int position) { 
+	private void markOpenGroup(ArrayDeque<Integer> stack, int openItem, int position) { 
 		stack.push(openItem);
-		openItem.openGroupIndex = position;
+		tokenStream.markGroupOpen(position);
 	}
 	
 	/**
@@ -475,11 +1069,283 @@ public class Parser {
 	 * @param closePosition position of this close item in the TokenStream
 	 * @return no return value, all processing complete
 	 */
-	private void markCloseGroup(ArrayDeque<Token> stack, Token closeItem, int closePosition) {
-		Token openItem = stack.pop();
-		closeItem.openGroupIndex = openItem.openGroupIndex;
-		closeItem.closeGroupIndex = closePosition;
-		openItem.closeGroupIndex = closePosition;
+	private void markCloseGroup(ArrayDeque<Integer> stack, int closeItem, int closePosition) {
+		int openItem = stack.pop();
+		tokenStream.markGroupClose(openItem, closePosition);
+	}
+	
+	/**
+	 * Can climbPrecedence parse this span?
+	 * 
+	 * Outside of its groups, the span must be operands separated by binary operators.
+	 * 		An operand is a VARIABLE, a literal, a function call or a paren group.
+	 * 		An operand may follow prefix operators (NOT) or one erased sign, not both.
+	 * Anything else (curly or square groups, repeated signs, syntax errors)
+	 * is left to parsePrecedenceRule, which parses or reports it as it always has.
+	 * Groups are checked when climbPrecedence reaches them.
+	 * 
+	 * @param startPosition inclusive
+	 * @param endPosition exclusive
+	 * @return true if the span is well-formed
+	 */
+	private boolean isClimbable(int startPosition, int endPosition) {
+		boolean expectOperand = true,
+				afterSign = false,
+				afterPrefix = false;
+		for (int position = startPosition; position < endPosition; position++) {
+			Terminal token = tokenStream.getTerminal(position);
+			
+			// Binary operator
+			if (!expectOperand) {
+				if (ParseTable.getBindingPower(token.tokenValue) == 0 || tokenStream.isNegated(position)) {
+					return false;
+				}
+				expectOperand = true;
+				continue;
+			}
+			
+			// Sign erased by toPrecedenceStream
+			if (token == Terminal.EMPTY) {
+				if (afterSign || afterPrefix) {
+					return false;
+				}
+				afterSign = true;
+				continue;
+			}
+			// Prefix operator
+			if (ParseTable.isPrefixOperator(token.tokenValue)) {
+				if (afterSign || tokenStream.isNegated(position)) {
+					return false;
+				}
+				afterPrefix = true;
+				continue;
+			}
+			
+			// Operand
+			switch (token) {
+			case VARIABLE:
+				// Function call
+				if (position + 1 < endPosition && tokenStream.getTerminal(position + 1) == Terminal.PAREN_OPEN) {
+					position = this.closeGroupIndexWithin(position + 1, endPosition);
+				}
+				break;
+			case PAREN_OPEN:
+				position = this.closeGroupIndexWithin(position, endPosition);
+				break;
+			case INTEGER:
+			case STRING:
+			case TRUE:
+			case FALSE:
+				break;
+			default:
+				return false;
+			}
+			if (position < 0) {
+				return false;
+			}
+			expectOperand = false;
+			afterSign = false;
+			afterPrefix = false;
+		}
+		return !expectOperand;
+	}
+	
+	/**
+	 * @return close position of the paren group opening at openPosition,
+	 * 		or -1 if it does not close before endPosition
+	 */
+	private int closeGroupIndexWithin(int openPosition, int endPosition) {
+		int closePosition = tokenStream.getCloseGroupIndex(openPosition);
+		if (closePosition <= openPosition || closePosition >= endPosition || tokenStream.isNegated(closePosition)) {
+			return -1;
+		}
+		return closePosition;
+	}
+	
+	/**
+	 * climbPrecedence
+	 * 
+	 * Parse a span checked by isClimbable by precedence climbing,
+	 * reading each operator once, however long the expression.
+	 * Binding powers come from the precedence rules (see ParseTable.getBindingPower).
+	 * 
+	 * The tree is the one parsePrecedenceRule gives the same span,
+	 * built in the same order:
+	 * 		paren groups first, right to left, as parsePrecedenceRule finds them
+	 * 		then operands, left to right
+	 * 			binary operators are left-associative, e.g. a - b - c is (a - b) - c
+	 * 			prefix operators wrap as parsePrecedenceRule splits them, e.g. !!a
+	 * 				<NOT><NOT /><a /></NOT>
+	 * 			an erased sign negates the operand after it
+	 * 
+	 * Groups within groups are not parsed by recursion,
+	 * but from a stack of the spans being parsed,
+	 * so that any depth of parentheses can be parsed.
+	 * 
+	 * @param startPosition in tokenStream inclusive
+	 * @param endPosition in tokenStream exclusive
+	 * @return parse subtree given for this span [startPosition, endPosition)
+	 * @throws Exception
+	 */
+	private Node climbPrecedence(int startPosition, int endPosition) throws Exception {
+		NonTerminal topRule = ParseTable.getPrecedenceRule(1);
+		
+		// Spans being parsed, innermost on top:
+		// 		start inclusive, end exclusive, position reached by the search for groups
+		ArrayDeque<int[]> spans = new ArrayDeque<>();
+		spans.push(new int[] { startPosition, endPosition, endPosition - 1 });
+		while (true) {
+			int[] span = spans.peek();
+			
+			// Groups
+			int position = span[2];
+			while (position >= span[0]) {
+				if (tokenStream.getTerminal(position) == Terminal.PAREN_CLOSE) {
+					if (tokenStream.getSyntaxSubtree(position) == null) {
+						break;
+					}
+					position = tokenStream.getOpenGroupIndex(position);
+				}
+				position--;
+			}
+			if (position >= span[0]) {
+				int openGroupIndex = tokenStream.getOpenGroupIndex(position);
+				if (this.isClimbable(openGroupIndex + 1, position)) {
+					span[2] = position;
+					spans.push(new int[] { openGroupIndex + 1, position, position - 1 });
+				}
+				else {
+					this.setGroupSubtree(openGroupIndex, position,
+							this.parsePrecedenceRule(topRule, openGroupIndex + 1, position));
+					span[2] = openGroupIndex - 1;
+				}
+				continue;
+			}
+			
+			// Operands and operators
+			this.climbPosition = span[0];
+			Node syntaxTree = this.climbOperation(1, span[1]);
+			spans.pop();
+			if (spans.isEmpty()) {
+				return syntaxTree;
+			}
+			// The span was a group, within its parentheses
+			this.setGroupSubtree(span[0] - 1, span[1], syntaxTree);
+			spans.peek()[2] = span[0] - 2;
+		}
+	}
+	
+	/**
+	 * Give a paren group the subtree parsed within it
+	 */
+	private void setGroupSubtree(int openGroupIndex, int closeGroupIndex, Node embeddedTree) {
+		tokenStream.setSyntaxSubtree(openGroupIndex, embeddedTree);
+		tokenStream.setSyntaxSubtree(closeGroupIndex, embeddedTree);
+		// Apply the group's negation to any previous negation (XOR)
+		embeddedTree.setNegated(tokenStream.isNegated(openGroupIndex) ^ embeddedTree.isNegated());
+	}
+	
+	/**
+	 * Parse operands joined by binary operators binding at least as tightly as level.
+	 * 
+	 * @param level lowest binding power to take
+	 * @param endPosition exclusive
+	 * @return parse subtree from climbPosition to the first weaker operator
+	 * @throws Exception
+	 */
+	private Node climbOperation(int level, int endPosition) throws Exception {
+		Node leftOperand = this.climbOperand(endPosition);
+		while (this.climbPosition < endPosition) {
+			int item = this.climbPosition;
+			Terminal splitToken = tokenStream.getTerminal(item);
+			int power = ParseTable.getBindingPower(splitToken.tokenValue);
+			if (power < level) {
+				break;
+			}
+			this.climbPosition++;
+			Node rightOperand = this.climbOperation(power + 1, endPosition);
+			
+			NonTerminal rule = ParseTable.getPrecedenceRule(power);
+			NonTerminal wrappingClass = NonTerminal.getNonTerminal(rule.precedencePattern.nonTerminalWrapper);
+			leftOperand = mergeOperands(wrappingClass, leftOperand, rightOperand, splitToken);
+			leftOperand.setNegated(tokenStream.isNegated(item));
+		}
+		return leftOperand;
+	}
+	
+	/**
+	 * Parse one operand at climbPosition with its prefix operators or sign.
+	 * 
+	 * @param endPosition exclusive
+	 * @return parse subtree of the operand
+	 * @throws Exception
+	 */
+	private Node climbOperand(int endPosition) throws Exception {
+		int position = this.climbPosition;
+		// Sign erased by toPrecedenceStream
+		if (tokenStream.getTerminal(position) == Terminal.EMPTY) {
+			position++;
+		}
+		int prefixStart = position;
+		while (ParseTable.isPrefixOperator(tokenStream.getTerminal(position).tokenValue)) {
+			position++;
+		}
+		
+		int operandStart = position;
+		int operandEnd = operandStart + 1;
+		boolean isGroup = false;
+		Terminal token = tokenStream.getTerminal(operandStart);
+		if (token == Terminal.PAREN_OPEN) {
+			operandEnd = tokenStream.getCloseGroupIndex(operandStart) + 1;
+			isGroup = true;
+		}
+		else if (token == Terminal.VARIABLE && operandEnd < endPosition && tokenStream.getTerminal(operandEnd) == Terminal.PAREN_OPEN) {
+			operandEnd = tokenStream.getCloseGroupIndex(operandEnd) + 1;
+		}
+		NonTerminal prefixRule = ParseTable.getPrecedenceRule(ParseTable.getPrecedenceLevels());
+		NonTerminal valueRule = NonTerminal.getNonTerminal(prefixRule.precedencePattern.rightRule);
+		
+		if (prefixStart == operandStart) {
+			Node operand;
+			if (isGroup) {
+				// Parsed with the other groups
+				operand = tokenStream.getSyntaxSubtree(operandEnd - 1);
+			}
+			else {
+				operand = this.climbValue(valueRule, operandStart, operandEnd);
+				if (operand != null) {
+					operand.setNegated(operand.isNegated() ^ tokenStream.isNegated(operandStart));
+				}
+				// Do not reuse negated
+				tokenStream.setNegated(operandStart, false);
+			}
+			this.climbPosition = operandEnd;
+			return operand;
+		}
+		
+		// Prefix operators
+		// Each wraps the ones before it, the last one also wraps the operand
+		NonTerminal wrappingClass = NonTerminal.getNonTerminal(prefixRule.precedencePattern.nonTerminalWrapper);
+		Node operators = null;
+		for (int item = prefixStart; item < operandStart - 1; item++) {
+			operators = mergeOperands(wrappingClass, operators, null, tokenStream.getTerminal(item));
+			operators.setNegated(tokenStream.isNegated(item));
+		}
+		int item = operandStart - 1;
+		Node operand = this.climbValue(valueRule, operandStart, operandEnd);
+		Node wrapper = mergeOperands(wrappingClass, operators, operand, tokenStream.getTerminal(item));
+		wrapper.setNegated(tokenStream.isNegated(item));
+		this.climbPosition = operandEnd;
+		return wrapper;
+	}
+	
+	/**
+	 * Parse an operand by its CFG rule (_VALUE_)
+	 */
+	private Node climbValue(NonTerminal valueRule, int startPosition, int endPosition) throws Exception {
+		tokenStream.setLeftIndex(startPosition);
+		tokenStream.setRightIndexExcl(endPosition);
+		return precedenceParseNextRule(valueRule, startPosition, endPosition);
 	}
 	
 	/**
@@ -512,14 +1378,13 @@ public class Parser {
 	 * @throws Exception 
 	 */
 	private Node parsePrecedenceRule(NonTerminal rule, int startPosition, int endPosition) throws Exception {
-		// Patterns split at these tokens
-		int[] splitTokens = rule.precedencePattern.splitTokens;
+		// Patterns split at rule.precedencePattern.splitTokens (see ParseTable.splitsAt)
 		// If a split token is found, this is its Terminal.tokenValue
 		int splitTokenValue = -1;
 		
 		
 		if (startPosition == endPosition) {
-			return new Node(Terminal.EMPTY);
+			return new Node(this.arena, Terminal.EMPTY);
 		}
 		
 		// Make sure the stream is up-to-date
@@ -532,15 +1397,15 @@ public class Parser {
 
 		// Look for partition starting at start position
 		int partition = startPosition; 
-		Token item = null;
+		int item = -1;
 		int itemCount = 0;
 		boolean leftmostIsEmpty = false;
 		while (tokenStream.getRightIndexExcl() > startPosition) {
 			// Get token at next location
-			Token nextItem = tokenStream.readRight();
+			int nextItem = tokenStream.readRightIndex();
 			
 			// Skip empty
-			if (nextItem.token == Terminal.EMPTY) {
+			if (tokenStream.getTerminal(nextItem) == Terminal.EMPTY) {
 				leftmostIsEmpty = true;
 				continue;
 			}
@@ -551,26 +1416,28 @@ public class Parser {
 			
 			// If this is an embedded group,
 			// Recur then skip group
-			if (item.openGroupIndex > -1) {
-				if (item.syntaxSubtree == null) {
+			int openGroupIndex = tokenStream.getOpenGroupIndex(item);
+			if (openGroupIndex > -1) {
+				if (tokenStream.getSyntaxSubtree(item) == null) {
 					// Recur to get parse tree
 					// And set as these stream items' parse trees 
-					Node embeddedTree = parsePrecedenceRule(rule, item.openGroupIndex + 1, item.closeGroupIndex);
-					Token opener = tokenStream.peekAt(item.openGroupIndex);
-					opener.syntaxSubtree = item.syntaxSubtree = embeddedTree;
+					Node embeddedTree = parsePrecedenceRule(rule, openGroupIndex + 1, tokenStream.getCloseGroupIndex(item));
+					tokenStream.setSyntaxSubtree(openGroupIndex, embeddedTree);
+					tokenStream.setSyntaxSubtree(item, embeddedTree);
 					// Since we are passing a parse tree
 					// from one StreamItem to another,
 					// Need to apply this negation to any previous negation (XOR)
-					embeddedTree.setNegated(opener.negated ^ embeddedTree.isNegated());
+					embeddedTree.setNegated(tokenStream.isNegated(openGroupIndex) ^ embeddedTree.isNegated());
 					tokenStream.setLeftIndex(startPosition);
 				}
 				// Skip group
-				tokenStream.setRightIndexExcl(item.openGroupIndex);
+				tokenStream.setRightIndexExcl(openGroupIndex);
 				continue;
 			}
 			
-			boolean isSplitToken = splitContains(splitTokens, item.token.tokenValue);
-			splitTokenValue = (isSplitToken ? item.token.tokenValue : -1);
+			int itemTokenValue = tokenStream.getTerminal(item).tokenValue;
+			boolean isSplitToken = ParseTable.splitsAt(rule, itemTokenValue);
+			splitTokenValue = (isSplitToken ? itemTokenValue : -1);
 			if (splitTokenValue > -1) {
 				partition = tokenStream.getRightIndexExcl();
 				break;
@@ -585,11 +1452,11 @@ public class Parser {
 		// return its syntax tree (set recursively during above search)
 		boolean onlyEmbeddedParseTree = (
 				itemCount == 1 &&
-				item != null &&
-				item.openGroupIndex > -1
+				item > -1 &&
+				tokenStream.getOpenGroupIndex(item) > -1
 		);
 		if (onlyEmbeddedParseTree) {
-			return item.syntaxSubtree;
+			return tokenStream.getSyntaxSubtree(item);
 		}
 		
 		// Do not parse empty, placed there by negator in toPrecedenceStream 
@@ -631,10 +1498,10 @@ public class Parser {
 			if (!haveMatch) {
 				// Set subtree negation as necessary
 				if (leftOperand != null) {
-					leftOperand.setNegated(leftOperand.isNegated() ^ item.negated);
+					leftOperand.setNegated(leftOperand.isNegated() ^ tokenStream.isNegated(item));
 				}
 				// Do not reuse negated
-				item.negated = false;
+				tokenStream.setNegated(item, false);
 				return leftOperand;
 			}
 		}
@@ -659,10 +1526,10 @@ public class Parser {
 			if (!haveMatch) {
 				// Set subtree negation as necessary
 				if (rightOperand != null) {
-					rightOperand.setNegated(rightOperand.isNegated() ^ item.negated);
+					rightOperand.setNegated(rightOperand.isNegated() ^ tokenStream.isNegated(item));
 				}
 				// Do not reuse negated
-				item.negated = false;
+				tokenStream.setNegated(item, false);
 				return rightOperand;
 			}
 		}
@@ -677,7 +1544,7 @@ public class Parser {
 		Node wrapper = mergeOperands(wrappingClass, leftOperand, rightOperand, splitToken);
 		
 		// Set subtree negation as necessary
-		wrapper.setNegated(item.negated);
+		wrapper.setNegated(tokenStream.isNegated(item));
 		
 		return wrapper;
 	}
@@ -714,8 +1581,7 @@ public class Parser {
 				// Extend by one
 				tokenStream.setRightIndexExcl(++endPosition);
 				// If this newly-included character is empty, extend again
-				Token nextItem = tokenStream.peekRight();
-				if (nextItem != null && nextItem.token != Terminal.EMPTY) break;
+				if (tokenStream.peekRightTerminal() != Terminal.EMPTY) break;
 			}
 			
 			parseSubtree = toCFGStream(nextRule, startPosition, endPosition);
@@ -723,25 +1589,6 @@ public class Parser {
 		return parseSubtree;
 	}
 
-	/**
-	 * Check if this token is in the split tokens array from the rule's pattern
-	 * If it is, return the token's index in the array
-	 * 
-	 * @param splitTokens
-	 * @param tokenValue
-	 * @return
-	 */
-	private boolean splitContains(int[] splitTokens, int tokenValue) {
-		for (int terminal : splitTokens) {
-			// Skip any terminal not in  this set
-			if (tokenValue != terminal) continue;
-			
-			// Match!
-			return true;
-		}
-		return false;
-	}
-	
 	/**
 	 * Merge the operands (subtrees) into its respective wrapping class.
 	 * Return the resulting subtree
@@ -758,10 +1605,10 @@ public class Parser {
 		boolean leftIsNull = (leftOperand == null);
 		boolean rightIsNull = (rightOperand == null);
 		if (leftIsNull && rightIsNull) {
-			return new Node(splitToken);
+			return new Node(this.arena, splitToken);
 		}
 		
-		Node wrapper = new Node(splitToken.construct, wrappingClass);
+		Node wrapper = new Node(this.arena, splitToken.construct, wrappingClass);
 		wrapper.addChild(leftOperand);
 		wrapper.addChild(rightOperand);
 		
@@ -772,26 +1619,28 @@ public class Parser {
 	 * Create a leaf for the parse tree,
 	 * add that leaf to the parent node,
 	 * and return the leaf.
+	 * When lowering, the leaf is lowered into the optimized tree instead.
 	 * 
-	 * @param parentNode
+	 * @param frame of the parent rule
+	 * @param position index of the token in TokenStream
 	 * @param terminal respective to this leaf
 	 * @param symbol from SymbolTable or null
 	 * @param value LITERAL value or matching terminal string
 	 * @return
 	 * @throws IOException 
 	 */
-	private Node addTerminal(Node parentNode, Terminal terminal, Symbol symbol, String value) throws Exception {
+	private Node addTerminal(CFGFrame frame, int position, Terminal terminal, Symbol symbol, String value) throws Exception {
 		Node node = null;
 		
 		// Make sure the current symbol is scoped correctly
 		if (symbol != null && symbol.getName() instanceof String) {
-			boolean parentIsVardef = Construct.VARDECL.equals(parentNode.getConstruct());
-			Node previousSibling = parentNode.getLastChild();
-			boolean previousIsVardef = previousSibling != null && Construct.VARDECL.equals(previousSibling.getConstruct());
+			boolean parentIsVardef = Construct.VARDECL.equals(frame.rule.basicElement);
+			boolean previousIsVardef = Construct.VARDECL.equals(frame.lastChild);
 			if (parentIsVardef || previousIsVardef) {
 				// Add to this scope
 				Variable variable = this.currentScope.addVariable(symbol);
-				node = new Node(terminal, variable);
+				variable.setDeclaredAt(position);
+				node = new Node(this.arena, terminal, variable);
 			}
 			else {
 				// Static scoping
@@ -806,34 +1655,43 @@ public class Parser {
 				}
 				if (variable == null) {
 					// Allow for loop variables to be previously undeclared
-					if (previousSibling != null) {
-						Construct prev = previousSibling.getConstruct();
-						while (prev == Construct.NULL || prev == Construct.PASS) {
-							previousSibling = previousSibling.getPreviousSibling();
-							if (previousSibling == null) break;
-							prev = previousSibling.getConstruct();
-						}
-					}
-					boolean previousSiblingIsLoop = previousSibling != null && Construct.LOOP.equals(previousSibling.getConstruct());
+					// (previous sibling, skipping NULL and PASS)
+					boolean previousSiblingIsLoop = Construct.LOOP.equals(frame.lastBasicChild);
 					if (previousSiblingIsLoop) {
 						// Add to this scope
 						variable = this.currentScope.addVariable(symbol);
-						node = new Node(terminal, variable);
+						variable.setDeclaredAt(position);
+						node = new Node(this.arena, terminal, variable);
 					}
 					else {
 						throw new Exception("Parse error: Variable used before it was declared.");
 					}
 				}
 				
-				node = new Node(terminal, variable);
+				node = new Node(this.arena, terminal, variable);
 			}
 		}
 		if (node == null) {
-			// Symbols need to be stored for literals
-			node = new Node(terminal, symbol, value);
+			// Literals keep their decoded Constant
+			Constant constant = this.tokenStream.getConstant(position);
+			if (constant != null) {
+				node = new Node(this.arena, terminal, constant);
+			}
+			else {
+				node = new Node(this.arena, terminal, symbol, value);
+			}
 		}
 		
-		parentNode.addChild(node);
+		frame.added(node.getConstruct());
+		if (!this.lowering) {
+			frame.syntaxSubtree.addChild(node);
+		}
+		else {
+			Construct construct = node.getConstruct();
+			if (frame.target != null && construct != Construct.NULL && construct != Construct.PASS) {
+				frame.target.addChild(Optimizer.lowerNode(node, construct, frame.target, false));
+			}
+		}
 		
 		log(node);
 		
@@ -880,8 +1738,7 @@ public class Parser {
 		String stream = "End of stream";
 		if (!this.tokenStream.isEmpty()) {
 			int leftPos = this.tokenStream.getLeftIndex();
-			int rightPos = this.tokenStream.getRightIndexExcl();
-			boolean isLongStream = (rightPos - leftPos > 5); 
+			boolean isLongStream = (this.tokenStream.length() > 5); 
 			if (isLongStream) {
 				 stream = this.tokenStream.toString(leftPos, leftPos + 5) + "...";
 			}
@@ -1,13 +1,32 @@
 package com.zygateley.compiler;
 
 import java.io.*;
+import java.util.ArrayList;
 
-public class PythonTranslator {
+public class PythonTranslator implements ConstructVisitor<Void, IOException> {
 	private Node syntaxTree;
 	private StringBuilder stringBuilder;
 	private FileWriter fileWriter;
 	private int depth;
 	private boolean newLine;
+	// Work of translateNode, next on top:
+	// 		Node		translate it
+	// 		String		print it
+	// 		Step		run it
+	private final ArrayList<Object> work = new ArrayList<>();
+	// Work scheduled by the step being run, in the order it runs
+	private final ArrayList<Object> scheduled = new ArrayList<>();
+	private final Step lineBreak = () -> this.println();
+	private final Step indentStep = () -> this.depth++;
+	private final Step outdentStep = () -> this.depth--;
+	
+	/**
+	 * Output deferred until the step
+	 * that scheduled it has finished
+	 */
+	private interface Step {
+		void run() throws IOException;
+	}
 	
 	public PythonTranslator(Node syntaxTree) {
 		this.syntaxTree = syntaxTree;
@@ -49,244 +68,377 @@ public class PythonTranslator {
 			return fileWriter.toString();
 		}
 	}
+	/**
+	 * Translate node and all of its contents.
+	 * <p>
+	 * Nested nodes are not translated by recursion.
+	 * Each step schedules its output and child nodes (see emit, translateLater),
+	 * which are run from a work stack,
+	 * so that any depth of nesting can be translated.
+	 * </p>
+	 */
+	private void translateNode(Node node) throws IOException {
+		ArrayList<Object> work = this.work;
+		ArrayList<Object> scheduled = this.scheduled;
+		work.clear();
+		work.add(node);
+		while (!work.isEmpty()) {
+			Object next = work.remove(work.size() - 1);
+			scheduled.clear();
+			if (next instanceof Node) {
+				this.translateStep((Node) next);
+			}
+			else if (next instanceof String) {
+				this.print((String) next);
+			}
+			else {
+				((Step) next).run();
+			}
+			for (int i = scheduled.size() - 1; i >= 0; i--) {
+				work.add(scheduled.get(i));
+			}
+		}
+		scheduled.clear();
+	}
+	private void later(Step step) {
+		this.scheduled.add(step);
+	}
+	private void translateLater(Node node) {
+		if (node != null) {
+			this.scheduled.add(node);
+		}
+	}
+	private void emit(String output) {
+		if (output != null) {
+			this.scheduled.add(output);
+		}
+	}
+	private void emitLine(String output) {
+		this.emit(output);
+		this.later(this.lineBreak);
+	}
+	private void emitLine() {
+		this.later(this.lineBreak);
+	}
+	private void emitTerminal(Terminal t) {
+		this.emit(terminalText(t));
+	}
+	private void emitValue(Node node) {
+		this.emit(valueText(node));
+	}
+	private void indent() {
+		this.later(this.indentStep);
+	}
+	private void outdent() {
+		this.later(this.outdentStep);
+	}
 	private void crawlChildrenAndTranslate(Node parent) throws IOException {
 		if (parent == null) return;
-		for (Node child : parent) {
-			if (child != null) translateNode(child);
+		for (Node child = parent.getFirstChild(); child != null; child = child.getNextSibling()) {
+			translateLater(child);
 		}
 	}
-	private void translateNode(Node node) throws IOException {
+	private void translateStep(Node node) throws IOException {
 		if (node == null) return;
 		
 		
 		if (node.isNegated()) {
-			print("(-");
+			emit("(-");
 		}
 		
-		// Try NonTerminal
-		Construct element = node.getConstruct();
-		Node firstChild = (Node) node.getFirstChild();
-		Node nextChild = null;
-		if (firstChild != null) {
-			nextChild = firstChild.getNextSibling();
+		// By Construct (see the visit methods)
+		if (node.getConstruct() != null) {
+			this.visit(node);
+		}
+		
+		if (node.isNegated()) {
+			emit(")");
 		}
+		
+		return;
+	}
+	
+	@Override
+	public Void visitFunctionDefinition(Node node) throws IOException {
+		Node firstChild = node.getFirstChild();
+		Node nextChild = (firstChild == null ? null : firstChild.getNextSibling());
+		emitLine();
+		// Function signature
+		emit("def ");
+		// Function name
+		translateLater(firstChild);
+		emit("(");
+		// Function parameters
+		Node lastChild = node.getLastChild();
+		// All following children except the last are parameters
+		if (firstChild.getNextSibling() != lastChild) {
+			printList(nextChild, node.getChildCount() - 2);
+		}
+		emit(")");
+		emitLine(":");
+		
+		// Function body
+		indent();
+		if (lastChild.getChildCount() == 0) {
+			// No children
+			emit("pass");
+		}
+		else {
+			// Output code
+			translateLater(lastChild);
+		}
+		outdent();
+		emitLine();
+		return null;
+	}
+	
+	@Override
+	public Void visitLoop(Node node) throws IOException {
+		Node firstChild = node.getFirstChild();
+		Node nextChild = (firstChild == null ? null : firstChild.getNextSibling());
 		int childCount = node.getChildCount();
-		if (element != null) {
-			switch (element) {
-			case FUNCDEF:
-				println();
-				// Function signature
-				print("def ");
-				// Function name
-				translateNode(firstChild);
-				print("(");
-				// Function parameters
-				Node lastChild = node.getLastChild();
-				// All following children except the last are parameters
-				if (firstChild.getNextSibling() != lastChild) {
-					printList(nextChild, node.getChildCount() - 2);
-				}
-				print(")");
-				println(":");
-				
-				// Function body
-				depth++;
-				if (lastChild.getChildCount() == 0) {
-					// No children
-					print("pass");
-				}
-				else {
-					// Output code
-					translateNode(lastChild);
-				}
-				depth--;
-				println();
-				break;
-			case LOOP:
-				if (childCount == 2) {
-					print("while ");
-					translateNode(firstChild);
-					println(":");
-				}
-				else {
-					print("for ");
-					
-					// Variable
-					translateNode(firstChild);
-					print(" in range(");
-					
-					// Initial value
-					translateNode(nextChild);
-					print(", ");
-					
-					// High limit
-					nextChild = nextChild.getNextSibling();
-					translateNode(nextChild);
-					
-					// Step
-					nextChild = nextChild.getNextSibling();
-					if (nextChild != node.getLastChild()) {
-						print(", ");
-						translateNode(nextChild);
-					}
-					println("):");
-				}
+		if (childCount == 2) {
+			emit("while ");
+			translateLater(firstChild);
+			emitLine(":");
+		}
+		else {
+			emit("for ");
+			
+			// Variable
+			translateLater(firstChild);
+			emit(" in range(");
+			
+			// Initial value
+			translateLater(nextChild);
+			emit(", ");
+			
+			// High limit
+			nextChild = nextChild.getNextSibling();
+			translateLater(nextChild);
+			
+			// Step
+			nextChild = nextChild.getNextSibling();
+			if (nextChild != node.getLastChild()) {
+				emit(", ");
+				translateLater(nextChild);
+			}
+			emitLine("):");
+		}
 
-				// Body
-				depth++;
-				nextChild = node.getLastChild();
-				if (nextChild.getChildCount() == 0) {
-					print("pass");
-				}
-				else {
-					translateNode(nextChild);
-				}
-				depth--;
-				break;
-			case IF:
-				print("if ");
-				// Condition
-				translateNode(firstChild);
-				println(":");
+		// Body
+		indent();
+		nextChild = node.getLastChild();
+		if (nextChild.getChildCount() == 0) {
+			emit("pass");
+		}
+		else {
+			translateLater(nextChild);
+		}
+		outdent();
+		return null;
+	}
+	
+	@Override
+	public Void visitIf(Node node) throws IOException {
+		Node firstChild = node.getFirstChild();
+		Node nextChild = (firstChild == null ? null : firstChild.getNextSibling());
+		emit("if ");
+		// Condition
+		translateLater(firstChild);
+		emitLine(":");
 
-				// Body
-				depth++;
+		// Body
+		indent();
+		if (nextChild.getChildCount() == 0) {
+			emit("pass");
+		}
+		else {
+			translateLater(nextChild);
+		}
+		outdent();
+		
+		// else / else if
+		nextChild = nextChild.getNextSibling();
+		if (nextChild != null) {
+			emitLine();
+			if (Construct.IF.equals(nextChild.getConstruct())) {
+				emit("el");
+				translateLater(nextChild);
+			}
+			else {
+				emit("else:");
+				emitLine();
+				indent();
+				translateLater(nextChild);
 				if (nextChild.getChildCount() == 0) {
-					print("pass");
-				}
-				else {
-					translateNode(nextChild);
-				}
-				depth--;
-				
-				// else / else if
-				nextChild = nextChild.getNextSibling();
-				if (nextChild != null) {
-					println();
-					if (Construct.IF.equals(nextChild.getConstruct())) {
-						print("el");
-						translateNode(nextChild);
-					}
-					else {
-						print("else:");
-						println();
-						depth++;
-						translateNode(nextChild);
-						if (nextChild.getChildCount() == 0) {
-							print("pass");
-						}
-						depth--;
-						println();
-					}
-				}
-				break;
-			case OUTPUT:
-				print("print (");
-				crawlChildrenAndTranslate(node);
-				println(")");
-				break;
-			case INPUT:
-				translateNode(firstChild);
-				println(" = input()");
-				break;
-			case OPERATION:
-			case OR: case AND:
-			case ADD: case SUB: case MULT: case INTDIV:
-			case EQEQ: case NEQ: case LT: case LTEQ: case GT: case GTEQ:
-			case NOT:
-				if (nextChild == null) {
-					// Unary
-					printTerminal(node.getToken());
-					translateNode(firstChild);
-				}
-				else {
-					// Binary
-					TypeSystem nodeType = node.getType();
-					TypeSystem type0 = firstChild.getType();
-					TypeSystem type1 = nextChild.getType();
-					TypeSystem string = TypeSystem.STRING;
-					
-					print("(");
-					boolean needStringConversion = nodeType == string && type0 != string;
-					if (needStringConversion) {
-						print("str(");
-						translateNode(firstChild);
-						print(")");
-					}
-					else {
-						translateNode(firstChild);
-					}
-					print(" ");
-					switch (element) {
-					case OR: print("or"); break;
-					case AND: print("and"); break;
-					case ADD: print("+"); break;
-					case SUB: print("-"); break;
-					case MULT: print("*"); break;
-					case INTDIV: print("//"); break;
-					case EQEQ: print("=="); break;
-					case NEQ: print("!="); break;
-					case LT: print("<"); break;
-					case LTEQ: print("<="); break;
-					case GT: print(">"); break;
-					case GTEQ: print(">="); break;
-					default:
-						printTerminal(node.getToken());
-						break;
-					}
-					print(" ");
-					needStringConversion = nodeType == string && type1 != string;
-					if (needStringConversion) {
-						print("str(");
-						translateNode(nextChild);
-						print(")");
-					}
-					else {
-						translateNode(nextChild);
-					}
-					print(")");
+					emit("pass");
 				}
-				break;
-			case FUNCCALL:
-				// Function name
-				translateNode(firstChild);
-				print("(");
-				
-				// Arguments
-				// All following children are arguments
-				printList(nextChild, childCount);
-				
-				println(")");
-				break;
-			case VARDECL:
-				if (childCount == 1) {
-					break;
-				}
-				// Go into varset
-				firstChild = node.getFirstChild();
-				nextChild = firstChild.getNextSibling();
-			case VARSET:
-				translateNode(firstChild);
-				print(" = ");
-				translateNode(nextChild);
-				println();
-				break;
+				outdent();
+				emitLine();
+			}
+		}
+		return null;
+	}
+	
+	@Override
+	public Void visitOutput(Node node) throws IOException {
+		emit("print (");
+		for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+			if (child.getType() == TypeSystem.BOOLEAN) {
+				translateStringLater(child);
+			}
+			else {
+				translateLater(child);
+			}
+		}
+		emitLine(")");
+		return null;
+	}
+	
+	@Override
+	public Void visitInput(Node node) throws IOException {
+		Node firstChild = node.getFirstChild();
+		translateLater(firstChild);
+		emitLine(" = input()");
+		return null;
+	}
+	
+	@Override
+	public Void visitOperation(Node node) throws IOException {
+		this.translateOperation(node);
+		return null;
+	}
+	@Override
+	public Void visitBinaryOperator(Node node) throws IOException {
+		this.translateOperation(node);
+		return null;
+	}
+	@Override
+	public Void visitNot(Node node) throws IOException {
+		this.translateOperation(node);
+		return null;
+	}
+	private void translateOperation(Node node) throws IOException {
+		Construct element = node.getConstruct();
+		Node firstChild = node.getFirstChild();
+		Node nextChild = (firstChild == null ? null : firstChild.getNextSibling());
+		if (nextChild == null) {
+			// Unary
+			emitTerminal(node.getToken());
+			translateLater(firstChild);
+		}
+		else {
+			// Binary
+			boolean stringOperation = node.getType() == TypeSystem.STRING;
+			
+			emit("(");
+			if (stringOperation) {
+				translateStringLater(firstChild);
+			}
+			else {
+				translateLater(firstChild);
+			}
+			emit(" ");
+			switch (element) {
+			case OR: emit("or"); break;
+			case AND: emit("and"); break;
+			case ADD: emit("+"); break;
+			case SUB: emit("-"); break;
+			case MULT: emit("*"); break;
+			case INTDIV: emit("//"); break;
+			case EQEQ: emit("=="); break;
+			case NEQ: emit("!="); break;
+			case LT: emit("<"); break;
+			case LTEQ: emit("<="); break;
+			case GT: emit(">"); break;
+			case GTEQ: emit(">="); break;
 			default:
-				if (node.getChildCount() > 0) {
-					crawlChildrenAndTranslate(node);
-				}
-				else {
-					printValue(node);
-				}
+				emitTerminal(node.getToken());
 				break;
 			}
+			emit(" ");
+			if (stringOperation) {
+				translateStringLater(nextChild);
+			}
+			else {
+				translateLater(nextChild);
+			}
+			emit(")");
 		}
-		
-		if (node.isNegated()) {
-			print(")");
+	}
+	/**
+	 * Translate an operand promoted to STRING,
+	 * a BOOLEAN as TRUE or FALSE (as by the assembly language)
+	 */
+	private void translateStringLater(Node operand) {
+		TypeSystem type = operand.getType();
+		if (type == TypeSystem.STRING) {
+			translateLater(operand);
+			return;
+		}
+		if (type == TypeSystem.BOOLEAN && operand.getChildCount() == 0
+				&& (operand.getToken() == Terminal.TRUE || operand.getToken() == Terminal.FALSE)) {
+			emit(operand.getToken() == Terminal.TRUE ? "\"TRUE\"" : "\"FALSE\"");
+		}
+		else if (type == TypeSystem.BOOLEAN) {
+			emit("(\"TRUE\" if ");
+			translateLater(operand);
+			emit(" else \"FALSE\")");
+		}
+		else {
+			emit("str(");
+			translateLater(operand);
+			emit(")");
 		}
+	}
+	
+	@Override
+	public Void visitFunctionCall(Node node) throws IOException {
+		Node firstChild = node.getFirstChild();
+		Node nextChild = (firstChild == null ? null : firstChild.getNextSibling());
+		int childCount = node.getChildCount();
+		// Function name
+		translateLater(firstChild);
+		emit("(");
 		
-		return;
+		// Arguments
+		// All following children are arguments
+		printList(nextChild, childCount);
+		
+		emitLine(")");
+		return null;
+	}
+	
+	@Override
+	public Void visitVariableDeclaration(Node node) throws IOException {
+		if (node.getChildCount() == 1) {
+			return null;
+		}
+		// Go into varset
+		return this.visitVariableSet(node);
+	}
+	
+	@Override
+	public Void visitVariableSet(Node node) throws IOException {
+		Node firstChild = node.getFirstChild();
+		Node nextChild = (firstChild == null ? null : firstChild.getNextSibling());
+		translateLater(firstChild);
+		emit(" = ");
+		translateLater(nextChild);
+		emitLine();
+		return null;
+	}
+	
+	@Override
+	public Void visitDefault(Node node) throws IOException {
+		if (node.getChildCount() > 0) {
+			crawlChildrenAndTranslate(node);
+		}
+		else {
+			emitValue(node);
+		}
+		return null;
 	}
 	
 	private void printList(Node nextChild, int limit) throws IOException {
@@ -294,10 +446,10 @@ public class PythonTranslator {
 		boolean isFirstArgument = true;
 		while (nextChild != null && count++ < limit) {
 			if (!isFirstArgument) {
-				print(", ");
+				emit(", ");
 			}
 			isFirstArgument = false;
-			translateNode(nextChild);
+			translateLater(nextChild);
 			nextChild = nextChild.getNextSibling();
 		}
 	}
@@ -320,30 +472,27 @@ public class PythonTranslator {
 			fileWriter.append(output);
 		}
 	}
-	private void printValue(Node node) throws IOException {
+	/**
+	 * @return text of a value leaf, or null if it prints nothing
+	 */
+	private static String valueText(Node node) {
 		Terminal t = node.getToken();
-		String value;
 		switch (t) {
 		case INTEGER:
-			value = node.getValue();
-			print(value);
-			break;
 		case STRING:
-			print(node.getSymbol().getValue());
-			break;
+			return node.getConstant().getText();
 		case COMMENT:
-			value = "#" + node.getValue().substring(2);
-			print(value);
-			break;
+			return "#" + node.getValue().substring(2);
 		case VARIABLE:
-			print(node.getSymbol().toString());
-			break;
+			return node.getSymbol().toString();
 		default:
-			printTerminal(t);
-			break;
+			return terminalText(t);
 		}
 	}
-	private void printTerminal(Terminal t) throws IOException {
+	/**
+	 * @return text of a terminal, or null if it prints nothing
+	 */
+	private static String terminalText(Terminal t) {
 		// Try Terminal
 		switch (t) {
 		case FUNCTION:
@@ -354,44 +503,32 @@ public class PythonTranslator {
 		case EMPTY:
 		case EOF:
 			// These handled by their wrapping NonTerminals
-			break;
+			return null;
 		case TRUE:
-			print("True");
-			break;
+			return "True";
 		case FALSE:
-			print("False");
-			break;
+			return "False";
 		case EQ:
-			print(" =");
-			break;
+			return " =";
 		case NEQ:
-			print(" ~=");
-			break;
+			return " ~=";
 		case AND:
-			print(" and");
-			break;
+			return " and";
 		case OR:
-			print(" or");
-			break;
+			return " or";
 		case NOT:
-			print("~");
-			break;
+			return "~";
 		case SLASH:
 			// For the moment, it is integer division
-			print("//");
-			break;
+			return "//";
 		case PAREN_OPEN:
-			print(" (");
-			break;
+			return " (";
 		case PAREN_CLOSE:
-			print(") ");
-			break;
+			return ") ";
 		case COMMA:
-			print(", ");
-			break;
+			return ", ";
 		default:
-			print(t.exactString);
-			break;
+			return t.exactString;
 		}
 	}
 	private void println(String output) throws IOException {
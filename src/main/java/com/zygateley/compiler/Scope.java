@@ -1,14 +1,39 @@
 package com.zygateley.compiler;
 
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 
 import com.zygateley.compiler.AssyLanguage.Register;
 
+/**
+ * Variables of one block, in stack order.
+ * 
+ * Variables are also hashed by Symbol,
+ * so a lookup does not scan the stack.
+ * The hash holds the most recent Variable of each Symbol,
+ * as a scan from the top of the stack would find it.
+ * 
+ * While assembling, every scope entered records its base,
+ * the stack slots below its own (those of the scopes it is within),
+ * so the stack offset of a variable is a subtraction
+ * instead of a walk up the scopes.
+ * 
+ * @author Zachary Gateley
+ *
+ */
 public class Scope implements Iterable<Variable> {
 	public final Scope parent;
 	// Contains all scope variables
 	private final ArrayDeque<Variable> stack;
+	// Most recent Variable in stack of each Symbol
+	private final HashMap<Symbol, Variable> variables;
+	// Variables in stack shadowed by a more recent Variable of the same Symbol
+	private int shadowed = 0;
+	// Stack slots below this scope while assembling (-1 if not entered)
+	private int base = -1;
 	private AssyLanguage language;
 	private Variable heapAllocationTable;
 	
@@ -23,9 +48,58 @@ public class Scope implements Iterable<Variable> {
 		this.parent = parent;
 		// Stack starting at stack pointer = stack
 		this.stack = new ArrayDeque<>();
+		this.variables = new HashMap<>();
 		this.language = language;
 	}
 	
+	/**
+	 * Record the base of this scope, as it is being entered while assembling.
+	 * Scopes it is within do not change size until it is left.
+	 */
+	void enter() {
+		if (this.parent == null) {
+			this.base = 0;
+		}
+		else {
+			this.base = (this.parent.base < 0) ? -1 : this.parent.base + this.parent.size();
+		}
+	}
+	
+	private void push(Variable variable) {
+		this.stack.push(variable);
+		if (variable.symbol != null && this.variables.put(variable.symbol, variable) != null) {
+			this.shadowed++;
+		}
+	}
+	
+	private Variable pop() {
+		Variable variable = this.stack.pop();
+		Symbol symbol = variable.symbol;
+		if (symbol != null && this.variables.get(symbol) == variable) {
+			Variable previous = null;
+			if (this.shadowed > 0) {
+				previous = this.findInStack(symbol);
+			}
+			if (previous == null) {
+				this.variables.remove(symbol);
+			}
+			else {
+				this.variables.put(symbol, previous);
+				this.shadowed--;
+			}
+		}
+		return variable;
+	}
+	
+	private Variable findInStack(Symbol symbol) {
+		for (Variable variable : this.stack) {
+			if (variable.symbol == symbol) {
+				return variable;
+			}
+		}
+		return null;
+	}
+	
 	public int size() {
 		return this.stack.size();
 	}
@@ -47,6 +121,9 @@ public class Scope implements Iterable<Variable> {
 			if (scope == this) {
 				return this.size() - variable.getStackIndex() - 1;
 			}
+			else if (this.base >= 0 && scope.base >= 0) {
+				return this.base + this.size() - scope.base - variable.getStackIndex() - 1;
+			}
 			else {
 				int offset = 0;
 				Scope nextScope = this;
@@ -61,12 +138,7 @@ public class Scope implements Iterable<Variable> {
 	}
 	
 	public Variable getVariable(Symbol symbol) {
-		for (Variable variable : this.stack) {
-			if (variable.symbol == symbol) {
-				return variable;
-			}
-		}
-		return null;
+		return this.variables.get(symbol);
 	}
 	
 	public void setLanguage(AssyLanguage language) {
@@ -77,23 +149,65 @@ public class Scope implements Iterable<Variable> {
 		Variable variable = new Variable(symbol);
 		variable.setScope(this);
 		variable.setStackIndex(this.stack.size());
-		this.stack.push(variable);
+		this.push(variable);
 		return variable;
 	}
 
+	/**
+	 * Remove the variables declared at or after a token,
+	 * as if parsing had not reached that token yet
+	 * 
+	 * @param position index in the TokenStream
+	 * @return removed variables, most recent first
+	 */
+	ArrayList<Variable> removeDeclaredFrom(int position) {
+		ArrayList<Variable> removed = new ArrayList<>();
+		while (!this.stack.isEmpty() && this.stack.peek().getDeclaredAt() >= position) {
+			removed.add(this.pop());
+		}
+		return removed;
+	}
+	
+	/**
+	 * Put back variables taken out by removeDeclaredFrom
+	 * 
+	 * @param removed variables, most recent first
+	 */
+	void restore(List<Variable> removed) {
+		for (int i = removed.size() - 1; i >= 0; i--) {
+			Variable variable = removed.get(i);
+			variable.setStackIndex(this.stack.size());
+			this.push(variable);
+		}
+	}
+	
+	/**
+	 * Copy of this scope's variables as they are now, with the same parent,
+	 * for lookups on another thread while this scope keeps growing
+	 * 
+	 * @return new scope holding the same Variables
+	 */
+	Scope snapshot() {
+		Scope snapshot = new Scope(this.language, this.parent);
+		snapshot.stack.addAll(this.stack);
+		snapshot.variables.putAll(this.variables);
+		snapshot.shadowed = this.shadowed;
+		return snapshot;
+	}
+
 	/**
 	 * Must adjust the stack pointer in your respective assy language
 	 * @param numberOfVars
 	 * @throws Exception
 	 */
 	public void popAnonymous(int numberOfVars) throws Exception {
-		for (int i = 0; i < numberOfVars; i++) this.stack.pop();
+		for (int i = 0; i < numberOfVars; i++) this.pop();
 	}
 	
 	public void pop(Register toRegister) throws Exception {
 		this.language.io.setComment("Anonymous value removed from stack");
 		this.language.assemblePop(toRegister, true);
-		this.stack.pop();
+		this.pop();
 	}
 	
 	public void pushAnonymous(Register fromRegister) throws Exception {
@@ -108,7 +222,7 @@ public class Scope implements Iterable<Variable> {
 	public void pushAnonymous(String value) throws Exception {
 		this.language.io.setComment("Anonymous value added to stack");
 		this.language.assemblePush(value, true);
-		this.stack.push(Variable.NONE);
+		this.push(Variable.NONE);
 	}
 	
 	public void pushVariable(Variable variable) throws Exception { 
@@ -121,7 +235,7 @@ public class Scope implements Iterable<Variable> {
 			}
 			variable.setStackIndex(this.stack.size());
 			variable.setScope(this);
-			this.stack.push(variable);
+			this.push(variable);
 		}
 	}
 	
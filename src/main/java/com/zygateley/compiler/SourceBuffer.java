@@ -0,0 +1,159 @@
+package com.zygateley.compiler;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+
+/**
+ * Source code held as a single buffer of UTF-8 bytes.
+ *
+ * Files are memory-mapped, so the Lexer scans the source
+ * by offset without copying it or going through a Reader.
+ * Looking ahead is simply reading at a larger offset.
+ * Text is only decoded into a String when a token needs it.
+ *
+ * @author Zachary Gateley
+ *
+ */
+public class SourceBuffer {
+	private final ByteBuffer buffer;
+	private final int length;
+
+	private SourceBuffer(ByteBuffer buffer) {
+		// Words are read with the first byte in the low bits
+		this.buffer = buffer.order(ByteOrder.LITTLE_ENDIAN);
+		this.length = buffer.limit();
+	}
+
+	/**
+	 * Memory-map a source file
+	 *
+	 * @param absolutePath file name, given as absolute from system root
+	 * @return SourceBuffer over the contents of the file
+	 * @throws IOException
+	 */
+	public static SourceBuffer map(String absolutePath) throws IOException {
+		try (FileChannel channel = FileChannel.open(Paths.get(absolutePath), StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException("Source file is too large: " + absolutePath);
+			}
+			// The mapping remains valid after the channel is closed
+			return new SourceBuffer(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+		}
+	}
+
+	/**
+	 * @param source source code
+	 * @return SourceBuffer over the UTF-8 encoding of source
+	 */
+	public static SourceBuffer wrap(String source) {
+		return new SourceBuffer(ByteBuffer.wrap(source.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	/**
+	 * Apply a text edit, as made in an editor
+	 *
+	 * @param offset byte offset of the edit
+	 * @param removedLength number of bytes removed at offset
+	 * @param inserted text inserted at offset
+	 * @return SourceBuffer over the edited source
+	 */
+	public SourceBuffer edit(int offset, int removedLength, String inserted) {
+		byte[] insertedBytes = inserted.getBytes(StandardCharsets.UTF_8);
+		int tail = this.length - offset - removedLength;
+		byte[] edited = new byte[offset + insertedBytes.length + tail];
+		this.buffer.get(0, edited, 0, offset);
+		System.arraycopy(insertedBytes, 0, edited, offset, insertedBytes.length);
+		this.buffer.get(offset + removedLength, edited, offset + insertedBytes.length, tail);
+		return new SourceBuffer(ByteBuffer.wrap(edited));
+	}
+
+	/**
+	 * @return length of the source in bytes
+	 */
+	public int length() {
+		return this.length;
+	}
+
+	/**
+	 * @param offset byte offset into the source
+	 * @return byte at offset (signed, non-ASCII bytes are negative)
+	 */
+	public byte byteAt(int offset) {
+		return this.buffer.get(offset);
+	}
+
+	/**
+	 * @param offset byte offset into the source, at least 8 bytes before its end
+	 * @return 8 bytes starting at offset, the byte at offset in the lowest bits
+	 */
+	public long wordAt(int offset) {
+		return this.buffer.getLong(offset);
+	}
+
+	/**
+	 * Decode the UTF-8 sequence starting at offset.
+	 * Malformed sequences decode to U+FFFD, one byte at a time.
+	 *
+	 * @param offset byte offset of a sequence lead byte
+	 * @return code point at offset
+	 */
+	public int codePointAt(int offset) {
+		int lead = this.buffer.get(offset) & 0xFF;
+		if (lead < 0x80) {
+			return lead;
+		}
+		int width = sequenceWidth(offset, lead);
+		if (width == 1) {
+			return 0xFFFD;
+		}
+		int codePoint = lead & (0xFF >> (width + 1));
+		for (int i = 1; i < width; i++) {
+			codePoint = (codePoint << 6) | (this.buffer.get(offset + i) & 0x3F);
+		}
+		return codePoint;
+	}
+
+	/**
+	 * @param offset byte offset of a sequence lead byte
+	 * @return number of bytes taken by the code point at offset
+	 */
+	public int codePointWidth(int offset) {
+		int lead = this.buffer.get(offset) & 0xFF;
+		return (lead < 0x80) ? 1 : sequenceWidth(offset, lead);
+	}
+
+	private int sequenceWidth(int offset, int lead) {
+		int width;
+		if (lead >= 0xC2 && lead <= 0xDF) width = 2;
+		else if (lead >= 0xE0 && lead <= 0xEF) width = 3;
+		else if (lead >= 0xF0 && lead <= 0xF4) width = 4;
+		else return 1;
+		if (offset + width > this.length) {
+			return 1;
+		}
+		for (int i = 1; i < width; i++) {
+			if ((this.buffer.get(offset + i) & 0xC0) != 0x80) {
+				return 1;
+			}
+		}
+		return width;
+	}
+
+	/**
+	 * Decode part of the source
+	 *
+	 * @param offset byte offset of the first byte
+	 * @param length number of bytes
+	 * @return decoded text
+	 */
+	public String getString(int offset, int length) {
+		byte[] bytes = new byte[length];
+		this.buffer.get(offset, bytes, 0, length);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
@@ -1,24 +1,39 @@
 package com.zygateley.compiler;
 
+import java.nio.charset.StandardCharsets;
+
 public class StringUtils {
 	/**
-	 * Performs single unescape on all escape characters
-	 * for destination assembly
+	 * Data of a decoded string for destination assembly,
+	 * zero-terminated. Text goes in quotes,
+	 * control characters as numbers and quotes as '"'
+	 * e.g. "Say ",'"',"hi",'"',10,0
 	 * 
-	 * @param input 
-	 * @return unescaped string
+	 * @param bytes decoded string
+	 * @return assembly data
 	 */
-	public static String unescapeAssemblyString(String input) {
-		if (!(input instanceof String)) {
-			return "";
+	public static String toAssemblyString(byte[] bytes) {
+		StringBuilder output = new StringBuilder(bytes.length + 4);
+		int runStart = 0;
+		for (int i = 0; i <= bytes.length; i++) {
+			int b = (i < bytes.length) ? (bytes[i] & 0xFF) : 0;
+			if (b >= 0x20 && b != '"') {
+				continue;
+			}
+			if (i > runStart) {
+				output.append('"').append(new String(bytes, runStart, i - runStart, StandardCharsets.UTF_8)).append("\",");
+			}
+			if (b == '"') {
+				output.append("'\"',");
+			}
+			else if (i < bytes.length) {
+				output.append(b).append(',');
+			}
+			runStart = i + 1;
 		}
-		return input
-				.replaceAll("\\\\\"", "\",'\"',\"")
-				.replaceAll("\0", "\",0,\"")
-				.replaceAll("\\\\n", "\",10,\"")
-				.replaceAll("\\\\f", "\",12,\"")
-				.replaceAll("\\\\r", "\",13,\"")
-				.replaceAll("\"\",", "");
+		// Terminator
+		output.append('0');
+		return output.toString();
 	}
 	
 	/**
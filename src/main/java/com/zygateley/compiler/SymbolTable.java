@@ -3,6 +3,8 @@ package com.zygateley.compiler;
 import java.util.*;
 
 class Symbol {
+	// Index in SymbolTable
+	private int id = -1;
 	private String name;
 	private final String value;
 	private TypeSystem type;
@@ -22,6 +24,14 @@ class Symbol {
 		this.type = type;
 	}
 	
+	public int getId() {
+		return this.id;
+	}
+	
+	void setId(int id) {
+		this.id = id;
+	}
+	
 	public String getName() {
 		return this.name;
 	}
@@ -79,6 +89,10 @@ class Symbol {
 	public void addParameter(TypeSystem type) {
 		this.parameters.add(type);
 	}
+	
+	public void clearParameters() {
+		this.parameters.clear();
+	}
 
 	
 	/**
@@ -133,10 +147,29 @@ class Symbol {
 }
 
 public class SymbolTable implements Iterable<Symbol> {
-	private ArrayList<Symbol> symbols;
+	// Symbols by id
+	// When the lexer runs on its own thread, the parser reads symbols
+	// while the lexer is still inserting. Growing the table publishes
+	// a new array, so a reader always sees a fully copied table.
+	private volatile Symbol[] symbols;
+	private int size = 0;
+	// Key of each symbol by id, fixed when it is inserted:
+	// name of a variable (type null) or value and type of a literal
+	private String[] keys;
+	private TypeSystem[] keyTypes;
+	private int[] hashes;
+	// Open addressing index from key to symbol id + 1 (0 is empty)
+	// Only used by the inserting thread
+	private int[] index;
+	// Literals of the same program
+	private final ConstantPool constants = new ConstantPool();
 	
 	public SymbolTable() {
-		this.symbols = new ArrayList<Symbol>();
+		this.symbols = new Symbol[16];
+		this.keys = new String[16];
+		this.keyTypes = new TypeSystem[16];
+		this.hashes = new int[16];
+		this.index = new int[32];
 	}
 	
 
@@ -147,71 +180,155 @@ public class SymbolTable implements Iterable<Symbol> {
 	 * symbol table, not scope or type
 	 * 
 	 * @param name String name of new variable
+	 * @return the symbol with this name, new or not
 	 */
 	public Symbol insert(String name) {
-		Symbol newSymbol = new Symbol(name);
-		return __insert__(newSymbol);
+		int hash = hash(name, null);
+		int slot = this.slotOf(hash, name, null);
+		int entry = this.index[slot];
+		if (entry != 0) {
+			return this.symbols[entry - 1];
+		}
+		return this.add(slot, hash, new Symbol(name), name, null);
 	}
 	
 	/**
 	 * insert
 	 * 
-	 * Starting off simple. Just have names in the 
-	 * symbol table, not scope or type
+	 * Literal symbol
 	 * 
-	 * @param name String name of new variable
+	 * @param value String value of the literal
+	 * @param type TypeSystem type of the literal
+	 * @return the symbol with this value and type, new or not
 	 */
 	public Symbol insert(String value, TypeSystem type) {
-		Symbol newSymbol = new Symbol(value, type);
-		return __insert__(newSymbol);
+		int hash = hash(value, type);
+		int slot = this.slotOf(hash, value, type);
+		int entry = this.index[slot];
+		if (entry != 0) {
+			return this.symbols[entry - 1];
+		}
+		return this.add(slot, hash, new Symbol(value, type), value, type);
 	}
 	
 	public Symbol __insert__(Symbol s) {
-		if (!this.contains(s)) {
-			this.symbols.add(s);
-			return s;
+		String key = (s.getValue() != null) ? s.getValue() : s.getName();
+		TypeSystem keyType = (s.getValue() != null) ? s.getType() : null;
+		int hash = hash(key, keyType);
+		int slot = this.slotOf(hash, key, keyType);
+		int entry = this.index[slot];
+		if (entry != 0) {
+			return this.symbols[entry - 1];
 		}
-		else {
-			return this.find(s);
+		return this.add(slot, hash, s, key, keyType);
+	}
+	
+	private Symbol add(int slot, int hash, Symbol s, String key, TypeSystem keyType) {
+		Symbol[] symbols = this.symbols;
+		if (this.size == symbols.length) {
+			int capacity = this.size * 2;
+			this.keys = Arrays.copyOf(this.keys, capacity);
+			this.keyTypes = Arrays.copyOf(this.keyTypes, capacity);
+			this.hashes = Arrays.copyOf(this.hashes, capacity);
+			symbols = Arrays.copyOf(symbols, capacity);
+			this.symbols = symbols;
+		}
+		int id = this.size;
+		s.setId(id);
+		this.keys[id] = key;
+		this.keyTypes[id] = keyType;
+		this.hashes[id] = hash;
+		symbols[id] = s;
+		this.size++;
+		this.index[slot] = id + 1;
+		if (this.size * 2 > this.index.length) {
+			this.rehash();
 		}
+		return s;
 	}
 	
 	/**
-	 * find
-	 * 
-	 * Find and return the symbol in the symbol table.
-	 * If not in symbol table, return null.
-	 * 
-	 * @param Symbol find duplicate of this symbol in the table
+	 * @return slot of the key in the index, or the empty slot where it belongs
 	 */
-	public Symbol find(Symbol s) {
-		for (Symbol symbol : this.symbols) {
-			if (symbol.equals(s)) {
-				return symbol;
+	private int slotOf(int hash, String key, TypeSystem keyType) {
+		int[] index = this.index;
+		int mask = index.length - 1;
+		int slot = hash & mask;
+		while (true) {
+			int entry = index[slot];
+			if (entry == 0) {
+				return slot;
+			}
+			int id = entry - 1;
+			if (this.hashes[id] == hash && this.keyTypes[id] == keyType && this.keys[id].equals(key)) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+	
+	private void rehash() {
+		int[] index = new int[this.index.length * 2];
+		int mask = index.length - 1;
+		for (int id = 0; id < this.size; id++) {
+			int slot = this.hashes[id] & mask;
+			while (index[slot] != 0) {
+				slot = (slot + 1) & mask;
 			}
+			index[slot] = id + 1;
 		}
-		return null;
+		this.index = index;
+	}
+	
+	private static int hash(String key, TypeSystem keyType) {
+		int h = key.hashCode() * 31 + (keyType == null ? 0 : keyType.ordinal() + 1);
+		// Spread high bits into the low bits used by the index
+		h *= 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+	
+	/**
+	 * @param id Symbol id (index in this table)
+	 * @return Symbol with this id
+	 */
+	public Symbol get(int id) {
+		return this.symbols[id];
+	}
+	
+	/**
+	 * @return number of symbols in this table
+	 */
+	public int size() {
+		return this.size;
+	}
+	
+	/**
+	 * @return pool of the literals found with these symbols
+	 */
+	public ConstantPool getConstantPool() {
+		return this.constants;
 	}
 	
 	/**
-	 * contains
+	 * find
 	 * 
-	 * Determine whether symbol exists in the symbol
-	 * table.
+	 * Find and return the symbol in the symbol table.
+	 * If not in symbol table, return null.
 	 * 
-	 * @param comparator symbol to check existence
+	 * @param Symbol find duplicate of this symbol in the table
 	 */
-	private boolean contains(Symbol comparator) {
-		for (Symbol symbol : this.symbols) {
-			if (symbol.equals(comparator)) {
-				return true;
-			}
+	public Symbol find(Symbol s) {
+		String key = (s.getValue() != null) ? s.getValue() : s.getName();
+		TypeSystem keyType = (s.getValue() != null) ? s.getType() : null;
+		if (key == null) {
+			return null;
 		}
-		return false;
+		int entry = this.index[this.slotOf(hash(key, keyType), key, keyType)];
+		return (entry == 0) ? null : this.symbols[entry - 1];
 	}
 	
 	@Override
 	public Iterator<Symbol> iterator() {
-		return this.symbols.iterator();
+		return Arrays.asList(this.symbols).subList(0, this.size).iterator();
 	}
 }
@@ -5,11 +5,14 @@ package com.zygateley.compiler;
  * and may contain a symbol or a value
  * symbol: item in SymbolTable
  * value:  primitive literal or Terminal.exactString 
+ * 
+ * TokenStream stores its tokens as arrays,
+ * a Token is a snapshot of one entry built on demand (e.g. for logging).
+ * Changing a Token does not change the stream.
  * @author Zachary Gateley
  *
  */
 public class Token {
-	// Allow parser to change token for negation
 	public Terminal token;
 	public final Symbol symbol;
 	public final String value;
@@ -0,0 +1,183 @@
+package com.zygateley.compiler;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded single-producer/single-consumer queue of tokens.
+ *
+ * Hands tokens from a Lexer running on its own thread
+ * to the TokenStream read by the Parser.
+ * Tokens are held as primitives in a fixed array of slots,
+ * so nothing is allocated per token:
+ * 		terminal	Terminal ordinal
+ * 		start		byte offset of the token in the source
+ * 		length		byte length of the token in the source
+ * 		symbol		SymbolTable id, ConstantPool id for literals (-1 if none)
+ *
+ * The producer only writes tail and the consumer only writes head.
+ * Everything written before a token is published (including
+ * its Symbol or Constant) is visible to the consumer.
+ * Either side spins briefly, then parks, when it has to wait.
+ *
+ * @author Zachary Gateley
+ *
+ */
+final class TokenRing implements TokenSink {
+	public static final int DEFAULT_CAPACITY = 1 << 12;
+	private static final int SLOT_WIDTH = 4;
+	private static final int SPINS = 1 << 8;
+
+	private final int capacity;
+	private final int mask;
+	private final int[] slots;
+
+	// Next token to be written, written by the producer only
+	private volatile long tail = 0;
+	// Next token to be read, written by the consumer only
+	private volatile long head = 0;
+	private volatile boolean closed = false;
+	private volatile Throwable failure = null;
+
+	// Threads parked waiting on the other side
+	private volatile Thread waitingProducer = null;
+	private volatile Thread waitingConsumer = null;
+
+	/**
+	 * @param capacity maximum number of tokens in flight, rounded up to a power of two
+	 */
+	public TokenRing(int capacity) {
+		int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+		this.capacity = size;
+		this.mask = size - 1;
+		this.slots = new int[size * SLOT_WIDTH];
+	}
+
+
+	/****************
+	 * Producer
+	 ****************/
+
+	/**
+	 * Publish a token, waiting while the ring is full
+	 */
+	@Override
+	public void write(Terminal token, int offset, int length, int symbol) {
+		long t = this.tail;
+		if (t - this.head == this.capacity) {
+			awaitSpace(t);
+		}
+		int slot = (int) (t & this.mask) * SLOT_WIDTH;
+		this.slots[slot] = token.ordinal();
+		this.slots[slot + 1] = offset;
+		this.slots[slot + 2] = length;
+		this.slots[slot + 3] = symbol;
+		this.tail = t + 1;
+		signal(this.waitingConsumer);
+	}
+
+	private void awaitSpace(long t) {
+		int spins = 0;
+		while (t - this.head == this.capacity) {
+			if (spins++ < SPINS) {
+				Thread.onSpinWait();
+				continue;
+			}
+			this.waitingProducer = Thread.currentThread();
+			if (t - this.head == this.capacity) {
+				LockSupport.park(this);
+			}
+			this.waitingProducer = null;
+		}
+	}
+
+	/**
+	 * No more tokens will be written
+	 */
+	public void close() {
+		this.closed = true;
+		signal(this.waitingConsumer);
+	}
+
+	/**
+	 * No more tokens will be written because the producer failed
+	 *
+	 * @param failure cause, rethrown to the consumer by getFailure
+	 */
+	public void fail(Throwable failure) {
+		this.failure = failure;
+		close();
+	}
+
+
+	/****************
+	 * Consumer
+	 ****************/
+
+	/**
+	 * Wait until tokens are available or the ring is closed
+	 *
+	 * @return number of tokens that can be read, 0 once the ring is closed and drained
+	 */
+	public int await() {
+		long h = this.head;
+		int spins = 0;
+		while (this.tail == h) {
+			if (this.closed) {
+				// Tokens may have been published just before closing
+				return (int) (this.tail - h);
+			}
+			if (spins++ < SPINS) {
+				Thread.onSpinWait();
+				continue;
+			}
+			this.waitingConsumer = Thread.currentThread();
+			if (this.tail == h && !this.closed) {
+				LockSupport.park(this);
+			}
+			this.waitingConsumer = null;
+		}
+		return (int) (this.tail - h);
+	}
+
+	/**
+	 * @param k index of an available token, relative to the oldest one
+	 */
+	public int getTerminal(int k) {
+		return this.slots[slotOf(k)];
+	}
+	public int getStart(int k) {
+		return this.slots[slotOf(k) + 1];
+	}
+	public int getLength(int k) {
+		return this.slots[slotOf(k) + 2];
+	}
+	public int getSymbol(int k) {
+		return this.slots[slotOf(k) + 3];
+	}
+	private int slotOf(int k) {
+		return (int) ((this.head + k) & this.mask) * SLOT_WIDTH;
+	}
+
+	/**
+	 * Free the oldest tokens for the producer
+	 *
+	 * @param count number of tokens that have been read
+	 */
+	public void release(int count) {
+		this.head += count;
+		signal(this.waitingProducer);
+	}
+
+	/**
+	 * @return exception that stopped the producer, null if none
+	 */
+	public Throwable getFailure() {
+		return this.failure;
+	}
+
+	private static void signal(Thread waiting) {
+		if (waiting != null) {
+			LockSupport.unpark(waiting);
+		}
+	}
+}
@@ -0,0 +1,16 @@
+package com.zygateley.compiler;
+
+/**
+ * Receives tokens from the Lexer
+ */
+interface TokenSink {
+	/**
+	 * Append a token
+	 *
+	 * @param token Terminal of the token
+	 * @param offset byte offset of the token text in the source
+	 * @param length byte length of the token text
+	 * @param symbol id in SymbolTable, id in its ConstantPool for literals, or -1
+	 */
+	public void write(Terminal token, int offset, int length, int symbol);
+}
@@ -0,0 +1,117 @@
+package com.zygateley.compiler;
+
+/**
+ * Storage of the token records of a TokenStream, by index.
+ * Every record holds
+ * 		terminal	Terminal ordinal
+ * 		start		byte offset of the token in the source
+ * 		length		byte length of the token in the source
+ * 		symbol		SymbolTable id, ConstantPool id for literals (-1 if none)
+ * 		partner		index of the other end of a group (-1 if none)
+ * 		flags		parse-time marks
+ * and, during parsing, a pointer to the syntax subtree of a group.
+ *
+ * HeapTokenStore keeps the records in arrays on the heap.
+ * OffHeapTokenStore keeps them outside of it, for sources
+ * with more tokens than the heap can hold.
+ *
+ * @author Zachary Gateley
+ *
+ */
+abstract class TokenStore {
+	// Terminals whose symbol is a ConstantPool id
+	static final boolean[] isLiteral;
+	static {
+		Terminal[] terminals = Terminal.values();
+		isLiteral = new boolean[terminals.length];
+		for (Terminal t : terminals) {
+			isLiteral[t.ordinal()] = (t.type != null);
+		}
+	}
+
+	/**
+	 * @return number of records that can be stored without growing
+	 */
+	abstract int capacity();
+
+	/**
+	 * Make room for at least this many records
+	 */
+	abstract void ensureCapacity(int capacity);
+
+	/**
+	 * @return empty store of the same kind, for part of the same stream
+	 */
+	abstract TokenStore newStore();
+
+	abstract int getTerminal(int i);
+	abstract int getStart(int i);
+	abstract int getLength(int i);
+	abstract int getSymbol(int i);
+	abstract int getPartner(int i);
+	abstract byte getFlags(int i);
+	abstract Node getSyntaxSubtree(int i);
+
+	/**
+	 * Write a new record, without parse-time marks
+	 */
+	abstract void set(int i, int terminal, int start, int length, int symbol);
+	abstract void setStart(int i, int start);
+	abstract void setPartner(int i, int partner);
+	abstract void setFlags(int i, byte flags);
+	abstract void setSyntaxSubtree(int i, Node subtree);
+
+	/**
+	 * Copy records within this store (the ranges may overlap)
+	 *
+	 * @param from first record copied
+	 * @param to where the first record is copied to
+	 * @param count number of records
+	 */
+	abstract void move(int from, int to, int count);
+
+	/**
+	 * Forget the parse-time marks of records
+	 *
+	 * @param from first record
+	 * @param to exclusive end
+	 */
+	abstract void clearParseState(int from, int to);
+
+	/**
+	 * Free the records, the store is not used again
+	 */
+	void release() {
+	}
+
+	/**
+	 * @return whether the parse-time marks of different records
+	 * 		may be read and written from different threads at once
+	 * 		(while no records are added)
+	 */
+	boolean isConcurrent() {
+		return false;
+	}
+
+	/**
+	 * Copy the first records of another store, without their parse-time marks
+	 *
+	 * @param part store copied from
+	 * @param count number of records
+	 * @param to where the first record is copied to
+	 * @param symbolIds id in this store's SymbolTable of each symbol id used by part, null if the same
+	 * @param constantIds id in this store's ConstantPool of each constant id used by part, null if the same
+	 */
+	void copy(TokenStore part, int count, int to, int[] symbolIds, int[] constantIds) {
+		for (int k = 0; k < count; k++) {
+			int terminal = part.getTerminal(k);
+			int id = part.getSymbol(k);
+			int[] ids = isLiteral[terminal] ? constantIds : symbolIds;
+			if (id >= 0 && ids != null) {
+				id = ids[id];
+			}
+			this.set(to + k, terminal, part.getStart(k), part.getLength(k), id);
+		}
+		this.clearParseState(to, to + count);
+	}
+}
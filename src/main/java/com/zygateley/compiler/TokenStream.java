@@ -3,69 +3,444 @@ package com.zygateley.compiler;
 import java.util.*;
 
 /**
- * Stream of StreamItems built by lexer and used by parser.
+ * Stream of tokens built by lexer and used by parser.
  * leftIndex is inclusive
  * rightIndex is exclusive
- * 
+ *
+ * Tokens are stored as records in a TokenStore rather than as objects:
+ * 		terminal	Terminal ordinal
+ * 		start		byte offset of the token in the source
+ * 		length		byte length of the token in the source
+ * 		symbol		SymbolTable id, ConstantPool id for literals (-1 if none)
+ * 		partner		for a group opener, index of its closer and vice versa (-1 if none)
+ * 		flags		parse-time marks (see FLAG_*)
+ * The records are on the heap unless the stream is made with offHeap.
+ * Token text is read from the source only when it is needed.
+ * Token objects are built on demand, for logging.
+ *
+ * In streaming mode (see lexConcurrently), the Lexer runs on its own
+ * thread and tokens are pulled in as the Parser reaches them.
+ * The end of the stream is open (OPEN_END) until the Lexer finishes,
+ * so a read only waits when it needs a token not lexed yet.
+ *
  * @author Zachary Gateley
  *
  */
-public class TokenStream {
-	
-	private ArrayList<Token> tokens;
+public class TokenStream implements TokenSink {
+	// Right index of a stream whose end is not known yet
+	public static final int OPEN_END = Integer.MAX_VALUE;
+
+	// Parse-time flags
+	private static final byte FLAG_NEGATED = 1;
+	private static final byte FLAG_ERASED = 2;
+	private static final byte FLAG_GROUP_OPEN = 4;
+	private static final byte FLAG_GROUP_CLOSE = 8;
+
+	private static final Terminal[] terminals = Terminal.values();
+
+	// Replaced after an edit (see replace)
+	private SourceBuffer source;
+	private final SymbolTable symbolTable;
+
+	private final TokenStore store;
+	private int size = 0;
+
 	private int leftIndex = 0;
 	private int rightIndexExcl = 0;
-	 
-	public TokenStream() {
-		this.tokens = new ArrayList<Token>();
+
+	// Streaming mode only
+	private TokenRing ring;
+	private Thread lexerThread;
+	// Whether every token has been received
+	private boolean complete = true;
+
+	/**
+	 * @param source source the tokens are read from
+	 * @param symbolTable table holding the symbols of the tokens
+	 */
+	public TokenStream(SourceBuffer source, SymbolTable symbolTable) {
+		this(source, symbolTable, new HeapTokenStore());
+	}
+	TokenStream(SourceBuffer source, SymbolTable symbolTable, TokenStore store) {
+		this.source = source;
+		this.symbolTable = symbolTable;
+		this.store = store;
+	}
+
+	/**
+	 * Stream keeping its tokens outside of the heap,
+	 * for sources with more tokens than the heap can hold.
+	 * Past spillThreshold bytes, tokens are kept in a memory-mapped temporary file.
+	 *
+	 * @param source source the tokens are read from
+	 * @param symbolTable table holding the symbols of the tokens
+	 */
+	public static TokenStream offHeap(SourceBuffer source, SymbolTable symbolTable) {
+		return offHeap(source, symbolTable, OffHeapTokenStore.DEFAULT_SPILL_THRESHOLD);
+	}
+	public static TokenStream offHeap(SourceBuffer source, SymbolTable symbolTable, long spillThreshold) {
+		return new TokenStream(source, symbolTable, new OffHeapTokenStore(spillThreshold));
+	}
+
+	/**
+	 * @param symbolTable table holding the symbols of the part
+	 * @return empty stream storing its tokens the same way as this one,
+	 * 		for part of the same source
+	 */
+	TokenStream newPart(SymbolTable symbolTable) {
+		return new TokenStream(this.source, symbolTable, this.store.newStore());
+	}
+
+	/**
+	 * @return stream over the same tokens with a cursor of its own,
+	 * 		starting where this one is, so that different ranges
+	 * 		can be parsed on different threads;
+	 * 		null if the tokens cannot be shared that way
+	 * 		(the Lexer is still running, or the store is not safe to share)
+	 */
+	TokenStream newCursor() {
+		if (!this.complete || this.rightIndexExcl == OPEN_END || !this.store.isConcurrent()) {
+			return null;
+		}
+		TokenStream cursor = new TokenStream(this.source, this.symbolTable, this.store);
+		cursor.size = this.size;
+		cursor.leftIndex = this.leftIndex;
+		cursor.rightIndexExcl = this.rightIndexExcl;
+		return cursor;
+	}
+
+	/**
+	 * Append a token
+	 *
+	 * @param token Terminal of the token
+	 * @param offset byte offset of the token text in the source
+	 * @param length byte length of the token text
+	 * @param symbol id in SymbolTable, id in its ConstantPool for literals, or -1
+	 */
+	@Override
+	public void write(Terminal token, int offset, int length, int symbol) {
+		append(token.ordinal(), offset, length, symbol);
+		this.rightIndexExcl++;
+	}
+
+	private void append(int token, int offset, int length, int symbol) {
+		if (this.size == this.store.capacity()) {
+			this.store.ensureCapacity(this.size + 1);
+		}
+		this.store.set(this.size++, token, offset, length, symbol);
+	}
+
+	/**
+	 * Append every token of another stream
+	 * lexed from part of the same source
+	 *
+	 * @param part stream to append
+	 * @param symbolIds id in this stream's SymbolTable of each symbol id used by part
+	 * @param constantIds id in this stream's ConstantPool of each constant id used by part
+	 */
+	void append(TokenStream part, int[] symbolIds, int[] constantIds) {
+		int count = part.size;
+		this.store.ensureCapacity(this.size + count);
+		this.store.copy(part.store, count, this.size, symbolIds, constantIds);
+		this.size += count;
+		this.rightIndexExcl += count;
+	}
+
+
+	/****************
+	 * Edits
+	 ****************/
+
+	/**
+	 * Tokens replaced in a TokenStream by a source edit:
+	 * [from, oldTo) before the edit became [from, newTo)
+	 */
+	public static class Edit {
+		public final int from;
+		public final int oldTo;
+		public final int newTo;
+
+		Edit(int from, int oldTo, int newTo) {
+			this.from = from;
+			this.oldTo = oldTo;
+			this.newTo = newTo;
+		}
+
+		/**
+		 * @return change in the index of every token at or after oldTo
+		 */
+		public int getDelta() {
+			return this.newTo - this.oldTo;
+		}
+
+		/**
+		 * @return whether the tokens are the same as before the edit
+		 */
+		public boolean isEmpty() {
+			return this.from == this.oldTo && this.oldTo == this.newTo;
+		}
+
+		/**
+		 * @param position index of a token before the edit
+		 * @return index of the same token after the edit
+		 */
+		public int shift(int position) {
+			return (position >= this.oldTo) ? position + this.getDelta() : position;
+		}
+	}
+
+	/**
+	 * Replace tokens after a source edit.
+	 * Tokens after the replaced range are moved by byteDelta in the source.
+	 * Parse-time marks are kept for every token but the new ones.
+	 *
+	 * @param from first token replaced
+	 * @param to exclusive end of the replaced tokens
+	 * @param part replacement tokens, lexed from source
+	 * @param source edited source
+	 * @param byteDelta change in length of the source
+	 * @return replaced range
+	 */
+	Edit replace(int from, int to, TokenStream part, SourceBuffer source, int byteDelta) {
+		int count = part.size;
+		int tail = this.size - to;
+		int newSize = from + count + tail;
+		this.store.ensureCapacity(newSize);
+		int moveTo = from + count;
+		this.store.move(to, moveTo, tail);
+		int delta = moveTo - to;
+		for (int i = moveTo; i < newSize; i++) {
+			this.store.setStart(i, this.store.getStart(i) + byteDelta);
+			int partner = this.store.getPartner(i);
+			if (partner >= to) {
+				this.store.setPartner(i, partner + delta);
+			}
+		}
+
+		this.store.copy(part.store, count, from, null, null);
+		this.size = newSize;
+
+		this.source = source;
+		this.leftIndex = 0;
+		this.rightIndexExcl = newSize;
+		return new Edit(from, to, moveTo);
+	}
+
+	/**
+	 * Forget the parse-time marks of tokens, before parsing them again
+	 *
+	 * @param from first token
+	 * @param to exclusive end
+	 */
+	void clearParseState(int from, int to) {
+		this.store.clearParseState(from, to);
+	}
+
+	/**
+	 * @param offset byte offset in the source
+	 * @param fromIndex first token searched
+	 * @return index of the token starting at offset or -1 if none does
+	 */
+	int indexOfStart(int offset, int fromIndex) {
+		int low = fromIndex, high = this.size - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int start = this.store.getStart(mid);
+			if (start < offset) low = mid + 1;
+			else if (start > offset) high = mid - 1;
+			else return mid;
+		}
+		return -1;
+	}
+
+	/**
+	 * Free the tokens of a stream that is not used again
+	 */
+	void release() {
+		this.store.release();
+		this.size = 0;
+		this.leftIndex = 0;
+		this.rightIndexExcl = 0;
+	}
+
+	/**
+	 * @return number of tokens, wherever the cursor is
+	 */
+	int size() {
+		return this.size;
+	}
+
+	SymbolTable getSymbolTable() {
+		return this.symbolTable;
+	}
+
+
+	/****************
+	 * Streaming mode
+	 ****************/
+
+	/**
+	 * Lex the source into this stream on a separate thread.
+	 * Tokens are handed over through a bounded TokenRing,
+	 * and are pulled into the stream as the Parser reaches them.
+	 * The Lexer does not log in this mode.
+	 */
+	public void lexConcurrently() {
+		this.lexConcurrently(TokenRing.DEFAULT_CAPACITY);
+	}
+	public void lexConcurrently(int ringCapacity) {
+		final TokenRing ring = new TokenRing(ringCapacity);
+		final Lexer lexer = new Lexer(this.source, ring, this.symbolTable);
+		this.ring = ring;
+		this.complete = false;
+		this.rightIndexExcl = OPEN_END;
+		this.lexerThread = new Thread(() -> {
+			try {
+				lexer.lex();
+				ring.close();
+			}
+			catch (Throwable e) {
+				ring.fail(e);
+			}
+		}, "Lexer");
+		this.lexerThread.setDaemon(true);
+		this.lexerThread.start();
+	}
+
+	/**
+	 * Wait for the Lexer to finish, taking in all remaining tokens.
+	 * Does nothing if the stream was not lexed concurrently.
+	 *
+	 * @throws Exception the error that stopped the Lexer, if any
+	 */
+	public void awaitLexer() throws Exception {
+		if (this.ring == null) {
+			return;
+		}
+		this.fill(OPEN_END);
+		this.lexerThread.join();
+		Throwable failure = this.ring.getFailure();
+		if (failure instanceof Exception) {
+			throw (Exception) failure;
+		}
+		if (failure instanceof Error) {
+			throw (Error) failure;
+		}
+	}
+
+	/**
+	 * Take in tokens from the Lexer until position has been lexed
+	 *
+	 * @param position index of the token needed
+	 * @return whether there is a token at position
+	 */
+	private boolean fill(int position) {
+		while (position >= this.size && !this.complete) {
+			int count = this.ring.await();
+			if (count == 0) {
+				this.complete = true;
+				break;
+			}
+			for (int k = 0; k < count; k++) {
+				append(this.ring.getTerminal(k), this.ring.getStart(k), this.ring.getLength(k), this.ring.getSymbol(k));
+			}
+			this.ring.release(count);
+		}
+		return position < this.size;
 	}
-	 
+
+	/**
+	 * @return right index, waiting for the Lexer to finish if the end is still open
+	 */
+	private int endIndexExcl() {
+		if (this.rightIndexExcl != OPEN_END) {
+			return this.rightIndexExcl;
+		}
+		this.fill(OPEN_END);
+		return this.size;
+	}
+
+
+	/**
+	 * Reading from the right requires a known end
+	 */
+	private void closeEnd() {
+		if (this.rightIndexExcl == OPEN_END) {
+			this.rightIndexExcl = this.endIndexExcl();
+		}
+	}
+
+
+	/****************
+	 * Cursor
+	 ****************/
+
 	public Token peekLeft() {
 	    if (this.isEmpty()) {
 	        return Token.EMPTY;
 	    }
-	    return this.tokens.get(this.leftIndex);
+	    return this.peekAt(this.leftIndex);
 	}
 	public Token peekRight() {
+		this.closeEnd();
 		if (this.isEmpty()) {
 			return Token.EMPTY;
 		}
-		return this.tokens.get(this.rightIndexExcl - 1);
+		return this.peekAt(this.rightIndexExcl - 1);
 	}
-	
-	public void write(Terminal token, Symbol symbol, String value) {
-		this.tokens.add(new Token(token, symbol, value));
-		this.rightIndexExcl++;
+	public Terminal peekLeftTerminal() {
+		return this.isEmpty() ? Terminal.EMPTY : this.getTerminal(this.leftIndex);
 	}
-	public void writeRight(Token si) {
-		this.tokens.add(si);
-		this.rightIndexExcl++;
+	public Terminal peekRightTerminal() {
+		this.closeEnd();
+		return this.isEmpty() ? Terminal.EMPTY : this.getTerminal(this.rightIndexExcl - 1);
 	}
-	 
+
 	public Token readLeft() {
 		boolean isEmpty = this.isEmpty();
 	    Token next = this.peekLeft();
 	    if (!isEmpty) this.leftIndex++;
 	    return next;
 	}
-	
+	/**
+	 * @return index of the consumed token or -1 if the stream is empty
+	 */
+	public int readLeftIndex() {
+		return this.isEmpty() ? -1 : this.leftIndex++;
+	}
+
 	public Token readRight() {
 		boolean isEmpty = this.isEmpty();
 		Token prev = this.peekRight();
 		if (!isEmpty) this.rightIndexExcl--;
 		return prev;
 	}
-	
+	/**
+	 * @return index of the consumed token or -1 if the stream is empty
+	 */
+	public int readRightIndex() {
+		this.closeEnd();
+		return this.isEmpty() ? -1 : --this.rightIndexExcl;
+	}
+
 	public void unreadLeft() {
 		if (this.leftIndex > 0) {
 			this.leftIndex--;
 		}
 	}
-	
+
+	/**
+	 * Build a Token (snapshot) of the token at position
+	 */
 	public Token peekAt(int position) {
-		return this.tokens.get(position);
+		Token token = new Token(getTerminal(position), getSymbol(position), getValue(position));
+		token.negated = isNegated(position);
+		token.openGroupIndex = getOpenGroupIndex(position);
+		token.closeGroupIndex = getCloseGroupIndex(position);
+		token.syntaxSubtree = getSyntaxSubtree(position);
+		return token;
 	}
-		
+
 	/**
 	 * For ambiguous streams,
 	 * must remember where we were
@@ -82,30 +457,147 @@ public class TokenStream {
 	public void setRightIndexExcl(int position) {
 		this.rightIndexExcl = position;
 	}
-	 
+
 	public boolean isEmpty() {
+		if (this.rightIndexExcl == OPEN_END) {
+			// The stream ends where the Lexer stops
+			return !this.fill(this.leftIndex);
+		}
 	    return this.rightIndexExcl == this.leftIndex;
 	}
-	 
+
 	public int length() {
-	    return this.rightIndexExcl - this.leftIndex;
+	    return this.endIndexExcl() - this.leftIndex;
 	}
-	
+
+
+	/****************
+	 * Token data
+	 ****************/
+
+	/**
+	 * @return Terminal of the token, EMPTY if it has been erased during parsing
+	 */
+	public Terminal getTerminal(int position) {
+		if ((this.store.getFlags(position) & FLAG_ERASED) != 0) {
+			return Terminal.EMPTY;
+		}
+		return terminals[this.store.getTerminal(position)];
+	}
+	public Symbol getSymbol(int position) {
+		int id = this.store.getSymbol(position);
+		if (id < 0 || TokenStore.isLiteral[this.store.getTerminal(position)]) {
+			return null;
+		}
+		return this.symbolTable.get(id);
+	}
+	/**
+	 * @return literal decoded by the Lexer, null for other tokens
+	 */
+	public Constant getConstant(int position) {
+		if (!TokenStore.isLiteral[this.store.getTerminal(position)]) {
+			return null;
+		}
+		return this.symbolTable.getConstantPool().get(this.store.getSymbol(position));
+	}
+	/**
+	 * @return text of a literal or Terminal.exactString
+	 * 		or null for symbols
+	 */
+	public String getValue(int position) {
+		Terminal t = terminals[this.store.getTerminal(position)];
+		if (t.type != null) {
+			return this.getConstant(position).getText();
+		}
+		if (this.store.getSymbol(position) >= 0) {
+			// Stored as symbol
+			return null;
+		}
+		// All non-literals inherit their value from the rule
+		return t.exactString;
+	}
+	public int getStart(int position) {
+		return this.store.getStart(position);
+	}
+	public int getTextLength(int position) {
+		return this.store.getLength(position);
+	}
+
+
+	/****************
+	 * Parse-time marks
+	 ****************/
+
+	/**
+	 * Clear a token from the stream (its Terminal becomes EMPTY)
+	 */
+	public void erase(int position) {
+		this.store.setFlags(position, (byte) (this.store.getFlags(position) | FLAG_ERASED));
+	}
+	public boolean isNegated(int position) {
+		return (this.store.getFlags(position) & FLAG_NEGATED) != 0;
+	}
+	public void setNegated(int position, boolean negated) {
+		byte f = this.store.getFlags(position);
+		this.store.setFlags(position, (byte) (negated ? (f | FLAG_NEGATED) : (f & ~FLAG_NEGATED)));
+	}
+
+	/**
+	 * Groups (paren, curly, square brackets)
+	 * Mark the opener of a group, its closer is not known yet
+	 */
+	public void markGroupOpen(int openPosition) {
+		this.store.setFlags(openPosition, (byte) ((this.store.getFlags(openPosition) & ~FLAG_GROUP_CLOSE) | FLAG_GROUP_OPEN));
+		this.store.setPartner(openPosition, -1);
+	}
+	/**
+	 * Link the opener and closer of a group
+	 */
+	public void markGroupClose(int openPosition, int closePosition) {
+		this.store.setFlags(closePosition, (byte) ((this.store.getFlags(closePosition) & ~FLAG_GROUP_OPEN) | FLAG_GROUP_CLOSE));
+		this.store.setPartner(openPosition, closePosition);
+		this.store.setPartner(closePosition, openPosition);
+	}
+	/**
+	 * @return index of the group opener or -1 if not in a group
+	 */
+	public int getOpenGroupIndex(int position) {
+		byte f = this.store.getFlags(position);
+		if ((f & FLAG_GROUP_OPEN) != 0) return position;
+		if ((f & FLAG_GROUP_CLOSE) != 0) return this.store.getPartner(position);
+		return -1;
+	}
+	/**
+	 * @return index of the group closer or -1 if not (yet) known
+	 */
+	public int getCloseGroupIndex(int position) {
+		byte f = this.store.getFlags(position);
+		if ((f & FLAG_GROUP_OPEN) != 0) return this.store.getPartner(position);
+		if ((f & FLAG_GROUP_CLOSE) != 0) return position;
+		return -1;
+	}
+
+	/**
+	 * During parsing, pointer to syntax subtree is stored here
+	 */
+	public Node getSyntaxSubtree(int position) {
+		return this.store.getSyntaxSubtree(position);
+	}
+	public void setSyntaxSubtree(int position, Node subtree) {
+		this.store.setSyntaxSubtree(position, subtree);
+	}
+
 	@Override
 	public String toString() {
-		return toString(this.leftIndex, this.rightIndexExcl);
+		return toString(this.leftIndex, this.endIndexExcl());
 	}
 	public String toString(int startPosition, int endPosition) {
-		int originalLeft = this.getLeftIndex();
-		int originalRight = this.getRightIndexExcl();
-		this.setLeftIndex(startPosition);
+		this.fill(endPosition - 1);
+		endPosition = Math.min(endPosition, this.size);
 		StringBuilder sb = new StringBuilder();
 		for (int i = startPosition; i < endPosition; i++) {
-			Token item = this.tokens.get(i);
-			sb.append(item.toString(i) + "\n");
+			sb.append(this.peekAt(i).toString(i) + "\n");
 		}
-		this.setLeftIndex(originalLeft);
-		this.setRightIndexExcl(originalRight);
 		return sb.toString();
 	}
 }
\ No newline at end of file
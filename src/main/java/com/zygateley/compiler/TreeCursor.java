@@ -0,0 +1,179 @@
+package com.zygateley.compiler;
+
+/**
+ * Position in a syntax tree that is moved without allocating,
+ * for walks over every node of a tree.
+ *
+ * The cursor stays within the subtree it was reset to:
+ * it never moves above the root or onto the root's siblings.
+ * Links are followed as they are at the time of each move,
+ * so the tree may be changed under the cursor,
+ * as long as the current node stays in the subtree.
+ *
+ * One cursor can be reset and reused for any number of walks.
+ *
+ * Pre-order:
+ * 		cursor.reset(root);
+ * 		do { ... cursor.node() ... } while (cursor.next());
+ * Post-order:
+ * 		cursor.reset(root).firstLeaf();
+ * 		do { ... cursor.node() ... } while (cursor.nextPostOrder());
+ *
+ * @author Zachary Gateley
+ *
+ */
+public final class TreeCursor {
+	private NodeArena arena;
+	private int root = NodeArena.NONE;
+	private int current = NodeArena.NONE;
+	// Levels below root
+	private int depth = 0;
+
+	public TreeCursor() {
+	}
+	public TreeCursor(Node root) {
+		this.reset(root);
+	}
+
+	/**
+	 * Move to root, and walk only its subtree from now on
+	 *
+	 * @param root
+	 * @return this cursor
+	 */
+	public TreeCursor reset(Node root) {
+		this.arena = root.getArena();
+		this.root = this.current = root.getId();
+		this.depth = 0;
+		return this;
+	}
+
+	public Node node() {
+		return this.arena.node(this.current);
+	}
+	public Construct getConstruct() {
+		return this.node().getConstruct();
+	}
+	public int getChildCount() {
+		return this.arena.getChildCount(this.current);
+	}
+	/**
+	 * @return levels between the current node and the root
+	 */
+	public int depth() {
+		return this.depth;
+	}
+	public boolean isAtRoot() {
+		return this.current == this.root;
+	}
+
+	/**
+	 * Move down to the first child, if there is one
+	 * @return true if moved
+	 */
+	public boolean firstChild() {
+		int child = this.arena.getFirstChild(this.current);
+		if (child == NodeArena.NONE) {
+			return false;
+		}
+		this.current = child;
+		this.depth++;
+		return true;
+	}
+	/**
+	 * Move down to the last child, if there is one
+	 * @return true if moved
+	 */
+	public boolean lastChild() {
+		int child = this.arena.getLastChild(this.current);
+		if (child == NodeArena.NONE) {
+			return false;
+		}
+		this.current = child;
+		this.depth++;
+		return true;
+	}
+	/**
+	 * Move right to the next sibling, if there is one (and this is not the root)
+	 * @return true if moved
+	 */
+	public boolean nextSibling() {
+		if (this.current == this.root) {
+			return false;
+		}
+		int sibling = this.arena.getNextSibling(this.current);
+		if (sibling == NodeArena.NONE) {
+			return false;
+		}
+		this.current = sibling;
+		return true;
+	}
+	/**
+	 * Move left to the previous sibling, if there is one (and this is not the root)
+	 * @return true if moved
+	 */
+	public boolean previousSibling() {
+		if (this.current == this.root) {
+			return false;
+		}
+		int sibling = this.arena.getPreviousSibling(this.current);
+		if (sibling == NodeArena.NONE) {
+			return false;
+		}
+		this.current = sibling;
+		return true;
+	}
+	/**
+	 * Move up to the parent, unless this is the root
+	 * @return true if moved
+	 */
+	public boolean ascend() {
+		if (this.current == this.root) {
+			return false;
+		}
+		this.current = this.arena.getParent(this.current);
+		this.depth--;
+		return true;
+	}
+
+	/**
+	 * Move to the next node in pre-order,
+	 * each node before its children
+	 * @return false if the walk is over
+	 */
+	public boolean next() {
+		return this.firstChild() || this.skipSubtree();
+	}
+	/**
+	 * Move to the next node in pre-order
+	 * that is not within the current node's subtree
+	 * @return false if the walk is over
+	 */
+	public boolean skipSubtree() {
+		while (!this.nextSibling()) {
+			if (!this.ascend()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Move down to the first leaf, the first node in post-order
+	 */
+	public void firstLeaf() {
+		while (this.firstChild());
+	}
+	/**
+	 * Move to the next node in post-order,
+	 * each node after its children
+	 * @return false if the walk is over
+	 */
+	public boolean nextPostOrder() {
+		if (this.nextSibling()) {
+			this.firstLeaf();
+			return true;
+		}
+		return this.ascend();
+	}
+}
@@ -1,188 +1,364 @@
 package com.zygateley.compiler;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
 public enum TypeSystem {
 	BOOLEAN,
 	INTEGER,
 	STRING;
-	
+
 	/**
-	 * Crawl tree (depth first) and assign types to data and calculations.
+	 * Infer the types of every variable and expression in the tree,
+	 * without assigning them yet (see TypeInference.assign).
 	 * If types are mismatched, throw a syntax error.
+	 *
+	 * Types are solved before anything is assembled,
+	 * so a variable has the same type wherever it is read,
+	 * even if the read comes before its assignment in the tree.
+	 * Function calls may pass any types,
+	 * each signature gets its own function (see Monomorphizer),
+	 * whose parameters are bound to the types of its signature.
+	 * The back ends only read the assigned types.
+	 *
 	 * @param syntaxTree
-	 * @return
+	 * @param parameterTypes type of every bound function parameter
+	 * @return solved types of the tree
+	 */
+	static TypeInference infer(Node syntaxTree, Map<Variable, TypeSystem> parameterTypes) throws SyntaxError {
+		TypeInference inference = new TypeInference(syntaxTree, parameterTypes);
+		inference.solve();
+		return inference;
+	}
+
+	/**
+	 * Types of one tree, solved with a worklist.
+	 *
+	 * Every node has a type (null until known),
+	 * computed by its Construct from the types of its children,
+	 * and every variable has one type for all of its assignments:
+	 * 		VARDECL, VARSET		the assigned value
+	 * 		INPUT				STRING
+	 * 		LOOP (for)			INTEGER
+	 * 		function parameter	the type it is bound to, if any
+	 * A type only goes from null to known;
+	 * two different known types for the same variable are an error.
+	 *
+	 * When a node's type becomes known, its parent is evaluated again.
+	 * When a variable's type becomes known, every node of that variable is.
+	 * The worklist is empty at the fixed point.
 	 */
-	public static void typeAssignAndCheck(Node syntaxTree) throws SyntaxError {
-		// Process depth first
-		for (Node subtree : syntaxTree) {
-			typeAssignAndCheck(subtree);
-		}
-		
-		Construct basicElement = syntaxTree.getConstruct();
-		Node leftChild = syntaxTree.getFirstChild();
-		Node nextChild = (leftChild == null ? null : leftChild.getNextSibling());
-		TypeSystem leftType = (leftChild == null ? null : leftChild.getType());
-		TypeSystem nextType = (nextChild == null ? null : nextChild.getType());
-		Symbol symbol;
-		switch (basicElement) {
-		case SCOPE:
-			break;
-		case LOOP:
+	static final class TypeInference implements ConstructVisitor<TypeSystem, SyntaxError> {
+		private final Node syntaxTree;
+		// Nodes in post-order, each after its children
+		private final ArrayList<Node> nodes = new ArrayList<>();
+		// Types by node id
+		private final TypeSystem[] nodeTypes;
+		private final HashMap<Variable, TypeSystem> variableTypes = new HashMap<>();
+		// Nodes of each variable
+		private final HashMap<Variable, ArrayList<Node>> variableNodes = new HashMap<>();
+		// Definition of each function
+		private final HashMap<Symbol, Node> functions = new HashMap<>();
+
+		private final ArrayDeque<Node> worklist = new ArrayDeque<>();
+		private final boolean[] queued;
+
+		// First two children of the node being evaluated, and their types
+		private Node leftChild;
+		private Node nextChild;
+		private TypeSystem leftType;
+		private TypeSystem nextType;
+
+		TypeInference(Node syntaxTree, Map<Variable, TypeSystem> parameterTypes) throws SyntaxError {
+			this.syntaxTree = syntaxTree;
+			int size = syntaxTree.getArena().size();
+			this.nodeTypes = new TypeSystem[size];
+			this.queued = new boolean[size];
+			this.variableTypes.putAll(parameterTypes);
+
+			TreeCursor cursor = new TreeCursor(syntaxTree);
+			cursor.firstLeaf();
+			do {
+				Node node = cursor.node();
+				this.nodes.add(node);
+				Variable variable = node.getVariable();
+				if (variable != null && Construct.VARIABLE.equals(node.getConstruct())) {
+					this.variableNodes.computeIfAbsent(variable, v -> new ArrayList<>()).add(node);
+				}
+				if (Construct.FUNCDEF.equals(node.getConstruct())) {
+					this.addFunction(node);
+				}
+			} while (cursor.nextPostOrder());
+		}
+
+		private void addFunction(Node functionDefinition) throws SyntaxError {
+			Node leftChild = functionDefinition.getFirstChild();
+			Symbol symbol = (leftChild == null ? null : leftChild.getSymbol());
+			if (leftChild == null || symbol == null) {
+				fatalError("No name found for function at " + functionDefinition);
+			}
+			if (leftChild.getNextSibling() == null) {
+				fatalError("Bad function definition at " + functionDefinition);
+			}
+			symbol.setIsFunction(true);
+			this.functions.put(symbol, functionDefinition);
+		}
+
+		void solve() throws SyntaxError {
+			for (Node node : this.nodes) {
+				this.enqueue(node);
+			}
+			while (!this.worklist.isEmpty()) {
+				Node node = this.worklist.poll();
+				this.queued[node.getId()] = false;
+				this.evaluate(node);
+			}
+		}
+
+		/**
+		 * Assign the solved types to the nodes, variables and function parameters,
+		 * then check the conditions, whose types must now be known
+		 */
+		void assign() throws SyntaxError {
+			for (Node node : this.nodes) {
+				TypeSystem type = this.nodeTypes[node.getId()];
+				if (type != null) {
+					node.setType(type);
+				}
+			}
+			for (Variable variable : this.variableTypes.keySet()) {
+				variable.setType(this.variableTypes.get(variable));
+			}
+			for (Node node : this.nodes) {
+				if (Construct.FUNCDEF.equals(node.getConstruct())) {
+					Symbol symbol = node.getFirstChild().getSymbol();
+					symbol.clearParameters();
+					int parameterCount = node.getChildCount() - 2;
+					Node parameter = node.getFirstChild().getNextSibling();
+					for (int i = 0; i < parameterCount; i++) {
+						symbol.addParameter(this.typeOf(parameter));
+						parameter = parameter.getNextSibling();
+					}
+				}
+				else if (Construct.IF.equals(node.getConstruct())) {
+					Node condition = node.getFirstChild();
+					if (condition == null || this.typeOf(condition) != BOOLEAN) {
+						fatalError("Mismatched types at " + node);
+					}
+					if (condition.getNextSibling() == null) {
+						fatalError("If command has no body at " + node);
+					}
+				}
+			}
+		}
+
+		private void enqueue(Node node) {
+			if (node != null && !this.queued[node.getId()]) {
+				this.queued[node.getId()] = true;
+				this.worklist.add(node);
+			}
+		}
+
+		TypeSystem typeOf(Node node) {
+			return (node == null ? null : this.nodeTypes[node.getId()]);
+		}
+
+		private void evaluate(Node node) throws SyntaxError {
+			Node leftChild = node.getFirstChild();
+			Node nextChild = (leftChild == null ? null : leftChild.getNextSibling());
+			this.leftChild = leftChild;
+			this.nextChild = nextChild;
+			this.leftType = this.typeOf(leftChild);
+			this.nextType = this.typeOf(nextChild);
+
+			TypeSystem type = this.visit(node);
+			TypeSystem previous = this.nodeTypes[node.getId()];
+			if (type != null && type != previous) {
+				if (previous != null) {
+					fatalError("Incorrect operand types on " + node);
+				}
+				this.nodeTypes[node.getId()] = type;
+				if (node != this.syntaxTree) {
+					// Operand of its parent
+					this.enqueue(node.getParent());
+				}
+			}
+		}
+
+		/**
+		 * Add one assignment to the type of a variable
+		 *
+		 * @param variable assigned
+		 * @param type of the assigned value, or null if not known yet
+		 * @param at node of the variable, for the error
+		 */
+		private void assignVariable(Variable variable, TypeSystem type, Node at) throws SyntaxError {
+			if (variable == null || type == null) {
+				return;
+			}
+			TypeSystem variableType = this.variableTypes.get(variable);
+			if (variableType == type) {
+				return;
+			}
+			if (variableType != null) {
+				fatalError("Variable %s was initially declared as %s but is trying to be assigned type %s", variable.getSymbol(), variableType, type);
+			}
+			this.variableTypes.put(variable, type);
+			ArrayList<Node> variableNodes = this.variableNodes.get(variable);
+			if (variableNodes != null) {
+				for (Node node : variableNodes) {
+					this.enqueue(node);
+				}
+			}
+		}
+
+		@Override
+		public TypeSystem visitDefault(Node syntaxTree) {
+			// SCOPE
+			return null;
+		}
+		@Override
+		public TypeSystem visitLoop(Node syntaxTree) throws SyntaxError {
+			Node leftChild = this.leftChild;
 			if (syntaxTree.getChildCount() == 2) {
 				// While loop
 			}
 			else {
-				TypeSystem type = leftChild.getType();
+				Variable variable = leftChild.getVariable();
+				TypeSystem type = this.variableTypes.get(variable);
 				if (type != null && type != INTEGER) {
 					fatalError(String.format("Bad loop variable type %s (%s)", leftChild.getSymbol(), type));
 				}
-				leftChild.getVariable().setType(INTEGER);
-			}
-			break;
-		case IF:
-			if (leftChild == null || leftChild.getType() != BOOLEAN) {
-				fatalError("Mismatched types at " + syntaxTree);
+				this.assignVariable(variable, INTEGER, leftChild);
 			}
-			if (nextChild == null) {
-				fatalError("If command has no body at " + syntaxTree);
-			}
-			break;
-		case FUNCDEF:
-			symbol = (leftChild == null ? null : leftChild.getSymbol());
-			if (leftChild == null || symbol == null) {
-				fatalError("No name found for function at " + syntaxTree);
-			}
-			if (nextChild == null) {
-				fatalError("Bad function definition at " + syntaxTree);
+			return null;
+		}
+		@Override
+		public TypeSystem visitVariableDeclaration(Node syntaxTree) throws SyntaxError {
+			if (this.nextChild != null) {
+				this.assignVariable(this.leftChild.getVariable(), this.nextType, this.leftChild);
 			}
-			
-			// Set variable information
-			symbol.setIsFunction(true);
-			int parameterCount = syntaxTree.getChildCount() - 2;
-			for (int i = 0; i < parameterCount; i++) {
-				symbol.addParameter(nextChild.getType());
-				nextChild = nextChild.getNextSibling();
-			}
-			break;
-		case VARDECL:
-			if (nextChild != null && nextChild.getType() != null) {
-				leftChild.setType(nextChild.getType());
-			}
-			break;
-		case VARSET:
+			return null;
+		}
+		@Override
+		public TypeSystem visitVariableSet(Node syntaxTree) throws SyntaxError {
+			Node leftChild = this.leftChild;
 			if (leftChild == null || leftChild.getVariable() == null) {
 				fatalError("Bad variable definition at " + syntaxTree);
 			}
-			if (nextChild == null) {
+			if (this.nextChild == null) {
 				fatalError("No variable contents in variable definition at " + syntaxTree);
 			}
-			Variable variable = leftChild.getVariable();
-			TypeSystem variableType = variable.getType();
-			TypeSystem assignType = nextChild.getType();
-			if (variableType != null && assignType != null && !assignType.equals(variableType)) {
-				fatalError("Variable %s was initially declared as %s but is trying to be assigned type %s", variable.getSymbol(), variableType, assignType);
-			}
-			
-			leftChild.setType(assignType);
-			variable.setType(assignType);
-			break;
-		case FUNCCALL:
-			symbol = (leftChild == null ? null : leftChild.getSymbol());
-			if (leftChild == null || symbol == null || !symbol.isFunction()) {
+			this.assignVariable(leftChild.getVariable(), this.nextType, leftChild);
+			return null;
+		}
+		@Override
+		public TypeSystem visitFunctionCall(Node syntaxTree) throws SyntaxError {
+			Node leftChild = this.leftChild;
+			Symbol symbol = (leftChild == null ? null : leftChild.getSymbol());
+			Node functionDefinition = (symbol == null ? null : this.functions.get(symbol));
+			if (leftChild == null || symbol == null || !symbol.isFunction() || functionDefinition == null) {
 				fatalError("Cannot call " + symbol+ ". It is not a function.");
 			}
 			int argumentCount = syntaxTree.getChildCount() - 1;
-			if (symbol.getParameterCount() != argumentCount) {
+			if (functionDefinition.getChildCount() - 2 != argumentCount) {
 				fatalError("Incorrect number of parameters on call to " + symbol + ".");
 			}
-			for (int i = 0; i < argumentCount; i++) {
-				if (nextChild.getType() != symbol.getParameter(i)) {
-					fatalError("Incorrect type for argument %d in call to " + symbol, i);
-				}
-			}
-			break;
-		case OUTPUT:
-		case INPUT:
-			if (leftChild == null) {
+			return null;
+		}
+		@Override
+		public TypeSystem visitOutput(Node syntaxTree) throws SyntaxError {
+			if (this.leftChild == null) {
 				fatalError("No operand at " + syntaxTree);
 			}
-			break;
-		case ADD:
-			if (leftChild == null || nextChild == null) {
-				fatalError("Incorrect number of operand for operation " + syntaxTree);
-			}
-			// Allow automatic string promotion for concatenation
-			if (leftType == STRING || nextType == STRING) {
-				syntaxTree.setType(STRING);
-			}
-			else if (leftType != null && nextType != null && leftType != nextType) {
-				fatalError("Incorrect operand types on " + syntaxTree);
-			}
-			break;
-		case SUB:
-		case MULT:
-		case INTDIV:
-			if (leftChild == null || nextChild == null) {
-				fatalError("Incorrect number of operands for operation " + syntaxTree);
-			}
-			if (leftType != null && nextType != null && leftType != nextType) {
-				fatalError("Incorrect operand types on " + syntaxTree);
-			}
-			
-			// Good to go
-			syntaxTree.setType((leftType != null ? leftType : nextType));
-			break;
-		case AND:
-		case OR:
-			if (leftChild == null || nextChild == null) {
-				fatalError("Incorrect number of operands for operation " + syntaxTree);
-			}
-			if (leftType != null && leftType != BOOLEAN ||
-					nextType != null && nextType != BOOLEAN) {
-				fatalError("Incorrect operand types on " + syntaxTree);
-			}
-			
-			// Good to go
-			syntaxTree.setType(BOOLEAN);
-			break;
-		case EQEQ:
-		case NEQ:
-		case LT:
-		case GT:
-		case LTEQ:
-		case GTEQ:
-			if (leftChild == null || nextChild == null) {
-				fatalError("Incorrect number of operands for operation " + syntaxTree);
-			}
-			if (leftType != null && nextType != null && leftType != nextType) {
-				fatalError("Incorrect operand types on " + syntaxTree);
+			return null;
+		}
+		@Override
+		public TypeSystem visitInput(Node syntaxTree) throws SyntaxError {
+			this.visitOutput(syntaxTree);
+			// Input always received as string
+			this.assignVariable(this.leftChild.getVariable(), STRING, this.leftChild);
+			return null;
+		}
+		@Override
+		public TypeSystem visitBinaryOperator(Node syntaxTree) throws SyntaxError {
+			TypeSystem leftType = this.leftType;
+			TypeSystem nextType = this.nextType;
+			switch (syntaxTree.getConstruct()) {
+			case ADD:
+				if (this.leftChild == null || this.nextChild == null) {
+					fatalError("Incorrect number of operand for operation " + syntaxTree);
+				}
+				// Allow automatic string promotion for concatenation
+				if (leftType == STRING || nextType == STRING) {
+					return STRING;
+				}
+				else if (leftType != null && nextType != null && leftType != nextType) {
+					fatalError("Incorrect operand types on " + syntaxTree);
+				}
+				// Unknown until both operands are, either could be a STRING
+				return (leftType != null && nextType != null) ? leftType : null;
+			case SUB:
+			case MULT:
+			case INTDIV:
+				if (this.leftChild == null || this.nextChild == null) {
+					fatalError("Incorrect number of operands for operation " + syntaxTree);
+				}
+				if (leftType != null && nextType != null && leftType != nextType) {
+					fatalError("Incorrect operand types on " + syntaxTree);
+				}
+
+				// Good to go
+				return (leftType != null ? leftType : nextType);
+			case AND:
+			case OR:
+				if (this.leftChild == null || this.nextChild == null) {
+					fatalError("Incorrect number of operands for operation " + syntaxTree);
+				}
+				if (leftType != null && leftType != BOOLEAN ||
+						nextType != null && nextType != BOOLEAN) {
+					fatalError("Incorrect operand types on " + syntaxTree);
+				}
+
+				// Good to go
+				return BOOLEAN;
+			default:
+				// Comparisons
+				if (this.leftChild == null || this.nextChild == null) {
+					fatalError("Incorrect number of operands for operation " + syntaxTree);
+				}
+				if (leftType != null && nextType != null && leftType != nextType) {
+					fatalError("Incorrect operand types on " + syntaxTree);
+				}
+
+				// Good to go
+				return BOOLEAN;
 			}
-			
-			// Good to go
-			syntaxTree.setType(BOOLEAN);
-			break;
-		case NOT:
-			if (leftChild == null || nextChild != null) {
+		}
+		@Override
+		public TypeSystem visitNot(Node syntaxTree) throws SyntaxError {
+			if (this.leftChild == null || this.nextChild != null) {
 				fatalError("Incorrect number of operands for operation " + syntaxTree);
 			}
-			if (leftType != null && leftType != BOOLEAN) {
+			if (this.leftType != null && this.leftType != BOOLEAN) {
 				fatalError("Incorrect operand type on " + syntaxTree);
 			}
-			
-			syntaxTree.setType(BOOLEAN);
-			break;
-		case FALSE:
-		case TRUE:
-		case LITERAL:
-			syntaxTree.setType(syntaxTree.getToken().type);
-			break;
-		case VARIABLE:
-			// Set by VARDEF
-			break;
-		default:
-			break;
+
+			return BOOLEAN;
+		}
+		@Override
+		public TypeSystem visitValue(Node syntaxTree) {
+			if (syntaxTree.getConstruct() != Construct.VARIABLE) {
+				// FALSE, TRUE, LITERAL
+				return syntaxTree.getToken().type;
+			}
+			// Every node of a variable has its type
+			return this.variableTypes.get(syntaxTree.getVariable());
 		}
 	}
-	
+
 	private static void fatalError(String message, Object... args) throws SyntaxError {
 		if (args != null) {
 			message = String.format(message, args);
@@ -8,6 +8,8 @@ public class Variable {
 	public TypeSystem type;
 	private int stackIndex = -1;
 	private Scope scope = null;
+	// Index in the TokenStream of the token declaring this variable (-1 if none)
+	private int declaredAt = -1;
 	public final static Variable NONE = new Variable();
 	
 	public Variable() {
@@ -51,6 +53,14 @@ public class Variable {
 		this.stackIndex = stackIndex;
 	}
 	
+	public int getDeclaredAt() {
+		return this.declaredAt;
+	}
+	
+	public void setDeclaredAt(int position) {
+		this.declaredAt = position;
+	}
+	
 	public Symbol getSymbol() {
 		return this.symbol;
 	}
@@ -0,0 +1,133 @@
+package com.zygateley.compiler;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Programs too long or too deeply nested to be compiled by recursion,
+ * compiled on the default thread stack size:
+ * 		lexed, parsed and optimized, type checked and specialized, and folded,
+ * 		by Application.compile (also with the parse and optimization fused)
+ * 		then assembled, and translated to Python
+ *
+ * @author Zachary Gateley
+ *
+ */
+class LargeProgramTest {
+	private static final int STATEMENTS = 100_000;
+	private static final int DEPTH = 10_000;
+
+	@Test
+	void compilesHundredThousandStatements() throws Exception {
+		StringBuilder source = new StringBuilder();
+		source.append("var x = 0;\nvar s = \"\";\nvar b = false;\n");
+		source.append("var put;\nvar p;\nvar q;\n");
+		source.append("function put(p, q) { echo p + q; }\n");
+		for (int i = 0; i < STATEMENTS; i++) {
+			switch (i % 6) {
+			case 0:
+				source.append("x = x + ").append(i % 7).append(";\n");
+				break;
+			case 1:
+				source.append("s = \"n\" + x;\n");
+				break;
+			case 2:
+				source.append("b = x < ").append(i).append(";\n");
+				break;
+			case 3:
+				source.append("if (b) { x = x - 1; }\n");
+				break;
+			case 4:
+				source.append("put(s, b);\n");
+				break;
+			default:
+				source.append("put(x, ").append(i).append(");\n");
+				break;
+			}
+		}
+
+		SymbolTable symbolTable = new SymbolTable();
+		Node syntaxTree = compile(source.toString(), symbolTable, false);
+		assertEquals(STATEMENTS / 6 * 2, count(syntaxTree, Construct.FUNCCALL));
+		String assembly = new Assembler(syntaxTree, symbolTable, GoAsm.class).assemble();
+		assertTrue(assembly.contains("; function put_INTEGER_INTEGER"));
+		String python = new PythonTranslator(syntaxTree).toPython();
+		assertTrue(python.contains("def put_INTEGER_INTEGER(p, q):"));
+
+		Node fusedTree = compile(source.toString(), new SymbolTable(), true);
+		assertEquals(STATEMENTS / 6 * 2, count(fusedTree, Construct.FUNCCALL));
+	}
+
+	@Test
+	void compilesTenThousandNestedBlocks() throws Exception {
+		StringBuilder source = new StringBuilder("var x = 1;\nvar y = 0;\n");
+		for (int i = 0; i < DEPTH; i++) {
+			if (i % 2 == 0) {
+				source.append("if (x < ").append(i).append(") { x = x + y;\n");
+			}
+			else {
+				source.append("for (y = 0 to x) { x = x - y;\n");
+			}
+		}
+		source.append("echo x;\n");
+		for (int i = 0; i < DEPTH; i++) {
+			source.append("}\n");
+		}
+
+		SymbolTable symbolTable = new SymbolTable();
+		Node syntaxTree = compile(source.toString(), symbolTable, false);
+		assertEquals(DEPTH / 2, count(syntaxTree, Construct.IF));
+		assertEquals(DEPTH / 2, count(syntaxTree, Construct.LOOP));
+		String assembly = new Assembler(syntaxTree, symbolTable, GoAsm.class).assemble();
+		assertFalse(assembly.isEmpty());
+
+		Node fusedTree = compile(source.toString(), new SymbolTable(), true);
+		assertEquals(DEPTH / 2, count(fusedTree, Construct.IF));
+		assertEquals(DEPTH / 2, count(fusedTree, Construct.LOOP));
+	}
+
+	@Test
+	void compilesTenThousandNestedParentheses() throws Exception {
+		StringBuilder source = new StringBuilder("var y;\ninput y;\necho ");
+		source.append("(".repeat(DEPTH)).append("y");
+		for (int i = 0; i < DEPTH; i++) {
+			source.append(" + y)");
+		}
+		source.append(";\nvar n;\nfor (n = 0 to 2) {\necho ");
+		source.append("(".repeat(DEPTH)).append("n");
+		for (int i = 0; i < DEPTH; i++) {
+			source.append(i % 2 == 0 ? " * n)" : " - n)");
+		}
+		source.append(";\n}\n");
+
+		SymbolTable symbolTable = new SymbolTable();
+		Node syntaxTree = compile(source.toString(), symbolTable, false);
+		String assembly = new Assembler(syntaxTree, symbolTable, GoAsm.class).assemble();
+		assertFalse(assembly.isEmpty());
+		String python = new PythonTranslator(syntaxTree).toPython();
+		assertTrue(python.contains("(".repeat(DEPTH) + "y + y)"));
+		assertTrue(python.contains("(".repeat(DEPTH) + "n * n)"));
+	}
+
+	private static Node compile(String code, SymbolTable symbolTable, boolean fuseParseAndOptimize) throws Exception {
+		SourceBuffer source = SourceBuffer.wrap(code);
+		Node syntaxTree = Application.compile(source, new TokenStream(source, symbolTable), symbolTable, false, fuseParseAndOptimize);
+		assertNotNull(syntaxTree);
+		return syntaxTree;
+	}
+
+	/**
+	 * @return number of nodes of construct in the tree
+	 */
+	private static int count(Node syntaxTree, Construct construct) {
+		int count = 0;
+		TreeCursor cursor = new TreeCursor(syntaxTree);
+		do {
+			if (construct.equals(cursor.getConstruct())) {
+				count++;
+			}
+		} while (cursor.next());
+		return count;
+	}
+}
@@ -0,0 +1,86 @@
+package com.zygateley.compiler;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.HashMap;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Specialization of functions by the signatures of their calls,
+ * compiled by Application.compile:
+ * every call must name a definition in the tree
+ * whose parameters all have concrete types
+ *
+ * @author Zachary Gateley
+ *
+ */
+class MonomorphizerTest {
+
+	@Test
+	void specializesSelfRecursiveFunction() throws Exception {
+		Node syntaxTree = compile("var rec;\nvar n;\n"
+				+ "function rec(n) { if (n < 3) { rec(n + 1); } echo n; }\n"
+				+ "rec(0);\n");
+		HashMap<Symbol, Node> definitions = checkCalls(syntaxTree);
+		assertEquals(1, definitions.size());
+	}
+
+	@Test
+	void specializesSelfRecursiveFunctionBySignature() throws Exception {
+		Node syntaxTree = compile("var rec;\nvar n;\nvar m;\n"
+				+ "function rec(n, m) { if (m < 2) { rec(n + n, m + 1); } echo n; }\n"
+				+ "rec(1, 0);\nrec(\"a\", 0);\n");
+		HashMap<Symbol, Node> definitions = checkCalls(syntaxTree);
+		assertEquals(2, definitions.size());
+	}
+
+	@Test
+	void dropsFunctionOnlyCalledByItself() throws Exception {
+		Node syntaxTree = compile("var rec;\nvar n;\n"
+				+ "function rec(n) { if (n < 3) { rec(n + 1); } echo n; }\n"
+				+ "echo 1;\n");
+		HashMap<Symbol, Node> definitions = checkCalls(syntaxTree);
+		assertTrue(definitions.isEmpty());
+	}
+
+	private static Node compile(String code) throws Exception {
+		SymbolTable symbolTable = new SymbolTable();
+		SourceBuffer source = SourceBuffer.wrap(code);
+		Node syntaxTree = Application.compile(source, new TokenStream(source, symbolTable), symbolTable, false, false);
+		assertNotNull(syntaxTree);
+		return syntaxTree;
+	}
+
+	/**
+	 * Check that every definition in the tree has concrete parameter types,
+	 * and that every call names one of them
+	 *
+	 * @return definition of each function, by Symbol
+	 */
+	private static HashMap<Symbol, Node> checkCalls(Node syntaxTree) {
+		HashMap<Symbol, Node> definitions = new HashMap<>();
+		TreeCursor cursor = new TreeCursor(syntaxTree);
+		do {
+			Node node = cursor.node();
+			if (Construct.FUNCDEF.equals(node.getConstruct())) {
+				Node body = node.getLastChild();
+				for (Node parameter = node.getFirstChild().getNextSibling(); parameter != body; parameter = parameter.getNextSibling()) {
+					assertNotNull(parameter.getVariable().getType());
+				}
+				assertNull(definitions.put(node.getFirstChild().getSymbol(), node));
+			}
+		} while (cursor.next());
+
+		cursor.reset(syntaxTree);
+		do {
+			Node node = cursor.node();
+			if (Construct.FUNCCALL.equals(node.getConstruct())) {
+				Node definition = definitions.get(node.getFirstChild().getSymbol());
+				assertNotNull(definition);
+				assertEquals(definition.getChildCount() - 2, node.getChildCount() - 1);
+			}
+		} while (cursor.next());
+		return definitions;
+	}
+}